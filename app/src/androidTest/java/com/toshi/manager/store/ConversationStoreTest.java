@@ -0,0 +1,196 @@
+package com.toshi.manager.store;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.toshi.model.local.Conversation;
+import com.toshi.model.local.ConversationSummary;
+import com.toshi.model.local.Group;
+import com.toshi.model.local.Recipient;
+import com.toshi.model.sofa.SofaMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.realm.Realm;
+import io.realm.RealmConfiguration;
+import io.realm.Sort;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class ConversationStoreTest {
+
+    private static final int HISTORY_SIZE = 10000;
+    private static final int NUM_APPENDS = 100;
+
+    private Realm realm;
+    private Recipient recipient;
+
+    @Before
+    public void setup() {
+        Realm.init(InstrumentationRegistry.getTargetContext());
+        final RealmConfiguration config = new RealmConfiguration
+                .Builder()
+                .name("conversation-store-test")
+                .inMemory()
+                .build();
+        this.realm = Realm.getInstance(config);
+        this.recipient = new Recipient(new Group(new ArrayList<>()).setTitle("Benchmark"));
+    }
+
+    @After
+    public void tearDown() {
+        this.realm.close();
+    }
+
+    @Test
+    public void appendedMessageBecomesLatestMessage() {
+        final SofaMessage message = new SofaMessage().makeNew("SOFA::Message:{\"body\":\"Hello\"}");
+        final List<SofaMessage> savedMessages = new ArrayList<>();
+        this.realm.beginTransaction();
+        final Conversation storedConversation =
+                ConversationStore.appendMessage(this.realm, this.recipient, message, false, savedMessages);
+        this.realm.commitTransaction();
+
+        assertThat(storedConversation.getLatestMessage().getPrivateKey(), is(message.getPrivateKey()));
+        assertThat(storedConversation.getNumberOfUnread(), is(1));
+        assertThat(savedMessages.get(savedMessages.size() - 1), is(message));
+    }
+
+    @Test
+    public void appendingSameMessageTwiceStoresItOnce() {
+        final SofaMessage message = new SofaMessage().makeNew("SOFA::Message:{\"body\":\"Hello\"}");
+        this.realm.beginTransaction();
+        ConversationStore.appendMessage(this.realm, this.recipient, message, true, new ArrayList<>());
+        final Conversation storedConversation =
+                ConversationStore.appendMessage(this.realm, this.recipient, message, true, new ArrayList<>());
+        this.realm.commitTransaction();
+
+        assertThat(storedConversation.getAllMessages().size(), is(2)); // Includes the timestamp message
+        assertThat(storedConversation.getNumberOfUnread(), is(0));
+    }
+
+    @Test
+    public void summaryMatchesStoredConversation() {
+        final SofaMessage message = new SofaMessage().makeNew("SOFA::Message:{\"body\":\"Hello\"}");
+        this.realm.beginTransaction();
+        final Conversation storedConversation =
+                ConversationStore.appendMessage(this.realm, this.recipient, message, false, new ArrayList<>());
+        this.realm.commitTransaction();
+
+        final ConversationSummary summary = ConversationStore.toSummary(this.realm, storedConversation);
+        assertThat(summary.getThreadId(), is(this.recipient.getThreadId()));
+        assertThat(summary.getLatestMessage().getPrivateKey(), is(message.getPrivateKey()));
+        assertThat(summary.getNumberOfUnread(), is(1));
+    }
+
+    // Appending to a long conversation has to beat copying the whole conversation out and back in
+    @Test
+    public void appendIsFasterThanDeepCopyWithLongHistory() {
+        createConversationWithHistory();
+
+        final long deepCopyStart = System.nanoTime();
+        for (int i = 0; i < NUM_APPENDS; i++) {
+            saveByDeepCopy(new SofaMessage().makeNew("SOFA::Message:{\"body\":\"Copy\"}"));
+        }
+        final long deepCopyNanos = System.nanoTime() - deepCopyStart;
+
+        SofaMessage lastAppended = null;
+        Conversation storedConversation = null;
+        final long appendStart = System.nanoTime();
+        for (int i = 0; i < NUM_APPENDS; i++) {
+            lastAppended = new SofaMessage().makeNew("SOFA::Message:{\"body\":\"Append\"}");
+            this.realm.beginTransaction();
+            storedConversation = ConversationStore.appendMessage(
+                    this.realm,
+                    this.recipient,
+                    lastAppended,
+                    false,
+                    new ArrayList<>());
+            this.realm.commitTransaction();
+            ConversationStore.toSummary(this.realm, storedConversation);
+        }
+        final long appendNanos = System.nanoTime() - appendStart;
+
+        assertThat(storedConversation.getLatestMessage().getPrivateKey(), is(lastAppended.getPrivateKey()));
+        assertThat(appendNanos, is(lessThan(deepCopyNanos)));
+    }
+
+    @Test
+    public void summariesAreSortedByLatestActivity() {
+        final Recipient otherRecipient = new Recipient(new Group(new ArrayList<>()).setTitle("Other"));
+        this.realm.beginTransaction();
+        ConversationStore.appendMessage(this.realm, this.recipient, new SofaMessage().makeNew("SOFA::Message:{}"), false, new ArrayList<>());
+        final SofaMessage latestMessage = new SofaMessage().makeNew("SOFA::Message:{}");
+        ConversationStore.appendMessage(this.realm, otherRecipient, latestMessage, false, new ArrayList<>());
+        this.realm.commitTransaction();
+
+        final List<ConversationSummary> summaries = ConversationStore.loadAllSummaries(this.realm);
+        assertThat(summaries.size(), is(2));
+        assertThat(summaries.get(0).getThreadId(), is(otherRecipient.getThreadId()));
+        assertThat(summaries.get(0).getLatestMessage(), is(latestMessage));
+    }
+
+    // Loading the inbox from summaries has to beat copying every conversation with its history
+    @Test
+    public void summariesAreFasterThanFullCopyForInbox() {
+        final int numConversations = 500;
+        final int messagesPerConversation = 2000;
+        for (int i = 0; i < numConversations; i++) {
+            final Recipient recipient = new Recipient(new Group(new ArrayList<>()).setTitle("Group " + i));
+            createConversationWithHistory(recipient, messagesPerConversation);
+        }
+
+        final long fullCopyStart = System.nanoTime();
+        final List<Conversation> conversations = this.realm.copyFromRealm(this.realm
+                .where(Conversation.class)
+                .findAllSorted("updatedTime", Sort.DESCENDING));
+        final long fullCopyNanos = System.nanoTime() - fullCopyStart;
+
+        final long summariesStart = System.nanoTime();
+        final List<ConversationSummary> summaries = ConversationStore.loadAllSummaries(this.realm);
+        final long summariesNanos = System.nanoTime() - summariesStart;
+
+        assertThat(conversations.size(), is(numConversations));
+        assertThat(summaries.size(), is(numConversations));
+        assertThat(summariesNanos, is(lessThan(fullCopyNanos)));
+    }
+
+    private void createConversationWithHistory() {
+        createConversationWithHistory(this.recipient, HISTORY_SIZE);
+    }
+
+    private void createConversationWithHistory(final Recipient recipient, final int numMessages) {
+        final Conversation conversation = new Conversation(recipient);
+        for (int i = 0; i < numMessages; i++) {
+            conversation.addMessage(new SofaMessage().makeNew("SOFA::Message:{\"body\":\"" + i + "\"}"));
+        }
+        this.realm.beginTransaction();
+        this.realm.copyToRealmOrUpdate(conversation);
+        this.realm.commitTransaction();
+    }
+
+    // The previous save path, which copied the whole conversation out of and back into Realm
+    private void saveByDeepCopy(final SofaMessage message) {
+        final Conversation conversation = this.realm.copyFromRealm(this.realm
+                .where(Conversation.class)
+                .equalTo("threadId", this.recipient.getThreadId())
+                .findFirst());
+        this.realm.beginTransaction();
+        final SofaMessage storedMessage = this.realm.copyToRealmOrUpdate(message);
+        conversation.setLatestMessageAndUpdateUnreadCounter(storedMessage);
+        final Conversation storedConversation = this.realm.copyToRealmOrUpdate(conversation);
+        this.realm.commitTransaction();
+        this.realm.copyFromRealm(storedConversation);
+    }
+}
@@ -20,6 +20,7 @@ package com.toshi.crypto;
 
 import android.support.annotation.Nullable;
 
+import com.toshi.crypto.db.ByteArrayWrapper;
 import com.toshi.crypto.jce.ECKeyAgreement;
 import com.toshi.crypto.jce.ECKeyFactory;
 import com.toshi.crypto.jce.ECKeyPairGenerator;
@@ -54,7 +55,9 @@ import org.spongycastle.jce.spec.ECPrivateKeySpec;
 import org.spongycastle.jce.spec.ECPublicKeySpec;
 import org.spongycastle.math.ec.ECAlgorithms;
 import org.spongycastle.math.ec.ECCurve;
+import org.spongycastle.math.ec.ECMultiplier;
 import org.spongycastle.math.ec.ECPoint;
+import org.spongycastle.math.ec.FixedPointCombMultiplier;
 import org.spongycastle.util.BigIntegers;
 import org.spongycastle.util.encoders.Base64;
 import org.spongycastle.util.encoders.Hex;
@@ -75,6 +78,10 @@ import java.security.SignatureException;
 import java.security.interfaces.ECPublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import javax.crypto.KeyAgreement;
 
@@ -100,6 +107,26 @@ public class ECKey implements Serializable {
     private static final SecureRandom secureRandom;
     private static final long serialVersionUID = -728224901792295832L;
 
+    /**
+     * Fixed-base comb multiplier used for every multiplication of the generator. The comb table for G
+     * is computed on first use and cached on the generator point, so later multiplications only
+     * perform table lookups and additions.
+     */
+    private static final ECMultiplier BASE_POINT_MULTIPLIER = new FixedPointCombMultiplier();
+
+    // Batches at or below this size are verified one signature at a time
+    private static final int MIN_BATCH_SIZE = 4;
+
+    // Decoded public points of recently seen keys, so repeat verifications skip point decompression
+    private static final int PUBLIC_POINT_CACHE_SIZE = 128;
+    private static final Map<ByteArrayWrapper, ECPoint> publicPointCache =
+            new LinkedHashMap<ByteArrayWrapper, ECPoint>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<ByteArrayWrapper, ECPoint> eldest) {
+                    return size() > PUBLIC_POINT_CACHE_SIZE;
+                }
+            };
+
     static {
         // All clients must agree on the curve to use by agreement. Ethereum uses secp256k1.
         X9ECParameters params = SECNamedCurves.getByName("secp256k1");
@@ -278,7 +305,7 @@ public class ECKey implements Serializable {
      * @return  -
      */
     public static ECKey fromPrivate(BigInteger privKey) {
-        return new ECKey(privKey, CURVE.getG().multiply(privKey));
+        return new ECKey(privKey, multiplyGenerator(privKey));
     }
 
     /**
@@ -396,7 +423,7 @@ public class ECKey implements Serializable {
      * @return -
      */
     public static byte[] publicKeyFromPrivate(BigInteger privKey, boolean compressed) {
-        ECPoint point = CURVE.getG().multiply(privKey);
+        ECPoint point = multiplyGenerator(privKey);
         return point.getEncoded(compressed);
     }
 
@@ -717,8 +744,12 @@ public class ECKey implements Serializable {
      * @throws IllegalStateException if this ECKey does not have the private part.
      */
     public ECDSASignature sign(byte[] messageHash) {
+        if (privKey instanceof BCECPrivateKey) {
+            return signRecoverable(messageHash, ((BCECPrivateKey) privKey).getD());
+        }
+        // The provider hides the nonce point, so we have to work backwards to figure out
+        // the recId needed to recover the signature.
         ECDSASignature sig = doSign(messageHash);
-        // Now we have to work backwards to figure out the recId needed to recover the signature.
         int recId = -1;
         byte[] thisKey = this.pub.getEncoded(/* compressed */ false);
         for (int i = 0; i < 4; i++) {
@@ -734,6 +765,50 @@ public class ECKey implements Serializable {
         return sig;
     }
 
+    /**
+     * Deterministic (RFC 6979) ECDSA signing, producing the same canonical R and S as {@link #doSign(byte[])}.
+     * Because the nonce point R is at hand, the recovery id is read directly off it instead of being found
+     * by trial recovery, so signing costs a single (fixed-base) point multiplication.
+     */
+    private static ECDSASignature signRecoverable(final byte[] messageHash, final BigInteger d) {
+        if (messageHash.length != 32) {
+            throw new IllegalArgumentException("Expected 32 byte input to ECDSA signature, not " + messageHash.length);
+        }
+        final BigInteger n = CURVE.getN();
+        final BigInteger e = new BigInteger(1, messageHash);
+        final HMacDSAKCalculator kCalculator = new HMacDSAKCalculator(new SHA256Digest());
+        kCalculator.init(n, d, messageHash);
+
+        BigInteger r, s;
+        int recId;
+        do {
+            BigInteger k;
+            do {
+                k = kCalculator.nextK();
+                final ECPoint p = multiplyGenerator(k).normalize();
+                final BigInteger x = p.getAffineXCoord().toBigInteger();
+                r = x.mod(n);
+                // Bit 0: parity of R.y, bit 1: R.x overflowed the curve order
+                recId = (p.getAffineYCoord().testBitZero() ? 1 : 0) | (x.compareTo(n) >= 0 ? 2 : 0);
+            } while (r.signum() == 0);
+            s = k.modInverse(n).multiply(e.add(d.multiply(r))).mod(n);
+        } while (s.signum() == 0);
+
+        if (s.compareTo(HALF_CURVE_ORDER) > 0) {
+            // Negating s is the same as signing with -R, which flips the parity of R.y
+            s = n.subtract(s);
+            recId ^= 1;
+        }
+
+        final ECDSASignature sig = new ECDSASignature(r, s);
+        sig.v = (byte) (recId + 27);
+        return sig;
+    }
+
+    private static ECPoint multiplyGenerator(final BigInteger k) {
+        return BASE_POINT_MULTIPLIER.multiply(CURVE.getG(), k);
+    }
+
 
     /**
      * Given a piece of text and a message signature encoded in base64, returns an ECKey
@@ -913,7 +988,7 @@ public class ECKey implements Serializable {
      */
     public static boolean verify(byte[] data, ECDSASignature signature, byte[] pub) {
         ECDSASigner signer = new ECDSASigner();
-        ECPublicKeyParameters params = new ECPublicKeyParameters(CURVE.getCurve().decodePoint(pub), CURVE);
+        ECPublicKeyParameters params = new ECPublicKeyParameters(decodePublicPoint(pub), CURVE);
         signer.init(false, params);
         try {
             return signer.verifySignature(data, signature.r, signature.s);
@@ -922,6 +997,147 @@ public class ECKey implements Serializable {
         }
     }
 
+    /**
+     * <p>Verifies many signatures at once. Item {@code i} of the result is true if {@code sigs[i]} is a valid
+     * signature of {@code hashes[i]} by {@code pubs[i]}, exactly as {@link #verify(byte[], ECDSASignature, byte[])}
+     * would report it.</p>
+     *
+     * <p>Signatures carrying a recovery id (v) are checked together with randomized batch verification: the
+     * nonce point R of every signature is reconstructed and a single multi-scalar multiplication checks that
+     * a random linear combination of all the verification equations sums to the point at infinity. If a batch
+     * fails it is split in half and each half is retried, down to per-item verification, so the failing
+     * signatures are located without re-verifying the valid ones one by one.</p>
+     *
+     * @param hashes 32 byte hashes of the signed data.
+     * @param sigs signatures, ideally with v set as produced by {@link #sign(byte[])}.
+     * @param pubs encoded public keys.
+     * @return the verification result of every item.
+     */
+    public static boolean[] verifyBatch(List<byte[]> hashes, List<ECDSASignature> sigs, List<byte[]> pubs) {
+        check(hashes.size() == sigs.size() && sigs.size() == pubs.size(), "Batch lists must have the same size");
+        final boolean[] results = new boolean[hashes.size()];
+        verifyRange(hashes, sigs, pubs, 0, hashes.size(), results);
+        return results;
+    }
+
+    private static void verifyRange(final List<byte[]> hashes,
+                                    final List<ECDSASignature> sigs,
+                                    final List<byte[]> pubs,
+                                    final int from,
+                                    final int to,
+                                    final boolean[] results) {
+        if (to - from <= MIN_BATCH_SIZE) {
+            for (int i = from; i < to; i++) {
+                results[i] = verify(hashes.get(i), sigs.get(i), pubs.get(i));
+            }
+            return;
+        }
+        if (isValidBatch(hashes, sigs, pubs, from, to)) {
+            Arrays.fill(results, from, to, true);
+            return;
+        }
+        final int middle = (from + to) >>> 1;
+        verifyRange(hashes, sigs, pubs, from, middle, results);
+        verifyRange(hashes, sigs, pubs, middle, to, results);
+    }
+
+    /**
+     * Checks sum(a_i * (u1_i * G + u2_i * Q_i - R_i)) == O for random 128 bit a_i, where u1 = e/s and
+     * u2 = r/s. Terms for the same key and for G are merged, so the whole batch costs one multi-scalar
+     * multiplication. Returns false, rather than throwing, for anything that cannot be batched.
+     */
+    private static boolean isValidBatch(final List<byte[]> hashes,
+                                        final List<ECDSASignature> sigs,
+                                        final List<byte[]> pubs,
+                                        final int from,
+                                        final int to) {
+        final BigInteger n = CURVE.getN();
+        final int size = to - from;
+        final ECPoint[] points = new ECPoint[size + 1];
+        final BigInteger[] scalars = new BigInteger[size + 1];
+        final Map<ByteArrayWrapper, BigInteger> keyScalars = new HashMap<>();
+        BigInteger generatorScalar = BigInteger.ZERO;
+
+        try {
+            for (int i = from; i < to; i++) {
+                final byte[] hash = hashes.get(i);
+                final ECDSASignature sig = sigs.get(i);
+                if (hash.length != 32 || !isInSignatureRange(sig.r) || !isInSignatureRange(sig.s)) return false;
+
+                final ECPoint nonce = nonceFromSignature(sig);
+                if (nonce == null) return false;
+
+                final BigInteger a = i == from ? BigInteger.ONE : randomBatchCoefficient();
+                final BigInteger w = sig.s.modInverse(n);
+                final BigInteger u1 = new BigInteger(1, hash).multiply(w).mod(n);
+                final BigInteger u2 = sig.r.multiply(w).mod(n);
+
+                generatorScalar = generatorScalar.add(a.multiply(u1)).mod(n);
+                final ByteArrayWrapper key = new ByteArrayWrapper(pubs.get(i));
+                final BigInteger keyScalar = keyScalars.get(key);
+                final BigInteger term = a.multiply(u2);
+                keyScalars.put(key, keyScalar == null ? term.mod(n) : keyScalar.add(term).mod(n));
+
+                points[i - from] = nonce;
+                scalars[i - from] = n.subtract(a);
+            }
+        } catch (final IllegalArgumentException | ArithmeticException ex) {
+            return false;
+        }
+
+        points[size] = CURVE.getG();
+        scalars[size] = generatorScalar;
+
+        final ECPoint[] allPoints = Arrays.copyOf(points, size + 1 + keyScalars.size());
+        final BigInteger[] allScalars = Arrays.copyOf(scalars, size + 1 + keyScalars.size());
+        int index = size + 1;
+        for (final Map.Entry<ByteArrayWrapper, BigInteger> entry : keyScalars.entrySet()) {
+            try {
+                allPoints[index] = decodePublicPoint(entry.getKey().getData());
+            } catch (final IllegalArgumentException ex) {
+                return false;
+            }
+            allScalars[index] = entry.getValue();
+            index++;
+        }
+
+        return ECAlgorithms.sumOfMultiplies(allPoints, allScalars).isInfinity();
+    }
+
+    private static boolean isInSignatureRange(final BigInteger value) {
+        return value.signum() > 0 && value.compareTo(CURVE.getN()) < 0;
+    }
+
+    private static BigInteger randomBatchCoefficient() {
+        final BigInteger a = new BigInteger(128, secureRandom);
+        return a.signum() == 0 ? BigInteger.ONE : a;
+    }
+
+    // Rebuilds the nonce point R from r and the recovery id, or null if v does not carry one
+    @Nullable
+    private static ECPoint nonceFromSignature(final ECDSASignature sig) {
+        int header = sig.v;
+        if (header < 27 || header > 34) return null;
+        if (header >= 31) header -= 4;
+        final int recId = header - 27;
+        final BigInteger x = sig.r.add(BigInteger.valueOf(recId / 2).multiply(CURVE.getN()));
+        if (x.compareTo(((ECCurve.Fp) CURVE.getCurve()).getQ()) >= 0) return null;
+        return decompressKey(x, (recId & 1) == 1);
+    }
+
+    private static ECPoint decodePublicPoint(final byte[] pub) {
+        final ByteArrayWrapper key = new ByteArrayWrapper(pub);
+        synchronized (publicPointCache) {
+            final ECPoint cached = publicPointCache.get(key);
+            if (cached != null) return cached;
+        }
+        final ECPoint point = CURVE.getCurve().decodePoint(pub);
+        synchronized (publicPointCache) {
+            publicPointCache.put(new ByteArrayWrapper(pub.clone()), point);
+        }
+        return point;
+    }
+
     /**
      * Verifies the given ASN.1 encoded ECDSA signature against a hash using the public key.
      *
@@ -1035,7 +1251,9 @@ public class ECKey implements Serializable {
         // So it's encoded in the recId.
         ECPoint R = decompressKey(x, (recId & 1) == 1);
         //   1.4. If nR != point at infinity, then do another iteration of Step 1 (callers responsibility).
-        if (!R.multiply(n).isInfinity())
+        //        secp256k1 has cofactor 1, so every point on the curve has order n and the check
+        //        (a full scalar multiplication) can only fail for curves with a cofactor.
+        if (!CURVE.getH().equals(BigInteger.ONE) && !R.multiply(n).isInfinity())
             return null;
         //   1.5. Compute e from M using Steps 2 and 3 of ECDSA signature verification.
         BigInteger e = new BigInteger(1, messageHash);
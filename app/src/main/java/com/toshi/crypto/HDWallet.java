@@ -19,10 +19,12 @@ package com.toshi.crypto;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Build;
 import android.support.annotation.NonNull;
 
 import com.toshi.crypto.hdshim.EthereumKeyChainGroup;
 import com.toshi.crypto.keyStore.KeyStoreHandler;
+import com.toshi.crypto.util.ByteUtil;
 import com.toshi.crypto.util.TypeConverter;
 import com.toshi.exception.InvalidMasterSeedException;
 import com.toshi.exception.KeyStoreException;
@@ -39,6 +41,7 @@ import org.bitcoinj.wallet.UnreadableWalletException;
 import org.bitcoinj.wallet.Wallet;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 import rx.Single;
 
@@ -47,9 +50,15 @@ import static com.toshi.crypto.util.HashUtil.sha3;
 public class HDWallet {
 
     private static final String ALIAS = "MasterSeedAlias";
+    private static final String DERIVED_KEYS_ALIAS = "DerivedKeysAlias";
     private static final String MASTER_SEED = "ms";
+    private static final String DERIVED_KEYS = "dk";
+    // Bump when the derivation paths or the cache format change, to force a re-derivation
+    private static final String DERIVED_KEYS_VERSION = "1";
+    private static final String DERIVED_KEYS_SEPARATOR = ":";
 
     private SharedPreferences prefs;
+    private KeyStoreHandler keyStoreHandler;
     private ECKey identityKey;
     private ECKey paymentKey;
     private String masterSeed;
@@ -66,8 +75,11 @@ public class HDWallet {
         return Single.fromCallable(() -> {
             this.masterSeed = readMasterSeedFromStorage();
             if (this.masterSeed == null) throw new InvalidMasterSeedException(new Throwable("Master seed is null"));
+            if (readDerivedKeysFromStorage(this.masterSeed)) return this;
+
             final Wallet wallet = initFromMasterSeed(this.masterSeed);
             deriveKeysFromWallet(wallet);
+            saveDerivedKeysToStorage(this.masterSeed);
 
             return this;
         });
@@ -78,6 +90,7 @@ public class HDWallet {
         return Single.fromCallable(() -> {
             final Wallet wallet = generateNewWallet();
             deriveKeysFromWallet(wallet);
+            saveDerivedKeysToStorage(this.masterSeed);
 
             return this;
         });
@@ -110,6 +123,7 @@ public class HDWallet {
                 final Wallet wallet = constructFromSeed(seed);
                 deriveKeysFromWallet(wallet);
                 saveMasterSeedToStorage(masterSeed);
+                saveDerivedKeysToStorage(masterSeed);
                 return this;
             } catch (final UnreadableWalletException | MnemonicException e) {
                 throw new InvalidMasterSeedException(e);
@@ -218,8 +232,7 @@ public class HDWallet {
 
     private void saveMasterSeedToStorage(final String masterSeed) {
         try {
-            final KeyStoreHandler keyStoreHandler = new KeyStoreHandler(BaseApplication.get(), ALIAS);
-            final String encryptedMasterSeed = keyStoreHandler.encrypt(masterSeed);
+            final String encryptedMasterSeed = getKeyStoreHandler().encrypt(masterSeed);
             saveMasterSeed(encryptedMasterSeed);
             this.masterSeed = masterSeed;
         } catch (KeyStoreException e) {
@@ -235,15 +248,78 @@ public class HDWallet {
 
     private String readMasterSeedFromStorage() {
         try {
-            final KeyStoreHandler keyStoreHandler = new KeyStoreHandler(BaseApplication.get(), ALIAS);
             final String encryptedMasterSeed = this.prefs.getString(MASTER_SEED, null);
             if (encryptedMasterSeed == null) return null;
-            return keyStoreHandler.decrypt(encryptedMasterSeed, this::saveMasterSeed);
+            return getKeyStoreHandler().decrypt(encryptedMasterSeed, this::saveMasterSeed);
         } catch (KeyStoreException e) {
             throw new IllegalStateException(e);
         }
     }
 
+    // Caches the derived private keys so later starts can skip seed stretching and HD derivation.
+    // The cache is tied to the master seed it was derived from via a fingerprint of that seed.
+    private void saveDerivedKeysToStorage(final String masterSeed) {
+        if (masterSeed == null || this.identityKey == null || this.paymentKey == null) return;
+        try {
+            final String derivedKeys = DERIVED_KEYS_VERSION
+                    + DERIVED_KEYS_SEPARATOR + getSeedFingerprint(masterSeed)
+                    + DERIVED_KEYS_SEPARATOR + ByteUtil.toHexString(this.identityKey.getPrivKeyBytes())
+                    + DERIVED_KEYS_SEPARATOR + ByteUtil.toHexString(this.paymentKey.getPrivKeyBytes());
+            saveDerivedKeys(createDerivedKeysKeyStoreHandler().encrypt(derivedKeys));
+        } catch (final KeyStoreException e) {
+            // The cache is only an optimisation; the keys will be derived again next time
+            LogUtil.print(getClass(), "Unable to cache derived keys. " + e);
+        }
+    }
+
+    private void saveDerivedKeys(final String derivedKeys) {
+        this.prefs.edit()
+                .putString(DERIVED_KEYS, derivedKeys)
+                .apply();
+    }
+
+    private boolean readDerivedKeysFromStorage(final String masterSeed) {
+        final String encryptedDerivedKeys = this.prefs.getString(DERIVED_KEYS, null);
+        if (encryptedDerivedKeys == null) return false;
+        try {
+            final KeyStoreHandler keyStoreHandler = new KeyStoreHandler(BaseApplication.get(), DERIVED_KEYS_ALIAS);
+            final String derivedKeys = keyStoreHandler.decrypt(encryptedDerivedKeys, this::saveDerivedKeys);
+            final String[] parts = derivedKeys.split(DERIVED_KEYS_SEPARATOR);
+            if (parts.length != 4
+                    || !parts[0].equals(DERIVED_KEYS_VERSION)
+                    || !parts[1].equals(getSeedFingerprint(masterSeed))) {
+                return false;
+            }
+            this.identityKey = ECKey.fromPrivate(TypeConverter.StringHexToByteArray(parts[2]));
+            this.paymentKey = ECKey.fromPrivate(TypeConverter.StringHexToByteArray(parts[3]));
+            return true;
+        } catch (final Exception e) {
+            LogUtil.print(getClass(), "Ignoring unreadable derived key cache. " + e);
+            return false;
+        }
+    }
+
+    private String getSeedFingerprint(final String masterSeed) {
+        final byte[] seedHash = sha3(masterSeed.getBytes());
+        return ByteUtil.toHexString(Arrays.copyOf(seedHash, 8));
+    }
+
+    // The keystore cipher uses a fixed IV, so the cache gets its own key and a fresh one on every write;
+    // different data must never be encrypted under the same key.
+    private KeyStoreHandler createDerivedKeysKeyStoreHandler() throws KeyStoreException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            new KeyStoreHandler(BaseApplication.get(), DERIVED_KEYS_ALIAS).delete(DERIVED_KEYS_ALIAS);
+        }
+        return new KeyStoreHandler(BaseApplication.get(), DERIVED_KEYS_ALIAS);
+    }
+
+    private KeyStoreHandler getKeyStoreHandler() throws KeyStoreException {
+        if (this.keyStoreHandler == null) {
+            this.keyStoreHandler = new KeyStoreHandler(BaseApplication.get(), ALIAS);
+        }
+        return this.keyStoreHandler;
+    }
+
     public void clear() {
         this.prefs
                 .edit()
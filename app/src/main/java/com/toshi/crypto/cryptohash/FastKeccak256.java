@@ -0,0 +1,312 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.toshi.crypto.cryptohash;
+
+/**
+ * <p>Keccak-256 engine tuned for the hot hashing paths (request signing,
+ * transaction signing, address derivation). It produces the same output
+ * as {@link Keccak256} but keeps the whole 1600-bit state in local
+ * variables for the duration of a permutation, with every step of a
+ * round unrolled, and writes the final hash straight into the caller's
+ * buffer.</p>
+ *
+ * <p>Instances are not thread safe, but they are cheap to {@link #reset}
+ * and meant to be reused; see {@link com.toshi.crypto.util.HashUtil}
+ * which keeps one instance per thread. Hashing through
+ * {@link #digest(byte[], int, int)} does not allocate.</p>
+ */
+
+public class FastKeccak256 extends DigestEngine {
+
+    private static final int DIGEST_LENGTH = 32;
+    private static final int BLOCK_LENGTH = 200 - 2 * DIGEST_LENGTH;
+
+    private static final long[] RC = {
+            0x0000000000000001L, 0x0000000000008082L,
+            0x800000000000808AL, 0x8000000080008000L,
+            0x000000000000808BL, 0x0000000080000001L,
+            0x8000000080008081L, 0x8000000000008009L,
+            0x000000000000008AL, 0x0000000000000088L,
+            0x0000000080008009L, 0x000000008000000AL,
+            0x000000008000808BL, 0x800000000000008BL,
+            0x8000000000008089L, 0x8000000000008003L,
+            0x8000000000008002L, 0x8000000000000080L,
+            0x000000000000800AL, 0x800000008000000AL,
+            0x8000000080008081L, 0x8000000000008080L,
+            0x0000000080000001L, 0x8000000080008008L
+    };
+
+    private long[] A;
+
+    /**
+     * Create the engine.
+     */
+    public FastKeccak256()
+    {
+    }
+
+    private static long decodeLELong(byte[] buf, int off)
+    {
+        return (buf[off] & 0xFFL)
+                | ((buf[off + 1] & 0xFFL) << 8)
+                | ((buf[off + 2] & 0xFFL) << 16)
+                | ((buf[off + 3] & 0xFFL) << 24)
+                | ((buf[off + 4] & 0xFFL) << 32)
+                | ((buf[off + 5] & 0xFFL) << 40)
+                | ((buf[off + 6] & 0xFFL) << 48)
+                | ((buf[off + 7] & 0xFFL) << 56);
+    }
+
+    private static void encodeLELong(long val, byte[] buf, int off)
+    {
+        buf[off    ] = (byte) val;
+        buf[off + 1] = (byte)(val >>> 8);
+        buf[off + 2] = (byte)(val >>> 16);
+        buf[off + 3] = (byte)(val >>> 24);
+        buf[off + 4] = (byte)(val >>> 32);
+        buf[off + 5] = (byte)(val >>> 40);
+        buf[off + 6] = (byte)(val >>> 48);
+        buf[off + 7] = (byte)(val >>> 56);
+    }
+
+    protected void doInit()
+    {
+        A = new long[25];
+    }
+
+    protected void engineReset()
+    {
+        for (int i = 0; i < 25; i ++)
+            A[i] = 0;
+    }
+
+    /**
+     * XOR one block into the state and apply Keccak-f[1600].
+     * Lanes are named {@code aXY} for column {@code X} and row {@code Y},
+     * i.e. {@code aXY == A[X + 5 * Y]}.
+     */
+    protected void processBlock(byte[] data)
+    {
+        long a00 = A[ 0];
+        long a10 = A[ 1];
+        long a20 = A[ 2];
+        long a30 = A[ 3];
+        long a40 = A[ 4];
+        long a01 = A[ 5];
+        long a11 = A[ 6];
+        long a21 = A[ 7];
+        long a31 = A[ 8];
+        long a41 = A[ 9];
+        long a02 = A[10];
+        long a12 = A[11];
+        long a22 = A[12];
+        long a32 = A[13];
+        long a42 = A[14];
+        long a03 = A[15];
+        long a13 = A[16];
+        long a23 = A[17];
+        long a33 = A[18];
+        long a43 = A[19];
+        long a04 = A[20];
+        long a14 = A[21];
+        long a24 = A[22];
+        long a34 = A[23];
+        long a44 = A[24];
+
+        a00 ^= decodeLELong(data, 0);
+        a10 ^= decodeLELong(data, 8);
+        a20 ^= decodeLELong(data, 16);
+        a30 ^= decodeLELong(data, 24);
+        a40 ^= decodeLELong(data, 32);
+        a01 ^= decodeLELong(data, 40);
+        a11 ^= decodeLELong(data, 48);
+        a21 ^= decodeLELong(data, 56);
+        a31 ^= decodeLELong(data, 64);
+        a41 ^= decodeLELong(data, 72);
+        a02 ^= decodeLELong(data, 80);
+        a12 ^= decodeLELong(data, 88);
+        a22 ^= decodeLELong(data, 96);
+        a32 ^= decodeLELong(data, 104);
+        a42 ^= decodeLELong(data, 112);
+        a03 ^= decodeLELong(data, 120);
+        a13 ^= decodeLELong(data, 128);
+
+        long c0, c1, c2, c3, c4;
+        long d0, d1, d2, d3, d4;
+        long b00, b10, b20, b30, b40, b01, b11, b21, b31, b41, b02, b12, b22,
+                b32, b42, b03, b13, b23, b33, b43, b04, b14, b24, b34, b44;
+
+        for (int round = 0; round < 24; round ++) {
+            c0 = a00 ^ a01 ^ a02 ^ a03 ^ a04;
+            c1 = a10 ^ a11 ^ a12 ^ a13 ^ a14;
+            c2 = a20 ^ a21 ^ a22 ^ a23 ^ a24;
+            c3 = a30 ^ a31 ^ a32 ^ a33 ^ a34;
+            c4 = a40 ^ a41 ^ a42 ^ a43 ^ a44;
+            d0 = c4 ^ ((c1 << 1) | (c1 >>> 63));
+            d1 = c0 ^ ((c2 << 1) | (c2 >>> 63));
+            d2 = c1 ^ ((c3 << 1) | (c3 >>> 63));
+            d3 = c2 ^ ((c4 << 1) | (c4 >>> 63));
+            d4 = c3 ^ ((c0 << 1) | (c0 >>> 63));
+
+            a00 ^= d0;
+            a10 ^= d1;
+            a20 ^= d2;
+            a30 ^= d3;
+            a40 ^= d4;
+            a01 ^= d0;
+            a11 ^= d1;
+            a21 ^= d2;
+            a31 ^= d3;
+            a41 ^= d4;
+            a02 ^= d0;
+            a12 ^= d1;
+            a22 ^= d2;
+            a32 ^= d3;
+            a42 ^= d4;
+            a03 ^= d0;
+            a13 ^= d1;
+            a23 ^= d2;
+            a33 ^= d3;
+            a43 ^= d4;
+            a04 ^= d0;
+            a14 ^= d1;
+            a24 ^= d2;
+            a34 ^= d3;
+            a44 ^= d4;
+
+            b00 = a00;
+            b13 = (a01 << 36) | (a01 >>> 28);
+            b21 = (a02 << 3) | (a02 >>> 61);
+            b34 = (a03 << 41) | (a03 >>> 23);
+            b42 = (a04 << 18) | (a04 >>> 46);
+            b02 = (a10 << 1) | (a10 >>> 63);
+            b10 = (a11 << 44) | (a11 >>> 20);
+            b23 = (a12 << 10) | (a12 >>> 54);
+            b31 = (a13 << 45) | (a13 >>> 19);
+            b44 = (a14 << 2) | (a14 >>> 62);
+            b04 = (a20 << 62) | (a20 >>> 2);
+            b12 = (a21 << 6) | (a21 >>> 58);
+            b20 = (a22 << 43) | (a22 >>> 21);
+            b33 = (a23 << 15) | (a23 >>> 49);
+            b41 = (a24 << 61) | (a24 >>> 3);
+            b01 = (a30 << 28) | (a30 >>> 36);
+            b14 = (a31 << 55) | (a31 >>> 9);
+            b22 = (a32 << 25) | (a32 >>> 39);
+            b30 = (a33 << 21) | (a33 >>> 43);
+            b43 = (a34 << 56) | (a34 >>> 8);
+            b03 = (a40 << 27) | (a40 >>> 37);
+            b11 = (a41 << 20) | (a41 >>> 44);
+            b24 = (a42 << 39) | (a42 >>> 25);
+            b32 = (a43 << 8) | (a43 >>> 56);
+            b40 = (a44 << 14) | (a44 >>> 50);
+
+            a00 = b00 ^ (~b10 & b20);
+            a10 = b10 ^ (~b20 & b30);
+            a20 = b20 ^ (~b30 & b40);
+            a30 = b30 ^ (~b40 & b00);
+            a40 = b40 ^ (~b00 & b10);
+            a01 = b01 ^ (~b11 & b21);
+            a11 = b11 ^ (~b21 & b31);
+            a21 = b21 ^ (~b31 & b41);
+            a31 = b31 ^ (~b41 & b01);
+            a41 = b41 ^ (~b01 & b11);
+            a02 = b02 ^ (~b12 & b22);
+            a12 = b12 ^ (~b22 & b32);
+            a22 = b22 ^ (~b32 & b42);
+            a32 = b32 ^ (~b42 & b02);
+            a42 = b42 ^ (~b02 & b12);
+            a03 = b03 ^ (~b13 & b23);
+            a13 = b13 ^ (~b23 & b33);
+            a23 = b23 ^ (~b33 & b43);
+            a33 = b33 ^ (~b43 & b03);
+            a43 = b43 ^ (~b03 & b13);
+            a04 = b04 ^ (~b14 & b24);
+            a14 = b14 ^ (~b24 & b34);
+            a24 = b24 ^ (~b34 & b44);
+            a34 = b34 ^ (~b44 & b04);
+            a44 = b44 ^ (~b04 & b14);
+
+            a00 ^= RC[round];
+        }
+
+        A[ 0] = a00;
+        A[ 1] = a10;
+        A[ 2] = a20;
+        A[ 3] = a30;
+        A[ 4] = a40;
+        A[ 5] = a01;
+        A[ 6] = a11;
+        A[ 7] = a21;
+        A[ 8] = a31;
+        A[ 9] = a41;
+        A[10] = a02;
+        A[11] = a12;
+        A[12] = a22;
+        A[13] = a32;
+        A[14] = a42;
+        A[15] = a03;
+        A[16] = a13;
+        A[17] = a23;
+        A[18] = a33;
+        A[19] = a43;
+        A[20] = a04;
+        A[21] = a14;
+        A[22] = a24;
+        A[23] = a34;
+        A[24] = a44;
+    }
+
+    protected void doPadding(byte[] out, int off)
+    {
+        int ptr = flush();
+        byte[] buf = getBlockBuffer();
+        if ((ptr + 1) == buf.length) {
+            buf[ptr] = (byte)0x81;
+        } else {
+            buf[ptr] = (byte)0x01;
+            for (int i = ptr + 1; i < (buf.length - 1); i ++)
+                buf[i] = 0;
+            buf[buf.length - 1] = (byte)0x80;
+        }
+        processBlock(buf);
+        for (int i = 0; i < DIGEST_LENGTH; i += 8)
+            encodeLELong(A[i >>> 3], out, off + i);
+    }
+
+    public int getDigestLength()
+    {
+        return DIGEST_LENGTH;
+    }
+
+    public int getBlockLength()
+    {
+        return BLOCK_LENGTH;
+    }
+
+    public Digest copy()
+    {
+        final FastKeccak256 dst = new FastKeccak256();
+        System.arraycopy(A, 0, dst.A, 0, 25);
+        return copyState(dst);
+    }
+
+    public String toString()
+    {
+        return "Keccak-256";
+    }
+}
@@ -22,6 +22,8 @@ import com.toshi.crypto.HDWallet;
 import com.toshi.crypto.signal.model.SignalBootstrap;
 import com.toshi.crypto.signal.network.ChatInterface;
 import com.toshi.crypto.signal.store.ProtocolStore;
+import com.toshi.manager.network.ServerClock;
+import com.toshi.manager.network.SharedHttpClient;
 import com.toshi.manager.network.interceptor.LoggingInterceptor;
 import com.toshi.manager.network.interceptor.SigningInterceptor;
 import com.toshi.manager.network.interceptor.UserAgentInterceptor;
@@ -76,7 +78,7 @@ public final class ChatService extends SignalServiceAccountManager {
                         final String userAgent) {
         super(urls, user, password, userAgent);
         this.url = urls[0].getUrl();
-        this.client = new OkHttpClient.Builder();
+        this.client = SharedHttpClient.newBuilder();
         this.chatInterface = generateSignalInterface();
     }
 
@@ -140,8 +142,9 @@ public final class ChatService extends SignalServiceAccountManager {
             final SignedPreKeyRecord signedPreKey,
             final List<PreKeyRecord> preKeys) {
 
-        return this.chatInterface
-                .getTimestamp()
+        return ServerClock
+                .get()
+                .getServerTime(this.chatInterface.getTimestamp())
                 .subscribeOn(Schedulers.io())
                 .observeOn(Schedulers.io())
                 .flatMapCompletable(
@@ -20,6 +20,7 @@ package com.toshi.crypto.signal.model;
 
 import com.toshi.model.local.Group;
 
+import org.spongycastle.util.encoders.Hex;
 import org.whispersystems.libsignal.util.guava.Optional;
 import org.whispersystems.signalservice.api.messages.SignalServiceAttachment;
 import org.whispersystems.signalservice.api.messages.SignalServiceGroup;
@@ -72,6 +73,20 @@ public class DecryptedSignalMessage {
         return this.group != null && this.group.isPresent();
     }
 
+    public String getGroupId() {
+        if (!isGroup()) {
+            throw new IllegalStateException("Message does not contain a group");
+        }
+
+        return Hex.toHexString(this.group.get().getGroupId());
+    }
+
+    // Messages in the same conversation share this key: the group id for group messages,
+    // and the sender for everything else
+    public String getConversationKey() {
+        return isGroup() ? getGroupId() : getSource();
+    }
+
     public Single<Group> getGroup() {
         if (!isGroup()) {
             throw new IllegalStateException("Message does not contain a group");
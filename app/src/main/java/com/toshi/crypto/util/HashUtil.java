@@ -18,7 +18,7 @@
 package com.toshi.crypto.util;
 
 
-import com.toshi.crypto.cryptohash.Keccak256;
+import com.toshi.crypto.cryptohash.FastKeccak256;
 
 import org.spongycastle.util.Arrays;
 import org.whispersystems.signalservice.internal.util.Base64;
@@ -28,15 +28,56 @@ import java.security.SecureRandom;
 
 public class HashUtil {
 
+    public static final int SHA3_LENGTH = 32;
+
+    // One reusable Keccak state per thread; hashing never allocates a new digest
+    private static final ThreadLocal<FastKeccak256> keccak = new ThreadLocal<FastKeccak256>() {
+        @Override
+        protected FastKeccak256 initialValue() {
+            return new FastKeccak256();
+        }
+    };
+
     public static byte[] sha3omit12(byte[] input) {
         byte[] hash = sha3(input);
         return Arrays.copyOfRange(hash, 12, hash.length);
     }
 
     public static byte[] sha3(byte[] input) {
-        Keccak256 digest = new Keccak256();
-        digest.update(input);
-        return digest.digest();
+        return sha3(input, 0, input.length);
+    }
+
+    public static byte[] sha3(final byte[] input, final int offset, final int length) {
+        final byte[] out = new byte[SHA3_LENGTH];
+        sha3(input, offset, length, out, 0);
+        return out;
+    }
+
+    /**
+     * Hashes {@code length} bytes of {@code input} starting at {@code offset} and writes the
+     * 32 byte Keccak-256 hash into {@code out} at {@code outOffset}. Does not allocate.
+     *
+     * @return the number of bytes written to {@code out}
+     */
+    public static int sha3(final byte[] input,
+                           final int offset,
+                           final int length,
+                           final byte[] out,
+                           final int outOffset) {
+        final FastKeccak256 digest = getDigest();
+        digest.update(input, offset, length);
+        return digest.digest(out, outOffset, SHA3_LENGTH);
+    }
+
+    /**
+     * Returns this thread's reusable Keccak-256 digest, reset and ready for
+     * {@link FastKeccak256#update(byte[], int, int)}. Callers must finish the
+     * hash with one of the {@code digest} methods before calling back into HashUtil.
+     */
+    public static FastKeccak256 getDigest() {
+        final FastKeccak256 digest = keccak.get();
+        digest.reset();
+        return digest;
     }
 
     public static String getSecret(final int size) {
@@ -0,0 +1,252 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.toshi.crypto.util;
+
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * Flyweight, read-only view over a single RLP encoded item or list.
+ *
+ * A view only holds a reference to the encoded bytes and the bounds of one element.
+ * Nothing is decoded up front; children are located by walking their headers when
+ * asked for, and payload bytes are only copied by the typed accessors that have to
+ * return a new object. Use {@link #getPayloadOffset()} and {@link #getPayloadLength()}
+ * to read a payload in place, e.g. to hash it with {@link HashUtil}.
+ */
+public class RlpView {
+
+    private static final int OFFSET_SHORT_ITEM = 0x80;
+    private static final int OFFSET_LONG_ITEM = 0xb7;
+    private static final int OFFSET_SHORT_LIST = 0xc0;
+    private static final int OFFSET_LONG_LIST = 0xf7;
+
+    private final byte[] data;
+    private final int offset;
+    private final int length;
+    private final int payloadOffset;
+    private final int payloadLength;
+    private final boolean isList;
+
+    /**
+     * Creates a view of the RLP element starting at the beginning of {@code data}.
+     */
+    public RlpView(final byte[] data) {
+        this(data, 0);
+    }
+
+    /**
+     * Creates a view of the RLP element starting at {@code offset} in {@code data}.
+     */
+    public RlpView(final byte[] data, final int offset) {
+        if (data == null || offset < 0 || offset >= data.length) {
+            throw new RuntimeException("RLP wrong encoding: no element at offset " + offset);
+        }
+        final int prefix = data[offset] & 0xFF;
+        this.data = data;
+        this.offset = offset;
+        this.isList = prefix >= OFFSET_SHORT_LIST;
+
+        if (prefix < OFFSET_SHORT_ITEM) {
+            // Single byte is its own encoding
+            this.payloadOffset = offset;
+            this.payloadLength = 1;
+        } else if (prefix <= OFFSET_LONG_ITEM) {
+            this.payloadOffset = offset + 1;
+            this.payloadLength = prefix - OFFSET_SHORT_ITEM;
+        } else if (prefix < OFFSET_SHORT_LIST) {
+            final int lengthOfLength = prefix - OFFSET_LONG_ITEM;
+            this.payloadOffset = offset + 1 + lengthOfLength;
+            this.payloadLength = readLength(data, offset + 1, lengthOfLength);
+        } else if (prefix <= OFFSET_LONG_LIST) {
+            this.payloadOffset = offset + 1;
+            this.payloadLength = prefix - OFFSET_SHORT_LIST;
+        } else {
+            final int lengthOfLength = prefix - OFFSET_LONG_LIST;
+            this.payloadOffset = offset + 1 + lengthOfLength;
+            this.payloadLength = readLength(data, offset + 1, lengthOfLength);
+        }
+
+        this.length = this.payloadOffset - offset + this.payloadLength;
+        if (this.payloadLength < 0 || offset + this.length > data.length) {
+            throw new RuntimeException("RLP wrong encoding: element at offset " + offset + " exceeds input");
+        }
+    }
+
+    public boolean isList() {
+        return this.isList;
+    }
+
+    /**
+     * @return the number of children of this list
+     */
+    public int size() {
+        assertList();
+        int count = 0;
+        final int end = this.payloadOffset + this.payloadLength;
+        for (int pos = this.payloadOffset; pos < end; pos = nextElement(pos)) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return a view of the child at {@code index}; only the view itself is allocated
+     */
+    public RlpView slice(final int index) {
+        return new RlpView(this.data, childOffset(index));
+    }
+
+    /**
+     * @return a copy of the payload of the child item at {@code index}
+     */
+    public byte[] getBytes(final int index) {
+        return slice(index).getBytes();
+    }
+
+    /**
+     * @return the payload of the child item at {@code index} as an unsigned integer
+     */
+    public BigInteger getBigInteger(final int index) {
+        return slice(index).getBigInteger();
+    }
+
+    /**
+     * @return the payload of the child item at {@code index} as an unsigned long
+     */
+    public long getLong(final int index) {
+        return slice(index).getLong();
+    }
+
+    /**
+     * @return a copy of this item's payload
+     */
+    public byte[] getBytes() {
+        assertItem();
+        return Arrays.copyOfRange(this.data, this.payloadOffset, this.payloadOffset + this.payloadLength);
+    }
+
+    /**
+     * @return this item's payload as an unsigned integer; an empty payload is zero
+     */
+    public BigInteger getBigInteger() {
+        assertItem();
+        if (this.payloadLength < 8) return BigInteger.valueOf(getLong());
+        return new BigInteger(1, getBytes());
+    }
+
+    /**
+     * @return this item's payload as an unsigned long
+     */
+    public long getLong() {
+        assertItem();
+        if (this.payloadLength > 8) {
+            throw new RuntimeException("RLP item of " + this.payloadLength + " bytes does not fit in a long");
+        }
+        long value = 0;
+        for (int i = 0; i < this.payloadLength; i++) {
+            value = (value << 8) | (this.data[this.payloadOffset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * @return the array backing this view; never modify it
+     */
+    public byte[] getData() {
+        return this.data;
+    }
+
+    /**
+     * @return the offset of this element's header in {@link #getData()}
+     */
+    public int getOffset() {
+        return this.offset;
+    }
+
+    /**
+     * @return the encoded length of this element, header included
+     */
+    public int getLength() {
+        return this.length;
+    }
+
+    public int getPayloadOffset() {
+        return this.payloadOffset;
+    }
+
+    public int getPayloadLength() {
+        return this.payloadLength;
+    }
+
+    private int childOffset(final int index) {
+        assertList();
+        if (index < 0) throw new IndexOutOfBoundsException("Negative index not allowed");
+        final int end = this.payloadOffset + this.payloadLength;
+        int pos = this.payloadOffset;
+        for (int i = 0; i < index && pos < end; i++) {
+            pos = nextElement(pos);
+        }
+        if (pos >= end) throw new IndexOutOfBoundsException("No RLP element at index " + index);
+        return pos;
+    }
+
+    // Returns the offset just past the element starting at pos, without decoding it
+    private int nextElement(final int pos) {
+        final int prefix = this.data[pos] & 0xFF;
+        final int next;
+        if (prefix < OFFSET_SHORT_ITEM) {
+            next = pos + 1;
+        } else if (prefix <= OFFSET_LONG_ITEM) {
+            next = pos + 1 + prefix - OFFSET_SHORT_ITEM;
+        } else if (prefix < OFFSET_SHORT_LIST) {
+            final int lengthOfLength = prefix - OFFSET_LONG_ITEM;
+            next = pos + 1 + lengthOfLength + readLength(this.data, pos + 1, lengthOfLength);
+        } else if (prefix <= OFFSET_LONG_LIST) {
+            next = pos + 1 + prefix - OFFSET_SHORT_LIST;
+        } else {
+            final int lengthOfLength = prefix - OFFSET_LONG_LIST;
+            next = pos + 1 + lengthOfLength + readLength(this.data, pos + 1, lengthOfLength);
+        }
+        if (next > this.payloadOffset + this.payloadLength || next <= pos) {
+            throw new RuntimeException("RLP wrong encoding: element at offset " + pos + " exceeds its list");
+        }
+        return next;
+    }
+
+    private static int readLength(final byte[] data, final int pos, final int lengthOfLength) {
+        if (lengthOfLength > 4 || pos + lengthOfLength > data.length) {
+            throw new RuntimeException("RLP wrong encoding: invalid length of length " + lengthOfLength);
+        }
+        int length = 0;
+        for (int i = 0; i < lengthOfLength; i++) {
+            length = (length << 8) | (data[pos + i] & 0xFF);
+        }
+        return length;
+    }
+
+    private void assertList() {
+        if (!this.isList) throw new IllegalStateException("RLP element is not a list");
+    }
+
+    private void assertItem() {
+        if (this.isList) throw new IllegalStateException("RLP element is a list, not an item");
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.toshi.crypto.util;
+
+
+import java.math.BigInteger;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.spongycastle.util.BigIntegers.asUnsignedByteArray;
+
+/**
+ * Two pass RLP encoder producing output byte-identical to {@link RLP#encode(Object)}.
+ *
+ * The first pass walks the tree once and computes the exact encoded length, remembering
+ * the payload length of every list it meets. The second pass writes headers and payloads
+ * straight into a single preallocated buffer, so no intermediate arrays are built and no
+ * bytes are copied more than once.
+ *
+ * Accepts the same inputs as {@link RLP#encode(Object)} (byte[], String, Integer, Long,
+ * BigInteger, Value and Object[] lists of those) as well as {@link RLPItem} and
+ * {@link RLPList} trees.
+ */
+public class RlpWriter {
+
+    private static final int SIZE_THRESHOLD = 56;
+    private static final int OFFSET_SHORT_ITEM = 0x80;
+    private static final int OFFSET_SHORT_LIST = 0xc0;
+
+    // Payload length of every list in the tree, in the order the lists are visited
+    private int[] listLengths = new int[8];
+    private int listCount;
+    private int listCursor;
+
+    private RlpWriter() {}
+
+    /**
+     * @return the RLP encoding of {@code input} in a newly allocated array of exactly the right size
+     */
+    public static byte[] encode(final Object input) {
+        final RlpWriter writer = new RlpWriter();
+        final byte[] out = new byte[writer.measure(input)];
+        writer.write(input, ByteBuffer.wrap(out));
+        return out;
+    }
+
+    /**
+     * Writes the RLP encoding of {@code input} into {@code out} starting at its current position.
+     *
+     * @return the number of bytes written
+     * @throws BufferOverflowException if {@code out} has less than
+     * {@link #encodedLength(Object)} bytes remaining; nothing is written in that case
+     */
+    public static int encode(final Object input, final ByteBuffer out) {
+        final RlpWriter writer = new RlpWriter();
+        final int length = writer.measure(input);
+        if (out.remaining() < length) throw new BufferOverflowException();
+        writer.write(input, out);
+        return length;
+    }
+
+    /**
+     * Writes the RLP encoding of {@code input} into {@code out} at {@code offset}.
+     *
+     * @return the number of bytes written
+     */
+    public static int encode(final Object input, final byte[] out, final int offset) {
+        return encode(input, ByteBuffer.wrap(out, offset, out.length - offset));
+    }
+
+    /**
+     * @return the exact number of bytes {@link #encode(Object)} would produce for {@code input}
+     */
+    public static int encodedLength(final Object input) {
+        return new RlpWriter().measure(input);
+    }
+
+    private int measure(final Object input) {
+        this.listCount = 0;
+        return lengthOf(input);
+    }
+
+    private void write(final Object input, final ByteBuffer out) {
+        this.listCursor = 0;
+        writeValue(input, out);
+    }
+
+    /* ******************************************************
+     *                 PASS 1: MEASURING                    *
+     * ******************************************************/
+
+    private int lengthOf(final Object input) {
+        final Object value = unwrap(input);
+        if (isList(value)) {
+            final int index = reserveListSlot();
+            int payloadLength = 0;
+            if (value instanceof RLPList) {
+                for (final RLPElement element : (RLPList) value) payloadLength += lengthOf(element);
+            } else {
+                for (final Object element : (Object[]) value) payloadLength += lengthOf(element);
+            }
+            this.listLengths[index] = payloadLength;
+            return headerLength(payloadLength) + payloadLength;
+        }
+        return elementLength(value);
+    }
+
+    private int reserveListSlot() {
+        if (this.listCount == this.listLengths.length) {
+            this.listLengths = Arrays.copyOf(this.listLengths, this.listLengths.length * 2);
+        }
+        return this.listCount++;
+    }
+
+    private static int elementLength(final Object value) {
+        if (value instanceof byte[]) {
+            return bytesLength((byte[]) value);
+        }
+        if (isNonNegativeLong(value)) {
+            final long number = ((Number) value).longValue();
+            final int length = unsignedLength(number);
+            return isSingleByte(length, number) ? 1 : headerLength(length) + length;
+        }
+        if (value instanceof BigInteger && ((BigInteger) value).signum() >= 0) {
+            final BigInteger number = (BigInteger) value;
+            final int length = (number.bitLength() + 7) / 8;
+            return isSingleByte(length, number.intValue()) ? 1 : headerLength(length) + length;
+        }
+        return bytesLength(toBytes(value));
+    }
+
+    private static int bytesLength(final byte[] data) {
+        if (data.length == 1 && isSingleByte(1, data[0])) return 1;
+        return headerLength(data.length) + data.length;
+    }
+
+    private static int headerLength(final int payloadLength) {
+        return payloadLength < SIZE_THRESHOLD
+                ? 1
+                : 1 + unsignedLength(payloadLength);
+    }
+
+    /* ******************************************************
+     *                 PASS 2: WRITING                      *
+     * ******************************************************/
+
+    private void writeValue(final Object input, final ByteBuffer out) {
+        final Object value = unwrap(input);
+        if (isList(value)) {
+            writeHeader(this.listLengths[this.listCursor++], OFFSET_SHORT_LIST, out);
+            if (value instanceof RLPList) {
+                for (final RLPElement element : (RLPList) value) writeValue(element, out);
+            } else {
+                for (final Object element : (Object[]) value) writeValue(element, out);
+            }
+            return;
+        }
+        writeElement(value, out);
+    }
+
+    private static void writeElement(final Object value, final ByteBuffer out) {
+        if (value instanceof byte[]) {
+            writeBytes((byte[]) value, out);
+            return;
+        }
+        if (isNonNegativeLong(value)) {
+            final long number = ((Number) value).longValue();
+            final int length = unsignedLength(number);
+            if (isSingleByte(length, number)) {
+                out.put((byte) number);
+                return;
+            }
+            writeHeader(length, OFFSET_SHORT_ITEM, out);
+            for (int i = length - 1; i >= 0; i--) {
+                out.put((byte) (number >>> (8 * i)));
+            }
+            return;
+        }
+        writeBytes(toBytes(value), out);
+    }
+
+    private static void writeBytes(final byte[] data, final ByteBuffer out) {
+        if (data.length == 1 && isSingleByte(1, data[0])) {
+            out.put(data[0]);
+            return;
+        }
+        writeHeader(data.length, OFFSET_SHORT_ITEM, out);
+        out.put(data);
+    }
+
+    private static void writeHeader(final int payloadLength, final int offset, final ByteBuffer out) {
+        if (payloadLength < SIZE_THRESHOLD) {
+            out.put((byte) (offset + payloadLength));
+            return;
+        }
+        final int lengthOfLength = unsignedLength(payloadLength);
+        out.put((byte) (offset + SIZE_THRESHOLD - 1 + lengthOfLength));
+        for (int i = lengthOfLength - 1; i >= 0; i--) {
+            out.put((byte) (payloadLength >>> (8 * i)));
+        }
+    }
+
+    /* ******************************************************
+     *                      HELPERS                         *
+     * ******************************************************/
+
+    private static Object unwrap(final Object input) {
+        if (input instanceof Value) return ((Value) input).asObj();
+        return input;
+    }
+
+    private static boolean isList(final Object value) {
+        return value instanceof Object[] || value instanceof RLPList;
+    }
+
+    // Numbers that can be written from a long without going through a byte[]
+    private static boolean isNonNegativeLong(final Object value) {
+        if (value instanceof Long || value instanceof Integer) {
+            return ((Number) value).longValue() >= 0;
+        }
+        if (value instanceof BigInteger) {
+            final BigInteger number = (BigInteger) value;
+            return number.signum() >= 0 && number.bitLength() < 64;
+        }
+        return false;
+    }
+
+    // RLP.encode emits any single byte up to and including 0x80 without a prefix
+    private static boolean isSingleByte(final int length, final long firstByte) {
+        return length == 1 && (firstByte & 0xFF) <= 0x80;
+    }
+
+    private static int unsignedLength(final long value) {
+        return (64 - Long.numberOfLeadingZeros(value) + 7) / 8;
+    }
+
+    // Mirrors the conversions in RLP.toBytes for everything without an allocation-free path
+    private static byte[] toBytes(final Object value) {
+        if (value instanceof byte[]) {
+            return (byte[]) value;
+        } else if (value instanceof String) {
+            return ((String) value).getBytes();
+        } else if (value instanceof RLPItem) {
+            final byte[] data = ((RLPItem) value).getRLPData();
+            return data == null ? ByteUtil.EMPTY_BYTE_ARRAY : data;
+        } else if (value instanceof Long || value instanceof Integer) {
+            final long number = ((Number) value).longValue();
+            return number == 0 ? ByteUtil.EMPTY_BYTE_ARRAY : asUnsignedByteArray(BigInteger.valueOf(number));
+        } else if (value instanceof BigInteger) {
+            final BigInteger number = (BigInteger) value;
+            return number.equals(BigInteger.ZERO) ? ByteUtil.EMPTY_BYTE_ARRAY : asUnsignedByteArray(number);
+        }
+        throw new RuntimeException("Unsupported type: Only accepting String, Integer and BigInteger for now");
+    }
+}
@@ -20,6 +20,7 @@ package com.toshi.manager;
 
 import com.toshi.manager.network.DirectoryService;
 import com.toshi.manager.network.IdService;
+import com.toshi.manager.network.ServerClock;
 import com.toshi.model.network.App;
 import com.toshi.model.network.AppSearchResult;
 import com.toshi.model.network.ServerTime;
@@ -69,8 +70,8 @@ public class AppsManager {
     }
 
     public Single<ServerTime> getTimestamp() {
-        return IdService
-                .getApi()
-                .getTimestamp();
+        return ServerClock
+                .get()
+                .getServerTime(IdService.getApi().getTimestamp());
     }
 }
@@ -24,6 +24,7 @@ import android.content.SharedPreferences;
 import com.toshi.crypto.HDWallet;
 import com.toshi.manager.network.CurrencyService;
 import com.toshi.manager.network.EthereumService;
+import com.toshi.manager.network.ServerClock;
 import com.toshi.model.local.Network;
 import com.toshi.model.local.Networks;
 import com.toshi.model.network.Balance;
@@ -43,7 +44,6 @@ import com.toshi.view.BaseApplication;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
-import java.text.DecimalFormat;
 
 import rx.Completable;
 import rx.Single;
@@ -59,6 +59,8 @@ public class BalanceManager {
     private final static BehaviorSubject<Balance> balanceObservable = BehaviorSubject.create();
     private static final String LAST_KNOWN_BALANCE = "lkb";
 
+    private final ExchangeRateCache exchangeRateCache = new ExchangeRateCache(this::fetchLatestExchangeRate);
+
     private HDWallet wallet;
     private SharedPreferences prefs;
     private Networks networks;
@@ -149,15 +151,16 @@ public class BalanceManager {
 
     private Single<ExchangeRate> getLocalCurrencyExchangeRate() {
         return getLocalCurrency()
-                .flatMap((code) -> fetchLatestExchangeRate(code)
+                .flatMap(this.exchangeRateCache::get)
                 .subscribeOn(Schedulers.io())
-                .observeOn(AndroidSchedulers.mainThread()));
+                .observeOn(AndroidSchedulers.mainThread());
     }
 
     private Single<ExchangeRate> fetchLatestExchangeRate(final String code) {
         return CurrencyService
                 .getApi()
-                .getRates(code);
+                .getRates(code)
+                .subscribeOn(Schedulers.io());
     }
 
     public Single<Currencies> getCurrencies() {
@@ -179,12 +182,7 @@ public class BalanceManager {
             final BigDecimal marketRate = exchangeRate.getRate();
             final BigDecimal localAmount = marketRate.multiply(ethAmount);
 
-            final DecimalFormat numberFormat = CurrencyUtil.getNumberFormat();
-            numberFormat.setGroupingUsed(true);
-            numberFormat.setMaximumFractionDigits(2);
-            numberFormat.setMinimumFractionDigits(2);
-
-            final String amount = numberFormat.format(localAmount);
+            final String amount = CurrencyUtil.formatLocalAmount(localAmount);
             final String currencyCode = CurrencyUtil.getCode(exchangeRate.getTo());
             final String currencySymbol = CurrencyUtil.getSymbol(exchangeRate.getTo());
 
@@ -279,14 +277,18 @@ public class BalanceManager {
 
     public Completable unregisterFromEthGcm(final String token) {
         final String currentNetworkId = this.networks.getCurrentNetwork().getId();
-        return EthereumService
-                .getApi()
-                .getTimestamp()
+        return getServerTime()
                 .subscribeOn(Schedulers.io())
                 .flatMapCompletable((st) -> unregisterEthGcmWithTimestamp(token, st))
                 .doOnCompleted(() -> GcmPrefsUtil.setEthGcmTokenSentToServer(currentNetworkId, false));
     }
 
+    private Single<ServerTime> getServerTime() {
+        return ServerClock
+                .get()
+                .getServerTime(EthereumService.getApi().getTimestamp());
+    }
+
     private Completable changeEthBaseUrl(final Network network) {
         return Completable.fromAction(() -> EthereumService.get().changeBaseUrl(network.getUrl()));
     }
@@ -307,9 +309,7 @@ public class BalanceManager {
     }
 
     private Completable registerEthGcmToken(final String token) {
-        return EthereumService
-                .getApi()
-                .getTimestamp()
+        return getServerTime()
                 .subscribeOn(Schedulers.io())
                 .observeOn(Schedulers.io())
                 .flatMapCompletable((st) -> registerEthGcmWithTimestamp(token, st))
@@ -341,6 +341,7 @@ public class BalanceManager {
 
     public void clear() {
         clearConnectivitySubscription();
+        this.exchangeRateCache.clear();
         this.prefs
                 .edit()
                 .clear()
@@ -0,0 +1,133 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.toshi.manager;
+
+
+import com.toshi.model.network.ExchangeRate;
+import com.toshi.util.LogUtil;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+import rx.Single;
+
+// Keeps the latest exchange rate for each currency in memory. A rate younger than freshForMs is
+// returned as is. An older rate that is still younger than staleForMs is returned straight away
+// while a refresh runs in the background; anything older has to wait for the network.
+// Callers asking for the same currency while a request is in flight all share that request.
+/* package */ class ExchangeRateCache {
+
+    /* package */ interface RateFetcher {
+        Single<ExchangeRate> fetch(String currencyCode);
+    }
+
+    private static final long DEFAULT_FRESH_FOR_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final long DEFAULT_STALE_FOR_MS = TimeUnit.MINUTES.toMillis(30);
+
+    private final RateFetcher fetcher;
+    private final long freshForMs;
+    private final long staleForMs;
+
+    private final Object lock = new Object();
+    // Both keyed by currency code
+    private final Map<String, CachedRate> rates = new HashMap<>();
+    private final Map<String, Observable<ExchangeRate>> inFlight = new HashMap<>();
+
+    /* package */ ExchangeRateCache(final RateFetcher fetcher) {
+        this(fetcher, DEFAULT_FRESH_FOR_MS, DEFAULT_STALE_FOR_MS);
+    }
+
+    /* package */ ExchangeRateCache(final RateFetcher fetcher, final long freshForMs, final long staleForMs) {
+        this.fetcher = fetcher;
+        this.freshForMs = freshForMs;
+        this.staleForMs = Math.max(freshForMs, staleForMs);
+    }
+
+    /* package */ Single<ExchangeRate> get(final String currencyCode) {
+        return Single.defer(() -> {
+            final CachedRate cachedRate;
+            synchronized (this.lock) {
+                cachedRate = this.rates.get(currencyCode);
+            }
+
+            final long age = cachedRate == null ? Long.MAX_VALUE : System.currentTimeMillis() - cachedRate.fetchedAt;
+            if (age < this.freshForMs) {
+                return Single.just(cachedRate.rate);
+            }
+            if (age < this.staleForMs) {
+                refreshInBackground(currencyCode);
+                return Single.just(cachedRate.rate);
+            }
+            return fetch(currencyCode).toSingle();
+        });
+    }
+
+    /* package */ void clear() {
+        synchronized (this.lock) {
+            this.rates.clear();
+        }
+    }
+
+    private void refreshInBackground(final String currencyCode) {
+        fetch(currencyCode).subscribe(
+                __ -> {},
+                throwable -> LogUtil.exception(getClass(), "Unable to refresh exchange rate", throwable)
+        );
+    }
+
+    private Observable<ExchangeRate> fetch(final String currencyCode) {
+        synchronized (this.lock) {
+            final Observable<ExchangeRate> existingRequest = this.inFlight.get(currencyCode);
+            if (existingRequest != null) return existingRequest;
+
+            // The request starts with its first subscriber and replays its result to everyone else
+            final Observable<ExchangeRate> request = Observable
+                    .defer(() -> this.fetcher.fetch(currencyCode).toObservable())
+                    .doOnNext(rate -> storeRate(currencyCode, rate))
+                    .doOnTerminate(() -> removeInFlight(currencyCode))
+                    .cache();
+            this.inFlight.put(currencyCode, request);
+            return request;
+        }
+    }
+
+    private void storeRate(final String currencyCode, final ExchangeRate rate) {
+        if (rate == null) return;
+        synchronized (this.lock) {
+            this.rates.put(currencyCode, new CachedRate(rate, System.currentTimeMillis()));
+        }
+    }
+
+    private void removeInFlight(final String currencyCode) {
+        synchronized (this.lock) {
+            this.inFlight.remove(currencyCode);
+        }
+    }
+
+    private static class CachedRate {
+        private final ExchangeRate rate;
+        private final long fetchedAt;
+
+        private CachedRate(final ExchangeRate rate, final long fetchedAt) {
+            this.rate = rate;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+}
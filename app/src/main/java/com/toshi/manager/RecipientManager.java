@@ -19,6 +19,7 @@ package com.toshi.manager;
 
 
 import com.toshi.manager.network.IdService;
+import com.toshi.manager.network.ServerClock;
 import com.toshi.manager.store.BlockedUserStore;
 import com.toshi.manager.store.ContactStore;
 import com.toshi.manager.store.GroupStore;
@@ -193,9 +194,9 @@ public class RecipientManager {
     }
 
     public Single<ServerTime> getTimestamp() {
-        return IdService
-                .getApi()
-                .getTimestamp();
+        return ServerClock
+                .get()
+                .getServerTime(IdService.getApi().getTimestamp());
     }
 
     public void clear() {
@@ -31,10 +31,13 @@ import com.toshi.crypto.signal.store.SignalTrustStore;
 import com.toshi.manager.chat.SofaMessageReceiver;
 import com.toshi.manager.chat.SofaMessageRegistration;
 import com.toshi.manager.chat.SofaMessageSender;
+import com.toshi.manager.model.PendingMessageRetryMetrics;
 import com.toshi.manager.model.SofaMessageTask;
 import com.toshi.manager.store.ConversationStore;
-import com.toshi.model.local.Conversation;
+import com.toshi.manager.store.PendingMessageStore;
+import com.toshi.model.local.ConversationSummary;
 import com.toshi.model.local.Group;
+import com.toshi.model.local.MessagePage;
 import com.toshi.model.local.Recipient;
 import com.toshi.model.local.User;
 import com.toshi.model.sofa.Init;
@@ -146,20 +149,31 @@ public final class SofaMessageManager {
         }
     }
 
-    public final Single<List<Conversation>> loadAllConversations() {
+    public final Single<List<ConversationSummary>> loadAllConversations() {
         return Single
-                .fromCallable(conversationStore::loadAll)
+                .fromCallable(conversationStore::loadAllSummaries)
                 .subscribeOn(Schedulers.io());
     }
 
-    public final Single<Conversation> loadConversation(final String threadId) {
+    public final Single<ConversationSummary> loadConversation(final String threadId) {
         return this.conversationStore.loadByThreadId(threadId)
                 .subscribeOn(Schedulers.io());
     }
 
-    public Completable deleteConversation(final Conversation conversation) {
+    public final Single<MessagePage> loadLatestMessages(final String threadId, final int count) {
+        return this.conversationStore.loadLatestMessages(threadId, count)
+                .subscribeOn(Schedulers.io());
+    }
+
+    public final Single<MessagePage> loadMessages(final String threadId, final int fromPosition, final int count) {
+        return this.conversationStore.loadMessages(threadId, fromPosition, count)
+                .subscribeOn(Schedulers.io());
+    }
+
+    public Completable deleteConversation(final ConversationSummary conversation) {
         return this.conversationStore
                 .deleteByThreadId(conversation.getThreadId())
+                .andThen(Completable.fromAction(() -> new PendingMessageStore().deleteByThreadId(conversation.getThreadId())))
                 .subscribeOn(Schedulers.io());
     }
 
@@ -168,7 +182,7 @@ public final class SofaMessageManager {
                 .deleteMessageById(recipient, sofaMessage);
     }
 
-    public final Observable<Conversation> registerForAllConversationChanges() {
+    public final Observable<ConversationSummary> registerForAllConversationChanges() {
         return this.conversationStore.getConversationChangedObservable();
     }
 
@@ -218,6 +232,10 @@ public final class SofaMessageManager {
     }
 
     private void handleConnectivity() {
+        if (this.messageSender != null) {
+            this.messageSender.retryPendingMessages();
+        }
+
         redoRegistrationTask()
                 .subscribeOn(Schedulers.io())
                 .subscribe(
@@ -298,7 +316,16 @@ public final class SofaMessageManager {
         this.messageSender.sendPendingMessage(sofaMessage);
     }
 
-    public DecryptedSignalMessage fetchLatestMessage() throws TimeoutException {
+    // Messages for the conversation that have been handed over but not sent yet
+    public int getPendingSendCount(final String threadId) {
+        return this.messageSender == null ? 0 : this.messageSender.getPendingTaskCount(threadId);
+    }
+
+    public PendingMessageRetryMetrics getPendingMessageRetryMetrics() {
+        return this.messageSender.getPendingMessageRetryMetrics();
+    }
+
+    public List<DecryptedSignalMessage> drainMessages() throws TimeoutException {
         try {
             while (this.messageReceiver == null) {
                 Thread.sleep(200);
@@ -306,7 +333,7 @@ public final class SofaMessageManager {
         } catch (final InterruptedException e) {
             throw new TimeoutException(e.toString());
         }
-        return this.messageReceiver.fetchLatestMessage();
+        return this.messageReceiver.drainMessages();
     }
 
     public void clear() {
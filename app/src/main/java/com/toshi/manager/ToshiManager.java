@@ -107,6 +107,7 @@ public class ToshiManager {
 
     private void setWallet(final HDWallet wallet) {
         this.wallet = wallet;
+        this.userManager.publishWallet(wallet);
         this.walletSubject.onNext(wallet);
     }
 
@@ -132,7 +133,7 @@ public class ToshiManager {
         Realm.init(BaseApplication.get());
         this.realmConfig = new RealmConfiguration
                 .Builder()
-                .schemaVersion(16)
+                .schemaVersion(18)
                 .migration(new DbMigration(this.wallet))
                 .name(this.wallet.getOwnerAddress())
                 .encryptionKey(key)
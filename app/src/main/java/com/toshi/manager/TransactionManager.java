@@ -17,7 +17,6 @@
 
 package com.toshi.manager;
 
-import android.support.annotation.NonNull;
 import android.util.Pair;
 
 import com.toshi.R;
@@ -25,6 +24,7 @@ import com.toshi.crypto.HDWallet;
 import com.toshi.exception.UnknownTransactionException;
 import com.toshi.manager.model.PaymentTask;
 import com.toshi.manager.network.EthereumService;
+import com.toshi.manager.network.ServerClock;
 import com.toshi.manager.store.PendingTransactionStore;
 import com.toshi.model.local.PendingTransaction;
 import com.toshi.model.local.Recipient;
@@ -49,10 +49,15 @@ import com.toshi.view.notification.ChatNotificationManager;
 import com.toshi.view.notification.ExternalPaymentNotificationManager;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import okhttp3.ResponseBody;
 import retrofit2.HttpException;
-import rx.Observable;
 import rx.Single;
 import rx.Subscription;
 import rx.schedulers.Schedulers;
@@ -71,11 +76,13 @@ public class TransactionManager {
 
     private HDWallet wallet;
     private PendingTransactionStore pendingTransactionStore;
+    private TransactionStatusPoller<Payment> transactionStatusPoller;
     private CompositeSubscription subscriptions;
 
     /*package */ TransactionManager() {
         initDatabase();
         initSubscriptions();
+        initTransactionStatusPoller();
     }
 
     private void initDatabase() {
@@ -86,6 +93,16 @@ public class TransactionManager {
         this.subscriptions = new CompositeSubscription();
     }
 
+    private void initTransactionStatusPoller() {
+        this.transactionStatusPoller = new TransactionStatusPoller<>(
+                txHash -> BaseApplication
+                        .get()
+                        .getBalanceManager()
+                        .getTransactionStatus(txHash),
+                this::handleTransactionStatuses
+        );
+    }
+
     public TransactionManager init(final HDWallet wallet) {
         this.wallet = wallet;
         new Thread(this::initEverything).start();
@@ -187,6 +204,10 @@ public class TransactionManager {
     }
 
     private void processUpdatedPayment(final Payment payment) {
+        if (!SofaType.UNCONFIRMED.equals(payment.getStatus())) {
+            this.transactionStatusPoller.untrack(payment.getTxHash());
+        }
+
         this.pendingTransactionStore
                 .loadTransaction(payment.getTxHash())
                 .subscribeOn(Schedulers.io())
@@ -243,29 +264,44 @@ public class TransactionManager {
         final Subscription sub = this.pendingTransactionStore
                 .loadAllTransactions()
                 .filter(this::isUnconfirmed)
-                .flatMap(pendingTransaction -> Observable.zip(
-                        Observable.just(pendingTransaction),
-                        getTransactionStatus(pendingTransaction),
-                        Pair::new
-                ))
                 .subscribeOn(Schedulers.io())
                 .observeOn(Schedulers.io())
-                .onErrorReturn(__ -> new Pair<>(null, null))
                 .subscribe(
-                        pair -> this.updatePendingTransaction(pair.first, pair.second),
+                        this::trackPendingTransaction,
                         this::handlePendingTransactionError
                 );
 
         this.subscriptions.add(sub);
     }
 
-    @NonNull
-    private Observable<Payment> getTransactionStatus(final PendingTransaction pendingTransaction) {
-        return BaseApplication
-                .get()
-                .getBalanceManager()
-                .getTransactionStatus(pendingTransaction.getTxHash())
-                .toObservable();
+    private void trackPendingTransaction(final PendingTransaction pendingTransaction) {
+        final SofaMessage sofaMessage = pendingTransaction.getSofaMessage();
+        final long pendingSince = sofaMessage == null ? System.currentTimeMillis() : sofaMessage.getCreationTime();
+        this.transactionStatusPoller.track(pendingTransaction.getTxHash(), pendingSince);
+    }
+
+    // Writes every changed status in one go, and returns the hashes that no longer need polling
+    private Collection<String> handleTransactionStatuses(final Map<String, Payment> statuses) {
+        final Set<String> settledHashes = new HashSet<>(statuses.keySet());
+        final List<PendingTransaction> updatedPendingTransactions = new ArrayList<>();
+        for (final PendingTransaction pendingTransaction : this.pendingTransactionStore.loadTransactions(statuses.keySet())) {
+            final Payment updatedPayment = statuses.get(pendingTransaction.getTxHash());
+            if (SofaType.UNCONFIRMED.equals(updatedPayment.getStatus())) {
+                settledHashes.remove(pendingTransaction.getTxHash());
+                continue;
+            }
+
+            final PendingTransaction updatedPendingTransaction = buildUpdatedPendingTransaction(pendingTransaction, updatedPayment);
+            if (updatedPendingTransaction == null) {
+                // Not written, so keep polling it
+                settledHashes.remove(pendingTransaction.getTxHash());
+                continue;
+            }
+            updatedPendingTransactions.add(updatedPendingTransaction);
+        }
+
+        this.pendingTransactionStore.saveAll(updatedPendingTransactions);
+        return settledHashes;
     }
 
     private Boolean isUnconfirmed(final PendingTransaction pendingTransaction) {
@@ -296,6 +332,7 @@ public class TransactionManager {
                         .setTxHash(payment.getTxHash())
                         .setSofaMessage(storedSofaMessage);
         this.pendingTransactionStore.save(pendingTransaction);
+        if (isUnconfirmed(pendingTransaction)) trackPendingTransaction(pendingTransaction);
     }
 
     public void addIncomingPayment(final Payment payment) {
@@ -482,9 +519,9 @@ public class TransactionManager {
     }
 
     private Single<ServerTime> getServerTime() {
-        return EthereumService
-                .getApi()
-                .getTimestamp();
+        return ServerClock
+                .get()
+                .getServerTime(EthereumService.getApi().getTimestamp());
     }
 
     private Single<SignedTransaction> signTransaction(final UnsignedTransaction unsignedTransaction) {
@@ -532,6 +569,7 @@ public class TransactionManager {
                                                             .setSofaMessage(message)
                                                             .setTxHash(txHash);
         this.pendingTransactionStore.save(pendingTransaction);
+        trackPendingTransaction(pendingTransaction);
     }
 
     // Returns false if this is a new transaction that the app is unaware of.
@@ -541,20 +579,27 @@ public class TransactionManager {
             return false;
         }
 
+        final PendingTransaction updatedPendingTransaction = buildUpdatedPendingTransaction(pendingTransaction, updatedPayment);
+        if (updatedPendingTransaction == null) {
+            return false;
+        }
+
+        this.pendingTransactionStore.save(updatedPendingTransaction);
+        return true;
+    }
+
+    private PendingTransaction buildUpdatedPendingTransaction(final PendingTransaction pendingTransaction, final Payment updatedPayment) {
         final SofaMessage updatedMessage;
         try {
             updatedMessage = updateStatusFromPendingTransaction(pendingTransaction, updatedPayment);
         } catch (final IOException | UnknownTransactionException ex) {
             LogUtil.exception(getClass(), "Unable to update pending transaction", ex);
-            return false;
+            return null;
         }
 
-        final PendingTransaction updatedPendingTransaction = new PendingTransaction()
+        return new PendingTransaction()
                 .setTxHash(pendingTransaction.getTxHash())
                 .setSofaMessage(updatedMessage);
-
-        this.pendingTransactionStore.save(updatedPendingTransaction);
-        return true;
     }
 
     private void handlePendingTransactionError(final Throwable throwable) {
@@ -580,16 +625,15 @@ public class TransactionManager {
     }
 
     private User getCurrentLocalUser() {
-        // Yes, this blocks. But realistically, a value should be always ready for returning.
         return BaseApplication
                 .get()
                 .getUserManager()
-                .getCurrentUser()
-                .toBlocking()
-                .value();
+                .getLocalIdentity()
+                .getUser();
     }
 
     public void clear() {
         this.subscriptions.clear();
+        this.transactionStatusPoller.clear();
     }
 }
\ No newline at end of file
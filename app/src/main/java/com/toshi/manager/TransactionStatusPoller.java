@@ -0,0 +1,274 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.toshi.manager;
+
+
+import com.toshi.util.LogUtil;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+import rx.Scheduler;
+import rx.Single;
+import rx.schedulers.Schedulers;
+
+// Polls the status of pending transactions until they settle. Tracking the same hash twice only
+// polls it once. Transactions that fall due within coalesceWindowMs of each other are looked up in
+// the same poll, with at most maxConcurrentRequests requests in flight, and every status that comes
+// back is handed to the handler in one go. A transaction is polled more rarely the longer it has been
+// pending, since one that hasn't been mined after an hour is unlikely to be mined in the next second.
+// Everything except the fetches themselves is only touched on the scheduler's own thread.
+/* package */ class TransactionStatusPoller<S> {
+
+    /* package */ interface StatusSource<S> {
+        // May emit null when the status isn't known yet
+        Single<S> getStatus(String txHash);
+    }
+
+    /* package */ interface StatusHandler<S> {
+        // Called once per poll with every status that was fetched; returns the hashes that have
+        // settled and no longer need polling
+        Collection<String> onStatuses(Map<String, S> statuses);
+    }
+
+    private static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 4;
+    private static final long DEFAULT_COALESCE_WINDOW_MS = 500;
+    private static final long DEFAULT_MIN_POLL_INTERVAL_MS = TimeUnit.SECONDS.toMillis(5);
+    private static final long DEFAULT_MAX_POLL_INTERVAL_MS = TimeUnit.MINUTES.toMillis(5);
+
+    private final StatusSource<S> source;
+    private final StatusHandler<S> handler;
+    private final ScheduledExecutorService executor;
+    private final Scheduler fetchScheduler;
+    private final int maxConcurrentRequests;
+    private final long coalesceWindowMs;
+    private final long minPollIntervalMs;
+    private final long maxPollIntervalMs;
+
+    // Keyed by tx hash
+    private final Map<String, TrackedTransaction> tracked = new HashMap<>();
+    private ScheduledFuture<?> nextPoll;
+    private long nextPollAt;
+    private boolean isPolling;
+
+    /* package */ TransactionStatusPoller(final StatusSource<S> source, final StatusHandler<S> handler) {
+        this(source,
+                handler,
+                Executors.newSingleThreadScheduledExecutor(),
+                Schedulers.io(),
+                DEFAULT_MAX_CONCURRENT_REQUESTS,
+                DEFAULT_COALESCE_WINDOW_MS,
+                DEFAULT_MIN_POLL_INTERVAL_MS,
+                DEFAULT_MAX_POLL_INTERVAL_MS);
+    }
+
+    /* package */ TransactionStatusPoller(
+            final StatusSource<S> source,
+            final StatusHandler<S> handler,
+            final ScheduledExecutorService executor,
+            final Scheduler fetchScheduler,
+            final int maxConcurrentRequests,
+            final long coalesceWindowMs,
+            final long minPollIntervalMs,
+            final long maxPollIntervalMs) {
+        if (maxConcurrentRequests < 1) throw new IllegalArgumentException("maxConcurrentRequests must be at least 1");
+        this.source = source;
+        this.handler = handler;
+        this.executor = executor;
+        this.fetchScheduler = fetchScheduler;
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        this.coalesceWindowMs = Math.max(0, coalesceWindowMs);
+        this.minPollIntervalMs = minPollIntervalMs;
+        this.maxPollIntervalMs = maxPollIntervalMs;
+    }
+
+    // Starts polling a transaction that has been pending since pendingSince; the first lookup
+    // happens within the coalescing window
+    /* package */ void track(final String txHash, final long pendingSince) {
+        if (txHash == null) return;
+        post(() -> {
+            final TrackedTransaction existing = this.tracked.get(txHash);
+            if (existing != null) {
+                existing.pendingSince = Math.min(existing.pendingSince, pendingSince);
+                return;
+            }
+            this.tracked.put(txHash, new TrackedTransaction(txHash, pendingSince, System.currentTimeMillis()));
+            scheduleNextPoll();
+        });
+    }
+
+    // The transaction has settled through some other channel
+    /* package */ void untrack(final String txHash) {
+        if (txHash == null) return;
+        post(() -> this.tracked.remove(txHash));
+    }
+
+    /* package */ void clear() {
+        post(() -> {
+            this.tracked.clear();
+            cancelNextPoll();
+        });
+    }
+
+    /* package */ void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+    /* package */ long getPollIntervalMs(final long pendingForMs) {
+        return Math.min(this.maxPollIntervalMs, Math.max(this.minPollIntervalMs, pendingForMs / 4));
+    }
+
+    private void poll() {
+        this.nextPoll = null;
+        try {
+            // Anything falling due within the window rides along with this poll
+            final long dueBefore = System.currentTimeMillis() + this.coalesceWindowMs;
+            final List<String> dueHashes = new ArrayList<>();
+            for (final TrackedTransaction transaction : this.tracked.values()) {
+                if (transaction.nextPollAt <= dueBefore) dueHashes.add(transaction.txHash);
+            }
+
+            if (dueHashes.isEmpty()) {
+                scheduleNextPoll();
+                return;
+            }
+
+            this.isPolling = true;
+            fetchStatuses(dueHashes);
+        } catch (final RuntimeException ex) {
+            LogUtil.exception(getClass(), "Error while polling transaction statuses", ex);
+            this.isPolling = false;
+            scheduleNextPoll();
+        }
+    }
+
+    private void fetchStatuses(final List<String> txHashes) {
+        final Map<String, S> statuses = new HashMap<>();
+        Observable
+                .from(txHashes)
+                .flatMap(txHash -> this.source
+                        .getStatus(txHash)
+                        .toObservable()
+                        .subscribeOn(this.fetchScheduler)
+                        .filter(status -> status != null)
+                        .doOnNext(status -> {
+                            synchronized (statuses) {
+                                statuses.put(txHash, status);
+                            }
+                        })
+                        .onErrorResumeNext(error -> {
+                            LogUtil.exception(getClass(), "Unable to fetch transaction status", error);
+                            return Observable.empty();
+                        }),
+                        this.maxConcurrentRequests)
+                .subscribe(
+                        __ -> {},
+                        error -> post(() -> handleStatuses(txHashes, statuses)),
+                        () -> post(() -> handleStatuses(txHashes, statuses))
+                );
+    }
+
+    private void handleStatuses(final List<String> polledHashes, final Map<String, S> statuses) {
+        this.isPolling = false;
+        try {
+            final Map<String, S> fetched = new HashMap<>();
+            synchronized (statuses) {
+                for (final Map.Entry<String, S> entry : statuses.entrySet()) {
+                    // Skip anything that was untracked or cleared while it was being fetched
+                    if (this.tracked.containsKey(entry.getKey())) fetched.put(entry.getKey(), entry.getValue());
+                }
+            }
+
+            if (!fetched.isEmpty()) {
+                final Collection<String> settledHashes = this.handler.onStatuses(fetched);
+                if (settledHashes != null) {
+                    for (final String txHash : settledHashes) this.tracked.remove(txHash);
+                }
+            }
+        } catch (final RuntimeException ex) {
+            LogUtil.exception(getClass(), "Error while handling transaction statuses", ex);
+        } finally {
+            // Anything still pending, including lookups that failed and statuses the handler
+            // threw on, backs off based on its age so it isn't polled again straight away
+            final long now = System.currentTimeMillis();
+            for (final String txHash : polledHashes) {
+                final TrackedTransaction transaction = this.tracked.get(txHash);
+                if (transaction == null) continue;
+                transaction.nextPollAt = now + getPollIntervalMs(now - transaction.pendingSince);
+            }
+            scheduleNextPoll();
+        }
+    }
+
+    private void scheduleNextPoll() {
+        // The next poll is scheduled once the current one has finished
+        if (this.isPolling) return;
+
+        long earliestNextPollAt = Long.MAX_VALUE;
+        for (final TrackedTransaction transaction : this.tracked.values()) {
+            earliestNextPollAt = Math.min(earliestNextPollAt, transaction.nextPollAt);
+        }
+        if (earliestNextPollAt == Long.MAX_VALUE) {
+            cancelNextPoll();
+            return;
+        }
+
+        // Give other transactions a chance to join the poll before it starts
+        final long pollAt = Math.max(earliestNextPollAt, System.currentTimeMillis()) + this.coalesceWindowMs;
+        if (this.nextPoll != null && this.nextPollAt <= pollAt) return;
+
+        cancelNextPoll();
+        this.nextPollAt = pollAt;
+        this.nextPoll = this.executor.schedule(this::poll, pollAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelNextPoll() {
+        if (this.nextPoll == null) return;
+        this.nextPoll.cancel(false);
+        this.nextPoll = null;
+    }
+
+    private void post(final Runnable runnable) {
+        try {
+            this.executor.execute(runnable);
+        } catch (final RejectedExecutionException ex) {
+            // Shut down; pending transactions are tracked again on the next start
+        }
+    }
+
+    private static class TrackedTransaction {
+        private final String txHash;
+        private long pendingSince;
+        private long nextPollAt;
+
+        private TrackedTransaction(final String txHash, final long pendingSince, final long nextPollAt) {
+            this.txHash = txHash;
+            this.pendingSince = pendingSince;
+            this.nextPollAt = nextPollAt;
+        }
+    }
+}
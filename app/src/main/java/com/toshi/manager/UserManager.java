@@ -23,6 +23,8 @@ import android.content.SharedPreferences;
 
 import com.toshi.crypto.HDWallet;
 import com.toshi.manager.network.IdService;
+import com.toshi.manager.network.ServerClock;
+import com.toshi.model.local.LocalIdentity;
 import com.toshi.model.local.User;
 import com.toshi.model.network.ServerTime;
 import com.toshi.model.network.UserDetails;
@@ -55,8 +57,11 @@ public class UserManager {
     private final BehaviorSubject<User> userSubject = BehaviorSubject.create();
     private SharedPreferences prefs;
     private HDWallet wallet;
+    private volatile LocalIdentity localIdentity = LocalIdentity.EMPTY;
 
     /* package */ UserManager() {
+        // Subscribed first so the snapshot is current before other observers hear about a new user
+        this.userSubject.subscribe(this::publishUser);
         this.userSubject.onNext(null);
     }
 
@@ -64,6 +69,19 @@ public class UserManager {
         return this.userSubject;
     }
 
+    // Never blocks; the wallet and user are null until they have been loaded
+    public final LocalIdentity getLocalIdentity() {
+        return this.localIdentity;
+    }
+
+    /* package */ synchronized void publishWallet(final HDWallet wallet) {
+        this.localIdentity = this.localIdentity.withWallet(wallet);
+    }
+
+    private synchronized void publishUser(final User user) {
+        this.localIdentity = this.localIdentity.withUser(user);
+    }
+
     public final Single<User> getCurrentUser() {
         return
                 this.userSubject
@@ -251,9 +269,9 @@ public class UserManager {
     }
 
     private Single<ServerTime> getTimestamp() {
-        return IdService
-                .getApi()
-                .getTimestamp();
+        return ServerClock
+                .get()
+                .getServerTime(IdService.getApi().getTimestamp());
     }
 
     public Single<List<User>> getTopRatedPublicUsers(final int limit) {
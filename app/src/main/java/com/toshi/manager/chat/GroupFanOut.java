@@ -0,0 +1,201 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package com.toshi.manager.chat;
+
+
+import com.toshi.util.LogUtil;
+
+import org.whispersystems.signalservice.api.crypto.UntrustedIdentityException;
+import org.whispersystems.signalservice.api.messages.SignalServiceDataMessage;
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+import org.whispersystems.signalservice.api.push.exceptions.EncapsulatedExceptions;
+import org.whispersystems.signalservice.api.push.exceptions.NetworkFailureException;
+import org.whispersystems.signalservice.api.push.exceptions.UnregisteredUserException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+// Sends one group message to every member in parallel. The members are split into at most
+// maxParallelism batches and each batch is sent with one call to the transport on the executor.
+// Every batch gets its own copy of the message, so an attachment stream is never shared between
+// threads. The outcome for every member is collected into a single GroupSendResult. Members that
+// aren't registered are reported apart from the failed ones, as sending to them again won't help.
+/* package */ class GroupFanOut {
+
+    /* package */ interface Transport {
+        void sendMessage(List<SignalServiceAddress> recipients, SignalServiceDataMessage message)
+                throws IOException, EncapsulatedExceptions;
+    }
+
+    /* package */ interface MessageFactory {
+        // Called once per batch; must return a message with the same timestamp every time
+        SignalServiceDataMessage createMessage() throws IOException;
+    }
+
+    private final Executor executor;
+    private final int maxParallelism;
+    private final Transport transport;
+
+    /* package */ GroupFanOut(final Executor executor, final int maxParallelism, final Transport transport) {
+        if (maxParallelism < 1) throw new IllegalArgumentException("maxParallelism must be at least 1");
+        this.executor = executor;
+        this.maxParallelism = maxParallelism;
+        this.transport = transport;
+    }
+
+    // Blocks until every batch has been sent or has failed
+    /* package */ GroupSendResult send(final List<SignalServiceAddress> members,
+                                       final MessageFactory messageFactory) throws InterruptedException {
+        final List<List<SignalServiceAddress>> batches = splitIntoBatches(members);
+        final GroupSendResult result = new GroupSendResult();
+        final CountDownLatch isDone = new CountDownLatch(batches.size());
+
+        for (final List<SignalServiceAddress> batch : batches) {
+            try {
+                this.executor.execute(() -> {
+                    try {
+                        sendBatch(batch, messageFactory, result);
+                    } finally {
+                        isDone.countDown();
+                    }
+                });
+            } catch (final RejectedExecutionException ex) {
+                LogUtil.exception(getClass(), "Unable to schedule group batch", ex);
+                result.addFailed(batch);
+                isDone.countDown();
+            }
+        }
+
+        isDone.await();
+        return result;
+    }
+
+    private List<List<SignalServiceAddress>> splitIntoBatches(final List<SignalServiceAddress> members) {
+        final int numBatches = Math.min(members.size(), this.maxParallelism);
+        final List<List<SignalServiceAddress>> batches = new ArrayList<>(numBatches);
+        for (int i = 0; i < numBatches; i++) {
+            batches.add(new ArrayList<>());
+        }
+        for (int i = 0; i < members.size(); i++) {
+            batches.get(i % numBatches).add(members.get(i));
+        }
+        return batches;
+    }
+
+    private void sendBatch(final List<SignalServiceAddress> batch,
+                           final MessageFactory messageFactory,
+                           final GroupSendResult result) {
+        try {
+            this.transport.sendMessage(batch, messageFactory.createMessage());
+            result.addDelivered(batch.size());
+        } catch (final EncapsulatedExceptions ex) {
+            final int numUntrusted = ex.getUntrustedIdentityExceptions().size();
+            final List<SignalServiceAddress> failedMembers = getFailedMembers(batch, ex);
+            final List<SignalServiceAddress> unregisteredMembers = getUnregisteredMembers(batch, ex);
+            result.addUntrustedIdentities(ex.getUntrustedIdentityExceptions());
+            result.addFailed(failedMembers);
+            result.addUnregistered(unregisteredMembers);
+            result.addDelivered(Math.max(0, batch.size() - numUntrusted - failedMembers.size() - unregisteredMembers.size()));
+        } catch (final IOException | RuntimeException ex) {
+            LogUtil.error(getClass(), ex.toString());
+            result.addFailed(batch);
+        }
+    }
+
+    private List<SignalServiceAddress> getFailedMembers(final List<SignalServiceAddress> batch,
+                                                        final EncapsulatedExceptions ex) {
+        final List<SignalServiceAddress> failedMembers = new ArrayList<>();
+        for (final NetworkFailureException networkException : ex.getNetworkExceptions()) {
+            failedMembers.add(findMember(batch, networkException.getE164number()));
+        }
+        return failedMembers;
+    }
+
+    private List<SignalServiceAddress> getUnregisteredMembers(final List<SignalServiceAddress> batch,
+                                                              final EncapsulatedExceptions ex) {
+        final List<SignalServiceAddress> unregisteredMembers = new ArrayList<>();
+        for (final UnregisteredUserException unregisteredException : ex.getUnregisteredUserExceptions()) {
+            unregisteredMembers.add(findMember(batch, unregisteredException.getE164Number()));
+        }
+        return unregisteredMembers;
+    }
+
+    // Returns the batch's own address so the relay is kept
+    private SignalServiceAddress findMember(final List<SignalServiceAddress> batch, final String number) {
+        for (final SignalServiceAddress member : batch) {
+            if (member.getNumber().equals(number)) return member;
+        }
+        return new SignalServiceAddress(number);
+    }
+
+    /* package */ static class GroupSendResult {
+        private final List<UntrustedIdentityException> untrustedIdentities = new ArrayList<>();
+        private final List<SignalServiceAddress> failedMembers = new ArrayList<>();
+        private final List<SignalServiceAddress> unregisteredMembers = new ArrayList<>();
+        private int numDelivered;
+
+        private synchronized void addDelivered(final int count) {
+            this.numDelivered += count;
+        }
+
+        private synchronized void addFailed(final List<SignalServiceAddress> members) {
+            this.failedMembers.addAll(members);
+        }
+
+        private synchronized void addUnregistered(final List<SignalServiceAddress> members) {
+            this.unregisteredMembers.addAll(members);
+        }
+
+        private synchronized void addUntrustedIdentities(final List<UntrustedIdentityException> exceptions) {
+            this.untrustedIdentities.addAll(exceptions);
+        }
+
+        /* package */ synchronized int getNumDelivered() {
+            return this.numDelivered;
+        }
+
+        // Members the message didn't reach because of a network error
+        /* package */ synchronized int getNumFailed() {
+            return this.failedMembers.size();
+        }
+
+        /* package */ synchronized List<SignalServiceAddress> getFailedMembers() {
+            return Collections.unmodifiableList(new ArrayList<>(this.failedMembers));
+        }
+
+        // Members the server doesn't know about; these aren't counted as failed
+        /* package */ synchronized List<SignalServiceAddress> getUnregisteredMembers() {
+            return Collections.unmodifiableList(new ArrayList<>(this.unregisteredMembers));
+        }
+
+        /* package */ synchronized List<UntrustedIdentityException> getUntrustedIdentities() {
+            return Collections.unmodifiableList(new ArrayList<>(this.untrustedIdentities));
+        }
+
+        /* package */ synchronized boolean hasFailures() {
+            return !this.failedMembers.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package com.toshi.manager.chat;
+
+
+import com.toshi.util.LogUtil;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+// Runs tasks one at a time, in the order they were submitted, for each key; tasks with different
+// keys run in parallel on at most maxConcurrency threads. A key with a long backlog runs one task
+// and then goes to the back of the line, so a slow key can't starve the others.
+/* package */ class KeyedSerialExecutor {
+
+    private final Map<String, ArrayDeque<Runnable>> queues = new HashMap<>();
+    private final ExecutorService executor;
+    private boolean isShutdown;
+
+    /* package */ KeyedSerialExecutor(final int maxConcurrency) {
+        if (maxConcurrency < 1) throw new IllegalArgumentException("maxConcurrency must be at least 1");
+        this.executor = Executors.newFixedThreadPool(maxConcurrency);
+    }
+
+    /* package */ void execute(final String key, final Runnable task) {
+        synchronized (this.queues) {
+            if (this.isShutdown) return;
+            ArrayDeque<Runnable> queue = this.queues.get(key);
+            if (queue != null) {
+                // A task for this key is already running or scheduled; it will pick this one up
+                queue.add(task);
+                return;
+            }
+            queue = new ArrayDeque<>();
+            queue.add(task);
+            this.queues.put(key, queue);
+        }
+        schedule(key);
+    }
+
+    private void schedule(final String key) {
+        try {
+            this.executor.execute(() -> runNext(key));
+        } catch (final RejectedExecutionException ex) {
+            LogUtil.exception(getClass(), "Unable to schedule task", ex);
+        }
+    }
+
+    private void runNext(final String key) {
+        final Runnable task;
+        synchronized (this.queues) {
+            final ArrayDeque<Runnable> queue = this.queues.get(key);
+            if (queue == null) return;
+            task = queue.peek();
+        }
+
+        try {
+            task.run();
+        } catch (final RuntimeException ex) {
+            LogUtil.exception(getClass(), "Error while running task", ex);
+        }
+
+        // The task stays at the head of the queue while it runs, which is what stops
+        // execute() from scheduling a second runner for the same key.
+        synchronized (this.queues) {
+            final ArrayDeque<Runnable> queue = this.queues.get(key);
+            if (queue == null) return;
+            queue.poll();
+            if (queue.isEmpty()) {
+                this.queues.remove(key);
+                return;
+            }
+        }
+        schedule(key);
+    }
+
+    /* package */ int getQueuedTaskCount() {
+        synchronized (this.queues) {
+            int count = 0;
+            for (final ArrayDeque<Runnable> queue : this.queues.values()) {
+                count += queue.size();
+            }
+            return count;
+        }
+    }
+
+    // Counts the task that is running for the key as well as the ones waiting behind it
+    /* package */ int getQueuedTaskCount(final String key) {
+        synchronized (this.queues) {
+            final ArrayDeque<Runnable> queue = this.queues.get(key);
+            return queue == null ? 0 : queue.size();
+        }
+    }
+
+    // Drops every task that hasn't started yet; tasks that are running are left to finish
+    /* package */ void shutdown() {
+        synchronized (this.queues) {
+            this.isShutdown = true;
+            this.queues.clear();
+        }
+        this.executor.shutdown();
+    }
+}
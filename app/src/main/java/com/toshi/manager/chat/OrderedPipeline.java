@@ -0,0 +1,139 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package com.toshi.manager.chat;
+
+
+import com.toshi.util.LogUtil;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+// Prepares items in parallel on the executors they are submitted with, but delivers them in the
+// order they were submitted for each key. A slow item only holds back later items with the same key.
+// At most maxInFlight items can be submitted and not yet delivered; submit() blocks beyond that.
+/* package */ class OrderedPipeline<T> {
+
+    /* package */ interface Preparer<T> {
+        // Returning null, or throwing, still delivers null so later items aren't held back
+        T prepare() throws Exception;
+    }
+
+    /* package */ interface Deliverer<T> {
+        void deliver(T item);
+    }
+
+    private static final class Slot<T> {
+        private final Deliverer<T> deliverer;
+        private T item;
+        private boolean isPrepared;
+
+        private Slot(final Deliverer<T> deliverer) {
+            this.deliverer = deliverer;
+        }
+    }
+
+    private static final class KeyQueue<T> {
+        private final ArrayDeque<Slot<T>> slots = new ArrayDeque<>();
+        private boolean isDelivering;
+    }
+
+    private final Map<String, KeyQueue<T>> queues = new HashMap<>();
+    private final Semaphore inFlight;
+
+    /* package */ OrderedPipeline(final int maxInFlight) {
+        if (maxInFlight < 1) throw new IllegalArgumentException("maxInFlight must be at least 1");
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    /* package */ void submit(
+            final String key,
+            final Executor executor,
+            final Preparer<T> preparer,
+            final Deliverer<T> deliverer) throws InterruptedException {
+        this.inFlight.acquire();
+        final Slot<T> slot = new Slot<>(deliverer);
+        synchronized (this.queues) {
+            KeyQueue<T> queue = this.queues.get(key);
+            if (queue == null) {
+                queue = new KeyQueue<>();
+                this.queues.put(key, queue);
+            }
+            queue.slots.add(slot);
+        }
+
+        try {
+            executor.execute(() -> prepare(key, slot, preparer));
+        } catch (final RuntimeException ex) {
+            LogUtil.exception(getClass(), "Unable to schedule item for preparation", ex);
+            markPrepared(slot, null);
+            deliverPrepared(key);
+        }
+    }
+
+    private void prepare(final String key, final Slot<T> slot, final Preparer<T> preparer) {
+        T item = null;
+        try {
+            item = preparer.prepare();
+        } catch (final Exception ex) {
+            LogUtil.exception(getClass(), "Error while preparing item", ex);
+        }
+        markPrepared(slot, item);
+        deliverPrepared(key);
+    }
+
+    private void markPrepared(final Slot<T> slot, final T item) {
+        synchronized (this.queues) {
+            slot.item = item;
+            slot.isPrepared = true;
+        }
+    }
+
+    // Delivers the prepared items at the head of the key's queue. Only one thread delivers
+    // for a key at a time; it keeps going until it reaches an item that isn't prepared yet.
+    private void deliverPrepared(final String key) {
+        while (true) {
+            final KeyQueue<T> queue;
+            final Slot<T> slot;
+            synchronized (this.queues) {
+                queue = this.queues.get(key);
+                if (queue == null || queue.isDelivering) return;
+                slot = queue.slots.peek();
+                if (slot == null || !slot.isPrepared) return;
+                queue.slots.poll();
+                queue.isDelivering = true;
+            }
+
+            try {
+                slot.deliverer.deliver(slot.item);
+            } catch (final RuntimeException ex) {
+                LogUtil.exception(getClass(), "Error while delivering item", ex);
+            } finally {
+                synchronized (this.queues) {
+                    queue.isDelivering = false;
+                    if (queue.slots.isEmpty()) this.queues.remove(key);
+                }
+                this.inFlight.release();
+            }
+        }
+    }
+}
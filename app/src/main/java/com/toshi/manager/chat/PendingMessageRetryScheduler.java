@@ -0,0 +1,265 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package com.toshi.manager.chat;
+
+
+import com.toshi.manager.model.PendingMessageRetryMetrics;
+import com.toshi.manager.store.PendingMessageStore;
+import com.toshi.model.local.PendingMessage;
+import com.toshi.model.local.Recipient;
+import com.toshi.model.sofa.SofaMessage;
+import com.toshi.util.LogUtil;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Resends PendingMessages in the background. A scan picks up the messages whose next attempt is due,
+// soonest first, and hands them to the resender, keeping at most maxConcurrentRetries in flight.
+// Scans run when a message is queued, when the next attempt falls due, when a retry finishes and
+// when the network comes back. Each attempt first pushes the message's next attempt back by a
+// jittered exponential backoff, and the row is only deleted once the resender reports delivery,
+// so a message is never lost if the app dies halfway through a retry. After maxAttempts failed
+// attempts the row is deleted and the message is left FAILED.
+// Everything except the metrics is only touched on the scheduler's own thread.
+/* package */ class PendingMessageRetryScheduler {
+
+    /* package */ interface Resender {
+        // Must call back exactly once, on any thread
+        void resend(PendingMessage pendingMessage, Callback callback);
+    }
+
+    /* package */ interface Callback {
+        void onResult(boolean isDelivered);
+    }
+
+    private static final int DEFAULT_MAX_CONCURRENT_RETRIES = 4;
+    private static final long DEFAULT_BASE_BACKOFF_MS = TimeUnit.SECONDS.toMillis(5);
+    private static final long DEFAULT_MAX_BACKOFF_MS = TimeUnit.MINUTES.toMillis(15);
+    private static final int DEFAULT_MAX_ATTEMPTS = 20;
+    private static final long MIN_SCAN_INTERVAL_MS = TimeUnit.SECONDS.toMillis(1);
+
+    private final PendingMessageStore store;
+    private final Resender resender;
+    private final ScheduledExecutorService executor;
+    private final int maxConcurrentRetries;
+    private final long baseBackoffMs;
+    private final long maxBackoffMs;
+    private final int maxAttempts;
+    private final long minScanDelayMs;
+    private final Random random;
+
+    private final Set<String> inFlight = new HashSet<>();
+    private ScheduledFuture<?> nextScan;
+    private boolean isRetryingAll;
+
+    private final Object metricsLock = new Object();
+    private long numAttempts;
+    private long numDelivered;
+    private long totalRetryLatencyMs;
+    private long maxRetryLatencyMs;
+
+    /* package */ PendingMessageRetryScheduler(final PendingMessageStore store, final Resender resender) {
+        this(store,
+                resender,
+                Executors.newSingleThreadScheduledExecutor(),
+                DEFAULT_MAX_CONCURRENT_RETRIES,
+                DEFAULT_BASE_BACKOFF_MS,
+                DEFAULT_MAX_BACKOFF_MS,
+                DEFAULT_MAX_ATTEMPTS,
+                new Random());
+    }
+
+    /* package */ PendingMessageRetryScheduler(
+            final PendingMessageStore store,
+            final Resender resender,
+            final ScheduledExecutorService executor,
+            final int maxConcurrentRetries,
+            final long baseBackoffMs,
+            final long maxBackoffMs,
+            final int maxAttempts,
+            final Random random) {
+        if (maxConcurrentRetries < 1) throw new IllegalArgumentException("maxConcurrentRetries must be at least 1");
+        if (maxAttempts < 1) throw new IllegalArgumentException("maxAttempts must be at least 1");
+        this.store = store;
+        this.resender = resender;
+        this.executor = executor;
+        this.maxConcurrentRetries = maxConcurrentRetries;
+        this.baseBackoffMs = baseBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+        this.maxAttempts = maxAttempts;
+        this.minScanDelayMs = Math.min(MIN_SCAN_INTERVAL_MS, baseBackoffMs);
+        this.random = random;
+    }
+
+    // Picks up messages left over from a previous run
+    /* package */ void start() {
+        post(this::scan);
+    }
+
+    // Saves a message that failed to send so it will be retried
+    /* package */ void queue(final Recipient receiver, final SofaMessage message) {
+        queue(receiver, message, Collections.emptyList());
+    }
+
+    // Saves a group message that some members didn't get, so it will be resent to just them
+    /* package */ void queue(final Recipient receiver, final SofaMessage message, final List<String> failedMemberIds) {
+        this.store.save(receiver, message, failedMemberIds, System.currentTimeMillis() + getBackoffMs(0));
+        post(this::scan);
+    }
+
+    // The network is back; retry everything now instead of waiting for each backoff to run out
+    /* package */ void retryAll() {
+        post(() -> {
+            this.isRetryingAll = true;
+            scan();
+        });
+    }
+
+    // The user asked for this message to be resent; it doesn't count towards the limit
+    /* package */ void retry(final PendingMessage pendingMessage) {
+        post(() -> {
+            if (this.inFlight.contains(pendingMessage.getPrivateKey())) return;
+            startRetry(pendingMessage);
+            scheduleNextScan();
+        });
+    }
+
+    /* package */ PendingMessageRetryMetrics getMetrics() {
+        synchronized (this.metricsLock) {
+            return new PendingMessageRetryMetrics(
+                    this.numAttempts,
+                    this.numDelivered,
+                    this.totalRetryLatencyMs,
+                    this.maxRetryLatencyMs);
+        }
+    }
+
+    /* package */ void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+    // Half of the delay is fixed and half is random, so retries of messages that failed
+    // together don't all hit the server at the same moment
+    /* package */ long getBackoffMs(final int attempts) {
+        final int exponent = Math.min(Math.max(attempts, 0), 30);
+        final long delay = Math.min(this.maxBackoffMs, this.baseBackoffMs << exponent);
+        final long halfDelay = delay / 2;
+        return halfDelay + (long) (this.random.nextDouble() * (delay - halfDelay));
+    }
+
+    private void scan() {
+        try {
+            final int freeSlots = this.maxConcurrentRetries - this.inFlight.size();
+            if (freeSlots > 0) {
+                final long dueBefore = this.isRetryingAll ? Long.MAX_VALUE : System.currentTimeMillis();
+                final List<PendingMessage> dueMessages = this.store.fetchDue(dueBefore, freeSlots + this.inFlight.size());
+                int numStarted = 0;
+                for (final PendingMessage pendingMessage : dueMessages) {
+                    if (numStarted == freeSlots) break;
+                    if (this.inFlight.contains(pendingMessage.getPrivateKey())) continue;
+                    if (startRetry(pendingMessage)) numStarted++;
+                }
+                if (numStarted == 0) this.isRetryingAll = false;
+            }
+            scheduleNextScan();
+        } catch (final RuntimeException ex) {
+            LogUtil.exception(getClass(), "Error while retrying pending messages", ex);
+        }
+    }
+
+    private boolean startRetry(final PendingMessage pendingMessage) {
+        final String privateKey = pendingMessage.getPrivateKey();
+        if (pendingMessage.getSofaMessage() == null || pendingMessage.getReceiver() == null) {
+            // The message or its conversation has been deleted since it failed
+            this.store.delete(privateKey);
+            return false;
+        }
+
+        final int attempts = pendingMessage.getAttempts() + 1;
+        this.inFlight.add(privateKey);
+        this.store.markAttemptStarted(privateKey, System.currentTimeMillis() + getBackoffMs(pendingMessage.getAttempts()));
+        synchronized (this.metricsLock) {
+            this.numAttempts++;
+        }
+
+        try {
+            this.resender.resend(pendingMessage, isDelivered -> post(() -> handleRetryFinished(pendingMessage, attempts, isDelivered)));
+        } catch (final RuntimeException ex) {
+            LogUtil.exception(getClass(), "Error while resending pending message", ex);
+            post(() -> handleRetryFinished(pendingMessage, attempts, false));
+        }
+        return true;
+    }
+
+    private void handleRetryFinished(final PendingMessage pendingMessage, final int attempts, final boolean isDelivered) {
+        this.inFlight.remove(pendingMessage.getPrivateKey());
+        if (isDelivered) {
+            this.store.delete(pendingMessage.getPrivateKey());
+            recordDelivery(System.currentTimeMillis() - pendingMessage.getCreatedAt());
+        } else {
+            // Still failing, so stop skipping the backoff for the rest
+            this.isRetryingAll = false;
+            if (attempts >= this.maxAttempts) giveUp(pendingMessage);
+        }
+        scan();
+    }
+
+    // The resender has already marked the message FAILED, so dropping the row is all that's left
+    private void giveUp(final PendingMessage pendingMessage) {
+        LogUtil.w(getClass(), "Giving up on pending message after " + this.maxAttempts + " attempts");
+        this.store.delete(pendingMessage.getPrivateKey());
+    }
+
+    private void recordDelivery(final long retryLatencyMs) {
+        synchronized (this.metricsLock) {
+            this.numDelivered++;
+            this.totalRetryLatencyMs += retryLatencyMs;
+            this.maxRetryLatencyMs = Math.max(this.maxRetryLatencyMs, retryLatencyMs);
+        }
+    }
+
+    private void scheduleNextScan() {
+        if (this.nextScan != null) {
+            this.nextScan.cancel(false);
+            this.nextScan = null;
+        }
+
+        final long earliestNextAttemptAt = this.store.getEarliestNextAttemptAt();
+        if (earliestNextAttemptAt < 0) return;
+        final long delay = Math.max(this.minScanDelayMs, earliestNextAttemptAt - System.currentTimeMillis());
+        this.nextScan = this.executor.schedule(this::scan, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void post(final Runnable runnable) {
+        try {
+            this.executor.execute(runnable);
+        } catch (final RejectedExecutionException ex) {
+            // Shut down; anything still pending is picked up again on the next start
+        }
+    }
+}
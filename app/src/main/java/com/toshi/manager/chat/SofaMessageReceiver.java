@@ -20,6 +20,7 @@ package com.toshi.manager.chat;
 
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.util.Pair;
 
 import com.toshi.BuildConfig;
 import com.toshi.crypto.HDWallet;
@@ -63,7 +64,13 @@ import org.whispersystems.signalservice.internal.push.SignalServiceUrl;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -72,15 +79,42 @@ import rx.Single;
 public class SofaMessageReceiver {
 
     private final static String USER_AGENT = "Android " + BuildConfig.APPLICATION_ID + " - " + BuildConfig.VERSION_NAME +  ":" + BuildConfig.VERSION_CODE;
+    private final static int MAX_MESSAGES_IN_FLIGHT = 64;
+    private final static int NUM_RESOLVER_THREADS = 4;
+    private final static int NUM_ATTACHMENT_THREADS = 2;
+    private final static long READ_TIMEOUT_MS = 10000;
+    // A push wake-up drains the pipe until it has been idle this long, within the given bounds
+    private final static long DRAIN_IDLE_TIMEOUT_MS = 1000;
+    private final static long MAX_DRAIN_DURATION_MS = 8000;
+    private final static int MAX_DRAINED_MESSAGES = 500;
 
     private final ConversationStore conversationStore;
     private final ProtocolStore protocolStore;
     private final SignalServiceMessageReceiver messageReceiver;
     private final HDWallet wallet;
+    // Decrypting stays on the thread reading the pipe, as the protocol store isn't safe to update
+    // from several threads. Looking up the sender and downloading attachments happen on these pools,
+    // and each conversation's messages are saved in the order they arrived. The pools are stopped
+    // by shutdown() and started again when receiving resumes.
+    private final OrderedPipeline<IncomingMessage> pipeline = new OrderedPipeline<>(MAX_MESSAGES_IN_FLIGHT);
+    private volatile ExecutorService resolverExecutor;
+    private volatile ExecutorService attachmentExecutor;
 
     private SignalServiceMessagePipe messagePipe;
     private boolean isReceivingMessages;
 
+    private static final class IncomingMessage {
+        private final User sender;
+        private final SofaMessage message;
+        private final Recipient recipient;
+
+        private IncomingMessage(final User sender, final SofaMessage message, final Recipient recipient) {
+            this.sender = sender;
+            this.message = message;
+            this.recipient = recipient;
+        }
+    }
+
     public SofaMessageReceiver(@NonNull final HDWallet wallet,
                                @NonNull final ProtocolStore protocolStore,
                                @NonNull final ConversationStore conversationStore,
@@ -105,25 +139,81 @@ public class SofaMessageReceiver {
         }
 
         this.isReceivingMessages = true;
+        startExecutors();
         new Thread(() -> {
             while (isReceivingMessages) {
                 try {
-                    final DecryptedSignalMessage signalMessage = fetchLatestMessage();
-                    ChatNotificationManager.showNotification(signalMessage);
-                } catch (TimeoutException e) {
+                    final DecryptedSignalMessage signalMessage = readLatestMessage(READ_TIMEOUT_MS);
+                    if (signalMessage != null) {
+                        submitIncomingMessage(signalMessage);
+                    }
+                } catch (final TimeoutException e) {
                     // Nop -- this is expected to happen
+                } catch (final InterruptedException e) {
+                    LogUtil.exception(getClass(), "Interrupted while receiving messages", e);
+                    return;
                 }
             }
         }).start();
     }
 
-    public DecryptedSignalMessage fetchLatestMessage() throws TimeoutException {
+    // Reads every waiting message, stopping once the pipe has been idle for DRAIN_IDLE_TIMEOUT_MS or
+    // a bound is reached. The messages are saved together once they have all been prepared.
+    // Returns the saved messages in the order they arrived.
+    public List<DecryptedSignalMessage> drainMessages() {
+        final List<Pair<Recipient, SofaMessage>> messagesToSave = new ArrayList<>();
+        final List<DecryptedSignalMessage> savedMessages = new ArrayList<>();
+        final Semaphore isDelivered = new Semaphore(0);
+        final long deadline = System.currentTimeMillis() + MAX_DRAIN_DURATION_MS;
+        int numSubmitted = 0;
+        startExecutors();
+
+        try {
+            while (numSubmitted < MAX_DRAINED_MESSAGES && System.currentTimeMillis() < deadline) {
+                final DecryptedSignalMessage signalMessage;
+                try {
+                    signalMessage = readLatestMessage(DRAIN_IDLE_TIMEOUT_MS);
+                } catch (final TimeoutException e) {
+                    break;
+                }
+                if (signalMessage == null) continue;
+
+                this.pipeline.submit(
+                        signalMessage.getConversationKey(),
+                        getExecutor(signalMessage),
+                        () -> prepareIncomingMessage(signalMessage),
+                        incomingMessage -> {
+                            if (incomingMessage != null && !handleUnrenderedMessage(incomingMessage)) {
+                                synchronized (messagesToSave) {
+                                    messagesToSave.add(new Pair<>(incomingMessage.recipient, incomingMessage.message));
+                                    savedMessages.add(signalMessage);
+                                }
+                            }
+                            isDelivered.release();
+                        });
+                numSubmitted++;
+            }
+            isDelivered.acquire(numSubmitted);
+        } catch (final InterruptedException e) {
+            LogUtil.exception(getClass(), "Interrupted while draining messages", e);
+            // The submitted messages have already been read off the pipe, so they must still be saved
+            isDelivered.acquireUninterruptibly(numSubmitted);
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (messagesToSave) {
+            this.conversationStore.saveNewMessages(messagesToSave);
+            return new ArrayList<>(savedMessages);
+        }
+    }
+
+    private DecryptedSignalMessage readLatestMessage(final long timeoutMs) throws TimeoutException {
         if (this.messagePipe == null) {
             this.messagePipe = messageReceiver.createMessagePipe();
         }
 
         try {
-            final SignalServiceEnvelope envelope = messagePipe.read(10, TimeUnit.SECONDS);
+            final SignalServiceEnvelope envelope = messagePipe.read(timeoutMs, TimeUnit.MILLISECONDS);
             return decryptIncomingSignalServiceEnvelope(envelope);
         } catch (final TimeoutException ex) {
             throw new TimeoutException(ex.getMessage());
@@ -133,6 +223,58 @@ public class SofaMessageReceiver {
         return null;
     }
 
+    private void submitIncomingMessage(final DecryptedSignalMessage signalMessage) throws InterruptedException {
+        this.pipeline.submit(
+                signalMessage.getConversationKey(),
+                getExecutor(signalMessage),
+                () -> prepareIncomingMessage(signalMessage),
+                incomingMessage -> {
+                    if (incomingMessage == null) return;
+                    saveIncomingMessage(incomingMessage);
+                    ChatNotificationManager.showNotification(signalMessage);
+                }
+        );
+    }
+
+    // A message read while shutting down is prepared on the reading thread rather than dropped
+    private Executor getExecutor(final DecryptedSignalMessage signalMessage) {
+        final ExecutorService executor = hasAttachments(signalMessage)
+                ? this.attachmentExecutor
+                : this.resolverExecutor;
+        return command -> {
+            if (executor == null) {
+                command.run();
+                return;
+            }
+            try {
+                executor.execute(command);
+            } catch (final RejectedExecutionException ex) {
+                command.run();
+            }
+        };
+    }
+
+    private synchronized void startExecutors() {
+        if (this.resolverExecutor == null) {
+            this.resolverExecutor = Executors.newFixedThreadPool(NUM_RESOLVER_THREADS);
+        }
+        if (this.attachmentExecutor == null) {
+            this.attachmentExecutor = Executors.newFixedThreadPool(NUM_ATTACHMENT_THREADS);
+        }
+    }
+
+    // Messages already handed to the pools are still prepared and saved
+    private synchronized void stopExecutors() {
+        if (this.resolverExecutor != null) {
+            this.resolverExecutor.shutdown();
+            this.resolverExecutor = null;
+        }
+        if (this.attachmentExecutor != null) {
+            this.attachmentExecutor.shutdown();
+            this.attachmentExecutor = null;
+        }
+    }
+
     private DecryptedSignalMessage decryptIncomingSignalServiceEnvelope(final SignalServiceEnvelope envelope) throws InvalidVersionException, InvalidMessageException, InvalidKeyException, DuplicateMessageException, InvalidKeyIdException, org.whispersystems.libsignal.UntrustedIdentityException, LegacyMessageException, NoSessionException {
         // ToDo -- When do we need to create new keys?
  /*       if (envelope.getType() == SignalServiceProtos.Envelope.Type.PREKEY_BUNDLE_VALUE) {
@@ -149,15 +291,14 @@ public class SofaMessageReceiver {
         final SignalServiceContent content = cipher.decrypt(envelope);
         final String messageSource = envelope.getSource();
 
-        if (isUserBlocked(messageSource)) {
-            LogUtil.i(getClass(), "A blocked user is trying to send a message");
-            return null;
-        }
-
         if (content.getDataMessage().isPresent()) {
             final SignalServiceDataMessage dataMessage = content.getDataMessage().get();
-            if (dataMessage.isGroupUpdate()) return handleGroupUpdate(dataMessage);
-            else return handleTextMessage(messageSource, dataMessage);
+            if (!dataMessage.isGroupUpdate()) return handleTextMessage(messageSource, dataMessage);
+            if (isUserBlocked(messageSource)) {
+                LogUtil.i(getClass(), "A blocked user is trying to update a group");
+                return null;
+            }
+            return handleGroupUpdate(dataMessage);
         }
         return null;
     }
@@ -167,10 +308,7 @@ public class SofaMessageReceiver {
         final Optional<SignalServiceGroup> signalGroup = dataMessage.getGroupInfo();
         final Optional<String> messageBody = dataMessage.getBody();
         final Optional<List<SignalServiceAttachment>> attachments = dataMessage.getAttachments();
-        final DecryptedSignalMessage decryptedMessage = new DecryptedSignalMessage(messageSource, messageBody.get(), attachments, signalGroup);
-
-        saveIncomingMessageToDatabase(decryptedMessage);
-        return decryptedMessage;
+        return new DecryptedSignalMessage(messageSource, messageBody.get(), attachments, signalGroup);
     }
 
     private DecryptedSignalMessage handleGroupUpdate(final SignalServiceDataMessage dataMessage) {
@@ -193,35 +331,56 @@ public class SofaMessageReceiver {
                 .value();
     }
 
-    private void saveIncomingMessageToDatabase(final DecryptedSignalMessage signalMessage) {
-        if (signalMessage == null || signalMessage.getBody() == null || signalMessage.getSource() == null) {
+    // Runs on one of the pipeline's pools, so blocking here only holds back this conversation
+    private IncomingMessage prepareIncomingMessage(final DecryptedSignalMessage signalMessage) {
+        if (signalMessage.getBody() == null || signalMessage.getSource() == null) {
             LogUtil.w(getClass(), "Attempt to save invalid DecryptedSignalMessage to database.");
-            return;
+            return null;
+        }
+
+        if (isUserBlocked(signalMessage.getSource())) {
+            LogUtil.i(getClass(), "A blocked user is trying to send a message");
+            return null;
         }
 
         processAttachments(signalMessage);
 
-        BaseApplication
+        final User sender = BaseApplication
                 .get()
                 .getRecipientManager()
                 .getUserFromToshiId(signalMessage.getSource())
-                .subscribe(
-                        (sender) -> this.saveIncomingMessageToDatabase(sender, signalMessage),
-                        ex -> LogUtil.e(getClass(), "Error getting user. " + ex)
-                );
+                .toBlocking()
+                .value();
+        final SofaMessage remoteMessage = new SofaMessage()
+                .makeNew(sender, signalMessage.getBody())
+                .setAttachmentFilePath(signalMessage.getAttachmentFilePath())
+                .setSendState(SendState.STATE_RECEIVED);
+        if (remoteMessage.getType() == SofaType.PAYMENT_REQUEST) {
+            final String updatedPayload = generatePayloadWithLocalAmountEmbedded(remoteMessage)
+                    .toBlocking()
+                    .value();
+            remoteMessage.setPayload(updatedPayload);
+        }
+
+        final Recipient senderRecipient = generateRecipientFromSignalMessage(sender, signalMessage)
+                .toBlocking()
+                .value();
+        return new IncomingMessage(sender, remoteMessage, senderRecipient);
+    }
+
+    private static boolean hasAttachments(final DecryptedSignalMessage signalMessage) {
+        return signalMessage.getAttachments().isPresent()
+                && signalMessage.getAttachments().get().size() > 0;
     }
 
     private void processAttachments(final DecryptedSignalMessage signalMessage) {
-        if (!signalMessage.getAttachments().isPresent()) {
+        if (!hasAttachments(signalMessage)) {
             return;
         }
 
-        final List<SignalServiceAttachment> attachments = signalMessage.getAttachments().get();
-        if (attachments.size() > 0) {
-            final SignalServiceAttachment attachment = attachments.get(0);
-            final String filePath = saveAttachmentToFile(attachment.asPointer());
-            signalMessage.setAttachmentFilePath(filePath);
-        }
+        final SignalServiceAttachment attachment = signalMessage.getAttachments().get().get(0);
+        final String filePath = saveAttachmentToFile(attachment.asPointer());
+        signalMessage.setAttachmentFilePath(filePath);
     }
 
     private @Nullable
@@ -231,41 +390,27 @@ public class SofaMessageReceiver {
         return attachmentFile != null ? attachmentFile.getAbsolutePath() : null;
     }
 
-    private void saveIncomingMessageToDatabase(final User sender, final DecryptedSignalMessage signalMessage) {
-        final SofaMessage remoteMessage = new SofaMessage()
-                .makeNew(sender, signalMessage.getBody())
-                .setAttachmentFilePath(signalMessage.getAttachmentFilePath())
-                .setSendState(SendState.STATE_RECEIVED);
-
-        generateRecipientFromSignalMessage(sender, signalMessage)
-                .subscribe(
-                        senderRecipient -> this.saveIncomingMessageToDatabase(sender, remoteMessage, senderRecipient),
-                        ex -> LogUtil.e(getClass(), "Error saving incoming message to database. " + ex)
-                );
+    // Called in the order the conversation's messages arrived
+    private void saveIncomingMessage(final IncomingMessage incomingMessage) {
+        if (handleUnrenderedMessage(incomingMessage)) return;
+        this.conversationStore.saveNewMessage(incomingMessage.recipient, incomingMessage.message);
     }
 
-    private void saveIncomingMessageToDatabase(final User sender, final SofaMessage remoteMessage, final Recipient senderRecipient) {
+    // Returns true if the message isn't shown in the conversation, and so shouldn't be saved
+    private boolean handleUnrenderedMessage(final IncomingMessage incomingMessage) {
+        final SofaMessage remoteMessage = incomingMessage.message;
         if (remoteMessage.getType() == SofaType.PAYMENT) {
             // Don't render incoming SOFA::Payments,
             // but ensure we have the sender cached.
-            fetchAndCacheIncomingPaymentSender(sender);
-            return;
-        } else if(remoteMessage.getType() == SofaType.PAYMENT_REQUEST) {
-            generatePayloadWithLocalAmountEmbedded(remoteMessage)
-                    .subscribe((updatedPayload) -> {
-                                remoteMessage.setPayload(updatedPayload);
-                                this.conversationStore.saveNewMessage(senderRecipient, remoteMessage);
-                            },
-                            this::handleError);
-            return;
+            fetchAndCacheIncomingPaymentSender(incomingMessage.sender);
+            return true;
         } else if (remoteMessage.getType() == SofaType.INIT_REQUEST) {
             // Don't render initRequests,
             // but respond to them.
-            respondToInitRequest(sender, remoteMessage);
-            return;
+            respondToInitRequest(incomingMessage.sender, remoteMessage);
+            return true;
         }
-
-        this.conversationStore.saveNewMessage(senderRecipient, remoteMessage);
+        return false;
     }
 
     private Single<Recipient> generateRecipientFromSignalMessage(final User sender, final DecryptedSignalMessage signalMessage) {
@@ -277,10 +422,6 @@ public class SofaMessageReceiver {
                 .map(Recipient::new);
     }
 
-    private void handleError(final Throwable throwable) {
-        LogUtil.exception(getClass(), "Error while generating payload with local amount embedded", throwable);
-    }
-
     private void respondToInitRequest(final User sender, final SofaMessage remoteMessage) {
         try {
             final InitRequest initRequest = SofaAdapters.get().initRequestFrom(remoteMessage.getPayload());
@@ -324,5 +465,6 @@ public class SofaMessageReceiver {
             this.messagePipe.shutdown();
             this.messagePipe = null;
         }
+        stopExecutors();
     }
 }
@@ -24,6 +24,7 @@ import com.toshi.BuildConfig;
 import com.toshi.crypto.HDWallet;
 import com.toshi.crypto.signal.store.ProtocolStore;
 import com.toshi.exception.GroupCreationException;
+import com.toshi.manager.model.PendingMessageRetryMetrics;
 import com.toshi.manager.model.SofaMessageTask;
 import com.toshi.manager.store.ConversationStore;
 import com.toshi.manager.store.PendingMessageStore;
@@ -50,27 +51,57 @@ import org.whispersystems.signalservice.internal.push.SignalServiceUrl;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import rx.Single;
-import rx.Subscription;
-import rx.android.schedulers.AndroidSchedulers;
 import rx.schedulers.Schedulers;
-import rx.subjects.PublishSubject;
-import rx.subscriptions.CompositeSubscription;
 
 import static com.toshi.util.FileUtil.buildSignalServiceAttachment;
+import static com.toshi.util.FileUtil.readBytes;
 
 public class SofaMessageSender {
 
     private final static String USER_AGENT = "Android " + BuildConfig.APPLICATION_ID + " - " + BuildConfig.VERSION_NAME +  ":" + BuildConfig.VERSION_CODE;
+    // How many conversations can be sending at the same time
+    private final static int DEFAULT_MAX_CONCURRENT_CONVERSATIONS = 4;
+    // How many batches of group members a single group message is sent to at the same time
+    private final static int MAX_GROUP_FAN_OUT = 4;
+
+    // What happened when a message was handed to Signal
+    private final static int DELIVERED = 0;
+    // A network or server error, worth trying again
+    private final static int FAILED = 1;
+    // The recipient's keys have changed; the new identity has been saved
+    private final static int IDENTITY_CHANGED = 2;
+
+    // The outcome of a send and, for a group, the ids of the members it has to be resent to.
+    // No ids means every member.
+    private static class DeliveryResult {
+        private final int outcome;
+        private final List<String> failedMemberIds;
+
+        private DeliveryResult(final int outcome) {
+            this(outcome, Collections.emptyList());
+        }
+
+        private DeliveryResult(final int outcome, final List<String> failedMemberIds) {
+            this.outcome = outcome;
+            this.failedMemberIds = failedMemberIds;
+        }
+    }
 
-    private final CompositeSubscription subscriptions;
     private final ConversationStore conversationStore;
     private final HDWallet wallet;
     private final PendingMessageStore pendingMessageStore;
     private final ProtocolStore protocolStore;
-    private final PublishSubject<SofaMessageTask> messageQueue;
+    private final KeyedSerialExecutor messageQueue;
+    private final ExecutorService groupSendExecutor;
+    private final GroupFanOut groupFanOut;
+    private final PendingMessageRetryScheduler retryScheduler;
     private final SignalServiceMessageSender signalMessageSender;
 
 
@@ -78,11 +109,20 @@ public class SofaMessageSender {
                              @NonNull final ProtocolStore protocolStore,
                              @NonNull final ConversationStore conversationStore,
                              @NonNull final SignalServiceUrl[] urls) {
+        this(wallet, protocolStore, conversationStore, urls, DEFAULT_MAX_CONCURRENT_CONVERSATIONS);
+    }
+
+    // Tasks for one conversation always run in order, one at a time. Tasks for different
+    // conversations run in parallel, with at most maxConcurrentConversations sending at once.
+    public SofaMessageSender(@NonNull final HDWallet wallet,
+                             @NonNull final ProtocolStore protocolStore,
+                             @NonNull final ConversationStore conversationStore,
+                             @NonNull final SignalServiceUrl[] urls,
+                             final int maxConcurrentConversations) {
         this.conversationStore = conversationStore;
-        this.messageQueue = PublishSubject.create();
+        this.messageQueue = new KeyedSerialExecutor(maxConcurrentConversations);
         this.pendingMessageStore = new PendingMessageStore();
         this.protocolStore = protocolStore;
-        this.subscriptions = new CompositeSubscription();
         this.wallet = wallet;
 
         this.signalMessageSender =
@@ -96,19 +136,10 @@ public class SofaMessageSender {
                         Optional.absent()
                 );
 
-        attachSubscriber();
-    }
-
-    private void attachSubscriber() {
-        final Subscription sub =
-                this.messageQueue
-                        .observeOn(Schedulers.io())
-                        .subscribeOn(Schedulers.io())
-                        .subscribe(
-                                this::processTask,
-                                this::handleMessageError
-                        );
-        this.subscriptions.add(sub);
+        this.groupSendExecutor = Executors.newFixedThreadPool(MAX_GROUP_FAN_OUT);
+        this.groupFanOut = new GroupFanOut(this.groupSendExecutor, MAX_GROUP_FAN_OUT, this.signalMessageSender::sendMessage);
+        this.retryScheduler = new PendingMessageRetryScheduler(this.pendingMessageStore, this::resendPendingMessage);
+        this.retryScheduler.start();
     }
 
     private void processTask(final SofaMessageTask messageTask) {
@@ -131,29 +162,38 @@ public class SofaMessageSender {
         }
     }
 
-    private void handleMessageError(final Throwable throwable) {
-        LogUtil.exception(getClass(), "Message sending/receiving now broken due to this error", throwable);
+    public void addNewTask(final SofaMessageTask messageTask) {
+        final String threadId = messageTask.getReceiver().getThreadId();
+        this.messageQueue.execute(threadId, () -> processTask(messageTask));
     }
 
-    public void addNewTask(final SofaMessageTask messageTask) {
-        this.messageQueue.onNext(messageTask);
+    // Tasks for the conversation that are being sent or are waiting their turn
+    public int getPendingTaskCount(final String threadId) {
+        return this.messageQueue.getQueuedTaskCount(threadId);
     }
 
+    // The user asked for a failed message to be resent
     public void sendPendingMessage(final SofaMessage sofaMessage) {
         Single.fromCallable(() -> this.pendingMessageStore.fetchPendingMessage(sofaMessage))
                 .subscribeOn(Schedulers.io())
-                .observeOn(AndroidSchedulers.mainThread())
-                .subscribe(this::handlePendingMessage);
+                .subscribe(
+                        this::handlePendingMessage,
+                        throwable -> LogUtil.exception(getClass(), "Error while fetching pending message", throwable)
+                );
     }
 
     private void handlePendingMessage(final PendingMessage pendingMessage) {
         if (pendingMessage == null) return;
+        this.retryScheduler.retry(pendingMessage);
+    }
 
-        final SofaMessageTask messageTask = new SofaMessageTask(
-                pendingMessage.getReceiver(),
-                pendingMessage.getSofaMessage(),
-                SofaMessageTask.SEND_AND_SAVE);
-        addNewTask(messageTask);
+    // Retry every pending message now, e.g. because the network is back
+    public void retryPendingMessages() {
+        this.retryScheduler.retryAll();
+    }
+
+    public PendingMessageRetryMetrics getPendingMessageRetryMetrics() {
+        return this.retryScheduler.getMetrics();
     }
 
     public Single<Group> createGroup(final Group group) {
@@ -176,15 +216,6 @@ public class SofaMessageSender {
     }
 
     private void sendMessageToRecipient(final SofaMessageTask messageTask, final boolean saveMessageToDatabase) {
-        final Recipient receiver = messageTask.getReceiver();
-        if (receiver.isGroup()) {
-            sendMessageToGroup(messageTask, saveMessageToDatabase);
-        } else {
-            sendMessageToUser(messageTask, saveMessageToDatabase);
-        }
-    }
-
-    private void sendMessageToGroup(final SofaMessageTask messageTask, final boolean saveMessageToDatabase) {
         final Recipient receiver = messageTask.getReceiver();
         final SofaMessage message = messageTask.getSofaMessage();
 
@@ -195,71 +226,156 @@ public class SofaMessageSender {
         if (!BaseApplication.get().isConnected() && saveMessageToDatabase) {
             message.setSendState(SendState.STATE_FAILED);
             updateExistingMessage(receiver, message);
-            savePendingMessage(receiver, message);
+            savePendingMessage(receiver, message, Collections.emptyList());
             return;
         }
 
-        try {
-            sendToSignal(receiver.getGroup().getMemberAddresses(), messageTask);
+        final DeliveryResult result = deliver(messageTask, Collections.emptyList());
+        if (!saveMessageToDatabase) return;
+        if (result.outcome == DELIVERED) {
+            message.setSendState(SendState.STATE_SENT);
+            updateExistingMessage(receiver, message);
+        } else if (result.outcome == FAILED) {
+            message.setSendState(SendState.STATE_FAILED);
+            updateExistingMessage(receiver, message);
+            savePendingMessage(receiver, message, result.failedMemberIds);
+        }
+    }
 
-            if (saveMessageToDatabase) {
-                message.setSendState(SendState.STATE_SENT);
-                updateExistingMessage(receiver, message);
+    private void resendPendingMessage(final PendingMessage pendingMessage, final PendingMessageRetryScheduler.Callback callback) {
+        final SofaMessageTask messageTask = new SofaMessageTask(
+                pendingMessage.getReceiver(),
+                pendingMessage.getSofaMessage(),
+                SofaMessageTask.SEND_AND_SAVE);
+        this.messageQueue.execute(pendingMessage.getReceiver().getThreadId(), () -> {
+            boolean isDelivered = false;
+            try {
+                isDelivered = resendMessage(messageTask, pendingMessage.getFailedMemberIds());
+            } catch (final RuntimeException ex) {
+                LogUtil.exception(getClass(), "Error while resending message", ex);
             }
-        } catch (final IOException ex) {
-            LogUtil.error(getClass(), ex.toString());
-            if (saveMessageToDatabase) {
-                message.setSendState(SendState.STATE_FAILED);
-                updateExistingMessage(receiver, message);
+            callback.onResult(isDelivered);
+        });
+    }
+
+    // Unlike a first send this never saves a PendingMessage; the retry scheduler keeps the
+    // existing one until the message is delivered. A group message only goes to the members
+    // that haven't got it yet, and those still missing it are kept for the next attempt.
+    private boolean resendMessage(final SofaMessageTask messageTask, final List<String> failedMemberIds) {
+        final Recipient receiver = messageTask.getReceiver();
+        final SofaMessage message = messageTask.getSofaMessage();
+        if (!BaseApplication.get().isConnected()) return false;
+
+        message.setSendState(SendState.STATE_SENDING);
+        updateExistingMessage(receiver, message);
+
+        final DeliveryResult result = deliver(messageTask, failedMemberIds);
+        final boolean isDelivered = result.outcome == DELIVERED;
+        if (result.outcome == FAILED && messageTask.isGroup()) {
+            this.pendingMessageStore.updateFailedMemberIds(message.getPrivateKey(), result.failedMemberIds);
+        }
+        message.setSendState(isDelivered ? SendState.STATE_SENT : SendState.STATE_FAILED);
+        updateExistingMessage(receiver, message);
+        return isDelivered;
+    }
+
+    // memberIds limits a group send to those members; no ids means every member
+    private DeliveryResult deliver(final SofaMessageTask messageTask, final List<String> memberIds) {
+        return messageTask.isGroup()
+                ? deliverToGroup(messageTask, memberIds)
+                : new DeliveryResult(deliverToUser(messageTask));
+    }
+
+    private DeliveryResult deliverToGroup(final SofaMessageTask messageTask, final List<String> memberIds) {
+        final Recipient receiver = messageTask.getReceiver();
+        final List<SignalServiceAddress> members = getGroupMembers(receiver.getGroup(), memberIds);
+        // Everyone the message was still due to has left the group
+        if (members.isEmpty()) return new DeliveryResult(DELIVERED);
+
+        try {
+            final GroupFanOut.GroupSendResult result = sendToGroupMembers(members, messageTask);
+            final List<String> undeliveredMemberIds = new ArrayList<>();
+            for (final SignalServiceAddress failedMember : result.getFailedMembers()) {
+                undeliveredMemberIds.add(failedMember.getNumber());
+            }
+            // Resending won't reach members that aren't registered, so they are only logged
+            for (final SignalServiceAddress unregisteredMember : result.getUnregisteredMembers()) {
+                LogUtil.w(getClass(), "Group member isn't registered: " + unregisteredMember.getNumber());
             }
-        } catch (final EncapsulatedExceptions e) {
-            for (UntrustedIdentityException uie : e.getUntrustedIdentityExceptions()) {
+            for (final UntrustedIdentityException uie : result.getUntrustedIdentities()) {
                 LogUtil.error(getClass(), "Keys have changed.");
                 protocolStore.saveIdentity(new SignalProtocolAddress(uie.getE164Number(), SignalServiceAddress.DEFAULT_DEVICE_ID), uie.getIdentityKey());
+                undeliveredMemberIds.add(uie.getE164Number());
             }
+
+            if (result.hasFailures()) return new DeliveryResult(FAILED, undeliveredMemberIds);
+            return new DeliveryResult(result.getUntrustedIdentities().isEmpty() ? DELIVERED : IDENTITY_CHANGED);
+        } catch (final IOException ex) {
+            LogUtil.error(getClass(), ex.toString());
+            return new DeliveryResult(FAILED, memberIds);
+        } catch (final InterruptedException ex) {
+            LogUtil.exception(getClass(), "Interrupted while sending group message", ex);
+            Thread.currentThread().interrupt();
+            return new DeliveryResult(FAILED, memberIds);
         }
     }
 
-    private void sendMessageToUser(final SofaMessageTask messageTask, final boolean saveMessageToDatabase) {
-        final Recipient receiver = messageTask.getReceiver();
-        final SofaMessage message = messageTask.getSofaMessage();
-
-        if (saveMessageToDatabase) {
-            this.conversationStore.saveNewMessage(receiver, message);
-        }
+    private List<SignalServiceAddress> getGroupMembers(final Group group, final List<String> memberIds) {
+        final List<SignalServiceAddress> members = group.getMemberAddresses();
+        if (memberIds.isEmpty()) return members;
 
-        if (!BaseApplication.get().isConnected() && saveMessageToDatabase) {
-            message.setSendState(SendState.STATE_FAILED);
-            updateExistingMessage(receiver, message);
-            savePendingMessage(receiver, message);
-            return;
+        final List<SignalServiceAddress> remainingMembers = new ArrayList<>();
+        for (final SignalServiceAddress member : members) {
+            if (memberIds.contains(member.getNumber())) remainingMembers.add(member);
         }
+        return remainingMembers;
+    }
 
+    private int deliverToUser(final SofaMessageTask messageTask) {
+        final Recipient receiver = messageTask.getReceiver();
         try {
             sendToSignal(receiver.getUser().getToshiId(), messageTask);
-
-            if (saveMessageToDatabase) {
-                message.setSendState(SendState.STATE_SENT);
-                updateExistingMessage(receiver, message);
-            }
+            return DELIVERED;
         } catch (final UntrustedIdentityException ue) {
             LogUtil.error(getClass(), "Keys have changed. " + ue);
             protocolStore.saveIdentity(
                     new SignalProtocolAddress(receiver.getUser().getToshiId(), SignalServiceAddress.DEFAULT_DEVICE_ID),
                     ue.getIdentityKey());
+            return IDENTITY_CHANGED;
         } catch (final IOException ex) {
             LogUtil.error(getClass(), ex.toString());
-            if (saveMessageToDatabase) {
-                message.setSendState(SendState.STATE_FAILED);
-                updateExistingMessage(receiver, message);
-                savePendingMessage(receiver, message);
-            }
+            return FAILED;
         }
     }
 
-    private void sendToSignal(final List<SignalServiceAddress> signalAddresses, final SofaMessageTask messageTask) throws IOException, EncapsulatedExceptions {
-        final SignalServiceDataMessage message = buildMessage(messageTask);
-        this.signalMessageSender.sendMessage(signalAddresses, message);
+    // The attachment is read from disk once; every batch of members gets its own stream over the same bytes
+    private GroupFanOut.GroupSendResult sendToGroupMembers(final List<SignalServiceAddress> members, final SofaMessageTask messageTask) throws IOException, InterruptedException {
+        final long timestamp = System.currentTimeMillis();
+        final OutgoingAttachment outgoingAttachment = getValidOutgoingAttachment(messageTask);
+        final byte[] attachmentBytes = outgoingAttachment != null
+                ? readBytes(outgoingAttachment.getOutgoingAttachment())
+                : null;
+
+        return this.groupFanOut.send(members, () -> {
+            final SignalServiceDataMessage.Builder messageBuilder = SignalServiceDataMessage.newBuilder()
+                    .withTimestamp(timestamp)
+                    .withBody(messageTask.getSofaMessage().getAsSofaMessage());
+            if (attachmentBytes != null) {
+                messageBuilder.withAttachment(buildSignalServiceAttachment(attachmentBytes, outgoingAttachment.getMimeType()));
+            }
+            tryAddGroup(messageTask, messageBuilder);
+            return messageBuilder.build();
+        });
+    }
+
+    private OutgoingAttachment getValidOutgoingAttachment(final SofaMessageTask messageTask) {
+        try {
+            final OutgoingAttachment outgoingAttachment = new OutgoingAttachment(messageTask.getSofaMessage());
+            if (outgoingAttachment.isValid() && outgoingAttachment.getOutgoingAttachment().exists()) return outgoingAttachment;
+        } catch (final IllegalStateException ex) {
+            LogUtil.i(getClass(), "Tried and failed to attach attachment." + ex);
+        }
+        return null;
     }
 
     private void sendToSignal(final String signalAddress, final SofaMessageTask messageTask) throws UntrustedIdentityException, IOException {
@@ -302,8 +418,8 @@ public class SofaMessageSender {
         }
     }
 
-    private void savePendingMessage(final Recipient receiver, final SofaMessage message) {
-        this.pendingMessageStore.save(receiver, message);
+    private void savePendingMessage(final Recipient receiver, final SofaMessage message, final List<String> failedMemberIds) {
+        this.retryScheduler.queue(receiver, message, failedMemberIds);
     }
 
     private void storeMessage(
@@ -319,6 +435,8 @@ public class SofaMessageSender {
     }
 
     public void clear() {
-        this.subscriptions.clear();
+        this.messageQueue.shutdown();
+        this.groupSendExecutor.shutdown();
+        this.retryScheduler.shutdown();
     }
 }
@@ -23,14 +23,11 @@ import com.toshi.model.sofa.SofaMessage;
 import com.toshi.util.LogUtil;
 import com.toshi.view.BaseApplication;
 
-import java.util.ArrayList;
-import java.util.List;
-
-import rx.Observable;
-import rx.Subscription;
-import rx.schedulers.Schedulers;
-import rx.subjects.PublishSubject;
-import rx.subscriptions.CompositeSubscription;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * A pipeline for sending sofa messages to a remote recipient.
@@ -38,6 +35,15 @@ import rx.subscriptions.CompositeSubscription;
  * the queue has been initialised.
  * It will suppress attempts to double subscribe; and will handle swapping the recipient
  * in the middle of its lifetime.
+ * <p>
+ * An async queue hands its messages to an executor shared by every async queue, so sending
+ * never happens on the caller's thread. Messages from one queue are always sent one at a time
+ * and in the order they were accepted, while queues for different recipients are sent concurrently.
+ * Handing a message to the sender only puts it in line behind the conversation's other sends,
+ * so a message counts as unsent until the sender has actually sent it. The queue allows at most
+ * {@link #MAX_PENDING_MESSAGES} unsent messages to its recipient; once that many are waiting
+ * {@link #send(SofaMessage)} rejects new messages instead of blocking the caller.
+ * All methods are safe to call from any thread.
  * Example usage:
  * <pre> {@code
 
@@ -50,11 +56,29 @@ queue.clear(); // Cleans up all state, and unsubscribes everything.
  */
 /* package */ class OutgoingMessageQueue {
 
-    private final PublishSubject<SofaMessage> messagesReadyForSending;
-    private final List<SofaMessage> preInitMessagesQueue;
-    private final CompositeSubscription subscriptions;
-    private Recipient recipient;
+    /* package */ static final int MAX_PENDING_MESSAGES = 100;
+    private static final int NUM_SENDER_THREADS = 4;
+    private static final ExecutorService sharedSendExecutor = Executors.newFixedThreadPool(NUM_SENDER_THREADS);
+
+    /* package */ interface MessageSender {
+        void sendAndSaveMessage(Recipient recipient, SofaMessage message);
+    }
+
+    /* package */ interface SendBacklog {
+        // Messages to the recipient that were handed to the sender and are still waiting to be sent
+        int getPendingSendCount(Recipient recipient);
+    }
+
+    private final Object lock = new Object();
+    private final Queue<SofaMessage> preInitMessagesQueue;
+    private final Queue<PendingMessage> messagesReadyForSending;
     private final boolean isAsync;
+    private final Executor sendExecutor;
+    private final MessageSender messageSender;
+    private final SendBacklog sendBacklog;
+    private final int maxPendingMessages;
+    private Recipient recipient;
+    private boolean isDraining;
 
     /**
      * Constructs OutgoingMessageQueue.
@@ -64,44 +88,93 @@ queue.clear(); // Cleans up all state, and unsubscribes everything.
      *
      * @return the constructed OutgoingMessageQueue
      * @param isAsync
+     *              If true messages are sent on the shared sending executor, otherwise
+     *              they are sent on the thread that calls {@link #send(SofaMessage)}.
      */
     /* package */ OutgoingMessageQueue(final boolean isAsync) {
-        this.messagesReadyForSending = PublishSubject.create();
-        this.preInitMessagesQueue = new ArrayList<>();
-        this.subscriptions = new CompositeSubscription();
+        this(isAsync,
+                sharedSendExecutor,
+                MAX_PENDING_MESSAGES,
+                OutgoingMessageQueue::sendAndSaveMessage,
+                OutgoingMessageQueue::getPendingSendCount);
+    }
+
+    /* package */ OutgoingMessageQueue(final boolean isAsync,
+                                       final Executor sendExecutor,
+                                       final int maxPendingMessages,
+                                       final MessageSender messageSender,
+                                       final SendBacklog sendBacklog) {
+        this.preInitMessagesQueue = new ArrayDeque<>();
+        this.messagesReadyForSending = new ArrayDeque<>();
         this.isAsync = isAsync;
+        this.sendExecutor = sendExecutor;
+        this.maxPendingMessages = maxPendingMessages;
+        this.messageSender = messageSender;
+        this.sendBacklog = sendBacklog;
     }
 
     /**
      * Sends or queues a message that may eventually be sent to a remote recipient
      * <p>
      * If {@link #init(Recipient)} has already been called then the message will be sent to the remote recipient
-     * immediately.
+     * immediately, after any messages that are still waiting to be sent.
      * If {@link #init(Recipient)} has not been called then the message will be queued until {@link #init(Recipient)}
      * is called.
+     * This method never blocks waiting for earlier messages to be sent. If the queue already holds
+     * the maximum number of unsent messages the message is rejected, and it is up to the caller
+     * to tell the user or try again later.
      *
      * @param message
      *              The message to be sent.
+     * @return true if the message was accepted; false if the queue is full and the message was dropped.
      */
-    public void send(final SofaMessage message) {
-        // If we already know who to send the message to; send it.
-        // If not, queue it until we know where to send the message.
-        if (this.recipient != null) {
-            this.messagesReadyForSending.onNext(message);
-        } else {
-            this.preInitMessagesQueue.add(message);
+    public boolean send(final SofaMessage message) {
+        synchronized (this.lock) {
+            if (getQueueDepthLocked() >= this.maxPendingMessages) {
+                LogUtil.w(getClass(), "Outgoing message queue is full, rejecting message");
+                return false;
+            }
+
+            // If we already know who to send the message to; send it.
+            // If not, queue it until we know where to send the message.
+            if (this.recipient != null) {
+                this.messagesReadyForSending.add(new PendingMessage(this.recipient, message));
+                scheduleSending();
+            } else {
+                this.preInitMessagesQueue.add(message);
+            }
+            return true;
         }
     }
 
+    /**
+     * Returns the number of messages that have been accepted by {@link #send(SofaMessage)}
+     * but not yet sent; including messages waiting for {@link #init(Recipient)}, and messages
+     * to the current recipient that are waiting in the sender.
+     */
+    public int getQueueDepth() {
+        synchronized (this.lock) {
+            return getQueueDepthLocked();
+        }
+    }
+
+    private int getQueueDepthLocked() {
+        final int backlog = this.recipient == null ? 0 : this.sendBacklog.getPendingSendCount(this.recipient);
+        return this.preInitMessagesQueue.size() + this.messagesReadyForSending.size() + backlog;
+    }
+
     /**
      * Clear all the state; stop processing messages.
      * <p>
-     * Any messages not yet sent will be lost. It is wise to call this method when possible to
-     * clear any state, and release memory.
+     * Messages still waiting for {@link #init(Recipient)} will be lost. Messages that were already
+     * accepted for a recipient are still sent to that recipient. It is wise to call this method when
+     * possible to clear any state, and release memory.
      */
     public void clear() {
-        this.subscriptions.clear();
-        this.recipient = null;
+        synchronized (this.lock) {
+            this.preInitMessagesQueue.clear();
+            this.recipient = null;
+        }
     }
 
     /**
@@ -120,65 +193,89 @@ queue.clear(); // Cleans up all state, and unsubscribes everything.
      *              The Recipient who the messages will be sent to.
      */
     public void init(final Recipient recipient) {
-        if (recipient == this.recipient) {
-            LogUtil.print(getClass(), "Suppressing a double subscription");
-            return;
-        }
+        synchronized (this.lock) {
+            if (recipient == this.recipient) {
+                LogUtil.print(getClass(), "Suppressing a double subscription");
+                return;
+            }
 
-        if (this.recipient != null) {
-            LogUtil.print(getClass(), "Subscribing to a different recipient, so clearing previous subscriptions. Was this intentional?");
-            this.clear();
+            if (this.recipient != null) {
+                LogUtil.print(getClass(), "Subscribing to a different recipient, so clearing previous subscriptions. Was this intentional?");
+                this.clear();
+            }
+
+            this.recipient = recipient;
+            processPreInitMessagesQueue();
         }
+    }
 
-        this.recipient = recipient;
-        attachMessagesReadyForSendingSubscriber();
-        processPreInitMessagesQueue();
+    private void processPreInitMessagesQueue() {
+        if (this.preInitMessagesQueue.isEmpty()) return;
+        for (final SofaMessage message : this.preInitMessagesQueue) {
+            this.messagesReadyForSending.add(new PendingMessage(this.recipient, message));
+        }
+        this.preInitMessagesQueue.clear();
+        scheduleSending();
     }
 
-    private void attachMessagesReadyForSendingSubscriber() {
+    // Must be called while holding the lock. At most one drain runs per queue at any time,
+    // which is what keeps the messages to a recipient in order.
+    private void scheduleSending() {
+        if (this.isDraining) return;
+        this.isDraining = true;
         if (this.isAsync) {
-            this.messagesReadyForSending
-                    .subscribeOn(Schedulers.io())
-                    .observeOn(Schedulers.io());
+            this.sendExecutor.execute(this::drainMessagesReadyForSending);
+        } else {
+            // The lock is re-entrant, so a sync queue sends on the caller's thread
+            // before send() or init() returns.
+            drainMessagesReadyForSending();
         }
+    }
 
-        final Subscription subscription =
-                this.messagesReadyForSending
-                .subscribe(
-                        this::sendAndSaveMessage,
-                        this::handleSendingMessageError
-                );
+    private void drainMessagesReadyForSending() {
+        while (true) {
+            final PendingMessage pendingMessage;
+            synchronized (this.lock) {
+                pendingMessage = this.messagesReadyForSending.poll();
+                if (pendingMessage == null) {
+                    this.isDraining = false;
+                    return;
+                }
+            }
 
-        this.subscriptions.add(subscription);
+            try {
+                this.messageSender.sendAndSaveMessage(pendingMessage.recipient, pendingMessage.message);
+            } catch (final RuntimeException ex) {
+                handleSendingMessageError(ex);
+            }
+        }
     }
 
-    private void sendAndSaveMessage(final SofaMessage outgoingSofaMessage) {
+    private static void sendAndSaveMessage(final Recipient recipient, final SofaMessage outgoingSofaMessage) {
         BaseApplication
                 .get()
                 .getSofaMessageManager()
-                .sendAndSaveMessage(this.recipient, outgoingSofaMessage);
+                .sendAndSaveMessage(recipient, outgoingSofaMessage);
+    }
+
+    private static int getPendingSendCount(final Recipient recipient) {
+        return BaseApplication
+                .get()
+                .getSofaMessageManager()
+                .getPendingSendCount(recipient.getThreadId());
     }
 
     private void handleSendingMessageError(final Throwable throwable) {
         LogUtil.exception(getClass(), "Error during sending message", throwable);
     }
 
-    private void processPreInitMessagesQueue() {
-        final Subscription subscription =
-                Observable
-                .from(this.preInitMessagesQueue)
-                .subscribeOn(Schedulers.io())
-                .observeOn(Schedulers.io())
-                .doOnCompleted(this.preInitMessagesQueue::clear)
-                .subscribe(
-                        this.messagesReadyForSending::onNext,
-                        this::handleMessageQueueError
-                );
-
-        this.subscriptions.add(subscription);
-    }
-
-    private void handleMessageQueueError(final Throwable throwable) {
-        LogUtil.exception(getClass(), "Error during processing message queue", throwable);
+    private static class PendingMessage {
+        private final Recipient recipient;
+        private final SofaMessage message;
+
+        private PendingMessage(final Recipient recipient, final SofaMessage message) {
+            this.recipient = recipient;
+            this.message = message;
+        }
     }
 }
@@ -0,0 +1,92 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.toshi.manager.model;
+
+
+// A snapshot of how the image cache is doing. A load is one image shown in a view; loads that miss
+// the memory cache have to decode a bitmap, from a cached thumbnail or from a download, and the time
+// that takes is the decode time. Revalidations are the conditional requests that check whether an
+// image changed on the server.
+public final class ImageCacheMetrics {
+
+    private final long numLoads;
+    private final long numMemoryHits;
+    private final long totalDecodeMs;
+    private final long maxDecodeMs;
+    private final long numRevalidations;
+    private final long numNotModified;
+
+    public ImageCacheMetrics(
+            final long numLoads,
+            final long numMemoryHits,
+            final long totalDecodeMs,
+            final long maxDecodeMs,
+            final long numRevalidations,
+            final long numNotModified) {
+        this.numLoads = numLoads;
+        this.numMemoryHits = numMemoryHits;
+        this.totalDecodeMs = totalDecodeMs;
+        this.maxDecodeMs = maxDecodeMs;
+        this.numRevalidations = numRevalidations;
+        this.numNotModified = numNotModified;
+    }
+
+    public long getNumLoads() {
+        return numLoads;
+    }
+
+    public long getNumMemoryHits() {
+        return numMemoryHits;
+    }
+
+    public long getNumDecodes() {
+        return this.numLoads - this.numMemoryHits;
+    }
+
+    // The share of loads served from memory; 0 before the first load
+    public double getMemoryHitRate() {
+        return this.numLoads > 0 ? (double) this.numMemoryHits / this.numLoads : 0;
+    }
+
+    public long getAverageDecodeMs() {
+        final long numDecodes = getNumDecodes();
+        return numDecodes > 0 ? this.totalDecodeMs / numDecodes : 0;
+    }
+
+    public long getMaxDecodeMs() {
+        return maxDecodeMs;
+    }
+
+    public long getNumRevalidations() {
+        return numRevalidations;
+    }
+
+    public long getNumNotModified() {
+        return numNotModified;
+    }
+
+    @Override
+    public String toString() {
+        return "loads " + this.numLoads
+                + ", memory hit rate " + getMemoryHitRate()
+                + ", average decode " + getAverageDecodeMs() + " ms"
+                + ", max decode " + this.maxDecodeMs + " ms"
+                + ", revalidations " + this.numRevalidations
+                + ", not modified " + this.numNotModified;
+    }
+}
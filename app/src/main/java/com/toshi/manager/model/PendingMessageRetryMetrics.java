@@ -0,0 +1,69 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.toshi.manager.model;
+
+
+// A snapshot of how automatic resending of failed messages is going. Retry latency is the time
+// from a message first failing to it finally being delivered.
+public final class PendingMessageRetryMetrics {
+
+    private final long numAttempts;
+    private final long numDelivered;
+    private final long totalRetryLatencyMs;
+    private final long maxRetryLatencyMs;
+
+    public PendingMessageRetryMetrics(
+            final long numAttempts,
+            final long numDelivered,
+            final long totalRetryLatencyMs,
+            final long maxRetryLatencyMs) {
+        this.numAttempts = numAttempts;
+        this.numDelivered = numDelivered;
+        this.totalRetryLatencyMs = totalRetryLatencyMs;
+        this.maxRetryLatencyMs = maxRetryLatencyMs;
+    }
+
+    public long getNumAttempts() {
+        return numAttempts;
+    }
+
+    public long getNumDelivered() {
+        return numDelivered;
+    }
+
+    // The share of attempts that ended in delivery; 0 before the first attempt
+    public double getSuccessRate() {
+        return this.numAttempts > 0 ? (double) this.numDelivered / this.numAttempts : 0;
+    }
+
+    public long getAverageRetryLatencyMs() {
+        return this.numDelivered > 0 ? this.totalRetryLatencyMs / this.numDelivered : 0;
+    }
+
+    public long getMaxRetryLatencyMs() {
+        return maxRetryLatencyMs;
+    }
+
+    @Override
+    public String toString() {
+        return "attempts " + this.numAttempts
+                + ", delivered " + this.numDelivered
+                + ", average latency " + getAverageRetryLatencyMs() + " ms"
+                + ", max latency " + this.maxRetryLatencyMs + " ms";
+    }
+}
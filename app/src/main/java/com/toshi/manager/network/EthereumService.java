@@ -62,7 +62,7 @@ public class EthereumService {
     }
 
     private EthereumService() {
-        this.client = new OkHttpClient.Builder();
+        this.client = SharedHttpClient.newBuilder();
 
         addUserAgentHeader();
         addSigningInterceptor();
@@ -126,11 +126,13 @@ public class EthereumService {
                     .url(url)
                     .build();
 
-            final Response response = new OkHttpClient()
+            final Response response = SharedHttpClient
+                    .get()
                     .newCall(request)
                     .execute();
 
             if (response.code() == 404) {
+                response.close();
                 return null;
             }
 
@@ -0,0 +1,133 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.toshi.manager.network;
+
+
+import com.toshi.model.network.ServerTime;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Response;
+import rx.Single;
+
+// Estimates how far the local clock is from the servers' clocks, so signed requests can be
+// timestamped without asking the server for the time first. Every response from a server says
+// when it was sent, to the second, in its Date header; given when the request left and when the
+// response arrived, that bounds the offset between the two clocks. Each new sample narrows the
+// bounds, and one that doesn't fit them at all (because the local clock was changed) replaces them.
+// Samples expire after a while so that drift is picked up, and until there is a fresh one the
+// time is fetched from the server explicitly.
+public final class ServerClock {
+
+    private static final long DEFAULT_SAMPLE_TTL_MS = TimeUnit.MINUTES.toMillis(30);
+    private static final long SERVER_TIME_RESOLUTION_MS = TimeUnit.SECONDS.toMillis(1);
+
+    private static ServerClock instance;
+
+    private final long sampleTtlNanos;
+
+    // Bounds on (server time - local time), and when they were last narrowed
+    private long minOffsetMs;
+    private long maxOffsetMs;
+    private long sampledAtNanos;
+    private boolean hasSample;
+
+    public static synchronized ServerClock get() {
+        if (instance == null) {
+            instance = new ServerClock(DEFAULT_SAMPLE_TTL_MS);
+        }
+        return instance;
+    }
+
+    /* package */ ServerClock(final long sampleTtlMs) {
+        this.sampleTtlNanos = TimeUnit.MILLISECONDS.toNanos(sampleTtlMs);
+    }
+
+    // The server's time, from the local clock when it is known to be in sync, and otherwise from
+    // the probe, which should fetch /v1/timestamp
+    public Single<ServerTime> getServerTime(final Single<ServerTime> probe) {
+        return Single.defer(() -> {
+            if (isSynced()) {
+                return Single.just(new ServerTime(nowSeconds()));
+            }
+
+            final long sentAt = System.currentTimeMillis();
+            return probe.doOnSuccess(serverTime -> {
+                if (serverTime == null) return;
+                addSample(
+                        TimeUnit.SECONDS.toMillis(serverTime.get()),
+                        sentAt,
+                        System.currentTimeMillis());
+            });
+        });
+    }
+
+    public synchronized boolean isSynced() {
+        return this.hasSample && System.nanoTime() - this.sampledAtNanos < this.sampleTtlNanos;
+    }
+
+    public long nowSeconds() {
+        return TimeUnit.MILLISECONDS.toSeconds(nowMillis());
+    }
+
+    public synchronized long nowMillis() {
+        return System.currentTimeMillis() + getOffsetMs();
+    }
+
+    public synchronized long getOffsetMs() {
+        return this.hasSample ? (this.minOffsetMs + this.maxOffsetMs) / 2 : 0;
+    }
+
+    // Learns from the Date header of a response, unless the response came out of the cache
+    public void onResponse(final Response response) {
+        final Response networkResponse = response.networkResponse() != null
+                ? response.networkResponse()
+                : response.cacheResponse() == null ? response : null;
+        if (networkResponse == null) return;
+
+        final Date date = networkResponse.headers().getDate("Date");
+        if (date == null) return;
+        addSample(date.getTime(), networkResponse.sentRequestAtMillis(), networkResponse.receivedResponseAtMillis());
+    }
+
+    // The server stamped serverTimeMs, truncated to the second, at some point between sentAtMs and
+    // receivedAtMs on the local clock
+    /* package */ synchronized void addSample(final long serverTimeMs, final long sentAtMs, final long receivedAtMs) {
+        if (sentAtMs <= 0 || receivedAtMs < sentAtMs) return;
+
+        final long minOffsetMs = serverTimeMs - receivedAtMs;
+        final long maxOffsetMs = serverTimeMs + SERVER_TIME_RESOLUTION_MS - sentAtMs;
+        final boolean isExpired = System.nanoTime() - this.sampledAtNanos >= this.sampleTtlNanos;
+        final boolean fitsBounds = minOffsetMs <= this.maxOffsetMs && maxOffsetMs >= this.minOffsetMs;
+
+        if (!this.hasSample || isExpired || !fitsBounds) {
+            this.minOffsetMs = minOffsetMs;
+            this.maxOffsetMs = maxOffsetMs;
+        } else {
+            this.minOffsetMs = Math.max(this.minOffsetMs, minOffsetMs);
+            this.maxOffsetMs = Math.min(this.maxOffsetMs, maxOffsetMs);
+        }
+        this.sampledAtNanos = System.nanoTime();
+        this.hasSample = true;
+    }
+
+    public synchronized void reset() {
+        this.hasSample = false;
+    }
+}
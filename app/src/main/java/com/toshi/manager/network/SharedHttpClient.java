@@ -0,0 +1,43 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.toshi.manager.network;
+
+
+import okhttp3.OkHttpClient;
+
+// The one OkHttpClient the app makes HTTP requests through. Services derive their own clients from it
+// with newBuilder() and add their own interceptors and caches; the derived clients keep sharing its
+// connection pool, dispatcher and SSL socket factory, so connections, threads and TLS sessions are
+// reused across services instead of every service opening its own.
+public final class SharedHttpClient {
+
+    private static OkHttpClient instance;
+
+    private SharedHttpClient() {}
+
+    public static synchronized OkHttpClient get() {
+        if (instance == null) {
+            instance = new OkHttpClient.Builder().build();
+        }
+        return instance;
+    }
+
+    public static OkHttpClient.Builder newBuilder() {
+        return get().newBuilder();
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.toshi.manager.network.image;
+
+
+import com.toshi.manager.model.ImageCacheMetrics;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.BufferedSource;
+
+// Decides when a cached image has to be checked against the server, and which version of it is
+// current. Images are rendered from the memory and thumbnail caches under their current version,
+// and checked with a conditional request (If-None-Match / If-Modified-Since, taken from the HTTP
+// cache) at most once per revalidateAfterMs. Only when the server hands back a different ETag or
+// Last-Modified does the version change, which makes the image caches decode it afresh.
+public class AvatarCache {
+
+    public interface VersionStore {
+        // Returns null for images that have never been validated
+        String get(String url);
+        void put(String url, String version);
+        void clear();
+    }
+
+    public static final long DEFAULT_REVALIDATE_AFTER_MS = TimeUnit.MINUTES.toMillis(10);
+
+    private static final String UNKNOWN_VERSION = "";
+    // Forgetting when an image was checked only means it is checked again on its next load
+    private static final int MAX_REVALIDATED_AT_ENTRIES = 500;
+
+    private final OkHttpClient client;
+    private final VersionStore versions;
+    private final long revalidateAfterMs;
+
+    private final Object lock = new Object();
+    // When each image was last checked, keyed by url, least recently checked first
+    private final Map<String, Long> revalidatedAt = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Long> eldest) {
+            return size() > MAX_REVALIDATED_AT_ENTRIES;
+        }
+    };
+    private long numLoads;
+    private long numMemoryHits;
+    private long totalDecodeMs;
+    private long maxDecodeMs;
+    private long numRevalidations;
+    private long numNotModified;
+
+    // The client needs an HTTP cache, which is what the conditional requests are built from
+    public AvatarCache(final OkHttpClient client, final VersionStore versions, final long revalidateAfterMs) {
+        this.client = client;
+        this.versions = versions;
+        this.revalidateAfterMs = revalidateAfterMs;
+    }
+
+    public boolean hasVersion(final String url) {
+        return this.versions.get(url) != null;
+    }
+
+    public String getVersion(final String url) {
+        final String version = this.versions.get(url);
+        return version == null ? UNKNOWN_VERSION : version;
+    }
+
+    // Blocks while the server is asked. Returns true when the image changed since it was last
+    // validated, and so has to be rendered again under its new version.
+    public boolean revalidate(final String url) throws IOException {
+        synchronized (this.lock) {
+            final Long lastRevalidatedAt = this.revalidatedAt.get(url);
+            final long now = System.currentTimeMillis();
+            if (lastRevalidatedAt != null && now - lastRevalidatedAt < this.revalidateAfterMs) return false;
+            // Claimed up front so that other views showing the same image don't ask as well
+            this.revalidatedAt.put(url, now);
+            this.numRevalidations++;
+        }
+
+        final Request request = new Request.Builder()
+                .url(url)
+                .header("Cache-Control", "max-age=0")
+                .build();
+        final Response response = this.client.newCall(request).execute();
+        try {
+            if (!response.isSuccessful()) return false;
+            // The body has to be read for the HTTP cache to store it
+            final BufferedSource source = response.body().source();
+            while (source.request(1)) {
+                source.skip(source.buffer().size());
+            }
+
+            if (response.networkResponse() != null && response.networkResponse().code() == 304) {
+                synchronized (this.lock) {
+                    this.numNotModified++;
+                }
+            }
+
+            final String previousVersion = this.versions.get(url);
+            final String version = getVersion(response);
+            if (version.equals(previousVersion)) return false;
+            this.versions.put(url, version);
+            return true;
+        } finally {
+            response.close();
+        }
+    }
+
+    private String getVersion(final Response response) {
+        final String eTag = response.header("ETag");
+        if (eTag != null) return eTag;
+        final String lastModified = response.header("Last-Modified");
+        return lastModified == null ? UNKNOWN_VERSION : lastModified;
+    }
+
+    public void recordLoad(final boolean isFromMemoryCache, final long loadMs) {
+        synchronized (this.lock) {
+            this.numLoads++;
+            if (isFromMemoryCache) {
+                this.numMemoryHits++;
+                return;
+            }
+            this.totalDecodeMs += loadMs;
+            this.maxDecodeMs = Math.max(this.maxDecodeMs, loadMs);
+        }
+    }
+
+    public ImageCacheMetrics getMetrics() {
+        synchronized (this.lock) {
+            return new ImageCacheMetrics(
+                    this.numLoads,
+                    this.numMemoryHits,
+                    this.totalDecodeMs,
+                    this.maxDecodeMs,
+                    this.numRevalidations,
+                    this.numNotModified);
+        }
+    }
+
+    // The image is checked on its next load, however recently it was checked before
+    public void invalidate(final String url) {
+        synchronized (this.lock) {
+            this.revalidatedAt.remove(url);
+        }
+    }
+
+    // Forgets every version and when images were checked
+    public void clear() {
+        synchronized (this.lock) {
+            this.revalidatedAt.clear();
+        }
+        this.versions.clear();
+    }
+}
@@ -22,8 +22,10 @@ import android.content.Context;
 import com.bumptech.glide.Glide;
 import com.bumptech.glide.GlideBuilder;
 import com.bumptech.glide.integration.okhttp3.OkHttpUrlLoader;
+import com.bumptech.glide.load.engine.cache.InternalCacheDiskCacheFactory;
 import com.bumptech.glide.load.model.ModelLoaderFactory;
 import com.bumptech.glide.module.GlideModule;
+import com.toshi.manager.network.SharedHttpClient;
 import com.toshi.manager.network.interceptor.LoggingInterceptor;
 import com.toshi.manager.network.interceptor.UserAgentInterceptor;
 import com.toshi.view.BaseApplication;
@@ -38,25 +40,35 @@ import okhttp3.logging.HttpLoggingInterceptor;
 public class GlideOkHttpStack implements GlideModule {
 
     private static final int MAX_SIZE = 1024 * 1024 * 10;
+    // Decoded and resized images, so a cached image doesn't have to be decoded at full size again
+    private static final int MAX_THUMBNAIL_CACHE_SIZE = 1024 * 1024 * 25;
+    private static final String THUMBNAIL_CACHE_DIR = "ToshiThumbnailCache";
 
-    @Override
-    public void applyOptions(Context context, GlideBuilder builder) {}
+    private static OkHttpClient client;
 
-    @Override
-    public void registerComponents(Context context, Glide glide) {
-        final File cacheDir = new File(BaseApplication.get().getCacheDir(), "ToshiImageCache");
-        final Cache cache = new Cache(cacheDir, MAX_SIZE);
+    // The client images are downloaded through; its HTTP cache keeps the originals and their validators
+    public static synchronized OkHttpClient getClient() {
+        if (client == null) {
+            final File cacheDir = new File(BaseApplication.get().getCacheDir(), "ToshiImageCache");
+            final Cache cache = new Cache(cacheDir, MAX_SIZE);
 
-        final OkHttpClient client =
-                new OkHttpClient().newBuilder()
-                .cache(cache)
-                .addInterceptor(new UserAgentInterceptor())
-                .addInterceptor(new HttpLoggingInterceptor(new LoggingInterceptor()).setLevel(HttpLoggingInterceptor.Level.BODY))
-                .build();
+            client = SharedHttpClient.newBuilder()
+                    .cache(cache)
+                    .addInterceptor(new UserAgentInterceptor())
+                    .addInterceptor(new HttpLoggingInterceptor(new LoggingInterceptor()).setLevel(HttpLoggingInterceptor.Level.BODY))
+                    .build();
+        }
+        return client;
+    }
 
+    @Override
+    public void applyOptions(Context context, GlideBuilder builder) {
+        builder.setDiskCache(new InternalCacheDiskCacheFactory(context, THUMBNAIL_CACHE_DIR, MAX_THUMBNAIL_CACHE_SIZE));
+    }
 
-        glide.register(CachedGlideUrl.class, InputStream.class, superFactory(new OkHttpUrlLoader.Factory(client), CachedGlideUrl.class));
-        glide.register(ForceLoadGlideUrl.class, InputStream.class, superFactory(new OkHttpUrlLoader.Factory(client), ForceLoadGlideUrl.class));
+    @Override
+    public void registerComponents(Context context, Glide glide) {
+        glide.register(CachedGlideUrl.class, InputStream.class, superFactory(new OkHttpUrlLoader.Factory(getClient()), CachedGlideUrl.class));
     }
 
     /**
@@ -0,0 +1,133 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.toshi.manager.network.image;
+
+
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Keeps image versions in SharedPreferences, holding at most maxEntries urls. When it is full the
+// least recently used url is dropped, which only means that image is validated again on its next
+// load. Every value is stored as "<time it was saved>;<version>" so the order survives a restart;
+// within a session reads count as use as well.
+public class PreferencesVersionStore implements AvatarCache.VersionStore {
+
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    private static final char SEPARATOR = ';';
+
+    private final SharedPreferences prefs;
+    private final int maxEntries;
+    private final List<String> evictedUrls = new ArrayList<>();
+    // Loaded on first use, least recently used first
+    private Map<String, String> versions;
+
+    public PreferencesVersionStore(final SharedPreferences prefs, final int maxEntries) {
+        if (maxEntries < 1) throw new IllegalArgumentException("maxEntries must be at least 1");
+        this.prefs = prefs;
+        this.maxEntries = maxEntries;
+    }
+
+    @Override
+    public synchronized String get(final String url) {
+        return getVersions().get(url);
+    }
+
+    @Override
+    public synchronized void put(final String url, final String version) {
+        getVersions().put(url, version);
+        final SharedPreferences.Editor editor = this.prefs
+                .edit()
+                .putString(url, System.currentTimeMillis() + String.valueOf(SEPARATOR) + version);
+        removeEvicted(editor);
+        editor.apply();
+    }
+
+    @Override
+    public synchronized void clear() {
+        getVersions().clear();
+        this.prefs
+                .edit()
+                .clear()
+                .apply();
+    }
+
+    private Map<String, String> getVersions() {
+        if (this.versions == null) this.versions = load();
+        return this.versions;
+    }
+
+    private Map<String, String> load() {
+        final List<StoredVersion> stored = new ArrayList<>();
+        for (final Map.Entry<String, ?> entry : this.prefs.getAll().entrySet()) {
+            if (!(entry.getValue() instanceof String)) continue;
+            stored.add(StoredVersion.parse(entry.getKey(), (String) entry.getValue()));
+        }
+        Collections.sort(stored, (first, second) -> Long.compare(first.savedAt, second.savedAt));
+
+        final Map<String, String> versions = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+                if (size() <= maxEntries) return false;
+                evictedUrls.add(eldest.getKey());
+                return true;
+            }
+        };
+        for (final StoredVersion storedVersion : stored) {
+            versions.put(storedVersion.url, storedVersion.version);
+        }
+
+        // Drops anything stored beyond the limit, e.g. after maxEntries was lowered
+        if (!this.evictedUrls.isEmpty()) {
+            final SharedPreferences.Editor editor = this.prefs.edit();
+            removeEvicted(editor);
+            editor.apply();
+        }
+        return versions;
+    }
+
+    private void removeEvicted(final SharedPreferences.Editor editor) {
+        for (final String url : this.evictedUrls) {
+            editor.remove(url);
+        }
+        this.evictedUrls.clear();
+    }
+
+    private static class StoredVersion {
+        private final String url;
+        private final String version;
+        private final long savedAt;
+
+        private StoredVersion(final String url, final String version, final long savedAt) {
+            this.url = url;
+            this.version = version;
+            this.savedAt = savedAt;
+        }
+
+        private static StoredVersion parse(final String url, final String value) {
+            final int separatorIndex = value.indexOf(SEPARATOR);
+            final long savedAt = Long.parseLong(value.substring(0, separatorIndex));
+            return new StoredVersion(url, value.substring(separatorIndex + 1), savedAt);
+        }
+    }
+}
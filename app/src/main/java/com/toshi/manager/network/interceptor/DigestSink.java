@@ -0,0 +1,80 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.toshi.manager.network.interceptor;
+
+
+import com.toshi.crypto.cryptohash.Digest;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import okio.Buffer;
+import okio.Sink;
+import okio.Timeout;
+
+/**
+ * A {@link Sink} that feeds everything written to it straight into a {@link Digest}.
+ * Bytes are consumed in fixed-size chunks, so hashing a body of any size only ever
+ * holds a single chunk in memory.
+ */
+public class DigestSink implements Sink {
+
+    private static final int CHUNK_SIZE = 8192;
+
+    private final Digest digest;
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+    private boolean closed;
+
+    public DigestSink(final Digest digest) {
+        this.digest = digest;
+    }
+
+    @Override
+    public void write(final Buffer source, final long byteCount) throws IOException {
+        if (this.closed) throw new IllegalStateException("closed");
+        long remaining = byteCount;
+        while (remaining > 0) {
+            final int toRead = (int) Math.min(remaining, CHUNK_SIZE);
+            final int read = source.read(this.chunk, 0, toRead);
+            if (read == -1) throw new EOFException();
+            this.digest.update(this.chunk, 0, read);
+            remaining -= read;
+        }
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public Timeout timeout() {
+        return Timeout.NONE;
+    }
+
+    @Override
+    public void close() {
+        this.closed = true;
+    }
+
+    /**
+     * Finalises the hash of everything written so far and resets the digest.
+     */
+    public byte[] digest() {
+        return this.digest.digest();
+    }
+}
@@ -22,15 +22,19 @@ import android.util.Base64;
 
 import com.toshi.crypto.HDWallet;
 import com.toshi.crypto.util.HashUtil;
+import com.toshi.manager.network.ServerClock;
 import com.toshi.view.BaseApplication;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 import okhttp3.HttpUrl;
 import okhttp3.Interceptor;
 import okhttp3.Request;
+import okhttp3.RequestBody;
 import okhttp3.Response;
-import okio.Buffer;
+import okio.BufferedSink;
+import okio.Okio;
 
 public class SigningInterceptor implements Interceptor {
 
@@ -38,6 +42,9 @@ public class SigningInterceptor implements Interceptor {
     private final String ADDRESS_HEADER = "Toshi-ID-Address";
     private final String SIGNATURE_HEADER = "Toshi-Signature";
     private final String TIMESTAMP_HEADER = "Toshi-Timestamp";
+    private final String INVALID_TIMESTAMP_ERROR = "invalid_timestamp";
+    private final long MAX_ERROR_BODY_SIZE = 4096;
+    private final long WALLET_TIMEOUT_SECONDS = 30;
 
     @Override
     public Response intercept(final Chain chain) throws IOException {
@@ -45,35 +52,58 @@ public class SigningInterceptor implements Interceptor {
         final String timestamp = original.url().queryParameter(TIMESTAMP_QUERY_PARAMETER);
         if (timestamp == null) {
             // Only signing outgoing requests that have a timestamp argument
-            return chain.proceed(original);
+            return proceed(chain, original);
         }
 
         final HDWallet wallet = getWallet();
-        if (wallet == null) {
-            // Only signing outgoing requests that have a timestamp argument
-            return chain.proceed(original);
+        final Response response = proceed(chain, sign(original, wallet, timestamp));
+        if (!isTimestampRejected(response)) {
+            return response;
+        }
+
+        // The clock has drifted too far; the rejection's Date header has already corrected it,
+        // so sign once more with the corrected time
+        final String correctedTimestamp = String.valueOf(ServerClock.get().nowSeconds());
+        if (correctedTimestamp.equals(timestamp)) {
+            return response;
         }
 
-        final Buffer buffer = new Buffer();
+        response.close();
+        return proceed(chain, sign(original, wallet, correctedTimestamp));
+    }
+
+    private Response proceed(final Chain chain, final Request request) throws IOException {
+        final Response response = chain.proceed(request);
+        ServerClock.get().onResponse(response);
+        return response;
+    }
+
+    private boolean isTimestampRejected(final Response response) throws IOException {
+        if (response.code() != 400 && response.code() != 401) return false;
+        return response
+                .peekBody(MAX_ERROR_BODY_SIZE)
+                .string()
+                .contains(INVALID_TIMESTAMP_ERROR);
+    }
+
+    private Request sign(final Request original, final HDWallet wallet, final String timestamp) throws IOException {
         final String method = original.method();
         final String path = original.url().encodedPath();
         String encodedBody = "";
         if (original.body() != null) {
-            original.body().writeTo(buffer);
-            final byte[] body = buffer.readByteArray();
-            final byte[] hashedBody = HashUtil.sha3(body);
+            final byte[] hashedBody = hashBody(original.body());
             encodedBody = Base64.encodeToString(hashedBody, Base64.NO_WRAP);
         }
 
         final String forSigning = method + "\n" + path + "\n" + timestamp + "\n" + encodedBody;
         final String signature = wallet.signIdentity(forSigning);
 
-        final HttpUrl url = chain.request().url()
+        final HttpUrl url = original.url()
                 .newBuilder()
                 .removeAllQueryParameters(TIMESTAMP_QUERY_PARAMETER)
                 .build();
 
-        final Request request = original.newBuilder()
+        return original.newBuilder()
                 .removeHeader(TIMESTAMP_QUERY_PARAMETER)
                 .method(original.method(), original.body())
                 .addHeader(TIMESTAMP_HEADER, timestamp)
@@ -81,17 +111,42 @@ public class SigningInterceptor implements Interceptor {
                 .addHeader(ADDRESS_HEADER, wallet.getOwnerAddress())
                 .url(url)
                 .build();
+    }
 
-        return chain.proceed(request);
+    // Streams the body through the hash so it is never copied into memory as a whole
+    /* package */ static byte[] hashBody(final RequestBody body) throws IOException {
+        final DigestSink digestSink = new DigestSink(HashUtil.getDigest());
+        final BufferedSink bufferedSink = Okio.buffer(digestSink);
+        body.writeTo(bufferedSink);
+        bufferedSink.close();
+        return digestSink.digest();
     }
 
-    public HDWallet getWallet() {
-            return BaseApplication
+    // Requests that need a signature are never sent without one; until the wallet is published
+    // they wait for it, and fail if it doesn't turn up
+    public HDWallet getWallet() throws IOException {
+        final HDWallet wallet = BaseApplication
+                .get()
+                .getUserManager()
+                .getLocalIdentity()
+                .getWallet();
+        return wallet != null ? wallet : waitForWallet();
+    }
+
+    private HDWallet waitForWallet() throws IOException {
+        final HDWallet wallet;
+        try {
+            wallet = BaseApplication
                     .get()
                     .getToshiManager()
                     .getWallet()
-                    .onErrorReturn(__ -> null)
+                    .timeout(WALLET_TIMEOUT_SECONDS, TimeUnit.SECONDS)
                     .toBlocking()
                     .value();
+        } catch (final RuntimeException e) {
+            throw new IOException("No wallet to sign the request with", e);
+        }
+        if (wallet == null) throw new IOException("No wallet to sign the request with");
+        return wallet;
     }
 }
@@ -19,20 +19,25 @@ package com.toshi.manager.store;
 
 
 import android.support.annotation.NonNull;
-import android.support.annotation.Nullable;
 import android.util.Pair;
 
 import com.toshi.model.local.Conversation;
+import com.toshi.model.local.ConversationSummary;
 import com.toshi.model.local.Group;
+import com.toshi.model.local.MessagePage;
 import com.toshi.model.local.Recipient;
 import com.toshi.model.local.User;
 import com.toshi.model.sofa.SofaMessage;
 import com.toshi.util.LogUtil;
 import com.toshi.view.BaseApplication;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
+import java.util.Map;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 import io.realm.Realm;
 import io.realm.RealmQuery;
@@ -49,13 +54,19 @@ public class ConversationStore {
     private static final int FIFTEEN_MINUTES = 1000 * 60 * 15;
     private static final String THREAD_ID_FIELD = "threadId";
     private static final String MESSAGE_ID_FIELD = "privateKey";
+    // Message writes are committed in batches so a burst of messages costs one transaction
+    private static final int MAX_MESSAGE_BATCH_SIZE = 100;
+    private static final long MAX_MESSAGE_BATCH_DELAY_MS = 10;
 
     private static String watchedThreadId;
     private final static PublishSubject<SofaMessage> NEW_MESSAGE_SUBJECT = PublishSubject.create();
     private final static PublishSubject<SofaMessage> UPDATED_MESSAGE_SUBJECT = PublishSubject.create();
     private final static PublishSubject<SofaMessage> DELETED_MESSAGE_SUBJECT = PublishSubject.create();
-    private final static PublishSubject<Conversation> CONVERSATION_CHANGED_SUBJECT = PublishSubject.create();
-    private final static ExecutorService dbThread = Executors.newSingleThreadExecutor();
+    private final static PublishSubject<ConversationSummary> CONVERSATION_CHANGED_SUBJECT = PublishSubject.create();
+    private final static ScheduledExecutorService dbThread = Executors.newSingleThreadScheduledExecutor();
+
+    private final WriteBatcher<MessageWrite> messageWriter =
+            new WriteBatcher<>(dbThread, MAX_MESSAGE_BATCH_SIZE, MAX_MESSAGE_BATCH_DELAY_MS, this::writeMessages);
 
     // Returns a pair of RxSubjects, the first being the observable for new messages
     // the second being the observable for updated messages.
@@ -78,7 +89,7 @@ public class ConversationStore {
         }
     }
 
-    public Observable<Conversation> getConversationChangedObservable() {
+    public Observable<ConversationSummary> getConversationChangedObservable() {
         return CONVERSATION_CHANGED_SUBJECT
                 .filter(thread -> thread != null);
     }
@@ -96,64 +107,198 @@ public class ConversationStore {
     public void saveNewMessage(
             @NonNull final Recipient receiver,
             @NonNull final SofaMessage message) {
-        saveMessage(receiver, message)
-        .observeOn(Schedulers.immediate())
-        .subscribeOn(Schedulers.from(dbThread))
-        .subscribe(
-                conversationForBroadcast -> {
-                    broadcastNewChatMessage(receiver.getThreadId(), message);
-                    broadcastConversationChanged(conversationForBroadcast);
-                },
-                this::handleError
-        );
+        this.messageWriter.enqueue(new MessageWrite(MessageWrite.SAVE, receiver, message));
     }
 
-    private Single<Conversation> saveGroup(@NonNull final Group group) {
+    // Saves the messages in the given order, in as few transactions as possible
+    public void saveNewMessages(@NonNull final List<Pair<Recipient, SofaMessage>> messages) {
+        final List<MessageWrite> writes = new ArrayList<>(messages.size());
+        for (final Pair<Recipient, SofaMessage> message : messages) {
+            writes.add(new MessageWrite(MessageWrite.SAVE, message.first, message.second));
+        }
+        this.messageWriter.enqueueAll(writes);
+    }
+
+    private Single<ConversationSummary> saveGroup(@NonNull final Group group) {
         return Single.fromCallable(() -> {
             final Conversation conversationToStore = getOrCreateConversation(group);
             final Realm realm = BaseApplication.get().getRealm();
             realm.beginTransaction();
             final Conversation storedConversation = realm.copyToRealmOrUpdate(conversationToStore);
             realm.commitTransaction();
-            final Conversation conversationForBroadcast = realm.copyFromRealm(storedConversation);
+            final ConversationSummary conversationForBroadcast = toSummary(realm, storedConversation);
             realm.close();
 
             return conversationForBroadcast;
         });
     }
 
-    private Single<Conversation> saveMessage(
-            @NonNull final Recipient receiver,
-            @Nullable final SofaMessage message) {
-        return Single.fromCallable(() -> {
-            final Conversation conversationToStore = getOrCreateConversation(receiver);
+    // Commits the writes, then broadcasts the changes in the order they were written, followed
+    // by one summary per touched conversation. Only the transactions are retried, so nothing
+    // that has been committed is ever written or broadcast twice.
+    private void writeMessages(final List<MessageWrite> batch) {
+        final List<MessageWrite> broadcasts = new ArrayList<>(batch.size());
+        final Map<String, Conversation> storedConversations = new LinkedHashMap<>();
+        final List<ConversationSummary> conversationsForBroadcast = new ArrayList<>();
 
-            if (message != null && shouldSaveTimestampMessage(message, conversationToStore)) {
-                final SofaMessage timestampMessage =
-                        generateTimestampMessage();
-                conversationToStore.addMessage(timestampMessage);
-                broadcastNewChatMessage(receiver.getThreadId(), timestampMessage);
+        final Realm realm = BaseApplication.get().getRealm();
+        try {
+            try {
+                commitMessages(realm, batch, broadcasts, storedConversations);
+            } catch (final RuntimeException e) {
+                if (batch.size() == 1) {
+                    handleError(e);
+                } else {
+                    // Retry one by one so a single failing write doesn't drop the rest of the batch
+                    for (final MessageWrite write : batch) {
+                        try {
+                            commitMessages(realm, Collections.singletonList(write), broadcasts, storedConversations);
+                        } catch (final RuntimeException singleWriteException) {
+                            handleError(singleWriteException);
+                        }
+                    }
+                }
             }
 
-            final Realm realm = BaseApplication.get().getRealm();
-            realm.beginTransaction();
-
-            if (message != null) {
-                final SofaMessage storedMessage = realm.copyToRealmOrUpdate(message);
-                if(conversationToStore.getThreadId().equals(watchedThreadId)) {
-                    conversationToStore.setLatestMessage(storedMessage);
-                } else {
-                    conversationToStore.setLatestMessageAndUpdateUnreadCounter(storedMessage);
+            for (final Conversation storedConversation : storedConversations.values()) {
+                try {
+                    conversationsForBroadcast.add(toSummary(realm, storedConversation));
+                } catch (final RuntimeException e) {
+                    handleError(e);
                 }
             }
+        } finally {
+            realm.close();
+        }
 
-            final Conversation storedConversation = realm.copyToRealmOrUpdate(conversationToStore);
+        for (final MessageWrite write : broadcasts) {
+            broadcastMessageWrite(write);
+        }
+        for (final ConversationSummary conversation : conversationsForBroadcast) {
+            broadcastConversationChanged(conversation);
+        }
+    }
+
+    // Applies all writes in one transaction. The changes to broadcast and the touched
+    // conversations are only added once the transaction has been committed.
+    private void commitMessages(
+            final Realm realm,
+            final List<MessageWrite> batch,
+            final List<MessageWrite> committedBroadcasts,
+            final Map<String, Conversation> committedConversations) {
+        final List<MessageWrite> broadcasts = new ArrayList<>(batch.size());
+        final Map<String, Conversation> storedConversations = new LinkedHashMap<>();
+        try {
+            realm.beginTransaction();
+            for (final MessageWrite write : batch) {
+                switch (write.type) {
+                    case MessageWrite.SAVE:
+                        saveMessage(realm, write, storedConversations, broadcasts);
+                        break;
+                    case MessageWrite.UPDATE:
+                        realm.insertOrUpdate(write.message);
+                        broadcasts.add(write);
+                        break;
+                    case MessageWrite.DELETE:
+                        deleteMessage(realm, write.message);
+                        broadcasts.add(write);
+                        break;
+                }
+            }
             realm.commitTransaction();
-            final Conversation conversationForBroadcast = realm.copyFromRealm(storedConversation);
-            realm.close();
+        } catch (final RuntimeException e) {
+            if (realm.isInTransaction()) realm.cancelTransaction();
+            throw e;
+        }
+        committedBroadcasts.addAll(broadcasts);
+        committedConversations.putAll(storedConversations);
+    }
 
-            return conversationForBroadcast;
-        });
+    private void saveMessage(
+            final Realm realm,
+            final MessageWrite write,
+            final Map<String, Conversation> storedConversations,
+            final List<MessageWrite> broadcasts) {
+        final String threadId = write.receiver.getThreadId();
+        final List<SofaMessage> savedMessages = new ArrayList<>(2);
+        final Conversation storedConversation = appendMessage(
+                realm,
+                write.receiver,
+                write.message,
+                threadId.equals(watchedThreadId),
+                savedMessages);
+        storedConversations.put(threadId, storedConversation);
+        for (final SofaMessage savedMessage : savedMessages) {
+            broadcasts.add(new MessageWrite(MessageWrite.SAVE, write.receiver, savedMessage));
+        }
+    }
+
+    // Appends the message to the stored conversation in place. Only the new message, a possible
+    // timestamp message and the conversation's summary fields are written; the message history
+    // is never copied in or out of Realm. The unmanaged copies of everything that was appended
+    // are added to savedMessages. Must be called inside a transaction.
+    /* package */ static Conversation appendMessage(
+            final Realm realm,
+            final Recipient receiver,
+            final SofaMessage message,
+            final boolean isWatched,
+            final List<SofaMessage> savedMessages) {
+        Conversation storedConversation = realm
+                .where(Conversation.class)
+                .equalTo(THREAD_ID_FIELD, receiver.getThreadId())
+                .findFirst();
+        if (storedConversation == null) {
+            storedConversation = realm.copyToRealmOrUpdate(new Conversation(receiver));
+        }
+
+        if (shouldSaveTimestampMessage(message, storedConversation)) {
+            final SofaMessage timestampMessage = generateTimestampMessage();
+            storedConversation.addMessage(realm.copyToRealmOrUpdate(timestampMessage));
+            savedMessages.add(timestampMessage);
+        }
+
+        final SofaMessage storedMessage = realm.copyToRealmOrUpdate(message);
+        if (isWatched) {
+            storedConversation.setLatestMessage(storedMessage);
+        } else {
+            storedConversation.setLatestMessageAndUpdateUnreadCounter(storedMessage);
+        }
+        savedMessages.add(message);
+        return storedConversation;
+    }
+
+    // Reads only the summary fields of a stored conversation, never its message history
+    /* package */ static ConversationSummary toSummary(final Realm realm, final Conversation storedConversation) {
+        final SofaMessage latestMessage = storedConversation.getLatestMessage();
+        return new ConversationSummary(
+                realm.copyFromRealm(storedConversation.getRecipient()),
+                latestMessage == null ? null : realm.copyFromRealm(latestMessage),
+                storedConversation.getUpdatedTime(),
+                storedConversation.getNumberOfUnread());
+    }
+
+    private void deleteMessage(final Realm realm, final SofaMessage message) {
+        final SofaMessage storedMessage = realm
+                .where(SofaMessage.class)
+                .equalTo(MESSAGE_ID_FIELD, message.getPrivateKey())
+                .findFirst();
+        if (storedMessage == null) return;
+        storedMessage.deleteFromRealm();
+    }
+
+    private void broadcastMessageWrite(final MessageWrite write) {
+        final String threadId = write.receiver.getThreadId();
+        switch (write.type) {
+            case MessageWrite.SAVE:
+                broadcastNewChatMessage(threadId, write.message);
+                break;
+            case MessageWrite.UPDATE:
+                broadcastUpdatedChatMessage(threadId, write.message);
+                break;
+            case MessageWrite.DELETE:
+                broadcastDeletedChatMessage(threadId, write.message);
+                break;
+        }
     }
 
     @NonNull
@@ -176,12 +321,12 @@ public class ConversationStore {
                 : existingConversation;
     }
 
-    private SofaMessage generateTimestampMessage() {
+    private static SofaMessage generateTimestampMessage() {
         return new SofaMessage().makeNewTimeStampMessage();
     }
 
-    private boolean shouldSaveTimestampMessage(final SofaMessage message,
-                                               final Conversation conversation) {
+    private static boolean shouldSaveTimestampMessage(final SofaMessage message,
+                                                      final Conversation conversation) {
         if (!message.isUserVisible()) return false;
         final long newMessageTimestamp = message.getCreationTime();
         final long latestMessageTimestamp = conversation.getUpdatedTime();
@@ -190,18 +335,22 @@ public class ConversationStore {
 
     private void resetUnreadMessageCounter(final String threadId) {
         Single.fromCallable(() -> {
-            final Conversation storedConversation = loadWhere(THREAD_ID_FIELD, threadId);
+            final Realm realm = BaseApplication.get().getRealm();
+            final Conversation storedConversation = realm
+                    .where(Conversation.class)
+                    .equalTo(THREAD_ID_FIELD, threadId)
+                    .findFirst();
             if (storedConversation == null) {
+                realm.close();
                 return null;
             }
 
-            final Realm realm = BaseApplication.get().getRealm();
             realm.beginTransaction();
             storedConversation.resetUnreadCounter();
-            realm.insertOrUpdate(storedConversation);
             realm.commitTransaction();
+            final ConversationSummary conversationForBroadcast = toSummary(realm, storedConversation);
             realm.close();
-            return storedConversation;
+            return conversationForBroadcast;
         })
         .observeOn(Schedulers.immediate())
         .subscribeOn(Schedulers.from(dbThread))
@@ -211,26 +360,78 @@ public class ConversationStore {
         );
     }
 
-    public List<Conversation> loadAll() {
+    public List<ConversationSummary> loadAllSummaries() {
         final Realm realm = BaseApplication.get().getRealm();
+        final List<ConversationSummary> summaries = loadAllSummaries(realm);
+        realm.close();
+        return summaries;
+    }
+
+    // Most recently updated first. Only the summary fields are copied out of Realm,
+    // so the cost doesn't depend on how many messages the conversations hold.
+    /* package */ static List<ConversationSummary> loadAllSummaries(final Realm realm) {
         final RealmQuery<Conversation> query = realm.where(Conversation.class);
         final RealmResults<Conversation> results = query.findAllSorted("updatedTime", Sort.DESCENDING);
-        final List<Conversation> allConversations = realm.copyFromRealm(results);
-        realm.close();
-        return allConversations;
+        final List<ConversationSummary> summaries = new ArrayList<>(results.size());
+        for (final Conversation storedConversation : results) {
+            summaries.add(toSummary(realm, storedConversation));
+        }
+        return summaries;
     }
 
-    private void broadcastConversationChanged(final Conversation conversation) {
+    private void broadcastConversationChanged(final ConversationSummary conversation) {
         CONVERSATION_CHANGED_SUBJECT.onNext(conversation);
     }
 
-    public Single<Conversation> loadByThreadId(final String threadId) {
+    // Returns a summary of the conversation; its messages are loaded in pages
+    public Single<ConversationSummary> loadByThreadId(final String threadId) {
         return Single.fromCallable(() -> {
             resetUnreadMessageCounter(threadId);
-            return loadWhere(THREAD_ID_FIELD, threadId);
+            final Realm realm = BaseApplication.get().getRealm();
+            final Conversation storedConversation = realm
+                    .where(Conversation.class)
+                    .equalTo(THREAD_ID_FIELD, threadId)
+                    .findFirst();
+            final ConversationSummary summary = storedConversation == null ? null : toSummary(realm, storedConversation);
+            realm.close();
+            return summary;
         });
     }
 
+    public Single<MessagePage> loadLatestMessages(final String threadId, final int count) {
+        return Single.fromCallable(() -> loadMessagePage(threadId, -1, count));
+    }
+
+    public Single<MessagePage> loadMessages(final String threadId, final int fromPosition, final int count) {
+        return Single.fromCallable(() -> loadMessagePage(threadId, Math.max(0, fromPosition), count));
+    }
+
+    // Copies only the requested slice of the conversation's messages out of Realm.
+    // A negative fromPosition loads the latest messages.
+    private MessagePage loadMessagePage(final String threadId, final int fromPosition, final int count) {
+        final Realm realm = BaseApplication.get().getRealm();
+        try {
+            final Conversation storedConversation = realm
+                    .where(Conversation.class)
+                    .equalTo(THREAD_ID_FIELD, threadId)
+                    .findFirst();
+            final List<SofaMessage> storedMessages = storedConversation == null
+                    ? null
+                    : storedConversation.getAllMessages();
+            if (storedMessages == null) return new MessagePage(0, 0, new ArrayList<>(0));
+
+            final int totalCount = storedMessages.size();
+            final int start = fromPosition < 0
+                    ? Math.max(0, totalCount - count)
+                    : Math.min(fromPosition, totalCount);
+            final int end = Math.min(totalCount, start + count);
+            final List<SofaMessage> messages = realm.copyFromRealm(storedMessages.subList(start, end));
+            return new MessagePage(start, totalCount, messages);
+        } finally {
+            realm.close();
+        }
+    }
+
     private Conversation loadWhere(final String fieldName, final String value) {
         final Realm realm = BaseApplication.get().getRealm();
         final Conversation result = realm
@@ -243,19 +444,7 @@ public class ConversationStore {
     }
 
     public void updateMessage(final Recipient receiver, final SofaMessage message) {
-        Completable.fromAction(() -> {
-            final Realm realm = BaseApplication.get().getRealm();
-            realm.beginTransaction();
-            realm.insertOrUpdate(message);
-            realm.commitTransaction();
-            realm.close();
-        })
-        .observeOn(Schedulers.immediate())
-        .subscribeOn(Schedulers.from(dbThread))
-        .subscribe(
-                () -> broadcastUpdatedChatMessage(receiver.getThreadId(), message),
-                this::handleError
-        );
+        this.messageWriter.enqueue(new MessageWrite(MessageWrite.UPDATE, receiver, message));
     }
 
     public Completable deleteByThreadId(final String threadId) {
@@ -273,23 +462,7 @@ public class ConversationStore {
     }
 
     public void deleteMessageById(final Recipient receiver, final SofaMessage message) {
-        Completable.fromAction(() -> {
-            final Realm realm = BaseApplication.get().getRealm();
-            realm.beginTransaction();
-            realm
-                    .where(SofaMessage.class)
-                    .equalTo(MESSAGE_ID_FIELD, message.getPrivateKey())
-                    .findFirst()
-                    .deleteFromRealm();
-            realm.commitTransaction();
-            realm.close();
-        })
-        .observeOn(Schedulers.immediate())
-        .subscribeOn(Schedulers.from(dbThread))
-        .subscribe(
-                () -> broadcastDeletedChatMessage(receiver.getThreadId(), message),
-                this::handleError
-        );
+        this.messageWriter.enqueue(new MessageWrite(MessageWrite.DELETE, receiver, message));
     }
 
     public boolean areUnreadMessages() {
@@ -327,4 +500,20 @@ public class ConversationStore {
     private void handleError(final Throwable throwable) {
         LogUtil.exception(getClass(), throwable);
     }
+
+    private static final class MessageWrite {
+        private static final int SAVE = 0;
+        private static final int UPDATE = 1;
+        private static final int DELETE = 2;
+
+        private final int type;
+        private final Recipient receiver;
+        private final SofaMessage message;
+
+        private MessageWrite(final int type, final Recipient receiver, final SofaMessage message) {
+            this.type = type;
+            this.receiver = receiver;
+            this.message = message;
+        }
+    }
 }
@@ -243,13 +243,12 @@ public class DbMigration implements RealmMigration {
             oldVersion++;
         }
 
+        // SofaError shipped as part of version 16, so it belongs to this step;
+        // databases created fresh at version 16 already have it.
         if (oldVersion == 15) {
             schema.get("User")
                 .addField("average_rating", Double.class);
-            oldVersion++;
-        }
 
-        if (oldVersion == 16) {
             schema.create("SofaError")
                     .addField("id", String.class, FieldAttribute.PRIMARY_KEY)
                     .addField("message", String.class);
@@ -259,6 +258,26 @@ public class DbMigration implements RealmMigration {
 
             oldVersion++;
         }
+
+        // Track retries of PendingMessages
+        if (oldVersion == 16) {
+            final long now = System.currentTimeMillis();
+            schema.get("PendingMessage")
+                    .addField("attempts", int.class)
+                    .addField("nextAttemptAt", long.class)
+                    .addField("createdAt", long.class)
+                    .transform(obj -> obj.setLong("createdAt", now));
+
+            oldVersion++;
+        }
+
+        // Resend a partly failed group message only to the members that missed it
+        if (oldVersion == 17) {
+            schema.get("PendingMessage")
+                    .addField("failedMemberIds", String.class);
+
+            oldVersion++;
+        }
     }
 
     @Override
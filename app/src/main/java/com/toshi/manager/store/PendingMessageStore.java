@@ -23,20 +23,44 @@ import com.toshi.model.local.Recipient;
 import com.toshi.model.sofa.SofaMessage;
 import com.toshi.view.BaseApplication;
 
+import java.util.Collections;
+import java.util.List;
+
 import io.realm.Realm;
+import io.realm.RealmResults;
 
 public class PendingMessageStore {
 
     private static final String PRIVATE_KEY = "privateKey";
+    private static final String NEXT_ATTEMPT_AT = "nextAttemptAt";
+    private static final String RECEIVER_ID = "receiver.id";
+
+    public void save(final Recipient receiver, final SofaMessage message, final long nextAttemptAt) {
+        save(receiver, message, Collections.emptyList(), nextAttemptAt);
+    }
+
+    // Saving a message that is already pending keeps its retry history. An empty failedMemberIds
+    // means a group message is resent to every member.
+    public void save(final Recipient receiver,
+                     final SofaMessage message,
+                     final List<String> failedMemberIds,
+                     final long nextAttemptAt) {
+        final Realm realm = BaseApplication.get().getRealm();
+        realm.beginTransaction();
+        final PendingMessage existing = realm
+                .where(PendingMessage.class)
+                .equalTo(PRIVATE_KEY, message.getPrivateKey())
+                .findFirst();
 
-    public void save(final Recipient receiver, final SofaMessage message) {
         final PendingMessage pendingMessage = new PendingMessage()
                 .setPrivateKey(message.getPrivateKey())
                 .setReceiver(receiver)
-                .setSofaMessage(message);
+                .setSofaMessage(message)
+                .setAttempts(existing != null ? existing.getAttempts() : 0)
+                .setCreatedAt(existing != null ? existing.getCreatedAt() : System.currentTimeMillis())
+                .setNextAttemptAt(nextAttemptAt)
+                .setFailedMemberIds(failedMemberIds);
 
-        final Realm realm = BaseApplication.get().getRealm();
-        realm.beginTransaction();
         realm.insertOrUpdate(pendingMessage);
         realm.commitTransaction();
         realm.close();
@@ -49,18 +73,84 @@ public class PendingMessageStore {
                 .equalTo(PRIVATE_KEY, sofaMessage.getPrivateKey())
                 .findFirst();
 
-        if (result == null) {
-            realm.close();
-            return null;
+        final PendingMessage pendingMessage = result != null ? realm.copyFromRealm(result) : null;
+        realm.close();
+        return pendingMessage;
+    }
+
+    // Returns up to limit messages whose next attempt is due at or before the given time, soonest first
+    public List<PendingMessage> fetchDue(final long dueBefore, final int limit) {
+        final Realm realm = BaseApplication.get().getRealm();
+        final RealmResults<PendingMessage> results = realm
+                .where(PendingMessage.class)
+                .lessThanOrEqualTo(NEXT_ATTEMPT_AT, dueBefore)
+                .findAllSorted(NEXT_ATTEMPT_AT);
+
+        final List<PendingMessage> pendingMessages = realm.copyFromRealm(results.subList(0, Math.min(limit, results.size())));
+        realm.close();
+        return pendingMessages;
+    }
+
+    // Returns the time of the soonest next attempt, or -1 if nothing is pending
+    public long getEarliestNextAttemptAt() {
+        final Realm realm = BaseApplication.get().getRealm();
+        final Number earliest = realm
+                .where(PendingMessage.class)
+                .min(NEXT_ATTEMPT_AT);
+        realm.close();
+        return earliest != null ? earliest.longValue() : -1;
+    }
+
+    // Called before every attempt, so a retry that never reports back is tried again later
+    public void markAttemptStarted(final String privateKey, final long nextAttemptAt) {
+        final Realm realm = BaseApplication.get().getRealm();
+        realm.beginTransaction();
+        final PendingMessage result = realm
+                .where(PendingMessage.class)
+                .equalTo(PRIVATE_KEY, privateKey)
+                .findFirst();
+        if (result != null) {
+            result.setAttempts(result.getAttempts() + 1);
+            result.setNextAttemptAt(nextAttemptAt);
         }
+        realm.commitTransaction();
+        realm.close();
+    }
 
-        final PendingMessage pendingMessage = realm.copyFromRealm(result);
+    // A retry reached some of the group members; only the rest are tried next time
+    public void updateFailedMemberIds(final String privateKey, final List<String> failedMemberIds) {
+        final Realm realm = BaseApplication.get().getRealm();
+        realm.beginTransaction();
+        final PendingMessage result = realm
+                .where(PendingMessage.class)
+                .equalTo(PRIVATE_KEY, privateKey)
+                .findFirst();
+        if (result != null) result.setFailedMemberIds(failedMemberIds);
+        realm.commitTransaction();
+        realm.close();
+    }
 
+    public void delete(final String privateKey) {
+        final Realm realm = BaseApplication.get().getRealm();
         realm.beginTransaction();
-        result.deleteFromRealm();
+        realm
+                .where(PendingMessage.class)
+                .equalTo(PRIVATE_KEY, privateKey)
+                .findAll()
+                .deleteAllFromRealm();
         realm.commitTransaction();
         realm.close();
+    }
 
-        return pendingMessage;
+    public void deleteByThreadId(final String threadId) {
+        final Realm realm = BaseApplication.get().getRealm();
+        realm.beginTransaction();
+        realm
+                .where(PendingMessage.class)
+                .equalTo(RECEIVER_ID, threadId)
+                .findAll()
+                .deleteAllFromRealm();
+        realm.commitTransaction();
+        realm.close();
     }
 }
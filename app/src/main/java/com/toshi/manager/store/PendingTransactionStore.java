@@ -21,6 +21,7 @@ package com.toshi.manager.store;
 import com.toshi.model.local.PendingTransaction;
 import com.toshi.view.BaseApplication;
 
+import java.util.Collection;
 import java.util.List;
 
 import io.realm.Realm;
@@ -49,6 +50,19 @@ public class PendingTransactionStore {
         broadcastPendingTransaction(pendingTransaction);
     }
 
+    // Writes all of the transactions in a single Realm transaction
+    public void saveAll(final List<PendingTransaction> pendingTransactions) {
+        if (pendingTransactions.isEmpty()) return;
+        final Realm realm = BaseApplication.get().getRealm();
+        realm.beginTransaction();
+        realm.insertOrUpdate(pendingTransactions);
+        realm.commitTransaction();
+        realm.close();
+        for (final PendingTransaction pendingTransaction : pendingTransactions) {
+            broadcastPendingTransaction(pendingTransaction);
+        }
+    }
+
     public Single<PendingTransaction> loadTransaction(final String txHash) {
         return Single.fromCallable(() -> loadSingleWhere("txHash", txHash));
     }
@@ -57,6 +71,17 @@ public class PendingTransactionStore {
         return Observable.from(loadAll());
     }
 
+    public List<PendingTransaction> loadTransactions(final Collection<String> txHashes) {
+        final Realm realm = BaseApplication.get().getRealm();
+        final RealmQuery<PendingTransaction> query = realm
+                .where(PendingTransaction.class)
+                .in("txHash", txHashes.toArray(new String[txHashes.size()]));
+
+        final List<PendingTransaction> pendingTransactions = realm.copyFromRealm(query.findAll());
+        realm.close();
+        return pendingTransactions;
+    }
+
     private PendingTransaction loadSingleWhere(final String fieldName, final String value) {
         final Realm realm = BaseApplication.get().getRealm();
         final RealmQuery<PendingTransaction> query = realm
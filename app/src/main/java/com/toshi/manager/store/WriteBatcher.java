@@ -0,0 +1,131 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.toshi.manager.store;
+
+
+import com.toshi.util.LogUtil;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Coalesces writes that are queued from any thread, and hands them to the writer in batches
+// on the given executor. A batch is written as soon as the executor finds maxBatchSize writes
+// queued, otherwise once maxDelayMs has passed since the executor first found it open. The executor
+// is never blocked while a batch is open; the drain is scheduled again for when the batch closes.
+// Writes are handed over in the order they were queued, and only one batch is written at a time.
+/* package */ class WriteBatcher<T> {
+
+    /* package */ interface BatchWriter<T> {
+        void write(List<T> batch);
+    }
+
+    private final BlockingQueue<T> pendingWrites = new LinkedBlockingQueue<>();
+    private final AtomicBoolean isDrainScheduled = new AtomicBoolean(false);
+    private final ScheduledExecutorService executor;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final BatchWriter<T> writer;
+    // Only touched by drain, which never runs twice at once
+    private boolean isBatchOpen;
+    private long batchDeadline;
+
+    /* package */ WriteBatcher(
+            final ScheduledExecutorService executor,
+            final int maxBatchSize,
+            final long maxDelayMs,
+            final BatchWriter<T> writer) {
+        if (maxBatchSize < 1) throw new IllegalArgumentException("maxBatchSize must be at least 1");
+        this.executor = executor;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxDelayMs));
+        this.writer = writer;
+    }
+
+    /* package */ void enqueue(final T write) {
+        this.pendingWrites.add(write);
+        scheduleDrainIfNeeded();
+    }
+
+    // Queues the writes together, so they are written in as few batches as maxBatchSize allows
+    /* package */ void enqueueAll(final Collection<T> writes) {
+        this.pendingWrites.addAll(writes);
+        scheduleDrainIfNeeded();
+    }
+
+    private void scheduleDrainIfNeeded() {
+        if (this.pendingWrites.isEmpty()) return;
+        if (this.isDrainScheduled.compareAndSet(false, true)) {
+            this.executor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        boolean isRescheduled = false;
+        try {
+            isRescheduled = waitForMoreWrites();
+            if (isRescheduled) return;
+            final List<T> batch = takeBatch();
+            if (!batch.isEmpty()) this.writer.write(batch);
+        } catch (final RuntimeException e) {
+            LogUtil.exception(getClass(), "Dropping failed write batch", e);
+        } finally {
+            if (!isRescheduled) {
+                this.isDrainScheduled.set(false);
+                // Anything queued while this batch was written gets its own drain
+                scheduleDrainIfNeeded();
+            }
+        }
+    }
+
+    // Opens a batch if none is open, and schedules the next drain for when it closes unless
+    // it is already full or due
+    private boolean waitForMoreWrites() {
+        final int numPending = this.pendingWrites.size();
+        if (numPending == 0 || numPending >= this.maxBatchSize) {
+            this.isBatchOpen = false;
+            return false;
+        }
+
+        final long now = System.nanoTime();
+        if (!this.isBatchOpen) {
+            this.isBatchOpen = true;
+            this.batchDeadline = now + this.maxDelayNanos;
+        }
+        final long remaining = this.batchDeadline - now;
+        if (remaining <= 0) {
+            this.isBatchOpen = false;
+            return false;
+        }
+
+        this.executor.schedule(this::drain, remaining, TimeUnit.NANOSECONDS);
+        return true;
+    }
+
+    private List<T> takeBatch() {
+        final List<T> batch = new ArrayList<>(Math.min(this.maxBatchSize, 64));
+        this.pendingWrites.drainTo(batch, this.maxBatchSize);
+        return batch;
+    }
+}
@@ -30,6 +30,8 @@ import io.realm.annotations.PrimaryKey;
 
 public class Conversation extends RealmObject {
 
+    private static final String MESSAGE_ID_FIELD = "privateKey";
+
     @PrimaryKey
     private String threadId;
     private Recipient recipient;
@@ -80,7 +82,15 @@ public class Conversation extends RealmObject {
     }
 
     private boolean isDuplicateMessage(final SofaMessage message) {
-        return this.allMessages != null && this.allMessages.contains(message);
+        if (this.allMessages == null) return false;
+        if (this.allMessages.isManaged()) {
+            // Query the stored list rather than loading every message to compare it
+            return this.allMessages
+                    .where()
+                    .equalTo(MESSAGE_ID_FIELD, message.getPrivateKey())
+                    .findFirst() != null;
+        }
+        return this.allMessages.contains(message);
     }
 
     public void addMessage(final SofaMessage latestMessage) {
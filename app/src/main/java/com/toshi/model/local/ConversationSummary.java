@@ -0,0 +1,111 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.toshi.model.local;
+
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.toshi.model.sofa.SofaMessage;
+
+// What the inbox shows for a conversation: the recipient, the latest message and the unread count.
+// Unlike Conversation it never holds the message history.
+public class ConversationSummary {
+
+    private final String threadId;
+    private final Recipient recipient;
+    private final SofaMessage latestMessage;
+    private final long updatedTime;
+    private final int numberOfUnread;
+
+    public ConversationSummary(@NonNull final Recipient recipient,
+                               @Nullable final SofaMessage latestMessage,
+                               final long updatedTime,
+                               final int numberOfUnread) {
+        this.threadId = recipient.getThreadId();
+        this.recipient = recipient;
+        this.latestMessage = latestMessage;
+        this.updatedTime = updatedTime;
+        this.numberOfUnread = numberOfUnread;
+    }
+
+    public String getThreadId() {
+        return threadId;
+    }
+
+    @NonNull
+    public Recipient getRecipient() {
+        return recipient;
+    }
+
+    @Nullable
+    public SofaMessage getLatestMessage() {
+        return latestMessage;
+    }
+
+    public long getUpdatedTime() {
+        return updatedTime;
+    }
+
+    public int getNumberOfUnread() {
+        return numberOfUnread;
+    }
+
+    public final boolean isGroup() {
+        return this.recipient.isGroup();
+    }
+
+    // True if the summary renders the same as the other one
+    public boolean hasSameContent(final ConversationSummary other) {
+        return other != null
+                && this.threadId.equals(other.threadId)
+                && this.updatedTime == other.updatedTime
+                && this.numberOfUnread == other.numberOfUnread
+                && hasSameLatestMessage(other.latestMessage)
+                && equalOrBothNull(this.recipient.getDisplayName(), other.recipient.getDisplayName())
+                && equalOrBothNull(this.recipient.getAvatar(), other.recipient.getAvatar());
+    }
+
+    private boolean hasSameLatestMessage(final SofaMessage otherLatestMessage) {
+        if (this.latestMessage == null || otherLatestMessage == null) {
+            return this.latestMessage == otherLatestMessage;
+        }
+        return this.latestMessage.equals(otherLatestMessage)
+                && this.latestMessage.getSendState() == otherLatestMessage.getSendState()
+                && equalOrBothNull(this.latestMessage.getPayloadWithHeaders(), otherLatestMessage.getPayloadWithHeaders());
+    }
+
+    private static boolean equalOrBothNull(final Object first, final Object second) {
+        return first == null ? second == null : first.equals(second);
+    }
+
+    @Override
+    public int hashCode() {
+        return threadId.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (other == null) return false;
+        if (other == this) return true;
+        if (!(other instanceof ConversationSummary)) return false;
+        final ConversationSummary otherSummary = (ConversationSummary) other;
+        return otherSummary.getThreadId().equals(this.threadId);
+    }
+}
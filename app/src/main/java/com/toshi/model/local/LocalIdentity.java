@@ -0,0 +1,73 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package com.toshi.model.local;
+
+
+import android.support.annotation.Nullable;
+
+import com.toshi.crypto.HDWallet;
+
+// An immutable snapshot of who the local user is: their wallet, its addresses and their profile.
+// UserManager replaces the snapshot whenever one of these changes, so it can be read from any thread
+// without waiting for the wallet or the user to be loaded.
+public class LocalIdentity {
+
+    public static final LocalIdentity EMPTY = new LocalIdentity(null, null);
+
+    private final HDWallet wallet;
+    private final String ownerAddress;
+    private final String paymentAddress;
+    private final User user;
+
+    public LocalIdentity(@Nullable final HDWallet wallet, @Nullable final User user) {
+        this.wallet = wallet;
+        this.ownerAddress = wallet == null ? null : wallet.getOwnerAddress();
+        this.paymentAddress = wallet == null ? null : wallet.getPaymentAddress();
+        this.user = user;
+    }
+
+    public LocalIdentity withWallet(@Nullable final HDWallet wallet) {
+        return new LocalIdentity(wallet, this.user);
+    }
+
+    public LocalIdentity withUser(@Nullable final User user) {
+        return new LocalIdentity(this.wallet, user);
+    }
+
+    @Nullable
+    public HDWallet getWallet() {
+        return wallet;
+    }
+
+    @Nullable
+    public String getOwnerAddress() {
+        return ownerAddress;
+    }
+
+    @Nullable
+    public String getPaymentAddress() {
+        return paymentAddress;
+    }
+
+    @Nullable
+    public User getUser() {
+        return user;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.toshi.model.local;
+
+
+import com.toshi.model.sofa.SofaMessage;
+
+import java.util.List;
+
+// A slice of a conversation's stored messages. Positions refer to the conversation's message list.
+public class MessagePage {
+
+    private final int startPosition;
+    private final int totalCount;
+    private final List<SofaMessage> messages;
+
+    public MessagePage(final int startPosition, final int totalCount, final List<SofaMessage> messages) {
+        this.startPosition = startPosition;
+        this.totalCount = totalCount;
+        this.messages = messages;
+    }
+
+    public int getStartPosition() {
+        return startPosition;
+    }
+
+    public int getEndPosition() {
+        return startPosition + messages.size();
+    }
+
+    public int getTotalCount() {
+        return totalCount;
+    }
+
+    public List<SofaMessage> getMessages() {
+        return messages;
+    }
+}
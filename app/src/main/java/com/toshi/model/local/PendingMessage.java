@@ -20,6 +20,11 @@ package com.toshi.model.local;
 
 import com.toshi.model.sofa.SofaMessage;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 import io.realm.RealmObject;
 import io.realm.annotations.PrimaryKey;
 
@@ -29,9 +34,18 @@ public class PendingMessage extends RealmObject {
     private String privateKey;
     private Recipient receiver;
     private SofaMessage sofaMessage;
+    private int attempts;
+    private long nextAttemptAt;
+    private long createdAt;
+    // Comma separated ids of the group members the message still has to reach; null means everyone
+    private String failedMemberIds;
 
     public PendingMessage() {}
 
+    public String getPrivateKey() {
+        return privateKey;
+    }
+
     public Recipient getReceiver() {
         return receiver;
     }
@@ -55,4 +69,52 @@ public class PendingMessage extends RealmObject {
         this.privateKey = sofaMessage.getPrivateKey();
         return this;
     }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public PendingMessage setAttempts(final int attempts) {
+        this.attempts = attempts;
+        return this;
+    }
+
+    public long getNextAttemptAt() {
+        return nextAttemptAt;
+    }
+
+    public PendingMessage setNextAttemptAt(final long nextAttemptAt) {
+        this.nextAttemptAt = nextAttemptAt;
+        return this;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public PendingMessage setCreatedAt(final long createdAt) {
+        this.createdAt = createdAt;
+        return this;
+    }
+
+    public List<String> getFailedMemberIds() {
+        if (failedMemberIds == null || failedMemberIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(Arrays.asList(failedMemberIds.split(",")));
+    }
+
+    public PendingMessage setFailedMemberIds(final List<String> failedMemberIds) {
+        if (failedMemberIds == null || failedMemberIds.isEmpty()) {
+            this.failedMemberIds = null;
+            return this;
+        }
+        final StringBuilder joined = new StringBuilder();
+        for (final String id : failedMemberIds) {
+            if (joined.length() > 0) joined.append(',');
+            joined.append(id);
+        }
+        this.failedMemberIds = joined.toString();
+        return this;
+    }
 }
@@ -156,18 +156,19 @@ public class Payment {
                 .getToshiManager()
                 .getWallet()
                 .toObservable()
+                .map(HDWallet::getPaymentAddress)
                 .map(this::getPaymentDirection)
                 .toSingle()
                 .subscribeOn(Schedulers.io())
                 .observeOn(Schedulers.io());
     }
 
-    private @PaymentDirection int getPaymentDirection(final HDWallet hdWallet) {
-        if (toAddress.equals(hdWallet.getPaymentAddress())) {
+    public @PaymentDirection int getPaymentDirection(final String localPaymentAddress) {
+        if (toAddress.equals(localPaymentAddress)) {
             return TO_LOCAL_USER;
         }
 
-        if (fromAddress.equals(hdWallet.getPaymentAddress())) {
+        if (fromAddress.equals(localPaymentAddress)) {
             return FROM_LOCAL_USER;
         }
 
@@ -0,0 +1,206 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package com.toshi.model.sofa;
+
+
+// Locates the parts of a stored SOFA payload, e.g. SOFA::Message:{"body":"Hi"}, without
+// regular expressions: the SOFA::Type: header, the JSON body, and the local-only section
+// that is stripped before the payload is sent. Only offsets are recorded; substrings are
+// created when a part is asked for.
+//
+// The rules match the regular expressions this replaced: the header is the first
+// "SOFA::" followed by the nearest ':' at least one character later, the body runs from the
+// first '{' to the last '}' on the same line, and the local-only section runs from its key
+// to the nearest "}," after it. None of the matches can cross a line break.
+public final class SofaEnvelope {
+
+    private static final String HEADER_PREFIX = "SOFA::";
+    private static final String LOCAL_ONLY_KEY = "\"" + SofaType.LOCAL_ONLY_PAYLOAD + "\":{";
+
+    private final String payload;
+    private int headerStart = -1;
+    private int headerEnd = -1;
+    private int bodyStart = -1;
+    private int bodyEnd = -1;
+    private int localOnlyStart = -1;
+    private int localOnlyEnd = -1;
+
+    public static SofaEnvelope parse(final String payload) {
+        final SofaEnvelope envelope = new SofaEnvelope(payload);
+        envelope.scan();
+        return envelope;
+    }
+
+    private SofaEnvelope(final String payload) {
+        this.payload = payload;
+    }
+
+    private void scan() {
+        if (indexOfLineTerminator(this.payload) < 0) {
+            scanSingleLine();
+        } else {
+            scanLines();
+        }
+    }
+
+    // Nearly every payload is a single line, so each part can be found with indexOf
+    private void scanSingleLine() {
+        final int headerStart = this.payload.indexOf(HEADER_PREFIX);
+        if (headerStart >= 0) {
+            final int headerColon = this.payload.indexOf(':', headerStart + HEADER_PREFIX.length() + 1);
+            if (headerColon >= 0) {
+                this.headerStart = headerStart;
+                this.headerEnd = headerColon + 1;
+            }
+        }
+
+        final int bodyStart = this.payload.indexOf('{');
+        final int bodyClose = this.payload.lastIndexOf('}');
+        if (bodyStart >= 0 && bodyClose > bodyStart) {
+            this.bodyStart = bodyStart;
+            this.bodyEnd = bodyClose + 1;
+        }
+
+        final int localOnlyStart = this.payload.indexOf(LOCAL_ONLY_KEY);
+        if (localOnlyStart >= 0) {
+            final int localOnlyClose = this.payload.indexOf("},", localOnlyStart + LOCAL_ONLY_KEY.length());
+            if (localOnlyClose >= 0) {
+                this.localOnlyStart = localOnlyStart;
+                this.localOnlyEnd = localOnlyClose + 2;
+            }
+        }
+    }
+
+    private void scanLines() {
+        final int length = this.payload.length();
+        // The earliest index that can end the header or local-only section once their start is found
+        int headerColonFrom = -1;
+        int localOnlyCloseFrom = -1;
+        boolean isBodyComplete = false;
+
+        for (int i = 0; i < length; i++) {
+            final char c = this.payload.charAt(i);
+
+            if (isLineTerminator(c)) {
+                // A part that hasn't been closed by the end of its line isn't a match
+                if (this.headerEnd < 0) this.headerStart = -1;
+                if (this.localOnlyEnd < 0) this.localOnlyStart = -1;
+                if (this.bodyEnd >= 0) isBodyComplete = true;
+                else this.bodyStart = -1;
+                continue;
+            }
+
+            if (this.headerEnd < 0) {
+                if (this.headerStart < 0) {
+                    if (c == 'S' && this.payload.startsWith(HEADER_PREFIX, i)) {
+                        this.headerStart = i;
+                        headerColonFrom = i + HEADER_PREFIX.length() + 1;
+                    }
+                } else if (c == ':' && i >= headerColonFrom) {
+                    this.headerEnd = i + 1;
+                }
+            }
+
+            if (!isBodyComplete) {
+                if (c == '{' && this.bodyStart < 0) {
+                    this.bodyStart = i;
+                } else if (c == '}' && this.bodyStart >= 0) {
+                    this.bodyEnd = i + 1;
+                }
+            }
+
+            if (this.localOnlyEnd < 0) {
+                if (this.localOnlyStart < 0) {
+                    if (c == '"' && this.payload.startsWith(LOCAL_ONLY_KEY, i)) {
+                        this.localOnlyStart = i;
+                        localOnlyCloseFrom = i + LOCAL_ONLY_KEY.length();
+                    }
+                } else if (c == '}' && i >= localOnlyCloseFrom && i + 1 < length && this.payload.charAt(i + 1) == ',') {
+                    this.localOnlyEnd = i + 2;
+                }
+            }
+        }
+
+        if (this.headerEnd < 0) this.headerStart = -1;
+        if (this.bodyEnd < 0) this.bodyStart = -1;
+        if (this.localOnlyEnd < 0) this.localOnlyStart = -1;
+    }
+
+    private static int indexOfLineTerminator(final String payload) {
+        for (int i = 0; i < payload.length(); i++) {
+            if (isLineTerminator(payload.charAt(i))) return i;
+        }
+        return -1;
+    }
+
+    // The same characters '.' refuses to match in a java.util.regex.Pattern
+    private static boolean isLineTerminator(final char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    public boolean hasHeader() {
+        return this.headerStart >= 0;
+    }
+
+    // Returns null if the payload has no SOFA header
+    public String getHeader() {
+        return hasHeader() ? this.payload.substring(this.headerStart, this.headerEnd) : null;
+    }
+
+    public int getHeaderStart() {
+        return this.headerStart;
+    }
+
+    public int getHeaderEnd() {
+        return this.headerEnd;
+    }
+
+    public boolean hasBody() {
+        return this.bodyStart >= 0;
+    }
+
+    // Returns the whole payload if no JSON body was found
+    public String getBody() {
+        if (!hasBody()) return this.payload;
+        if (this.bodyStart == 0 && this.bodyEnd == this.payload.length()) return this.payload;
+        return this.payload.substring(this.bodyStart, this.bodyEnd);
+    }
+
+    public int getBodyStart() {
+        return this.bodyStart;
+    }
+
+    public int getBodyEnd() {
+        return this.bodyEnd;
+    }
+
+    public boolean hasLocalOnlyPayload() {
+        return this.localOnlyStart >= 0;
+    }
+
+    // The payload as it should be sent to other users
+    public String withoutLocalOnlyPayload() {
+        if (!hasLocalOnlyPayload()) return this.payload;
+        return new StringBuilder(this.payload.length() - (this.localOnlyEnd - this.localOnlyStart))
+                .append(this.payload, 0, this.localOnlyStart)
+                .append(this.payload, this.localOnlyEnd, this.payload.length())
+                .toString();
+    }
+}
@@ -25,8 +25,6 @@ import com.toshi.model.network.SofaError;
 import com.toshi.util.ImageUtil;
 
 import java.util.UUID;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import io.realm.RealmObject;
 import io.realm.annotations.PrimaryKey;
@@ -87,7 +85,7 @@ public class SofaMessage extends RealmObject {
     }
 
     public String getPayload() {
-        return cleanPayload(this.payload);
+        return SofaEnvelope.parse(this.payload).getBody();
     }
 
     public String getPayloadWithHeaders() {
@@ -113,8 +111,7 @@ public class SofaMessage extends RealmObject {
     // Return message in the correct format for SOFA
     public String getAsSofaMessage() {
         // Strip away local-only data before sending via Signal
-        final String matcher = "\"" + SofaType.LOCAL_ONLY_PAYLOAD + "\":\\{.*?\\},";
-        return this.payload.replaceFirst(matcher, "");
+        return SofaEnvelope.parse(this.payload).withoutLocalOnlyPayload();
     }
 
     public @SofaType.Type int getType() {
@@ -139,24 +136,8 @@ public class SofaMessage extends RealmObject {
         return this.attachmentFilePath != null;
     }
 
-    private String cleanPayload(final String payload) {
-        final String regexString = "\\{.*\\}";
-        final Pattern pattern = Pattern.compile(regexString);
-        final Matcher m = pattern.matcher(payload);
-        if (m.find()) {
-            return m.group();
-        }
-        return payload;
-    }
-
     private String getSofaHeader(final String payload) {
-        final String regexString = "SOFA::.+?:";
-        final Pattern pattern = Pattern.compile(regexString);
-        final Matcher m = pattern.matcher(payload);
-        if (m.find()) {
-            return m.group();
-        }
-        return null;
+        return SofaEnvelope.parse(payload).getHeader();
     }
 
     public SofaMessage makeNew(
@@ -0,0 +1,143 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.toshi.model.sofa;
+
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Keeps the decoded SOFA payloads of recently shown messages, so binding a message view
+// doesn't parse its JSON again. Entries are keyed by the message's private key and
+// are only used while the message's payload is unchanged.
+// Fill it off the main thread with prefetch() as messages are loaded or updated.
+public class SofaPayloadCache {
+
+    private static final int MAX_ENTRIES = 500;
+    private static SofaPayloadCache instance;
+
+    private static final class Entry {
+        private final String payload;
+        private final @SofaType.Type int payloadType;
+        private final Object parsedPayload;
+
+        private Entry(final String payload, final @SofaType.Type int payloadType, final Object parsedPayload) {
+            this.payload = payload;
+            this.payloadType = payloadType;
+            this.parsedPayload = parsedPayload;
+        }
+    }
+
+    private final Map<String, Entry> entries;
+
+    public static synchronized SofaPayloadCache get() {
+        if (instance == null) {
+            instance = new SofaPayloadCache(MAX_ENTRIES);
+        }
+        return instance;
+    }
+
+    /* package */ SofaPayloadCache(final int maxEntries) {
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public void prefetch(final List<SofaMessage> sofaMessages) {
+        for (final SofaMessage sofaMessage : sofaMessages) {
+            prefetch(sofaMessage);
+        }
+    }
+
+    public void prefetch(final SofaMessage sofaMessage) {
+        try {
+            getParsedPayload(sofaMessage);
+        } catch (final IOException ignored) {
+            // Binding will report the error when the message is shown
+        }
+    }
+
+    public Message getMessage(final SofaMessage sofaMessage) throws IOException {
+        return (Message) getParsedPayload(sofaMessage, SofaType.PLAIN_TEXT);
+    }
+
+    public Payment getPayment(final SofaMessage sofaMessage) throws IOException {
+        return (Payment) getParsedPayload(sofaMessage, SofaType.PAYMENT);
+    }
+
+    public PaymentRequest getPaymentRequest(final SofaMessage sofaMessage) throws IOException {
+        return (PaymentRequest) getParsedPayload(sofaMessage, SofaType.PAYMENT_REQUEST);
+    }
+
+    private Object getParsedPayload(final SofaMessage sofaMessage) throws IOException {
+        return getParsedPayload(sofaMessage, toPayloadType(sofaMessage.getType()));
+    }
+
+    private Object getParsedPayload(final SofaMessage sofaMessage, final @SofaType.Type int payloadType) throws IOException {
+        final String payload = sofaMessage.getPayloadWithHeaders();
+        if (payloadType == SofaType.UNKNOWN || payload == null) return null;
+        final String key = sofaMessage.getPrivateKey();
+        synchronized (this.entries) {
+            final Entry entry = this.entries.get(key);
+            final boolean isCurrent = entry != null
+                    && entry.payloadType == payloadType
+                    && entry.payload.equals(payload);
+            if (isCurrent) return entry.parsedPayload;
+        }
+
+        final Object parsedPayload = parse(sofaMessage.getPayload(), payloadType);
+        if (parsedPayload == null) return null;
+        synchronized (this.entries) {
+            this.entries.put(key, new Entry(payload, payloadType, parsedPayload));
+        }
+        return parsedPayload;
+    }
+
+    // The type of object a message type's payload decodes to, or UNKNOWN if it isn't cached
+    private static @SofaType.Type int toPayloadType(final @SofaType.Type int messageType) {
+        switch (messageType) {
+            case SofaType.PLAIN_TEXT:
+            case SofaType.COMMAND_REQUEST:
+                return SofaType.PLAIN_TEXT;
+            case SofaType.PAYMENT:
+                return SofaType.PAYMENT;
+            case SofaType.PAYMENT_REQUEST:
+                return SofaType.PAYMENT_REQUEST;
+            default:
+                return SofaType.UNKNOWN;
+        }
+    }
+
+    private static Object parse(final String payload, final @SofaType.Type int payloadType) throws IOException {
+        switch (payloadType) {
+            case SofaType.PLAIN_TEXT:
+                return SofaAdapters.get().messageFrom(payload);
+            case SofaType.PAYMENT:
+                return SofaAdapters.get().paymentFrom(payload);
+            case SofaType.PAYMENT_REQUEST:
+                return SofaAdapters.get().txRequestFrom(payload);
+            default:
+                return null;
+        }
+    }
+}
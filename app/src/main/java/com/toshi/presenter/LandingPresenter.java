@@ -25,7 +25,7 @@ import android.widget.Toast;
 
 import com.toshi.R;
 import com.toshi.manager.OnboardingManager;
-import com.toshi.model.local.Conversation;
+import com.toshi.model.local.ConversationSummary;
 import com.toshi.util.LogUtil;
 import com.toshi.util.SharedPrefsUtil;
 import com.toshi.util.TermsDialog;
@@ -133,7 +133,7 @@ public class LandingPresenter implements Presenter<LandingActivity> {
         this.subscriptions.add(sub);
     }
 
-    private boolean isOnboardingBot(final Conversation conversation) {
+    private boolean isOnboardingBot(final ConversationSummary conversation) {
         return conversation.getRecipient().getUser().getUsernameForEditing().equals(OnboardingManager.ONBOARDING_BOT_NAME);
     }
 
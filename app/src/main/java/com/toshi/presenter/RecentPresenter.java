@@ -25,7 +25,9 @@ import android.support.v7.widget.RecyclerView;
 import android.support.v7.widget.helper.ItemTouchHelper;
 
 import com.toshi.R;
-import com.toshi.model.local.Conversation;
+import com.toshi.model.local.ConversationSummary;
+import com.toshi.model.sofa.SofaMessage;
+import com.toshi.model.sofa.SofaPayloadCache;
 import com.toshi.util.LogUtil;
 import com.toshi.util.UserSearchType;
 import com.toshi.view.BaseApplication;
@@ -44,7 +46,7 @@ import rx.subscriptions.CompositeSubscription;
 
 public final class RecentPresenter implements
         Presenter<RecentFragment>,
-        OnItemClickListener<Conversation> {
+        OnItemClickListener<ConversationSummary> {
 
     private RecentFragment fragment;
     private boolean firstTimeAttaching = true;
@@ -120,6 +122,7 @@ public final class RecentPresenter implements
                 .get()
                 .getSofaMessageManager()
                 .loadAllConversations()
+                .doOnSuccess(this::prefetchLatestMessages)
                 .observeOn(AndroidSchedulers.mainThread())
                 .subscribe(
                         this::handleConversations,
@@ -129,7 +132,14 @@ public final class RecentPresenter implements
         this.subscriptions.add(sub);
     }
 
-    private void handleConversations(final List<Conversation> conversations) {
+    private void prefetchLatestMessages(final List<ConversationSummary> conversations) {
+        for (final ConversationSummary conversation : conversations) {
+            final SofaMessage latestMessage = conversation.getLatestMessage();
+            if (latestMessage != null) SofaPayloadCache.get().prefetch(latestMessage);
+        }
+    }
+
+    private void handleConversations(final List<ConversationSummary> conversations) {
         this.adapter.setConversations(conversations);
         updateEmptyState();
     }
@@ -153,7 +163,7 @@ public final class RecentPresenter implements
         this.subscriptions.add(sub);
     }
 
-    private void handleConversation(final Conversation updatedConversation) {
+    private void handleConversation(final ConversationSummary updatedConversation) {
         this.adapter.updateConversation(updatedConversation);
         updateEmptyState();
     }
@@ -178,7 +188,7 @@ public final class RecentPresenter implements
     }
 
     @Override
-    public void onItemClick(final Conversation clickedConversation) {
+    public void onItemClick(final ConversationSummary clickedConversation) {
         if (this.fragment == null) return;
         final Intent intent = new Intent(this.fragment.getActivity(), ChatActivity.class);
         intent.putExtra(ChatActivity.EXTRA__THREAD_ID, clickedConversation.getThreadId());
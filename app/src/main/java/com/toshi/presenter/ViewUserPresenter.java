@@ -363,9 +363,8 @@ public final class ViewUserPresenter implements
                 .get()
                 .getToshiManager()
                 .getUserManager()
-                .getCurrentUser()
-                .toBlocking()
-                .value();
+                .getLocalIdentity()
+                .getUser();
     }
 
     private void isUserBlocked() {
@@ -23,6 +23,7 @@ import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Bundle;
 import android.support.design.widget.BottomSheetDialog;
+import android.support.v7.widget.RecyclerView;
 import android.text.TextUtils;
 import android.util.Pair;
 import android.view.View;
@@ -36,8 +37,9 @@ import com.toshi.R;
 import com.toshi.crypto.HDWallet;
 import com.toshi.exception.PermissionException;
 import com.toshi.model.local.ActivityResultHolder;
-import com.toshi.model.local.Conversation;
+import com.toshi.model.local.ConversationSummary;
 import com.toshi.model.local.Group;
+import com.toshi.model.local.MessagePage;
 import com.toshi.model.local.Network;
 import com.toshi.model.local.Networks;
 import com.toshi.model.local.PermissionResultHolder;
@@ -49,6 +51,7 @@ import com.toshi.model.sofa.Message;
 import com.toshi.model.sofa.PaymentRequest;
 import com.toshi.model.sofa.SofaAdapters;
 import com.toshi.model.sofa.SofaMessage;
+import com.toshi.model.sofa.SofaPayloadCache;
 import com.toshi.presenter.AmountPresenter;
 import com.toshi.presenter.Presenter;
 import com.toshi.manager.messageQueue.AsyncOutgoingMessageQueue;
@@ -73,6 +76,7 @@ import com.toshi.view.notification.ChatNotificationManager;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 import rx.Observable;
 import rx.Single;
@@ -93,11 +97,16 @@ public final class ChatPresenter implements Presenter<ChatActivity> {
     private static final int CAPTURE_IMAGE = 4;
     private static final int CONFIRM_ATTACHMENT = 5;
     private static final String CAPTURE_FILENAME = "caputureImageFilename";
+    private static final int MESSAGE_PAGE_SIZE = 50;
+    private static final int MAX_MESSAGE_PAGES = 4;
+    // Number of messages from the edge of the window at which the next page is loaded
+    private static final int MESSAGE_PREFETCH_DISTANCE = 10;
 
     private ChatActivity activity;
     private ChatNavigation chatNavigation;
     private AsyncOutgoingMessageQueue outgoingMessageQueue;
     private MessageAdapter messageAdapter;
+    private MessageWindow messageWindow;
     private PendingTransactionsObservable pendingTransactionsObservable;
     private SpeedyLinearLayoutManager layoutManager;
     private HDWallet userWallet;
@@ -114,7 +123,7 @@ public final class ChatPresenter implements Presenter<ChatActivity> {
     private int lastVisibleMessagePosition;
     private String captureImageFilename;
     private Recipient recipient;
-    private Conversation conversation;
+    private ConversationSummary conversation;
 
     @Override
     public void onViewAttached(final ChatActivity activity) {
@@ -132,6 +141,7 @@ public final class ChatPresenter implements Presenter<ChatActivity> {
         this.outgoingMessageQueue = new AsyncOutgoingMessageQueue();
         this.pendingTransactionsObservable = new PendingTransactionsObservable();
         initMessageAdapter();
+        initMessageWindow();
     }
 
     private void initMessageAdapter() {
@@ -144,6 +154,52 @@ public final class ChatPresenter implements Presenter<ChatActivity> {
                 .addOnResendListener(this::showResendDialog);
     }
 
+    private void initMessageWindow() {
+        final MessageWindow.Source source = new MessageWindow.Source() {
+            @Override
+            public Single<MessagePage> loadLatest(final int count) {
+                return BaseApplication
+                        .get()
+                        .getSofaMessageManager()
+                        .loadLatestMessages(recipient.getThreadId(), count)
+                        .doOnSuccess(page -> SofaPayloadCache.get().prefetch(page.getMessages()));
+            }
+
+            @Override
+            public Single<MessagePage> load(final int fromPosition, final int count) {
+                return BaseApplication
+                        .get()
+                        .getSofaMessageManager()
+                        .loadMessages(recipient.getThreadId(), fromPosition, count)
+                        .doOnSuccess(page -> SofaPayloadCache.get().prefetch(page.getMessages()));
+            }
+        };
+
+        final MessageWindow.Listener listener = new MessageWindow.Listener() {
+            @Override
+            public void onMessagesInserted(final int position, final List<SofaMessage> messages) {
+                if (messageAdapter != null) messageAdapter.insertMessages(position, messages);
+            }
+
+            @Override
+            public void onMessagesRemoved(final int position, final int count) {
+                if (messageAdapter != null) messageAdapter.removeMessages(position, count);
+            }
+
+            @Override
+            public void onMessageChanged(final int position, final SofaMessage message) {
+                if (messageAdapter != null) messageAdapter.setMessage(position, message);
+            }
+        };
+
+        this.messageWindow = new MessageWindow(
+                source,
+                listener,
+                AndroidSchedulers.mainThread(),
+                MESSAGE_PAGE_SIZE,
+                MAX_MESSAGE_PAGES);
+    }
+
     private void handleUsernameClicked(final String username) {
         final Subscription sub =
                 BaseApplication
@@ -257,13 +313,13 @@ public final class ChatPresenter implements Presenter<ChatActivity> {
     }
 
     private void handleUpdatedMessage(final SofaMessage sofaMessage) {
-        if (this.messageAdapter == null) return;
-        this.messageAdapter.updateMessage(sofaMessage);
+        if (this.messageWindow == null) return;
+        this.messageWindow.addOrUpdateMessage(sofaMessage);
     }
 
     private void handleDeletedMessage(final SofaMessage sofaMessage) {
-        if (this.messageAdapter == null) return;
-        this.messageAdapter.deleteMessage(sofaMessage);
+        if (this.messageWindow == null) return;
+        this.messageWindow.deleteMessage(sofaMessage);
     }
 
     private void initShortLivingObjects() {
@@ -317,6 +373,21 @@ public final class ChatPresenter implements Presenter<ChatActivity> {
         attachMessageAdapter();
         // Hack to scroll to bottom when keyboard rendered
         this.activity.getBinding().messagesList.addOnLayoutChangeListener((v, left, top, right, bottom, oldLeft, oldTop, oldRight, oldBottom) -> handleLayoutChanged(bottom, oldBottom));
+        this.activity.getBinding().messagesList.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(final RecyclerView recyclerView, final int dx, final int dy) {
+                handleMessagesScrolled(dy);
+            }
+        });
+    }
+
+    private void handleMessagesScrolled(final int dy) {
+        if (this.layoutManager == null || this.messageWindow == null) return;
+        if (dy < 0 && this.layoutManager.findFirstVisibleItemPosition() <= MESSAGE_PREFETCH_DISTANCE) {
+            this.messageWindow.loadOlder();
+        } else if (dy > 0 && this.layoutManager.findLastVisibleItemPosition() >= this.messageAdapter.getItemCount() - 1 - MESSAGE_PREFETCH_DISTANCE) {
+            this.messageWindow.loadNewer();
+        }
     }
 
     private void handleLayoutChanged(final int bottom,
@@ -363,13 +434,21 @@ public final class ChatPresenter implements Presenter<ChatActivity> {
         final User localUser = getCurrentLocalUser();
         if (localUser != null) {
             final SofaMessage sofaMessage = new SofaMessage().makeNew(localUser, messageBody);
-            this.outgoingMessageQueue.send(sofaMessage);
+            sendOutgoingMessage(sofaMessage);
         } else {
             Toast.makeText(this.activity, this.activity.getString(R.string.sending_message_error), Toast.LENGTH_SHORT).show();
             LogUtil.error(getClass(), "User is null when sending message");
         }
     }
 
+    private void sendOutgoingMessage(final SofaMessage sofaMessage) {
+        if (this.outgoingMessageQueue == null) return;
+        final boolean isAccepted = this.outgoingMessageQueue.send(sofaMessage);
+        if (!isAccepted && this.activity != null) {
+            Toast.makeText(this.activity, this.activity.getString(R.string.outgoing_queue_full), Toast.LENGTH_SHORT).show();
+        }
+    }
+
     private void checkExternalStoragePermission() {
         PermissionUtil.hasPermission(
                 this.activity,
@@ -436,7 +515,7 @@ public final class ChatPresenter implements Presenter<ChatActivity> {
         final User localUser = getCurrentLocalUser();
         if (localUser != null) {
             final SofaMessage sofaMessage = new SofaMessage().makeNew(localUser, commandPayload);
-            this.outgoingMessageQueue.send(sofaMessage);
+            sendOutgoingMessage(sofaMessage);
         } else {
             Toast.makeText(BaseApplication.get(), R.string.sending_message_error, Toast.LENGTH_LONG).show();
             LogUtil.error(getClass(), "User is null when sending command message");
@@ -639,7 +718,7 @@ public final class ChatPresenter implements Presenter<ChatActivity> {
         final User localUser = getCurrentLocalUser();
         if (localUser != null) {
             final SofaMessage message = new SofaMessage().makeNew(localUser, messageBody);
-            this.outgoingMessageQueue.send(message);
+            sendOutgoingMessage(message);
         } else {
             Toast.makeText(this.activity, this.activity.getString(R.string.sending_payment_request_error), Toast.LENGTH_SHORT).show();
             LogUtil.error(getClass(), "User is null when sending payment request");
@@ -716,27 +795,29 @@ public final class ChatPresenter implements Presenter<ChatActivity> {
         this.subscriptions.add(conversationLoadedSub);
     }
 
-    private void handleConversationLoaded(final Conversation conversation) {
+    private void handleConversationLoaded(final ConversationSummary conversation) {
         this.conversation = conversation;
-        initConversation(conversation);
-        updateEmptyState();
+        initConversationRecipient();
+        this.messageAdapter.clear();
+        // Listen before loading, so nothing saved while the page loads is missed;
+        // the window holds those changes back until the page is in
         tryClearMessageSubscriptions();
         initMessageObservables();
+        this.messageWindow.loadLatest(this::handleLatestMessagesLoaded);
     }
 
-    private void initConversation(final Conversation conversation) {
-        initConversationRecipient();
-        initConversationMessages(conversation);
+    private void handleLatestMessagesLoaded() {
+        initConversationMessages();
+        updateEmptyState();
     }
 
     private void initConversationRecipient() {
         this.messageAdapter.setRecipient(this.recipient);
     }
 
-    private void initConversationMessages(final Conversation conversation) {
-        final boolean shouldAddMessages = conversation != null && conversation.getAllMessages() != null && conversation.getAllMessages().size() > 0;
-        if (shouldAddMessages) {
-            this.messageAdapter.setMessages(conversation.getAllMessages());
+    private void initConversationMessages() {
+        final boolean hasMessages = this.messageAdapter.getItemCount() > 0;
+        if (hasMessages) {
             scrollToPosition(getSafePosition());
             updateControlView();
         } else {
@@ -755,10 +836,13 @@ public final class ChatPresenter implements Presenter<ChatActivity> {
                 .sendInitMessage(localUser, this.recipient);
     }
 
+    // Subscribes synchronously, so nothing broadcast from here on is missed. Payloads are
+    // prefetched on a computation thread, keeping the parsing off the store's db thread.
     private void initMessageObservables() {
         this.newMessageSubscription =
                 this.chatObservables.first
-                .subscribeOn(Schedulers.io())
+                .observeOn(Schedulers.computation())
+                .doOnNext(SofaPayloadCache.get()::prefetch)
                 .observeOn(AndroidSchedulers.mainThread())
                 .subscribe(
                         this::handleNewMessage,
@@ -767,7 +851,8 @@ public final class ChatPresenter implements Presenter<ChatActivity> {
 
         this.updatedMessageSubscription =
                 this.chatObservables.second
-                .subscribeOn(Schedulers.io())
+                .observeOn(Schedulers.computation())
+                .doOnNext(SofaPayloadCache.get()::prefetch)
                 .observeOn(AndroidSchedulers.mainThread())
                 .subscribe(
                         this::handleUpdatedMessage,
@@ -776,7 +861,6 @@ public final class ChatPresenter implements Presenter<ChatActivity> {
 
         this.deletedMessageSubscription =
                 this.deleteObservable
-                .subscribeOn(Schedulers.io())
                 .observeOn(AndroidSchedulers.mainThread())
                 .subscribe(
                         this::handleDeletedMessage,
@@ -796,11 +880,17 @@ public final class ChatPresenter implements Presenter<ChatActivity> {
     }
 
     private void handleNewMessage(final SofaMessage sofaMessage) {
-        this.messageAdapter.updateMessage(sofaMessage);
+        final boolean sentByLocal = sofaMessage.isSentBy(getCurrentLocalUser());
+        this.messageWindow.addOrUpdateMessage(sofaMessage);
+        if (sentByLocal && !this.messageWindow.isAtLatest()) {
+            // The window is showing older history; jump to the message that was just sent
+            this.messageAdapter.clear();
+            this.messageWindow.loadLatest(() -> scrollToPosition(this.messageAdapter.getItemCount() - 1));
+        }
         updateControlView();
         updateEmptyState();
         tryScrollToBottom(true);
-        playNewMessageSound(sofaMessage.isSentBy(getCurrentLocalUser()));
+        playNewMessageSound(sentByLocal);
         handleKeyboardVisibility(sofaMessage);
     }
 
@@ -870,7 +960,7 @@ public final class ChatPresenter implements Presenter<ChatActivity> {
 
     // Returns last known scroll position, or last position if unknown
     private int getSafePosition() {
-        if (this.lastVisibleMessagePosition > 0) return this.lastVisibleMessagePosition;
+        if (this.lastVisibleMessagePosition > 0) return Math.min(this.lastVisibleMessagePosition, this.messageAdapter.getItemCount() - 1);
         if (this.messageAdapter.getItemCount() - 1 > 0) return this.messageAdapter.getItemCount() - 1;
         return 0;
     }
@@ -986,8 +1076,9 @@ public final class ChatPresenter implements Presenter<ChatActivity> {
             return sofaMessage;
         })
         .subscribeOn(Schedulers.io())
+        .observeOn(AndroidSchedulers.mainThread())
         .subscribe(
-                this.outgoingMessageQueue::send,
+                this::sendOutgoingMessage,
                 this::handleError
         );
     }
@@ -1000,6 +1091,7 @@ public final class ChatPresenter implements Presenter<ChatActivity> {
     public void onViewDetached() {
         this.lastVisibleMessagePosition = this.layoutManager.findLastCompletelyVisibleItemPosition();
         this.subscriptions.clear();
+        this.messageWindow.clear();
         this.messageAdapter.clear();
         this.conversation = null;
         this.activity = null;
@@ -1039,13 +1131,11 @@ public final class ChatPresenter implements Presenter<ChatActivity> {
     }
 
     private User getCurrentLocalUser() {
-        // Yes, this blocks. But realistically, a value should be always ready for returning.
         return BaseApplication
                 .get()
                 .getUserManager()
-                .getCurrentUser()
-                .toBlocking()
-                .value();
+                .getLocalIdentity()
+                .getUser();
     }
 
     private Single<Recipient> getRecipient() {
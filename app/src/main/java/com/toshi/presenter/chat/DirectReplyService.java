@@ -78,9 +78,8 @@ public class DirectReplyService extends IntentService {
         return BaseApplication
                 .get()
                 .getUserManager()
-                .getCurrentUser()
-                .toBlocking()
-                .value();
+                .getLocalIdentity()
+                .getUser();
     }
 
     private void sendMessage(final User receiver, final User localUser, final String userInput) {
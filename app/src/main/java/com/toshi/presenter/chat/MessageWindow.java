@@ -0,0 +1,312 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.toshi.presenter.chat;
+
+
+import com.toshi.model.local.MessagePage;
+import com.toshi.model.sofa.SofaMessage;
+import com.toshi.util.LogUtil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import rx.Scheduler;
+import rx.Single;
+import rx.Subscription;
+import rx.functions.Action0;
+
+// Keeps a bounded window of a conversation's messages, loaded a page at a time.
+// Older pages are loaded as the user scrolls up and newer ones as they scroll back down.
+// Once the window holds more than maxPages, the page furthest from the one just loaded is evicted.
+// Positions handed to the listener are positions among the visible messages of the window.
+// Changes that arrive while the latest page is loading are held back and applied once it's in.
+// Not thread safe; call it and deliver pages on the same thread.
+/* package */ class MessageWindow {
+
+    /* package */ interface Source {
+        Single<MessagePage> loadLatest(int count);
+        Single<MessagePage> load(int fromPosition, int count);
+    }
+
+    /* package */ interface Listener {
+        void onMessagesInserted(int position, List<SofaMessage> messages);
+        void onMessagesRemoved(int position, int count);
+        void onMessageChanged(int position, SofaMessage message);
+    }
+
+    private static final class Page {
+        // Only user visible messages are shown, but storedCount includes hidden ones,
+        // so stored positions can be worked out from the start of the window. Hidden ones
+        // are kept aside so deleting one still moves storedCount.
+        private final List<SofaMessage> messages = new ArrayList<>();
+        private final List<SofaMessage> hiddenMessages = new ArrayList<>();
+        private int storedCount;
+    }
+
+    private final Source source;
+    private final Listener listener;
+    private final Scheduler scheduler;
+    private final int pageSize;
+    private final int maxPages;
+    private final List<Page> pages = new ArrayList<>();
+    private final List<Action0> pendingChanges = new ArrayList<>();
+    private Subscription loadSubscription;
+    private boolean isLoading;
+    private boolean isLoadingLatest;
+    private int startPosition;
+    private boolean isLoaded;
+    private boolean isAtLatest;
+
+    /* package */ MessageWindow(
+            final Source source,
+            final Listener listener,
+            final Scheduler scheduler,
+            final int pageSize,
+            final int maxPages) {
+        if (pageSize < 1 || maxPages < 2) throw new IllegalArgumentException("Window must hold at least two pages");
+        this.source = source;
+        this.listener = listener;
+        this.scheduler = scheduler;
+        this.pageSize = pageSize;
+        this.maxPages = maxPages;
+    }
+
+    // Replaces the window with the latest page of the conversation
+    /* package */ void loadLatest(final Action0 onLoaded) {
+        clear();
+        this.isLoading = true;
+        this.isLoadingLatest = true;
+        this.loadSubscription = this.source
+                .loadLatest(this.pageSize)
+                .observeOn(this.scheduler)
+                .subscribe(
+                        page -> {
+                            this.isLoading = false;
+                            this.isLoadingLatest = false;
+                            this.isLoaded = true;
+                            this.startPosition = page.getStartPosition();
+                            this.isAtLatest = true;
+                            appendPage(page);
+                            applyPendingChanges();
+                            onLoaded.call();
+                        },
+                        this::handleLoadError
+                );
+    }
+
+    /* package */ void loadOlder() {
+        if (!this.isLoaded || this.isLoading || this.startPosition == 0) return;
+        final int fromPosition = Math.max(0, this.startPosition - this.pageSize);
+        this.isLoading = true;
+        this.loadSubscription = this.source
+                .load(fromPosition, this.startPosition - fromPosition)
+                .observeOn(this.scheduler)
+                .subscribe(
+                        page -> {
+                            this.isLoading = false;
+                            this.startPosition = page.getStartPosition();
+                            prependPage(page);
+                            while (this.pages.size() > this.maxPages) evictNewestPage();
+                        },
+                        this::handleLoadError
+                );
+    }
+
+    /* package */ void loadNewer() {
+        if (!this.isLoaded || this.isLoading || this.isAtLatest) return;
+        this.isLoading = true;
+        this.loadSubscription = this.source
+                .load(getEndPosition(), this.pageSize)
+                .observeOn(this.scheduler)
+                .subscribe(
+                        page -> {
+                            this.isLoading = false;
+                            this.isAtLatest = page.getEndPosition() >= page.getTotalCount();
+                            appendPage(page);
+                            while (this.pages.size() > this.maxPages) evictOldestPage();
+                        },
+                        this::handleLoadError
+                );
+    }
+
+    // Adds a new message, or replaces it if it's already in the window. A message that isn't
+    // in the window is only added when the window reaches the end of the conversation;
+    // otherwise it will be loaded with the newer pages.
+    // Returns true if the message is shown.
+    /* package */ boolean addOrUpdateMessage(final SofaMessage message) {
+        if (this.isLoadingLatest) {
+            this.pendingChanges.add(() -> addOrUpdateMessage(message));
+            return false;
+        }
+        if (updateMessage(message)) return true;
+        if (!this.isLoaded || !this.isAtLatest || isHidden(message)) return false;
+
+        if (this.pages.isEmpty()) this.pages.add(new Page());
+        final Page newestPage = this.pages.get(this.pages.size() - 1);
+        newestPage.storedCount++;
+        if (!message.isUserVisible()) {
+            newestPage.hiddenMessages.add(message);
+            return false;
+        }
+        final int position = getVisibleCount();
+        newestPage.messages.add(message);
+        this.listener.onMessagesInserted(position, Collections.singletonList(message));
+        return true;
+    }
+
+    // Returns true if the message was in the window
+    /* package */ boolean updateMessage(final SofaMessage message) {
+        if (this.isLoadingLatest) {
+            this.pendingChanges.add(() -> updateMessage(message));
+            return false;
+        }
+        int position = 0;
+        for (final Page page : this.pages) {
+            final int index = page.messages.indexOf(message);
+            if (index != -1) {
+                page.messages.set(index, message);
+                this.listener.onMessageChanged(position + index, message);
+                return true;
+            }
+            position += page.messages.size();
+        }
+        return false;
+    }
+
+    /* package */ void deleteMessage(final SofaMessage message) {
+        if (this.isLoadingLatest) {
+            this.pendingChanges.add(() -> deleteMessage(message));
+            return;
+        }
+        int position = 0;
+        for (final Page page : this.pages) {
+            final int index = page.messages.indexOf(message);
+            if (index != -1) {
+                page.messages.remove(index);
+                page.storedCount--;
+                this.listener.onMessagesRemoved(position + index, 1);
+                return;
+            }
+            position += page.messages.size();
+        }
+        for (final Page page : this.pages) {
+            if (page.hiddenMessages.remove(message)) {
+                page.storedCount--;
+                return;
+            }
+        }
+    }
+
+    // Also true while the latest page is loading, as the window is about to show it
+    /* package */ boolean isAtLatest() {
+        return this.isAtLatest || this.isLoadingLatest;
+    }
+
+    // Forgets the window without notifying the listener
+    /* package */ void clear() {
+        if (this.loadSubscription != null) this.loadSubscription.unsubscribe();
+        this.loadSubscription = null;
+        this.isLoading = false;
+        this.isLoadingLatest = false;
+        this.pendingChanges.clear();
+        this.pages.clear();
+        this.startPosition = 0;
+        this.isLoaded = false;
+        this.isAtLatest = false;
+    }
+
+    private void applyPendingChanges() {
+        final List<Action0> changes = new ArrayList<>(this.pendingChanges);
+        this.pendingChanges.clear();
+        for (final Action0 change : changes) change.call();
+    }
+
+    private void prependPage(final MessagePage messagePage) {
+        final Page page = toPage(messagePage);
+        this.pages.add(0, page);
+        if (!page.messages.isEmpty()) this.listener.onMessagesInserted(0, page.messages);
+    }
+
+    private void appendPage(final MessagePage messagePage) {
+        final Page page = toPage(messagePage);
+        final int position = getVisibleCount();
+        this.pages.add(page);
+        if (!page.messages.isEmpty()) this.listener.onMessagesInserted(position, page.messages);
+    }
+
+    private void evictNewestPage() {
+        final Page page = this.pages.remove(this.pages.size() - 1);
+        this.isAtLatest = false;
+        if (!page.messages.isEmpty()) this.listener.onMessagesRemoved(getVisibleCount(), page.messages.size());
+    }
+
+    private void evictOldestPage() {
+        final Page page = this.pages.remove(0);
+        this.startPosition += page.storedCount;
+        if (!page.messages.isEmpty()) this.listener.onMessagesRemoved(0, page.messages.size());
+    }
+
+    // Messages can shift position while the window is open, so a loaded page may overlap the window
+    private Page toPage(final MessagePage messagePage) {
+        final Page page = new Page();
+        page.storedCount = messagePage.getMessages().size();
+        for (final SofaMessage message : messagePage.getMessages()) {
+            if (!message.isUserVisible()) {
+                if (!isHidden(message)) page.hiddenMessages.add(message);
+            } else if (!contains(message)) {
+                page.messages.add(message);
+            }
+        }
+        return page;
+    }
+
+    private boolean contains(final SofaMessage message) {
+        for (final Page page : this.pages) {
+            if (page.messages.contains(message)) return true;
+        }
+        return false;
+    }
+
+    private boolean isHidden(final SofaMessage message) {
+        for (final Page page : this.pages) {
+            if (page.hiddenMessages.contains(message)) return true;
+        }
+        return false;
+    }
+
+    private int getEndPosition() {
+        int endPosition = this.startPosition;
+        for (final Page page : this.pages) endPosition += page.storedCount;
+        return endPosition;
+    }
+
+    private int getVisibleCount() {
+        int count = 0;
+        for (final Page page : this.pages) count += page.messages.size();
+        return count;
+    }
+
+    private void handleLoadError(final Throwable throwable) {
+        this.isLoading = false;
+        this.isLoadingLatest = false;
+        this.pendingChanges.clear();
+        LogUtil.exception(getClass(), "Error while loading messages", throwable);
+    }
+}
@@ -69,10 +69,12 @@ Observable<PendingTransaction> observable = pto.init(user); // Only PendingTrans
         try {
             final SofaMessage sofaMessage = pendingTransaction.getSofaMessage();
             final Payment payment = SofaAdapters.get().paymentFrom(sofaMessage.getPayload());
-            final @Payment.PaymentDirection int paymentDirection =
-                    payment.getPaymentDirection()
-                            .toBlocking()
-                            .value();
+            final String localPaymentAddress = BaseApplication
+                    .get()
+                    .getUserManager()
+                    .getLocalIdentity()
+                    .getPaymentAddress();
+            final @Payment.PaymentDirection int paymentDirection = payment.getPaymentDirection(localPaymentAddress);
             return paymentDirection != Payment.NOT_RELEVANT
                     && isWatchingRemoteAddress(payment, paymentDirection);
         } catch (final IOException ex) {
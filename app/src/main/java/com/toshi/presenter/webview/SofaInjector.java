@@ -20,10 +20,8 @@ package com.toshi.presenter.webview;
 
 import android.support.annotation.NonNull;
 
-import com.squareup.okhttp.OkHttpClient;
-import com.squareup.okhttp.Request;
-import com.squareup.okhttp.Response;
 import com.toshi.R;
+import com.toshi.manager.network.SharedHttpClient;
 import com.toshi.view.BaseApplication;
 import com.toshi.view.custom.listener.OnLoadListener;
 
@@ -32,6 +30,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
 import rx.Completable;
 import rx.Single;
 import rx.Subscription;
@@ -53,7 +54,7 @@ import rx.subscriptions.CompositeSubscription;
      */
     /* package */ SofaInjector(@NonNull final OnLoadListener listener) {
         this.listener = listener;
-        this.client = new OkHttpClient();
+        this.client = SharedHttpClient.get();
         this.subscriptions = new CompositeSubscription();
         asyncLoadSofaScript();
     }
@@ -79,7 +80,11 @@ import rx.subscriptions.CompositeSubscription;
                 .build();
 
         final Response response = this.client.newCall(request).execute();
-        if (!response.isSuccessful()) throw new IOException("Unexpected code " + response);
+        if (!response.isSuccessful()) {
+            // Release the connection back to the shared pool
+            response.close();
+            throw new IOException("Unexpected code " + response);
+        }
 
         final String body = response.body().string();
         final String injectedBody = injectSofaScript(body);
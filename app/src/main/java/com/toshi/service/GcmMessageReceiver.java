@@ -54,6 +54,7 @@ import com.toshi.view.notification.ChatNotificationManager;
 
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.TimeoutException;
 
@@ -162,21 +163,19 @@ public class GcmMessageReceiver extends GcmListenerService {
     }
 
     private void tryShowSignalMessage() {
-        final DecryptedSignalMessage signalMessage;
+        final List<DecryptedSignalMessage> signalMessages;
         try {
-            signalMessage = BaseApplication
+            signalMessages = BaseApplication
                 .get()
                 .getSofaMessageManager()
-                .fetchLatestMessage();
+                .drainMessages();
         } catch (final TimeoutException e) {
-            LogUtil.i(getClass(), "Fetched all new messages");
+            LogUtil.exception(getClass(), "Unable to fetch new messages", e);
             return;
         }
 
-        ChatNotificationManager.showNotification(signalMessage);
-        // There may be more messages.
-        tryShowSignalMessage();
-
+        LogUtil.i(getClass(), "Fetched " + signalMessages.size() + " new messages");
+        ChatNotificationManager.showNotifications(signalMessages);
     }
 
     private void updatePayment(final Payment payment) {
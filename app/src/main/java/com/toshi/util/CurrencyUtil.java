@@ -19,13 +19,21 @@ package com.toshi.util;
 
 import com.toshi.exception.CurrencyException;
 
+import java.math.BigDecimal;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.text.NumberFormat;
 import java.util.Currency;
+import java.util.Locale;
 
 public class CurrencyUtil {
 
+    // Building a DecimalFormat is expensive, so one is kept for as long as the locale doesn't change.
+    // DecimalFormat isn't thread safe, so it is only used while holding the lock.
+    private static final Object localAmountFormatLock = new Object();
+    private static DecimalFormat localAmountFormat;
+    private static Locale localAmountFormatLocale;
+
     public static DecimalFormat getNumberFormat() {
         final DecimalFormat numberFormat = (DecimalFormat) NumberFormat.getCurrencyInstance(LocaleUtil.getLocale());
         final DecimalFormatSymbols symbols = numberFormat.getDecimalFormatSymbols();
@@ -34,6 +42,22 @@ public class CurrencyUtil {
         return numberFormat;
     }
 
+    // Formats an amount in the local currency with grouping and two decimals, without a currency symbol
+    public static String formatLocalAmount(final BigDecimal amount) {
+        final Locale locale = LocaleUtil.getLocale();
+        synchronized (localAmountFormatLock) {
+            if (localAmountFormat == null || !locale.equals(localAmountFormatLocale)) {
+                final DecimalFormat numberFormat = getNumberFormat();
+                numberFormat.setGroupingUsed(true);
+                numberFormat.setMaximumFractionDigits(2);
+                numberFormat.setMinimumFractionDigits(2);
+                localAmountFormat = numberFormat;
+                localAmountFormatLocale = locale;
+            }
+            return localAmountFormat.format(amount);
+        }
+    }
+
     public static String getCurrencyFromLocale() throws CurrencyException {
         try {
             final Currency currency = Currency.getInstance(LocaleUtil.getLocale());
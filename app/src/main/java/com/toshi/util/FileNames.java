@@ -22,4 +22,5 @@ public class FileNames {
     public static final String USER_PREFS = "usm";
     public static final String BALANCE_PREFS = "bm";
     public static final String WALLET_PREFS = "wa";
+    public static final String IMAGE_CACHE_PREFS = "icp";
 }
@@ -51,6 +51,7 @@ import java.util.Date;
 import java.util.UUID;
 
 import okio.BufferedSink;
+import okio.BufferedSource;
 import okio.Okio;
 import okio.Source;
 import rx.Single;
@@ -206,10 +207,23 @@ public class FileUtil {
     public static SignalServiceAttachmentStream buildSignalServiceAttachment(final Bitmap bitmap) {
         final Bitmap.CompressFormat format = Bitmap.CompressFormat.PNG;
         final byte[] bytes = ImageUtil.toByteArray(bitmap, format);
+        return buildSignalServiceAttachment(bytes, "image/png");
+    }
+
+    public static SignalServiceAttachmentStream buildSignalServiceAttachment(final byte[] bytes, final String contentType) {
         return SignalServiceAttachmentStream.newStreamBuilder()
-                .withContentType("image/png")
+                .withContentType(contentType)
                 .withStream(new ByteArrayInputStream(bytes))
                 .withLength(bytes.length)
                 .build();
     }
+
+    public static byte[] readBytes(final File file) throws IOException {
+        final BufferedSource source = Okio.buffer(Okio.source(file));
+        try {
+            return source.readByteArray();
+        } finally {
+            source.close();
+        }
+    }
 }
@@ -18,16 +18,21 @@
 package com.toshi.util;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.support.v4.content.ContextCompat;
 import android.widget.ImageView;
 
 import com.bumptech.glide.Glide;
 import com.bumptech.glide.load.engine.DiskCacheStrategy;
+import com.bumptech.glide.load.resource.drawable.GlideDrawable;
+import com.bumptech.glide.request.RequestListener;
 import com.bumptech.glide.request.target.Target;
+import com.bumptech.glide.signature.StringSignature;
 import com.google.common.io.Files;
 import com.google.zxing.BarcodeFormat;
 import com.google.zxing.EncodeHintType;
@@ -36,8 +41,11 @@ import com.google.zxing.common.BitMatrix;
 import com.google.zxing.qrcode.QRCodeWriter;
 import com.toshi.R;
 import com.toshi.exception.QrCodeException;
+import com.toshi.manager.model.ImageCacheMetrics;
+import com.toshi.manager.network.image.AvatarCache;
 import com.toshi.manager.network.image.CachedGlideUrl;
-import com.toshi.manager.network.image.ForceLoadGlideUrl;
+import com.toshi.manager.network.image.GlideOkHttpStack;
+import com.toshi.manager.network.image.PreferencesVersionStore;
 import com.toshi.view.BaseApplication;
 
 import java.io.ByteArrayOutputStream;
@@ -46,6 +54,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.concurrent.ExecutionException;
 
 import rx.Completable;
@@ -57,48 +66,102 @@ public class ImageUtil {
 
     private static final List<String> supportedImageTypes = Arrays.asList("jpg", "jpeg", "png", "gif", "bmp", "webp");
 
+    private static AvatarCache avatarCache;
+    // The url each view was last asked to show, so a late revalidation doesn't overwrite a recycled view.
+    // Only touched on the main thread.
+    private static final Map<ImageView, String> boundUrls = new WeakHashMap<>();
+
+    // Renders from the memory or thumbnail cache when possible, and checks with the server
+    // at most once per AvatarCache.DEFAULT_REVALIDATE_AFTER_MS whether the image has changed.
+    // An image that has never been seen is only rendered once that check has downloaded it.
     public static void load(final String url, final ImageView imageView) {
         if (url == null || imageView == null) return;
 
+        boundUrls.put(imageView, url);
+        final boolean isCached = getAvatarCache().hasVersion(url);
+        if (isCached) {
+            render(url, imageView);
+        } else {
+            // Don't leave a recycled view showing someone else's image in the meantime
+            Glide.clear(imageView);
+        }
         Single
-            .fromCallable(() -> loadFromNetwork(url, imageView))
+            .fromCallable(() -> getAvatarCache().revalidate(url))
             .subscribeOn(Schedulers.io())
             .observeOn(AndroidSchedulers.mainThread())
-            .doOnSubscribe(() -> renderFromCache(url, imageView))
             .subscribe(
-                    __ -> {},
-                    throwable -> LogUtil.exception(ImageUtil.class, throwable)
+                    isChanged -> {
+                        if (isChanged || !isCached) renderIfStillBound(url, imageView);
+                    },
+                    throwable -> {
+                        LogUtil.exception(ImageUtil.class, throwable);
+                        if (!isCached) renderIfStillBound(url, imageView);
+                    }
             );
     }
 
-    @Nullable
-    public static Target loadFromNetwork(final String url, final ImageView imageView) {
-        try {
-            return Glide
-                    .with(imageView.getContext())
-                    .load(new ForceLoadGlideUrl(url))
-                    .diskCacheStrategy(DiskCacheStrategy.NONE)
-                    .skipMemoryCache(true)
-                    .into(imageView);
-        } catch (final IllegalArgumentException ex) {
-            LogUtil.i(ImageUtil.class, "Tried to render into a now destroyed view.");
-            return null;
-        }
+    private static void renderIfStillBound(final String url, final ImageView imageView) {
+        if (url.equals(boundUrls.get(imageView))) render(url, imageView);
+    }
+
+    // Like load, but checks with the server straight away, for images that are known to have just changed
+    public static void loadFromNetwork(final String url, final ImageView imageView) {
+        if (url == null || imageView == null) return;
+        getAvatarCache().invalidate(url);
+        load(url, imageView);
     }
 
-    private static void renderFromCache(final String url, final ImageView imageView) {
+    private static void render(final String url, final ImageView imageView) {
+        final long startTime = SystemClock.elapsedRealtime();
         try {
             Glide
                 .with(imageView.getContext())
                 .load(new CachedGlideUrl(url))
-                .diskCacheStrategy(DiskCacheStrategy.NONE)
-                .skipMemoryCache(true)
+                .signature(new StringSignature(getAvatarCache().getVersion(url)))
+                .diskCacheStrategy(DiskCacheStrategy.RESULT)
+                .listener(new RequestListener<CachedGlideUrl, GlideDrawable>() {
+                    @Override
+                    public boolean onException(final Exception e,
+                                               final CachedGlideUrl model,
+                                               final Target<GlideDrawable> target,
+                                               final boolean isFirstResource) {
+                        return false;
+                    }
+
+                    @Override
+                    public boolean onResourceReady(final GlideDrawable resource,
+                                                   final CachedGlideUrl model,
+                                                   final Target<GlideDrawable> target,
+                                                   final boolean isFromMemoryCache,
+                                                   final boolean isFirstResource) {
+                        getAvatarCache().recordLoad(isFromMemoryCache, SystemClock.elapsedRealtime() - startTime);
+                        return false;
+                    }
+                })
                 .into(imageView);
         } catch (final IllegalArgumentException ex) {
             LogUtil.i(ImageUtil.class, "Tried to render into a now destroyed view.");
         }
     }
 
+    private static synchronized AvatarCache getAvatarCache() {
+        if (avatarCache == null) {
+            avatarCache = new AvatarCache(
+                    GlideOkHttpStack.getClient(),
+                    new PreferencesVersionStore(getImageCachePrefs(), PreferencesVersionStore.DEFAULT_MAX_ENTRIES),
+                    AvatarCache.DEFAULT_REVALIDATE_AFTER_MS);
+        }
+        return avatarCache;
+    }
+
+    private static SharedPreferences getImageCachePrefs() {
+        return BaseApplication.get().getSharedPreferences(FileNames.IMAGE_CACHE_PREFS, Context.MODE_PRIVATE);
+    }
+
+    public static ImageCacheMetrics getCacheMetrics() {
+        return getAvatarCache().getMetrics();
+    }
+
     public static void renderFileIntoTarget(final File result, final ImageView imageView) {
         if (imageView == null || imageView.getContext() == null) return;
 
@@ -194,6 +257,7 @@ public class ImageUtil {
             Glide
                     .get(BaseApplication.get())
                     .clearDiskCache();
+            getAvatarCache().clear();
         })
         .subscribeOn(Schedulers.io())
         .observeOn(AndroidSchedulers.mainThread())
@@ -30,8 +30,8 @@ import com.toshi.model.local.User;
 import com.toshi.model.sofa.Message;
 import com.toshi.model.sofa.Payment;
 import com.toshi.model.sofa.PaymentRequest;
-import com.toshi.model.sofa.SofaAdapters;
 import com.toshi.model.sofa.SofaMessage;
+import com.toshi.model.sofa.SofaPayloadCache;
 import com.toshi.model.sofa.SofaType;
 import com.toshi.util.LogUtil;
 import com.toshi.view.BaseApplication;
@@ -45,7 +45,6 @@ import com.toshi.view.adapter.viewholder.TimestampMessageViewHolder;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
 
 import static com.toshi.model.local.ChainPosition.FIRST;
@@ -101,56 +100,35 @@ public final class MessageAdapter extends RecyclerView.Adapter<RecyclerView.View
         return this;
     }
 
-    public MessageAdapter setMessages(final List<SofaMessage> messages) {
-        final List<SofaMessage> messagesToAdd = messages == null
-                ? new ArrayList<>(0)
-                : messages;
-        addMessages(messagesToAdd);
-        return this;
-    }
-
     public MessageAdapter setRecipient(final Recipient recipient) {
         this.recipient = recipient;
         return this;
     }
 
-    private void addMessages(final Collection<SofaMessage> sofaMessages) {
-        this.sofaMessages.clear();
-        notifyDataSetChanged();
-
-        for (SofaMessage sofaMessage : sofaMessages) {
-            addMessage(sofaMessage);
-        }
+    // Used by a paged message window, which has already filtered out hidden messages
+    public final void insertMessages(final int position, final List<SofaMessage> sofaMessages) {
+        if (sofaMessages.isEmpty()) return;
+        this.sofaMessages.addAll(position, sofaMessages);
+        notifyItemRangeInserted(position, sofaMessages.size());
+        notifyNeighboursChanged(position, position + sofaMessages.size());
     }
 
-    private void addMessage(final SofaMessage sofaMessage) {
-        if (sofaMessage == null || !sofaMessage.isUserVisible()) return;
-        this.sofaMessages.add(sofaMessage);
-        notifyItemInserted(this.sofaMessages.size() - 1);
-        if (this.sofaMessages.size() > 1) {
-            // Update the previous message as well.
-            notifyItemChanged(this.sofaMessages.size() - 2);
-        }
+    public final void removeMessages(final int position, final int count) {
+        if (count <= 0) return;
+        this.sofaMessages.subList(position, position + count).clear();
+        notifyItemRangeRemoved(position, count);
+        notifyNeighboursChanged(position, position);
     }
 
-    public final void updateMessage(final SofaMessage sofaMessage) {
-        if (sofaMessage == null || !sofaMessage.isUserVisible()) return;
-        final int position = this.sofaMessages.indexOf(sofaMessage);
-        if (position == -1) {
-            addMessage(sofaMessage);
-            return;
-        }
-
+    public final void setMessage(final int position, final SofaMessage sofaMessage) {
         this.sofaMessages.set(position, sofaMessage);
         notifyItemChanged(position);
     }
 
-    public final void deleteMessage(final SofaMessage sofaMessage) {
-        if (sofaMessage == null || !sofaMessage.isUserVisible()) return;
-        final int position = this.sofaMessages.indexOf(sofaMessage);
-        if (position == -1) return;
-        this.sofaMessages.remove(position);
-        notifyItemRemoved(position);
+    // The chain position of the messages around a changed range depends on the range
+    private void notifyNeighboursChanged(final int start, final int end) {
+        if (start > 0) notifyItemChanged(start - 1);
+        if (end < this.sofaMessages.size()) notifyItemChanged(end);
     }
 
     @Override
@@ -220,11 +198,10 @@ public final class MessageAdapter extends RecyclerView.Adapter<RecyclerView.View
             final int position) {
 
         final SofaMessage sofaMessage = this.sofaMessages.get(position);
-        final String payload = sofaMessage.getPayload();
-        if (payload == null) return;
+        if (sofaMessage.getPayloadWithHeaders() == null) return;
 
         try {
-            renderChatMessageIntoViewHolder(holder, sofaMessage, payload, position);
+            renderChatMessageIntoViewHolder(holder, sofaMessage, position);
         } catch (final IOException ex) {
             LogUtil.error(getClass(), "Unable to render view holder: " + ex);
         }
@@ -233,7 +210,6 @@ public final class MessageAdapter extends RecyclerView.Adapter<RecyclerView.View
     private void renderChatMessageIntoViewHolder(
             final RecyclerView.ViewHolder holder,
             final SofaMessage sofaMessage,
-            final String payload,
             final int position) throws IOException {
 
         final boolean isRemote = holder.getItemViewType() >= SENDER_MASK;
@@ -243,7 +219,7 @@ public final class MessageAdapter extends RecyclerView.Adapter<RecyclerView.View
             case SofaType.COMMAND_REQUEST:
             case SofaType.PLAIN_TEXT: {
                 final TextViewHolder vh = (TextViewHolder) holder;
-                final Message message = SofaAdapters.get().messageFrom(payload);
+                final Message message = SofaPayloadCache.get().getMessage(sofaMessage);
                 final @ChainPosition.Position int chainPosition = getChainPosition(position);
                 final boolean showAvatar = chainPosition == LAST || chainPosition == NONE;
 
@@ -285,7 +261,7 @@ public final class MessageAdapter extends RecyclerView.Adapter<RecyclerView.View
 
             case SofaType.PAYMENT: {
                 final PaymentViewHolder vh = (PaymentViewHolder) holder;
-                final Payment payment = SofaAdapters.get().paymentFrom(payload);
+                final Payment payment = SofaPayloadCache.get().getPayment(sofaMessage);
                 vh
                         .setPayment(payment)
                         .setAvatarUri(sofaMessage.getSenderAvatar())
@@ -297,7 +273,7 @@ public final class MessageAdapter extends RecyclerView.Adapter<RecyclerView.View
 
             case SofaType.PAYMENT_REQUEST: {
                 final PaymentRequestViewHolder vh = (PaymentRequestViewHolder) holder;
-                final PaymentRequest request = SofaAdapters.get().txRequestFrom(payload);
+                final PaymentRequest request = SofaPayloadCache.get().getPaymentRequest(sofaMessage);
                 if (this.recipient != null && this.recipient.isGroup()) {
                     // Todo - support group payment requests
                     LogUtil.i(getClass(), "Payment requests to groups currently not supported.");
@@ -391,12 +367,10 @@ public final class MessageAdapter extends RecyclerView.Adapter<RecyclerView.View
     }
 
     private User getCurrentLocalUser() {
-        // Yes, this blocks. But realistically, a value should be always ready for returning.
         return BaseApplication
                 .get()
                 .getUserManager()
-                .getCurrentUser()
-                .toBlocking()
-                .value();
+                .getLocalIdentity()
+                .getUser();
     }
 }
\ No newline at end of file
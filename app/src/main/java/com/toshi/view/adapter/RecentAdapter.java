@@ -21,6 +21,7 @@ package com.toshi.view.adapter;
 import android.support.annotation.NonNull;
 import android.support.design.widget.Snackbar;
 import android.support.v4.content.ContextCompat;
+import android.support.v7.util.DiffUtil;
 import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -28,13 +29,13 @@ import android.view.ViewGroup;
 import android.widget.TextView;
 
 import com.toshi.R;
-import com.toshi.model.local.Conversation;
+import com.toshi.model.local.ConversationSummary;
 import com.toshi.model.local.User;
 import com.toshi.model.sofa.Message;
 import com.toshi.model.sofa.Payment;
 import com.toshi.model.sofa.PaymentRequest;
-import com.toshi.model.sofa.SofaAdapters;
 import com.toshi.model.sofa.SofaMessage;
+import com.toshi.model.sofa.SofaPayloadCache;
 import com.toshi.model.sofa.SofaType;
 import com.toshi.util.LogUtil;
 import com.toshi.view.BaseApplication;
@@ -48,9 +49,9 @@ import java.util.List;
 
 public class RecentAdapter extends RecyclerView.Adapter<ThreadViewHolder> implements ClickableViewHolder.OnClickListener {
 
-    private final ArrayList<Conversation> conversationsToDelete;
-    private List<Conversation> conversations;
-    private OnItemClickListener<Conversation> onItemClickListener;
+    private final ArrayList<ConversationSummary> conversationsToDelete;
+    private List<ConversationSummary> conversations;
+    private OnItemClickListener<ConversationSummary> onItemClickListener;
 
     public RecentAdapter() {
         this.conversations = new ArrayList<>(0);
@@ -65,7 +66,7 @@ public class RecentAdapter extends RecyclerView.Adapter<ThreadViewHolder> implem
 
     @Override
     public void onBindViewHolder(final ThreadViewHolder holder, final int position) {
-        final Conversation conversation = this.conversations.get(position);
+        final ConversationSummary conversation = this.conversations.get(position);
         holder.setThread(conversation);
 
         final String formattedLatestMessage = formatLastMessage(conversation.getLatestMessage());
@@ -84,21 +85,45 @@ public class RecentAdapter extends RecyclerView.Adapter<ThreadViewHolder> implem
             return;
         }
 
-        final Conversation clickedConversation = conversations.get(position);
+        final ConversationSummary clickedConversation = conversations.get(position);
         this.onItemClickListener.onItemClick(clickedConversation);
     }
 
-    public void setConversations(final List<Conversation> conversations) {
-        this.conversations = conversations;
-        notifyDataSetChanged();
+    // Only the rows that differ from what is shown are updated
+    public void setConversations(final List<ConversationSummary> conversations) {
+        final List<ConversationSummary> oldConversations = this.conversations;
+        final List<ConversationSummary> newConversations = new ArrayList<>(conversations);
+        final DiffUtil.DiffResult diff = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+            @Override
+            public int getOldListSize() {
+                return oldConversations.size();
+            }
+
+            @Override
+            public int getNewListSize() {
+                return newConversations.size();
+            }
+
+            @Override
+            public boolean areItemsTheSame(final int oldItemPosition, final int newItemPosition) {
+                return oldConversations.get(oldItemPosition).equals(newConversations.get(newItemPosition));
+            }
+
+            @Override
+            public boolean areContentsTheSame(final int oldItemPosition, final int newItemPosition) {
+                return oldConversations.get(oldItemPosition).hasSameContent(newConversations.get(newItemPosition));
+            }
+        });
+        this.conversations = newConversations;
+        diff.dispatchUpdatesTo(this);
     }
 
-    public RecentAdapter setOnItemClickListener(final OnItemClickListener<Conversation> onItemClickListener) {
+    public RecentAdapter setOnItemClickListener(final OnItemClickListener<ConversationSummary> onItemClickListener) {
         this.onItemClickListener = onItemClickListener;
         return this;
     }
 
-    public void updateConversation(final Conversation conversation) {
+    public void updateConversation(final ConversationSummary conversation) {
         final int position = this.conversations.indexOf(conversation);
         if (position == -1) {
             this.conversations.add(0, conversation);
@@ -106,12 +131,24 @@ public class RecentAdapter extends RecyclerView.Adapter<ThreadViewHolder> implem
             return;
         }
 
+        final ConversationSummary existingConversation = this.conversations.get(position);
+        if (existingConversation.hasSameContent(conversation)) return;
+
+        // A conversation with new activity moves to the top, matching the order it was loaded in
+        if (position > 0 && conversation.getUpdatedTime() > existingConversation.getUpdatedTime()) {
+            this.conversations.remove(position);
+            this.conversations.add(0, conversation);
+            notifyItemMoved(position, 0);
+            notifyItemChanged(0);
+            return;
+        }
+
         this.conversations.set(position, conversation);
         notifyItemChanged(position);
     }
 
     public void removeItemAtWithUndo(final int position, final RecyclerView parentView) {
-        final Conversation removedConversation = this.conversations.get(position);
+        final ConversationSummary removedConversation = this.conversations.get(position);
         final Snackbar snackbar = generateSnackbar(parentView);
         snackbar.setAction(
                 R.string.undo,
@@ -135,7 +172,7 @@ public class RecentAdapter extends RecyclerView.Adapter<ThreadViewHolder> implem
     }
 
     @NonNull
-    private View.OnClickListener handleUndoRemove(final int position, final RecyclerView parentView, final Conversation removedConversation) {
+    private View.OnClickListener handleUndoRemove(final int position, final RecyclerView parentView, final ConversationSummary removedConversation) {
         return view -> {
             this.conversations.add(position, removedConversation);
             notifyItemInserted(position);
@@ -157,15 +194,15 @@ public class RecentAdapter extends RecyclerView.Adapter<ThreadViewHolder> implem
         try {
             switch (sofaMessage.getType()) {
                 case SofaType.PLAIN_TEXT: {
-                    final Message message = SofaAdapters.get().messageFrom(sofaMessage.getPayload());
+                    final Message message = SofaPayloadCache.get().getMessage(sofaMessage);
                     return message.toUserVisibleString(sentByLocal, sofaMessage.hasAttachment());
                 }
                 case SofaType.PAYMENT: {
-                    final Payment payment = SofaAdapters.get().paymentFrom(sofaMessage.getPayload());
+                    final Payment payment = SofaPayloadCache.get().getPayment(sofaMessage);
                     return payment.toUserVisibleString(sentByLocal, sofaMessage.getSendState());
                 }
                 case SofaType.PAYMENT_REQUEST: {
-                    final PaymentRequest request = SofaAdapters.get().txRequestFrom(sofaMessage.getPayload());
+                    final PaymentRequest request = SofaPayloadCache.get().getPaymentRequest(sofaMessage);
                     return request.toUserVisibleString(sentByLocal, sofaMessage.getSendState());
                 }
                 case SofaType.COMMAND_REQUEST:
@@ -182,17 +219,15 @@ public class RecentAdapter extends RecyclerView.Adapter<ThreadViewHolder> implem
     }
 
     private User getCurrentLocalUser() {
-        // Yes, this blocks. But realistically, a value should be always ready for returning.
         return BaseApplication
                 .get()
                 .getUserManager()
-                .getCurrentUser()
-                .toBlocking()
-                .value();
+                .getLocalIdentity()
+                .getUser();
     }
 
     public void doDelete() {
-        for (final Conversation conversationToDelete : conversationsToDelete) {
+        for (final ConversationSummary conversationToDelete : conversationsToDelete) {
             BaseApplication
                     .get()
                     .getSofaMessageManager()
@@ -27,8 +27,8 @@ import android.support.v4.app.RemoteInput;
 
 import com.toshi.R;
 import com.toshi.crypto.signal.model.DecryptedSignalMessage;
+import com.toshi.manager.RecipientManager;
 import com.toshi.model.local.Recipient;
-import com.toshi.model.local.User;
 import com.toshi.model.sofa.SofaAdapters;
 import com.toshi.model.sofa.SofaMessage;
 import com.toshi.model.sofa.SofaType;
@@ -37,9 +37,15 @@ import com.toshi.view.BaseApplication;
 import com.toshi.view.notification.model.ChatNotification;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
+import rx.Single;
+
 public class ChatNotificationManager extends ToshiNotificationBuilder {
 
     public static final String KEY_TEXT_REPLY = "key_text_reply";
@@ -69,31 +75,54 @@ public class ChatNotificationManager extends ToshiNotificationBuilder {
 
     public static void showNotification(final DecryptedSignalMessage signalMessage) {
         if (signalMessage == null) return;
+        showNotifications(Collections.singletonList(signalMessage));
+    }
+
+    // Shows one notification per conversation, however many of its messages are in the list
+    public static void showNotifications(final List<DecryptedSignalMessage> signalMessages) {
+        final Map<String, List<String>> bodiesByConversation = new LinkedHashMap<>();
+        final Map<String, DecryptedSignalMessage> firstMessageByConversation = new HashMap<>();
+        for (final DecryptedSignalMessage signalMessage : signalMessages) {
+            final String body = getBodyFromMessage(signalMessage);
+            if (body == null) {
+                // This wasn't a SOFA::Message. Do not render.
+                LogUtil.i(ChatNotificationManager.class, "Not rendering PN");
+                continue;
+            }
+            final String conversationKey = signalMessage.getConversationKey();
+            List<String> bodies = bodiesByConversation.get(conversationKey);
+            if (bodies == null) {
+                bodies = new ArrayList<>();
+                bodiesByConversation.put(conversationKey, bodies);
+                firstMessageByConversation.put(conversationKey, signalMessage);
+            }
+            bodies.add(body);
+        }
 
-        BaseApplication
-            .get()
-            .getRecipientManager()
-            .getUserFromToshiId(signalMessage.getSource())
-            .subscribe(
-                    (user) -> handleUserLookup(user, signalMessage),
-                    ChatNotificationManager::handleUserError
-            );
+        for (final Map.Entry<String, List<String>> conversationBodies : bodiesByConversation.entrySet()) {
+            getRecipient(firstMessageByConversation.get(conversationBodies.getKey()))
+                .subscribe(
+                        (recipient) -> showChatNotification(recipient, conversationBodies.getValue()),
+                        ChatNotificationManager::handleRecipientError
+                );
+        }
     }
 
-    private static void handleUserLookup(final User user, final DecryptedSignalMessage signalMessage) {
-        final String body = getBodyFromMessage(signalMessage);
-        if (body == null) {
-            // This wasn't a SOFA::Message. Do not render.
-            LogUtil.i(ChatNotificationManager.class, "Not rendering PN");
-            return;
+    // Group messages are shown as coming from the group, everything else from its sender
+    private static Single<Recipient> getRecipient(final DecryptedSignalMessage signalMessage) {
+        final RecipientManager recipientManager = BaseApplication.get().getRecipientManager();
+        if (signalMessage.isGroup()) {
+            return recipientManager
+                    .getGroupFromId(signalMessage.getGroupId())
+                    .map(Recipient::new);
         }
-        final Recipient recipient = new Recipient(user);
-        // Todo - pass group avatar here (if it's a group)
-        showChatNotification(recipient, body);
+        return recipientManager
+                .getUserFromToshiId(signalMessage.getSource())
+                .map(Recipient::new);
     }
 
-    private static void handleUserError(final Throwable throwable) {
-        LogUtil.exception(ChatNotificationManager.class, "Error during fetching user", throwable);
+    private static void handleRecipientError(final Throwable throwable) {
+        LogUtil.exception(ChatNotificationManager.class, "Error during fetching recipient", throwable);
     }
 
     private static String getBodyFromMessage(final DecryptedSignalMessage dsm) {
@@ -111,6 +140,12 @@ public class ChatNotificationManager extends ToshiNotificationBuilder {
     public static void showChatNotification(
             final Recipient sender,
             final String content) {
+        showChatNotification(sender, Collections.singletonList(content));
+    }
+
+    private static void showChatNotification(
+            final Recipient sender,
+            final List<String> contents) {
 
         // Sender will be null if the transaction came from outside of the Toshi platform.
         final String notificationKey = sender == null ? ChatNotification.DEFAULT_TAG : sender.getThreadId();
@@ -126,7 +161,9 @@ public class ChatNotificationManager extends ToshiNotificationBuilder {
 
         activeNotifications.put(notificationKey, activeChatNotification);
 
-        activeChatNotification.addUnreadMessage(content);
+        for (final String content : contents) {
+            activeChatNotification.addUnreadMessage(content);
+        }
         activeChatNotification
                 .generateLargeIcon()
                 .subscribe(() -> showNotification(activeChatNotification, getChatNotificationBuilder(activeChatNotification)));
@@ -137,7 +174,10 @@ public class ChatNotificationManager extends ToshiNotificationBuilder {
                 .setDeleteIntent(activeChatNotification.getDeleteIntent())
                 .setContentIntent(activeChatNotification.getPendingIntent());
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N && !activeChatNotification.isUnknownSender()) {
+        // Direct replies go to a single user, so group notifications don't offer them
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+                && !activeChatNotification.isUnknownSender()
+                && !activeChatNotification.isGroup()) {
             builder.addAction(buildDirectReplyAction(activeChatNotification));
         }
 
@@ -154,4 +154,8 @@ public class ChatNotification extends ToshiNotification {
     public boolean isUnknownSender() {
         return this.sender == null;
     }
+
+    public boolean isGroup() {
+        return this.sender != null && this.sender.isGroup();
+    }
 }
@@ -0,0 +1,201 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.toshi.crypto;
+
+
+import com.toshi.crypto.util.HashUtil;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+public class ECKeyTest {
+
+    // The first rounds also warm up the JIT
+    private static final int NUM_TIMED_ROUNDS = 6;
+
+    private final Random random = new Random(99);
+
+    @Test
+    public void signMatchesTrialRecoverySignatures() {
+        for (int i = 0; i < 100; i++) {
+            final ECKey key = ECKey.fromPrivate(randomBytes(32));
+            final byte[] messageHash = HashUtil.sha3(randomBytes(100));
+
+            final ECKey.ECDSASignature expected = signByTrialRecovery(key, messageHash);
+            final ECKey.ECDSASignature actual = key.sign(messageHash);
+
+            assertThat(actual.toHex(), is(expected.toHex()));
+        }
+    }
+
+    @Test
+    public void signatureRecoversToSigningKey() throws SignatureException {
+        for (int i = 0; i < 50; i++) {
+            final ECKey key = ECKey.fromPrivate(randomBytes(32));
+            final byte[] messageHash = HashUtil.sha3(randomBytes(32));
+            final ECKey.ECDSASignature signature = key.sign(messageHash);
+
+            final byte[] recovered = ECKey.signatureToKeyBytes(messageHash, signature);
+
+            assertThat(Arrays.equals(recovered, key.getPubKey()), is(true));
+            assertThat(ECKey.verify(messageHash, signature, key.getPubKey()), is(true));
+        }
+    }
+
+    @Test
+    public void fromPrivateDerivesKnownPublicKey() {
+        // Private key 1 gives the generator point itself
+        final ECKey key = ECKey.fromPrivate(BigInteger.ONE);
+        assertThat(key.getPubKeyPoint().normalize().equals(ECKey.CURVE.getG().normalize()), is(true));
+        assertThat(Arrays.equals(
+                ECKey.publicKeyFromPrivate(BigInteger.valueOf(7), false),
+                ECKey.CURVE.getG().multiply(BigInteger.valueOf(7)).getEncoded(false)), is(true));
+    }
+
+    // Signing with the recovery id found directly has to beat trying every id until one recovers
+    // the key. The best of several rounds is compared to keep scheduling noise out of it.
+    @Test
+    public void signIsFasterThanTrialRecovery() {
+        final ECKey key = ECKey.fromPrivate(randomBytes(32));
+        final byte[][] hashes = new byte[20][];
+        for (int i = 0; i < hashes.length; i++) hashes[i] = HashUtil.sha3(randomBytes(64));
+
+        long trialNanos = Long.MAX_VALUE;
+        long signNanos = Long.MAX_VALUE;
+        for (int round = 0; round < NUM_TIMED_ROUNDS; round++) {
+            final long trialStart = System.nanoTime();
+            for (final byte[] hash : hashes) signByTrialRecovery(key, hash);
+            trialNanos = Math.min(trialNanos, System.nanoTime() - trialStart);
+
+            final long signStart = System.nanoTime();
+            for (final byte[] hash : hashes) key.sign(hash);
+            signNanos = Math.min(signNanos, System.nanoTime() - signStart);
+        }
+
+        assertThat(signNanos, is(lessThan(trialNanos)));
+    }
+
+    @Test
+    public void verifyBatchAcceptsValidBatch() {
+        final Batch batch = new Batch(40, 3);
+        final boolean[] results = ECKey.verifyBatch(batch.hashes, batch.signatures, batch.pubs);
+        for (final boolean result : results) assertThat(result, is(true));
+    }
+
+    @Test
+    public void verifyBatchLocatesInvalidSignatures() {
+        final Batch batch = new Batch(40, 3);
+        // Wrong message for item 7, signature by another key for item 23
+        batch.hashes.set(7, HashUtil.sha3(randomBytes(32)));
+        batch.pubs.set(23, ECKey.fromPrivate(randomBytes(32)).getPubKey());
+
+        final boolean[] results = ECKey.verifyBatch(batch.hashes, batch.signatures, batch.pubs);
+
+        for (int i = 0; i < results.length; i++) {
+            assertThat("item " + i, results[i], is(i != 7 && i != 23));
+        }
+    }
+
+    @Test
+    public void verifyBatchMatchesVerifyWithoutRecoveryIds() {
+        final Batch batch = new Batch(12, 2);
+        for (final ECKey.ECDSASignature signature : batch.signatures) signature.v = 0;
+        batch.hashes.set(3, HashUtil.sha3(randomBytes(32)));
+
+        final boolean[] results = ECKey.verifyBatch(batch.hashes, batch.signatures, batch.pubs);
+
+        for (int i = 0; i < results.length; i++) {
+            final boolean expected = ECKey.verify(batch.hashes.get(i), batch.signatures.get(i), batch.pubs.get(i));
+            assertThat(results[i], is(expected));
+        }
+    }
+
+    // Sharing the work across signatures from the same keys is the point of verifyBatch
+    @Test
+    public void verifyBatchIsFasterThanVerifyingOneByOne() {
+        final Batch batch = new Batch(64, 4);
+
+        long singleNanos = Long.MAX_VALUE;
+        long batchNanos = Long.MAX_VALUE;
+        for (int round = 0; round < NUM_TIMED_ROUNDS; round++) {
+            final long singleStart = System.nanoTime();
+            verifyOneByOne(batch);
+            singleNanos = Math.min(singleNanos, System.nanoTime() - singleStart);
+
+            final long batchStart = System.nanoTime();
+            ECKey.verifyBatch(batch.hashes, batch.signatures, batch.pubs);
+            batchNanos = Math.min(batchNanos, System.nanoTime() - batchStart);
+        }
+
+        assertThat(batchNanos, is(lessThan(singleNanos)));
+    }
+
+    private void verifyOneByOne(final Batch batch) {
+        for (int i = 0; i < batch.hashes.size(); i++) {
+            ECKey.verify(batch.hashes.get(i), batch.signatures.get(i), batch.pubs.get(i));
+        }
+    }
+
+    private class Batch {
+        private final List<byte[]> hashes = new ArrayList<>();
+        private final List<ECKey.ECDSASignature> signatures = new ArrayList<>();
+        private final List<byte[]> pubs = new ArrayList<>();
+
+        private Batch(final int size, final int numberOfKeys) {
+            final ECKey[] keys = new ECKey[numberOfKeys];
+            for (int i = 0; i < numberOfKeys; i++) keys[i] = ECKey.fromPrivate(randomBytes(32));
+            for (int i = 0; i < size; i++) {
+                final ECKey key = keys[i % numberOfKeys];
+                final byte[] hash = HashUtil.sha3(randomBytes(48));
+                this.hashes.add(hash);
+                this.signatures.add(key.sign(hash));
+                this.pubs.add(key.getPubKey());
+            }
+        }
+    }
+
+    // The signing path ECKey.sign used before the recovery id was read off the nonce point
+    private ECKey.ECDSASignature signByTrialRecovery(final ECKey key, final byte[] messageHash) {
+        final ECKey.ECDSASignature sig = key.doSign(messageHash);
+        for (int recId = 0; recId < 4; recId++) {
+            final byte[] candidate = ECKey.recoverPubBytesFromSignature(recId, sig, messageHash);
+            if (candidate != null && Arrays.equals(candidate, key.getPubKey())) {
+                sig.v = (byte) (recId + 27);
+                return sig;
+            }
+        }
+        throw new AssertionError("No recovery id found");
+    }
+
+    private byte[] randomBytes(final int size) {
+        final byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
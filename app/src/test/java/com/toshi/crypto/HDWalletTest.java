@@ -24,11 +24,20 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
 
 public class HDWalletTest {
 
+    private static final String DERIVED_KEYS = "dk";
+    // The first rounds also warm up the JIT
+    private static final int NUM_TIMED_ROUNDS = 5;
+
     private final String expectedMasterSeed = "abandon abandon abandon abandon abandon abandon abandon abandon abandon abandon abandon about";
     // Path `m/0'/1/0/0
     private final String expectedOwnerAddress = "0xa391af6a522436f335b7c6486640153641847ea2";
@@ -45,6 +54,13 @@ public class HDWalletTest {
         Mockito
                 .when(this.sharedPreferencesMock.getString(Mockito.anyString(), Mockito.anyString()))
                 .thenReturn(this.expectedMasterSeed);
+        final SharedPreferences.Editor editorMock = Mockito.mock(SharedPreferences.Editor.class);
+        Mockito
+                .when(editorMock.putString(Mockito.anyString(), Mockito.anyString()))
+                .thenReturn(editorMock);
+        Mockito
+                .when(this.sharedPreferencesMock.edit())
+                .thenReturn(editorMock);
     }
 
     @Test
@@ -76,4 +92,95 @@ public class HDWalletTest {
                         .value();
         assertThat(wallet.getPaymentAddress(), is(this.expectedPaymentAddress));
     }
+
+    @Test
+    public void walletRestoredFromDerivedKeyCacheHasSameAddresses() {
+        final SharedPreferences prefs = createInMemoryPreferences(new HashMap<>());
+        new HDWallet(prefs)
+                .createFromMasterSeed(this.expectedMasterSeed)
+                .toBlocking()
+                .value();
+
+        final HDWallet restoredWallet = new HDWallet(prefs)
+                .getExistingWallet()
+                .toBlocking()
+                .value();
+        assertThat(restoredWallet.getMasterSeed(), is(this.expectedMasterSeed));
+        assertThat(restoredWallet.getOwnerAddress(), is(this.expectedOwnerAddress));
+        assertThat(restoredWallet.getPaymentAddress(), is(this.expectedPaymentAddress));
+    }
+
+    @Test
+    public void derivedKeyCacheFromAnotherSeedIsIgnored() {
+        final Map<String, String> otherValues = new HashMap<>();
+        final HDWallet otherWallet = new HDWallet(createInMemoryPreferences(otherValues))
+                .createWallet()
+                .toBlocking()
+                .value();
+        assertThat(otherWallet.getOwnerAddress(), is(not(this.expectedOwnerAddress)));
+
+        // Pair the expected seed with the keys cached for the other wallet
+        final Map<String, String> values = new HashMap<>();
+        final SharedPreferences prefs = createInMemoryPreferences(values);
+        new HDWallet(prefs)
+                .createFromMasterSeed(this.expectedMasterSeed)
+                .toBlocking()
+                .value();
+        values.put(DERIVED_KEYS, otherValues.get(DERIVED_KEYS));
+
+        final HDWallet restoredWallet = new HDWallet(prefs)
+                .getExistingWallet()
+                .toBlocking()
+                .value();
+        assertThat(restoredWallet.getOwnerAddress(), is(this.expectedOwnerAddress));
+        assertThat(restoredWallet.getPaymentAddress(), is(this.expectedPaymentAddress));
+    }
+
+    // Restoring from the derived key cache is what keeps key derivation off app start, so it has
+    // to beat deriving from the seed. The best of several rounds is compared to keep noise out of it.
+    @Test
+    public void walletStartsFasterFromDerivedKeyCache() {
+        final Map<String, String> values = new HashMap<>();
+        final SharedPreferences prefs = createInMemoryPreferences(values);
+        new HDWallet(prefs).createFromMasterSeed(this.expectedMasterSeed).toBlocking().value();
+        final String cachedKeys = values.get(DERIVED_KEYS);
+
+        long coldNanos = Long.MAX_VALUE;
+        long warmNanos = Long.MAX_VALUE;
+        for (int round = 0; round < NUM_TIMED_ROUNDS; round++) {
+            values.remove(DERIVED_KEYS);
+            final long coldStart = System.nanoTime();
+            new HDWallet(prefs).getExistingWallet().toBlocking().value();
+            coldNanos = Math.min(coldNanos, System.nanoTime() - coldStart);
+
+            values.put(DERIVED_KEYS, cachedKeys);
+            final long warmStart = System.nanoTime();
+            new HDWallet(prefs).getExistingWallet().toBlocking().value();
+            warmNanos = Math.min(warmNanos, System.nanoTime() - warmStart);
+        }
+
+        assertThat(warmNanos, is(lessThan(coldNanos)));
+    }
+
+    // Backs a SharedPreferences mock with a map so written values can be read back
+    private SharedPreferences createInMemoryPreferences(final Map<String, String> values) {
+        final SharedPreferences prefs = Mockito.mock(SharedPreferences.class);
+        final SharedPreferences.Editor editor = Mockito.mock(SharedPreferences.Editor.class);
+        Mockito
+                .when(prefs.getString(Mockito.anyString(), Mockito.anyString()))
+                .thenAnswer(invocation -> {
+                    final String key = (String) invocation.getArguments()[0];
+                    return values.containsKey(key) ? values.get(key) : invocation.getArguments()[1];
+                });
+        Mockito
+                .when(prefs.edit())
+                .thenReturn(editor);
+        Mockito
+                .when(editor.putString(Mockito.anyString(), Mockito.anyString()))
+                .thenAnswer(invocation -> {
+                    values.put((String) invocation.getArguments()[0], (String) invocation.getArguments()[1]);
+                    return editor;
+                });
+        return prefs;
+    }
 }
@@ -0,0 +1,148 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.toshi.crypto.cryptohash;
+
+
+import com.toshi.crypto.util.HashUtil;
+
+import org.junit.Test;
+import org.spongycastle.util.encoders.Hex;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+public class FastKeccak256Test {
+
+    private static final String EMPTY_HASH = "c5d2460186f7233c927e7db2dcc703c0e500b653ca82273b7bfad8045d85a470";
+    private static final String HELLO_WORLD_HASH = "592fa743889fc7f92ac2a37bb1f5ba1daf2a5c84741ca0e0061d243a2e6707ba";
+
+    // Sizes cover empty input and the 136 byte block boundary on either side
+    private static final int[] INPUT_SIZES = {0, 1, 31, 32, 135, 136, 137, 271, 272, 273, 1000, 4096};
+    // The first rounds also warm up the JIT
+    private static final int NUM_TIMED_ROUNDS = 8;
+    private static final int ITERATIONS_PER_ROUND = 5000;
+
+    @Test
+    public void hashesEmptyInput() {
+        final byte[] result = new FastKeccak256().digest(new byte[0]);
+        assertThat(Hex.toHexString(result), is(EMPTY_HASH));
+    }
+
+    @Test
+    public void hashesKnownInput() {
+        final byte[] result = new FastKeccak256().digest("Hello World".getBytes());
+        assertThat(Hex.toHexString(result), is(HELLO_WORLD_HASH));
+    }
+
+    @Test
+    public void matchesKeccakCoreForAllBlockBoundaries() {
+        final Random random = new Random(42);
+        final FastKeccak256 fast = new FastKeccak256();
+        for (final int size : INPUT_SIZES) {
+            final byte[] input = new byte[size];
+            random.nextBytes(input);
+            final byte[] expected = new Keccak256().digest(input);
+            assertThat(Hex.toHexString(fast.digest(input)), is(Hex.toHexString(expected)));
+        }
+    }
+
+    @Test
+    public void matchesKeccakCoreWhenFedByteByByte() {
+        final byte[] input = new byte[300];
+        new Random(7).nextBytes(input);
+        final FastKeccak256 fast = new FastKeccak256();
+        for (final byte b : input) fast.update(b);
+        assertThat(Arrays.equals(fast.digest(), new Keccak256().digest(input)), is(true));
+    }
+
+    @Test
+    public void copyContinuesIndependently() {
+        final byte[] input = new byte[200];
+        new Random(3).nextBytes(input);
+        final FastKeccak256 fast = new FastKeccak256();
+        fast.update(input, 0, 150);
+        final Digest copy = fast.copy();
+        fast.update(input, 150, 50);
+        copy.update(input, 150, 50);
+        assertThat(Arrays.equals(fast.digest(), copy.digest()), is(true));
+    }
+
+    @Test
+    public void hashUtilWritesIntoCallerBuffer() {
+        final byte[] input = "xxHello Worldxx".getBytes();
+        final byte[] out = new byte[40];
+        final int written = HashUtil.sha3(input, 2, 11, out, 4);
+
+        assertThat(written, is(HashUtil.SHA3_LENGTH));
+        assertThat(Hex.toHexString(Arrays.copyOfRange(out, 4, 36)), is(HELLO_WORLD_HASH));
+        assertThat(out[0], is((byte) 0));
+        assertThat(out[39], is((byte) 0));
+    }
+
+    @Test
+    public void hashesSigningPayloadsLikeKeccakCore() {
+        // Typical signing payloads: a short timestamped request and a larger JSON body
+        final int[] payloadSizes = {64, 1024};
+        final Random random = new Random(1);
+        final byte[] out = new byte[HashUtil.SHA3_LENGTH];
+
+        for (final int size : payloadSizes) {
+            final byte[] input = new byte[size];
+            random.nextBytes(input);
+            HashUtil.sha3(input, 0, input.length, out, 0);
+            assertThat(Arrays.equals(out, new Keccak256().digest(input)), is(true));
+        }
+    }
+
+    // The engine is there to make signing cheaper, so it has to beat KeccakCore on the same
+    // payloads. The best of several rounds is compared to keep scheduling noise out of it.
+    @Test
+    public void isFasterThanKeccakCoreForSigningPayloads() {
+        final int[] payloadSizes = {64, 1024};
+        final Random random = new Random(1);
+        final byte[] out = new byte[HashUtil.SHA3_LENGTH];
+
+        for (final int size : payloadSizes) {
+            final byte[] input = new byte[size];
+            random.nextBytes(input);
+
+            long coreNanos = Long.MAX_VALUE;
+            long fastNanos = Long.MAX_VALUE;
+            for (int round = 0; round < NUM_TIMED_ROUNDS; round++) {
+                final long coreStart = System.nanoTime();
+                for (int i = 0; i < ITERATIONS_PER_ROUND; i++) {
+                    new Keccak256().digest(input);
+                }
+                coreNanos = Math.min(coreNanos, System.nanoTime() - coreStart);
+
+                final long fastStart = System.nanoTime();
+                for (int i = 0; i < ITERATIONS_PER_ROUND; i++) {
+                    HashUtil.sha3(input, 0, input.length, out, 0);
+                }
+                fastNanos = Math.min(fastNanos, System.nanoTime() - fastStart);
+            }
+
+            assertThat(fastNanos, is(lessThan(coreNanos)));
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.toshi.crypto.util;
+
+
+import org.junit.Test;
+import org.spongycastle.util.encoders.Hex;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class RlpViewTest {
+
+    private final BigInteger nonce = BigInteger.valueOf(9);
+    private final BigInteger gasPrice = new BigInteger("20000000000");
+    private final BigInteger gasLimit = BigInteger.valueOf(21000);
+    private final byte[] to = Hex.decode("3535353535353535353535353535353535353535");
+    private final BigInteger value = new BigInteger("1000000000000000000");
+
+    @Test
+    public void readsTransactionSkeletonFields() {
+        final byte[] encoded = RLP.encode(new Object[]{nonce, gasPrice, gasLimit, to, value, new byte[0]});
+        final RlpView transaction = new RlpView(encoded);
+
+        assertThat(transaction.isList(), is(true));
+        assertThat(transaction.size(), is(6));
+        assertThat(transaction.getBigInteger(0), is(nonce));
+        assertThat(transaction.getBigInteger(1), is(gasPrice));
+        assertThat(transaction.getLong(2), is(21000L));
+        assertThat(Hex.toHexString(transaction.getBytes(3)), is(Hex.toHexString(to)));
+        assertThat(transaction.getBigInteger(4), is(value));
+        assertThat(transaction.getBytes(5).length, is(0));
+        assertThat(transaction.getBigInteger(5), is(BigInteger.ZERO));
+    }
+
+    @Test
+    public void matchesDecode2ForNestedLongLists() {
+        final byte[] longItem = new byte[300];
+        new Random(2).nextBytes(longItem);
+        final byte[] encoded = RLP.encode(new Object[]{
+                "dog",
+                new Object[]{longItem, new Object[]{1, 0x81}},
+                new Object[0]
+        });
+
+        final RlpView view = new RlpView(encoded);
+        final RLPList decoded = (RLPList) RLP.decode2(encoded).get(0);
+
+        assertThat(view.size(), is(decoded.size()));
+        assertThat(new String(view.getBytes(0)), is("dog"));
+
+        final RlpView inner = view.slice(1);
+        final RLPList decodedInner = (RLPList) decoded.get(1);
+        assertThat(Hex.toHexString(inner.getBytes(0)), is(Hex.toHexString(decodedInner.get(0).getRLPData())));
+        assertThat(inner.slice(1).getLong(0), is(1L));
+        assertThat(inner.slice(1).getLong(1), is(0x81L));
+        assertThat(view.slice(2).size(), is(0));
+    }
+
+    @Test
+    public void sliceBoundsCoverTheEncodedElement() {
+        final byte[] encoded = RLP.encode(new Object[]{"cat", new Object[]{"dog"}});
+        final RlpView inner = new RlpView(encoded).slice(1);
+        final byte[] expected = RLP.encode(new Object[]{"dog"});
+
+        assertThat(inner.getLength(), is(expected.length));
+        final String innerHex = Hex.toHexString(inner.getData(), inner.getOffset(), inner.getLength());
+        assertThat(innerHex, is(Hex.toHexString(expected)));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void outOfRangeIndexThrows() {
+        new RlpView(RLP.encode(new Object[]{1, 2})).slice(2);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void typedAccessorOnListThrows() {
+        new RlpView(RLP.encode(new Object[]{new Object[]{1}})).getBytes(0);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void truncatedInputThrows() {
+        final byte[] encoded = RLP.encode(new Object[]{"cat", "dog"});
+        new RlpView(Arrays.copyOf(encoded, encoded.length - 1));
+    }
+}
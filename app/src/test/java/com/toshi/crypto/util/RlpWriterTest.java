@@ -0,0 +1,204 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.toshi.crypto.util;
+
+
+import org.junit.Test;
+import org.spongycastle.util.encoders.Hex;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+public class RlpWriterTest {
+
+    private static final int WARM_UP_ITERATIONS = 50000;
+    private static final int NUM_TIMED_ROUNDS = 8;
+    private static final int ITERATIONS_PER_ROUND = 5000;
+
+    private final Random random = new Random(1234);
+
+    @Test
+    public void encodesSingleValuesLikeRlp() {
+        final Object[] inputs = {
+                0, 1, 0x7f, 0x80, 0x81, 0xff, 0x100, 0xffffff, Integer.MAX_VALUE,
+                0L, 0x80L, Long.MAX_VALUE, -1, -1L,
+                BigInteger.ZERO, BigInteger.ONE, BigInteger.valueOf(0x80), BigInteger.valueOf(0x81),
+                new BigInteger("1000000000000000000000"), BigInteger.valueOf(-300),
+                new byte[0], new byte[]{0}, new byte[]{(byte) 0x80}, new byte[]{(byte) 0x81},
+                randomBytes(55), randomBytes(56), randomBytes(255), randomBytes(256), randomBytes(70000),
+                "", "dog", "Lorem ipsum dolor sit amet, consectetur adipisicing elit"
+        };
+        for (final Object input : inputs) {
+            assertSameAsRlp(input);
+        }
+    }
+
+    @Test
+    public void encodesNestedListsLikeRlp() {
+        assertSameAsRlp(new Object[0]);
+        assertSameAsRlp(new Object[]{new Object[0], new Object[]{new Object[0]}});
+        assertSameAsRlp(new Object[]{"cat", "dog", new Object[]{1, 2, new Object[]{randomBytes(60)}}});
+        assertSameAsRlp(new Object[]{randomBytes(300), new Object[]{randomBytes(30), randomBytes(40)}});
+        assertSameAsRlp(new Value(new Object[]{new Value(1), new Value("dog")}));
+        for (int i = 0; i < 200; i++) {
+            assertSameAsRlp(randomTree(4));
+        }
+    }
+
+    @Test
+    public void encodesRlpElementTreesLikeEquivalentValues() {
+        final byte[] nonce = {0x09};
+        final byte[] to = randomBytes(20);
+        final RLPList inner = new RLPList();
+        inner.add(new RLPItem(to));
+        inner.add(new RLPItem(new byte[0]));
+        final RLPList outer = new RLPList();
+        outer.add(new RLPItem(nonce));
+        outer.add(inner);
+
+        final byte[] expected = RLP.encode(new Object[]{nonce, new Object[]{to, new byte[0]}});
+        assertThat(Hex.toHexString(RlpWriter.encode(outer)), is(Hex.toHexString(expected)));
+    }
+
+    @Test
+    public void writesIntoByteBufferAtItsPosition() {
+        final Object[] transaction = unsignedTransaction();
+        final byte[] expected = RLP.encode(transaction);
+        final ByteBuffer buffer = ByteBuffer.allocate(expected.length + 10);
+        buffer.position(4);
+
+        final int written = RlpWriter.encode(transaction, buffer);
+
+        assertThat(written, is(expected.length));
+        assertThat(buffer.position(), is(4 + expected.length));
+        final byte[] actual = new byte[written];
+        System.arraycopy(buffer.array(), 4, actual, 0, written);
+        assertThat(Hex.toHexString(actual), is(Hex.toHexString(expected)));
+    }
+
+    @Test
+    public void encodedLengthIsExact() {
+        final Object[] transaction = signedTransaction(randomBytes(1024));
+        assertThat(RlpWriter.encodedLength(transaction), is(RLP.encode(transaction).length));
+    }
+
+    @Test
+    public void encodesTransactionShapesLikeRlp() {
+        assertSameAsRlp(unsignedTransaction());
+        assertSameAsRlp(signedTransaction(ByteUtil.EMPTY_BYTE_ARRAY));
+        // ERC20 transfer(address,uint256) call data
+        assertSameAsRlp(signedTransaction(randomBytes(68)));
+        assertSameAsRlp(signedTransaction(randomBytes(4096)));
+    }
+
+    // RlpWriter replaces RLP.encode when signing, so it has to be the cheaper of the two. A bare
+    // unsigned transaction is small enough for the fixed cost to even out, so the comparison is
+    // on the whole mix of shapes, taking the best of several rounds to keep scheduling noise out.
+    @Test
+    public void isFasterThanRlpForTransactionShapes() {
+        final Object[][] shapes = {
+                unsignedTransaction(),
+                signedTransaction(ByteUtil.EMPTY_BYTE_ARRAY),
+                signedTransaction(randomBytes(68)),
+                signedTransaction(randomBytes(4096))
+        };
+
+        long rlpNanos = 0;
+        long writerNanos = 0;
+        for (final Object[] shape : shapes) {
+            // Warm up both paths so the JIT has compiled them
+            for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+                RLP.encode(shape);
+                RlpWriter.encode(shape);
+            }
+
+            long rlpBest = Long.MAX_VALUE;
+            long writerBest = Long.MAX_VALUE;
+            for (int round = 0; round < NUM_TIMED_ROUNDS; round++) {
+                final long rlpStart = System.nanoTime();
+                for (int i = 0; i < ITERATIONS_PER_ROUND; i++) {
+                    RLP.encode(shape);
+                }
+                rlpBest = Math.min(rlpBest, System.nanoTime() - rlpStart);
+
+                final long writerStart = System.nanoTime();
+                for (int i = 0; i < ITERATIONS_PER_ROUND; i++) {
+                    RlpWriter.encode(shape);
+                }
+                writerBest = Math.min(writerBest, System.nanoTime() - writerStart);
+            }
+            rlpNanos += rlpBest;
+            writerNanos += writerBest;
+        }
+
+        assertThat(writerNanos, is(lessThan(rlpNanos)));
+    }
+
+    private Object[] unsignedTransaction() {
+        return new Object[]{
+                BigInteger.valueOf(42),                      // nonce
+                new BigInteger("20000000000"),               // gas price
+                BigInteger.valueOf(21000),                   // gas limit
+                randomBytes(20),                             // to
+                new BigInteger("1500000000000000000"),       // value
+                ByteUtil.EMPTY_BYTE_ARRAY                    // data
+        };
+    }
+
+    private Object[] signedTransaction(final byte[] data) {
+        final Object[] unsigned = unsignedTransaction();
+        return new Object[]{
+                unsigned[0], unsigned[1], unsigned[2], unsigned[3], unsigned[4],
+                data,
+                27,                                         // v
+                new BigInteger(1, randomBytes(32)),          // r
+                new BigInteger(1, randomBytes(32))           // s
+        };
+    }
+
+    private Object randomTree(final int depth) {
+        if (depth == 0 || random.nextInt(3) == 0) {
+            switch (random.nextInt(4)) {
+                case 0: return random.nextInt(1 << random.nextInt(31));
+                case 1: return new BigInteger(random.nextInt(200), random);
+                case 2: return "s" + random.nextInt();
+                default: return randomBytes(random.nextInt(3) == 0 ? random.nextInt(300) : random.nextInt(3));
+            }
+        }
+        final Object[] list = new Object[random.nextInt(6)];
+        for (int i = 0; i < list.length; i++) list[i] = randomTree(depth - 1);
+        return list;
+    }
+
+    private byte[] randomBytes(final int size) {
+        final byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private void assertSameAsRlp(final Object input) {
+        final String expected = Hex.toHexString(RLP.encode(input));
+        assertThat(Hex.toHexString(RlpWriter.encode(input)), is(expected));
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.toshi.manager;
+
+
+import com.toshi.model.network.ExchangeRate;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rx.Single;
+import rx.schedulers.Schedulers;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class ExchangeRateCacheTest {
+
+    private final AtomicInteger numFetches = new AtomicInteger();
+
+    @Test
+    public void freshRateIsServedFromMemory() {
+        final ExchangeRateCache cache = new ExchangeRateCache(newRateFetcher(0), 10000, 10000);
+        final ExchangeRate first = cache.get("USD").toBlocking().value();
+        final ExchangeRate second = cache.get("USD").toBlocking().value();
+
+        assertThat(second, is(sameInstance(first)));
+        assertThat(this.numFetches.get(), is(1));
+    }
+
+    @Test
+    public void concurrentCallersShareOneRequest() throws InterruptedException {
+        final ExchangeRateCache cache = new ExchangeRateCache(newRateFetcher(100), 10000, 10000);
+        final List<ExchangeRate> results = new ArrayList<>();
+        final CountDownLatch latch = new CountDownLatch(20);
+        for (int i = 0; i < 20; i++) {
+            cache.get("USD").subscribe(rate -> {
+                synchronized (results) {
+                    results.add(rate);
+                }
+                latch.countDown();
+            });
+        }
+
+        latch.await();
+        assertThat(this.numFetches.get(), is(1));
+        for (final ExchangeRate rate : results) {
+            assertThat(rate, is(sameInstance(results.get(0))));
+        }
+    }
+
+    @Test
+    public void staleRateIsReturnedWhileItIsRefreshed() throws InterruptedException {
+        final ExchangeRateCache cache = new ExchangeRateCache(newRateFetcher(50), 20, 10000);
+        final ExchangeRate first = cache.get("USD").toBlocking().value();
+        Thread.sleep(40);
+
+        final long start = System.currentTimeMillis();
+        final ExchangeRate stale = cache.get("USD").toBlocking().value();
+        assertThat(stale, is(sameInstance(first)));
+        assertThat(System.currentTimeMillis() - start < 50, is(true));
+
+        waitUntil(() -> cache.get("USD").toBlocking().value() != first);
+        assertThat(this.numFetches.get(), is(2));
+    }
+
+    @Test
+    public void expiredRateWaitsForTheNetwork() throws InterruptedException {
+        final ExchangeRateCache cache = new ExchangeRateCache(newRateFetcher(0), 10, 10);
+        final ExchangeRate first = cache.get("USD").toBlocking().value();
+        Thread.sleep(20);
+
+        assertThat(cache.get("USD").toBlocking().value() == first, is(false));
+        assertThat(this.numFetches.get(), is(2));
+    }
+
+    @Test
+    public void currenciesAreCachedSeparatelyAndFailuresAreNotCached() {
+        final AtomicInteger attempt = new AtomicInteger();
+        final ExchangeRateCache cache = new ExchangeRateCache(code -> {
+            if (code.equals("EUR") && attempt.incrementAndGet() == 1) {
+                return Single.error(new RuntimeException("Network down"));
+            }
+            return Single.just(Mockito.mock(ExchangeRate.class));
+        }, 10000, 10000);
+
+        final ExchangeRate usd = cache.get("USD").toBlocking().value();
+        try {
+            cache.get("EUR").toBlocking().value();
+        } catch (final RuntimeException expected) {}
+
+        final ExchangeRate eur = cache.get("EUR").toBlocking().value();
+        assertThat(eur == usd, is(false));
+        assertThat(attempt.get(), is(2));
+        assertThat(cache.get("EUR").toBlocking().value(), is(sameInstance(eur)));
+    }
+
+    private ExchangeRateCache.RateFetcher newRateFetcher(final long latencyMs) {
+        return code -> Single.fromCallable(() -> {
+            this.numFetches.incrementAndGet();
+            Thread.sleep(latencyMs);
+            return Mockito.mock(ExchangeRate.class);
+        }).subscribeOn(Schedulers.io());
+    }
+
+    private static void waitUntil(final Condition condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.isMet() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertThat(condition.isMet(), is(true));
+    }
+
+    private interface Condition {
+        boolean isMet();
+    }
+}
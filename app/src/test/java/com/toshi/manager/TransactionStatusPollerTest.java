@@ -0,0 +1,199 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.toshi.manager;
+
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rx.Single;
+import rx.schedulers.Schedulers;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class TransactionStatusPollerTest {
+
+    private static final String CONFIRMED = "confirmed";
+    private static final String UNCONFIRMED = "unconfirmed";
+
+    private ScheduledExecutorService executor;
+    private Map<String, AtomicInteger> numLookups;
+    private List<Map<String, String>> handledBatches;
+    private volatile boolean isHandlerFailing;
+
+    @Before
+    public void setup() {
+        this.executor = Executors.newSingleThreadScheduledExecutor();
+        this.numLookups = new ConcurrentHashMap<>();
+        this.handledBatches = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    @After
+    public void tearDown() {
+        this.executor.shutdownNow();
+    }
+
+    @Test
+    public void pollIntervalGrowsWithAgeAndIsCapped() {
+        final TransactionStatusPoller<String> poller = createPoller(4, 0, 1000, 60000, txHash -> Single.just(CONFIRMED));
+        assertThat(poller.getPollIntervalMs(0), is(1000L));
+        assertThat(poller.getPollIntervalMs(40000), is(10000L));
+        assertThat(poller.getPollIntervalMs(TimeUnit.HOURS.toMillis(1)), is(60000L));
+    }
+
+    @Test
+    public void duplicateHashesAreLookedUpOnceAndHandledInOneBatch() throws InterruptedException {
+        final TransactionStatusPoller<String> poller = createPoller(4, 50, 1000, 60000, txHash -> Single.just(CONFIRMED));
+        for (int i = 0; i < 20; i++) {
+            poller.track("0x" + (i % 10), System.currentTimeMillis());
+        }
+
+        waitUntil(() -> this.handledBatches.size() == 1);
+        Thread.sleep(100);
+        assertThat(this.handledBatches.size(), is(1));
+        assertThat(this.handledBatches.get(0).size(), is(10));
+        assertThat(this.numLookups.size(), is(10));
+        for (final AtomicInteger lookups : this.numLookups.values()) {
+            assertThat(lookups.get(), is(1));
+        }
+    }
+
+    @Test
+    public void concurrentRequestsAreCapped() throws InterruptedException {
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final TransactionStatusPoller<String> poller = createPoller(3, 10, 1000, 60000, txHash -> Single.fromCallable(() -> {
+            maxInFlight.set(Math.max(maxInFlight.get(), inFlight.incrementAndGet()));
+            Thread.sleep(20);
+            inFlight.decrementAndGet();
+            return CONFIRMED;
+        }));
+        for (int i = 0; i < 30; i++) {
+            poller.track("0x" + i, System.currentTimeMillis());
+        }
+
+        waitUntil(() -> this.numLookups.size() == 30 && !this.handledBatches.isEmpty());
+        assertThat(maxInFlight.get(), is(lessThanOrEqualTo(3)));
+        assertThat(maxInFlight.get(), is(greaterThanOrEqualTo(2)));
+    }
+
+    @Test
+    public void onlyUnsettledTransactionsArePolledAgain() throws InterruptedException {
+        final TransactionStatusPoller<String> poller = createPoller(4, 0, 20, 20, txHash -> Single.just(txHash.endsWith("1") ? UNCONFIRMED : CONFIRMED));
+        poller.track("0x0", System.currentTimeMillis());
+        poller.track("0x1", System.currentTimeMillis());
+
+        waitUntil(() -> this.numLookups.containsKey("0x1") && this.numLookups.get("0x1").get() >= 3);
+        assertThat(this.numLookups.get("0x0").get(), is(1));
+
+        poller.untrack("0x1");
+        Thread.sleep(100);
+        final int numLookups = this.numLookups.get("0x1").get();
+        Thread.sleep(100);
+        assertThat(this.numLookups.get("0x1").get(), is(numLookups));
+    }
+
+    @Test
+    public void failedAndUnknownLookupsAreRetried() throws InterruptedException {
+        final AtomicInteger attempt = new AtomicInteger();
+        final TransactionStatusPoller<String> poller = createPoller(4, 0, 20, 20, txHash -> {
+            switch (attempt.incrementAndGet()) {
+                case 1: return Single.error(new RuntimeException("Network down"));
+                case 2: return Single.just(null);
+                default: return Single.just(CONFIRMED);
+            }
+        });
+        poller.track("0x0", System.currentTimeMillis());
+
+        waitUntil(() -> !this.handledBatches.isEmpty());
+        assertThat(this.numLookups.get("0x0").get(), is(3));
+        assertThat(this.handledBatches.size(), is(1));
+        assertThat(this.handledBatches.get(0).get("0x0"), is(CONFIRMED));
+    }
+
+    @Test
+    public void statusesTheHandlerThrowsOnBackOff() throws InterruptedException {
+        this.isHandlerFailing = true;
+        final TransactionStatusPoller<String> poller = createPoller(4, 0, 1000, 1000, txHash -> Single.just(CONFIRMED));
+        poller.track("0x0", System.currentTimeMillis());
+
+        waitUntil(() -> !this.handledBatches.isEmpty());
+        Thread.sleep(200);
+        assertThat(this.numLookups.get("0x0").get(), is(1));
+        assertThat(this.handledBatches.size(), is(1));
+    }
+
+    private TransactionStatusPoller<String> createPoller(
+            final int maxConcurrentRequests,
+            final long coalesceWindowMs,
+            final long minPollIntervalMs,
+            final long maxPollIntervalMs,
+            final TransactionStatusPoller.StatusSource<String> source) {
+        return new TransactionStatusPoller<>(
+                txHash -> {
+                    this.numLookups.putIfAbsent(txHash, new AtomicInteger());
+                    this.numLookups.get(txHash).incrementAndGet();
+                    return source.getStatus(txHash);
+                },
+                this::handleStatuses,
+                this.executor,
+                Schedulers.io(),
+                maxConcurrentRequests,
+                coalesceWindowMs,
+                minPollIntervalMs,
+                maxPollIntervalMs);
+    }
+
+    private Collection<String> handleStatuses(final Map<String, String> statuses) {
+        this.handledBatches.add(new HashMap<>(statuses));
+        if (this.isHandlerFailing) throw new RuntimeException("Unable to save statuses");
+        final List<String> settledHashes = new ArrayList<>();
+        for (final Map.Entry<String, String> entry : statuses.entrySet()) {
+            if (!entry.getValue().equals(UNCONFIRMED)) settledHashes.add(entry.getKey());
+        }
+        return settledHashes;
+    }
+
+    private static void waitUntil(final Condition condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.isMet() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertThat(condition.isMet(), is(true));
+    }
+
+    private interface Condition {
+        boolean isMet();
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package com.toshi.manager;
+
+
+import com.toshi.crypto.HDWallet;
+import com.toshi.manager.network.interceptor.SigningInterceptor;
+import com.toshi.model.local.ConversationSummary;
+import com.toshi.model.local.LocalIdentity;
+import com.toshi.model.local.PendingTransaction;
+import com.toshi.model.local.Recipient;
+import com.toshi.model.local.User;
+import com.toshi.model.sofa.Message;
+import com.toshi.model.sofa.Payment;
+import com.toshi.model.sofa.SofaAdapters;
+import com.toshi.model.sofa.SofaMessage;
+import com.toshi.model.sofa.SofaType;
+import com.toshi.view.BaseApplication;
+import com.toshi.view.adapter.MessageAdapter;
+import com.toshi.view.adapter.RecentAdapter;
+import com.toshi.view.adapter.viewholder.ThreadViewHolder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.objenesis.Objenesis;
+import org.objenesis.ObjenesisStd;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import rx.Observable;
+import rx.plugins.RxJavaHooks;
+import rx.subjects.BehaviorSubject;
+import rx.subjects.PublishSubject;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class UserManagerTest {
+
+    private static final String LOCAL_TOSHI_ID = "0x0000000000000000000000000000000000000001";
+    private static final String LOCAL_PAYMENT_ADDRESS = "0x0000000000000000000000000000000000000002";
+    private static final String REMOTE_TOSHI_ID = "0x0000000000000000000000000000000000000003";
+    private static final String REMOTE_PAYMENT_ADDRESS = "0x0000000000000000000000000000000000000004";
+
+    private UserManager userManager;
+
+    @Before
+    public void setup() {
+        this.userManager = new UserManager();
+    }
+
+    @After
+    public void tearDown() throws ReflectiveOperationException {
+        RxJavaHooks.reset();
+        setField(null, BaseApplication.class.getDeclaredField("instance"), null);
+    }
+
+    @Test
+    public void localIdentityIsEmptyBeforeAnythingIsLoaded() {
+        final LocalIdentity localIdentity = this.userManager.getLocalIdentity();
+        assertThat(localIdentity.getWallet(), is(nullValue()));
+        assertThat(localIdentity.getOwnerAddress(), is(nullValue()));
+        assertThat(localIdentity.getPaymentAddress(), is(nullValue()));
+        assertThat(localIdentity.getUser(), is(nullValue()));
+    }
+
+    @Test
+    public void localIdentityFollowsTheCurrentUser() {
+        final User user = new User();
+        this.userManager.getUserObservable().onNext(user);
+        assertThat(this.userManager.getLocalIdentity().getUser(), is(sameInstance(user)));
+
+        this.userManager.getUserObservable().onNext(null);
+        assertThat(this.userManager.getLocalIdentity().getUser(), is(nullValue()));
+    }
+
+    @Test
+    public void userObserversSeeAnUpToDateLocalIdentity() {
+        final List<User> seenByObserver = new ArrayList<>();
+        this.userManager
+                .getUserObservable()
+                .subscribe(__ -> seenByObserver.add(this.userManager.getLocalIdentity().getUser()));
+
+        final User user = new User();
+        this.userManager.getUserObservable().onNext(user);
+
+        assertThat(seenByObserver.get(seenByObserver.size() - 1), is(sameInstance(user)));
+    }
+
+    @Test(expected = AssertionError.class)
+    public void strictModeCatchesBlockingReads() {
+        enableStrictMode();
+        this.userManager.getCurrentUser().toBlocking().value();
+    }
+
+    @Test
+    public void readingTheLocalIdentityNeverTouchesRx() throws Exception {
+        final User localUser = createUser(LOCAL_TOSHI_ID, LOCAL_PAYMENT_ADDRESS);
+        final User remoteUser = createUser(REMOTE_TOSHI_ID, REMOTE_PAYMENT_ADDRESS);
+        final HDWallet wallet = Mockito.mock(HDWallet.class);
+        Mockito.when(wallet.getPaymentAddress()).thenReturn(LOCAL_PAYMENT_ADDRESS);
+        this.userManager.getUserObservable().onNext(localUser);
+        this.userManager.publishWallet(wallet);
+
+        final PublishSubject<PendingTransaction> pendingTransactions = PublishSubject.create();
+        final TransactionManager transactionManager = Mockito.mock(TransactionManager.class);
+        Mockito.when(transactionManager.getPendingTransactionObservable()).thenReturn(pendingTransactions);
+        installApplication(transactionManager);
+
+        final SofaMessage sentMessage = new SofaMessage().makeNew(
+                localUser,
+                SofaAdapters.get().toJson(new Message().setBody("Hi")));
+        final MessageAdapter messageAdapter = new MessageAdapter();
+        getField(messageAdapter, "sofaMessages").add(sentMessage);
+
+        final RecentAdapter recentAdapter = new RecentAdapter();
+        getField(recentAdapter, "conversations").add(new ConversationSummary(new Recipient(remoteUser), sentMessage, 0, 0));
+        final ThreadViewHolder threadViewHolder = Mockito.mock(ThreadViewHolder.class);
+
+        final PendingTransaction pendingTransaction = new PendingTransaction()
+                .setTxHash("0x1")
+                .setSofaMessage(new SofaMessage().makeNew(
+                        localUser,
+                        SofaAdapters.get().toJson(new Payment()
+                                .setValue("0x1")
+                                .setFromAddress(LOCAL_PAYMENT_ADDRESS)
+                                .setToAddress(REMOTE_PAYMENT_ADDRESS))));
+        final List<PendingTransaction> broadcastTransactions = new ArrayList<>();
+        initPendingTransactionsObservable(remoteUser).subscribe(broadcastTransactions::add);
+
+        enableStrictMode();
+
+        assertThat(messageAdapter.getItemViewType(0), is(SofaType.PLAIN_TEXT));
+
+        recentAdapter.onBindViewHolder(threadViewHolder, 0);
+        Mockito.verify(threadViewHolder).setLatestMessage("Hi");
+
+        assertThat(invoke(transactionManager, TransactionManager.class, "getCurrentLocalUser"), is(sameInstance(localUser)));
+
+        pendingTransactions.onNext(pendingTransaction);
+        assertThat(broadcastTransactions, is(Collections.singletonList(pendingTransaction)));
+
+        assertThat(new SigningInterceptor().getWallet(), is(sameInstance(wallet)));
+    }
+
+    @Test(expected = IOException.class)
+    public void signingFailsRatherThanGoingUnsignedWithoutAWallet() throws Exception {
+        installApplication(Mockito.mock(TransactionManager.class));
+        // The wallet is never published
+        final BehaviorSubject<HDWallet> walletSubject = BehaviorSubject.create();
+        walletSubject.onCompleted();
+        setField(BaseApplication.get().getToshiManager(), "walletSubject", walletSubject);
+
+        new SigningInterceptor().getWallet();
+    }
+
+    // Any Observable or Single started after this fails the test
+    private void enableStrictMode() {
+        RxJavaHooks.setOnObservableStart((observable, onSubscribe) -> {
+            throw new AssertionError("Subscribed to an Observable");
+        });
+        RxJavaHooks.setOnSingleStart((single, onSubscribe) -> {
+            throw new AssertionError("Subscribed to a Single");
+        });
+    }
+
+    // Wires the managers into BaseApplication without running any of their constructors
+    private void installApplication(final TransactionManager transactionManager) throws ReflectiveOperationException {
+        final Objenesis objenesis = new ObjenesisStd();
+        final ToshiManager toshiManager = objenesis.newInstance(ToshiManager.class);
+        setField(toshiManager, "userManager", this.userManager);
+        setField(toshiManager, "transactionManager", transactionManager);
+        final BaseApplication application = objenesis.newInstance(BaseApplication.class);
+        setField(application, "toshiManager", toshiManager);
+        setField(null, BaseApplication.class.getDeclaredField("instance"), application);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Observable<PendingTransaction> initPendingTransactionsObservable(final User remoteUser) throws ReflectiveOperationException {
+        final Class<?> observableClass = Class.forName("com.toshi.presenter.chat.PendingTransactionsObservable");
+        final Constructor<?> constructor = observableClass.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        final Method init = observableClass.getDeclaredMethod("init", User.class);
+        init.setAccessible(true);
+        return (Observable<PendingTransaction>) init.invoke(constructor.newInstance(), remoteUser);
+    }
+
+    private User createUser(final String toshiId, final String paymentAddress) throws ReflectiveOperationException {
+        final User user = new User();
+        setField(user, "owner_address", toshiId);
+        setField(user, "payment_address", paymentAddress);
+        return user;
+    }
+
+    private Object invoke(final Object target, final Class<?> type, final String methodName) throws ReflectiveOperationException {
+        final Method method = type.getDeclaredMethod(methodName);
+        method.setAccessible(true);
+        return method.invoke(target);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> List<T> getField(final Object target, final String name) throws ReflectiveOperationException {
+        final Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        return (List<T>) field.get(target);
+    }
+
+    private void setField(final Object target, final String name, final Object value) throws ReflectiveOperationException {
+        setField(target, target.getClass().getDeclaredField(name), value);
+    }
+
+    private void setField(final Object target, final Field field, final Object value) throws ReflectiveOperationException {
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package com.toshi.manager.chat;
+
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.whispersystems.signalservice.api.crypto.UntrustedIdentityException;
+import org.whispersystems.signalservice.api.messages.SignalServiceDataMessage;
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+import org.whispersystems.signalservice.api.push.exceptions.EncapsulatedExceptions;
+import org.whispersystems.signalservice.api.push.exceptions.NetworkFailureException;
+import org.whispersystems.signalservice.api.push.exceptions.UnregisteredUserException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class GroupFanOutTest {
+
+    private ExecutorService executor;
+
+    @Before
+    public void setup() {
+        this.executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        this.executor.shutdownNow();
+    }
+
+    @Test
+    public void everyMemberIsSentToExactlyOnce() throws InterruptedException {
+        final Set<String> sentTo = Collections.synchronizedSet(new HashSet<>());
+        final AtomicInteger numDuplicates = new AtomicInteger();
+        final GroupFanOut fanOut = new GroupFanOut(this.executor, 4, (recipients, message) -> {
+            for (final SignalServiceAddress recipient : recipients) {
+                if (!sentTo.add(recipient.getNumber())) numDuplicates.incrementAndGet();
+            }
+        });
+
+        final GroupFanOut.GroupSendResult result = fanOut.send(createMembers(25), this::createMessage);
+
+        assertThat(sentTo.size(), is(25));
+        assertThat(numDuplicates.get(), is(0));
+        assertThat(result.getNumDelivered(), is(25));
+        assertThat(result.hasFailures(), is(false));
+    }
+
+    @Test
+    public void eachBatchGetsItsOwnMessage() throws InterruptedException {
+        final AtomicInteger numMessagesCreated = new AtomicInteger();
+        final GroupFanOut fanOut = new GroupFanOut(this.executor, 4, (recipients, message) -> {});
+
+        fanOut.send(createMembers(2), () -> {
+            numMessagesCreated.incrementAndGet();
+            return createMessage();
+        });
+        assertThat(numMessagesCreated.get(), is(2));
+
+        numMessagesCreated.set(0);
+        fanOut.send(createMembers(40), () -> {
+            numMessagesCreated.incrementAndGet();
+            return createMessage();
+        });
+        assertThat(numMessagesCreated.get(), is(4));
+    }
+
+    @Test
+    public void outcomesFromEveryBatchAreCollected() throws InterruptedException {
+        final GroupFanOut fanOut = new GroupFanOut(this.executor, 4, (recipients, message) -> {
+            final String first = recipients.get(0).getNumber();
+            if (first.equals("member 0")) {
+                throw new IOException("Unable to upload attachment");
+            } else if (first.equals("member 1")) {
+                throw new EncapsulatedExceptions(
+                        Collections.<UntrustedIdentityException>emptyList(),
+                        Collections.singletonList(new UnregisteredUserException(first, new IOException())),
+                        Collections.singletonList(new NetworkFailureException(recipients.get(1).getNumber(), new IOException())));
+            }
+        });
+
+        // Four batches of three members each
+        final GroupFanOut.GroupSendResult result = fanOut.send(createMembers(12), this::createMessage);
+
+        assertThat(result.getNumFailed(), is(3 + 1));
+        assertThat(result.getNumDelivered(), is(1 + 3 + 3));
+        assertThat(result.hasFailures(), is(true));
+        assertThat(result.getUntrustedIdentities().size(), is(0));
+        assertThat(getNumbers(result.getFailedMembers()), is(new HashSet<>(Arrays.asList(
+                "member 0", "member 4", "member 8", "member 5"))));
+        assertThat(getNumbers(result.getUnregisteredMembers()), is(Collections.singleton("member 1")));
+    }
+
+    @Test
+    public void batchesAreSentInParallel() throws InterruptedException {
+        // Each batch waits until all four batches are in the transport, which can only
+        // happen if they are sent at the same time
+        final CountDownLatch areAllSending = new CountDownLatch(4);
+        final AtomicInteger numTimedOut = new AtomicInteger();
+        final GroupFanOut fanOut = new GroupFanOut(this.executor, 4, (recipients, message) -> {
+            areAllSending.countDown();
+            try {
+                if (!areAllSending.await(5, TimeUnit.SECONDS)) numTimedOut.incrementAndGet();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        final GroupFanOut.GroupSendResult result = fanOut.send(createMembers(40), this::createMessage);
+
+        assertThat(numTimedOut.get(), is(0));
+        assertThat(result.getNumDelivered(), is(40));
+    }
+
+    private List<SignalServiceAddress> createMembers(final int count) {
+        final List<SignalServiceAddress> members = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            members.add(new SignalServiceAddress("member " + i));
+        }
+        return members;
+    }
+
+    private Set<String> getNumbers(final List<SignalServiceAddress> addresses) {
+        final Set<String> numbers = new HashSet<>();
+        for (final SignalServiceAddress address : addresses) {
+            numbers.add(address.getNumber());
+        }
+        return numbers;
+    }
+
+    private SignalServiceDataMessage createMessage() {
+        return SignalServiceDataMessage.newBuilder()
+                .withTimestamp(1000)
+                .withBody("SOFA::Message:{\"body\":\"Hello group\"}")
+                .build();
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package com.toshi.manager.chat;
+
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class KeyedSerialExecutorTest {
+
+    private KeyedSerialExecutor executor;
+
+    @After
+    public void tearDown() {
+        if (this.executor != null) this.executor.shutdown();
+    }
+
+    @Test
+    public void tasksRunOneAtATimeInSubmissionOrderForEachKey() throws InterruptedException {
+        this.executor = new KeyedSerialExecutor(4);
+        final int numKeys = 8;
+        final int numTasks = 4000;
+        final Map<String, List<Integer>> ran = new HashMap<>();
+        final Map<String, AtomicInteger> running = new HashMap<>();
+        for (int i = 0; i < numKeys; i++) {
+            ran.put(String.valueOf(i), Collections.synchronizedList(new ArrayList<>()));
+            running.put(String.valueOf(i), new AtomicInteger());
+        }
+        final AtomicInteger overlaps = new AtomicInteger();
+        final CountDownLatch isDone = new CountDownLatch(numTasks);
+
+        for (int i = 0; i < numTasks; i++) {
+            final String key = String.valueOf(i % numKeys);
+            final int task = i;
+            this.executor.execute(key, () -> {
+                if (running.get(key).incrementAndGet() > 1) overlaps.incrementAndGet();
+                ran.get(key).add(task);
+                running.get(key).decrementAndGet();
+                isDone.countDown();
+            });
+        }
+
+        assertThat(isDone.await(30, TimeUnit.SECONDS), is(true));
+        assertThat(overlaps.get(), is(0));
+        for (final List<Integer> tasks : ran.values()) {
+            final List<Integer> sorted = new ArrayList<>(tasks);
+            Collections.sort(sorted);
+            assertThat(tasks, is(sorted));
+            assertThat(tasks.size(), is(numTasks / numKeys));
+        }
+    }
+
+    @Test
+    public void slowKeyDoesNotHoldBackOtherKeys() throws InterruptedException {
+        this.executor = new KeyedSerialExecutor(2);
+        final CountDownLatch releaseSlowTask = new CountDownLatch(1);
+        final CountDownLatch isOtherKeyDone = new CountDownLatch(1);
+        final List<String> ran = Collections.synchronizedList(new ArrayList<>());
+
+        this.executor.execute("slow", () -> {
+            await(releaseSlowTask);
+            ran.add("slow 1");
+        });
+        this.executor.execute("slow", () -> ran.add("slow 2"));
+        this.executor.execute("fast", () -> {
+            ran.add("fast");
+            isOtherKeyDone.countDown();
+        });
+
+        assertThat(isOtherKeyDone.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(ran, is(Collections.singletonList("fast")));
+        releaseSlowTask.countDown();
+        waitForQueuedTasks(0);
+        assertThat(ran.get(1), is("slow 1"));
+        assertThat(ran.get(2), is("slow 2"));
+    }
+
+    @Test
+    public void noMoreThanMaxConcurrencyTasksRunAtOnce() throws InterruptedException {
+        this.executor = new KeyedSerialExecutor(3);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch areThreeRunning = new CountDownLatch(3);
+        final CountDownLatch releaseTasks = new CountDownLatch(1);
+        final CountDownLatch isDone = new CountDownLatch(60);
+
+        for (int i = 0; i < 60; i++) {
+            this.executor.execute(String.valueOf(i), () -> {
+                final int nowRunning = running.incrementAndGet();
+                synchronized (maxRunning) {
+                    maxRunning.set(Math.max(maxRunning.get(), nowRunning));
+                }
+                areThreeRunning.countDown();
+                await(releaseTasks);
+                running.decrementAndGet();
+                isDone.countDown();
+            });
+        }
+
+        // Every started task blocks until released, so the pool is full once three have started
+        assertThat(areThreeRunning.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(running.get(), is(3));
+        assertThat(this.executor.getQueuedTaskCount(), is(60));
+
+        releaseTasks.countDown();
+        assertThat(isDone.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(maxRunning.get(), is(3));
+    }
+
+    @Test
+    public void failingTaskDoesNotStopLaterTasks() throws InterruptedException {
+        this.executor = new KeyedSerialExecutor(1);
+        final CountDownLatch isDone = new CountDownLatch(1);
+
+        this.executor.execute("key", () -> {
+            throw new IllegalStateException("Unable to send message");
+        });
+        this.executor.execute("key", isDone::countDown);
+
+        assertThat(isDone.await(5, TimeUnit.SECONDS), is(true));
+    }
+
+    @Test
+    public void shutdownDropsTasksThatHaveNotStarted() throws InterruptedException {
+        this.executor = new KeyedSerialExecutor(1);
+        final CountDownLatch isFirstTaskRunning = new CountDownLatch(1);
+        final CountDownLatch releaseFirstTask = new CountDownLatch(1);
+        final CountDownLatch isFirstTaskDone = new CountDownLatch(1);
+        final AtomicInteger ran = new AtomicInteger();
+
+        this.executor.execute("key", () -> {
+            isFirstTaskRunning.countDown();
+            await(releaseFirstTask);
+            ran.incrementAndGet();
+            isFirstTaskDone.countDown();
+        });
+        this.executor.execute("key", ran::incrementAndGet);
+        assertThat(isFirstTaskRunning.await(5, TimeUnit.SECONDS), is(true));
+
+        this.executor.shutdown();
+        this.executor.execute("other", ran::incrementAndGet);
+        releaseFirstTask.countDown();
+        assertThat(isFirstTaskDone.await(5, TimeUnit.SECONDS), is(true));
+
+        assertThat(ran.get(), is(1));
+        assertThat(this.executor.getQueuedTaskCount(), is(0));
+    }
+
+    // Mixed traffic where one recipient is unreachable, so every send to it blocks until released.
+    // The healthy conversations must all get through while the unreachable one is still stuck.
+    @Test
+    public void unreachableRecipientOnlyHoldsBackItsOwnSends() throws InterruptedException {
+        this.executor = new KeyedSerialExecutor(4);
+        final CountDownLatch releaseUnreachable = new CountDownLatch(1);
+        final int numHealthySends = 120;
+        final CountDownLatch areHealthySendsDone = new CountDownLatch(numHealthySends);
+        final List<Integer> unreachableSends = Collections.synchronizedList(new ArrayList<>());
+
+        for (int i = 0; i < numHealthySends; i++) {
+            if (i % 12 == 0) {
+                final int send = i;
+                this.executor.execute("unreachable", () -> {
+                    await(releaseUnreachable);
+                    unreachableSends.add(send);
+                });
+            }
+            this.executor.execute("conversation " + (i % 7), areHealthySendsDone::countDown);
+        }
+
+        assertThat(areHealthySendsDone.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(unreachableSends.isEmpty(), is(true));
+        waitForQueuedTasks(10);
+        assertThat(this.executor.getQueuedTaskCount("unreachable"), is(10));
+        assertThat(this.executor.getQueuedTaskCount("conversation 0"), is(0));
+
+        releaseUnreachable.countDown();
+        waitForQueuedTasks(0);
+        assertThat(unreachableSends, is(Arrays.asList(0, 12, 24, 36, 48, 60, 72, 84, 96, 108)));
+    }
+
+    private void waitForQueuedTasks(final int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (this.executor.getQueuedTaskCount() != count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertThat(this.executor.getQueuedTaskCount(), is(count));
+    }
+
+    private static void await(final CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package com.toshi.manager.chat;
+
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+
+public class OrderedPipelineTest {
+
+    private ExecutorService executor;
+
+    @Before
+    public void setup() {
+        this.executor = Executors.newFixedThreadPool(8);
+    }
+
+    @After
+    public void tearDown() {
+        this.executor.shutdownNow();
+    }
+
+    @Test
+    public void itemsAreDeliveredInSubmissionOrderForEachKey() throws InterruptedException {
+        final OrderedPipeline<Integer> pipeline = new OrderedPipeline<>(64);
+        final int numKeys = 8;
+        final int numItems = 2000;
+        final Map<String, List<Integer>> delivered = new HashMap<>();
+        for (int i = 0; i < numKeys; i++) delivered.put(String.valueOf(i), Collections.synchronizedList(new ArrayList<>()));
+        final CountDownLatch isDone = new CountDownLatch(numItems);
+        final Random random = new Random(15);
+
+        for (int i = 0; i < numItems; i++) {
+            final String key = String.valueOf(i % numKeys);
+            final int item = i;
+            final int prepareMicros = random.nextInt(500);
+            pipeline.submit(key, this.executor, () -> {
+                TimeUnit.MICROSECONDS.sleep(prepareMicros);
+                return item;
+            }, preparedItem -> {
+                delivered.get(key).add(preparedItem);
+                isDone.countDown();
+            });
+        }
+
+        assertThat(isDone.await(30, TimeUnit.SECONDS), is(true));
+        for (final List<Integer> items : delivered.values()) {
+            final List<Integer> sorted = new ArrayList<>(items);
+            Collections.sort(sorted);
+            assertThat(items, is(sorted));
+            assertThat(items.size(), is(numItems / numKeys));
+        }
+    }
+
+    @Test
+    public void slowItemOnlyHoldsBackItsOwnKey() throws InterruptedException {
+        final OrderedPipeline<String> pipeline = new OrderedPipeline<>(64);
+        final CountDownLatch releaseSlowItem = new CountDownLatch(1);
+        final List<String> delivered = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch isOtherKeyDelivered = new CountDownLatch(1);
+        final CountDownLatch isDone = new CountDownLatch(3);
+
+        pipeline.submit("slow", this.executor, () -> {
+            releaseSlowItem.await();
+            return "slow 1";
+        }, item -> {
+            delivered.add(item);
+            isDone.countDown();
+        });
+        pipeline.submit("slow", this.executor, () -> "slow 2", item -> {
+            delivered.add(item);
+            isDone.countDown();
+        });
+        pipeline.submit("fast", this.executor, () -> "fast", item -> {
+            delivered.add(item);
+            isOtherKeyDelivered.countDown();
+            isDone.countDown();
+        });
+
+        assertThat(isOtherKeyDelivered.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(delivered.size(), is(1));
+        releaseSlowItem.countDown();
+        assertThat(isDone.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(delivered.get(1), is("slow 1"));
+        assertThat(delivered.get(2), is("slow 2"));
+    }
+
+    @Test
+    public void failedPreparationDeliversNullInOrder() throws InterruptedException {
+        final OrderedPipeline<String> pipeline = new OrderedPipeline<>(64);
+        final List<String> delivered = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch isDone = new CountDownLatch(2);
+
+        pipeline.submit("key", this.executor, () -> {
+            throw new IllegalStateException("Unable to download attachment");
+        }, item -> {
+            delivered.add(item);
+            isDone.countDown();
+        });
+        pipeline.submit("key", this.executor, () -> "next", item -> {
+            delivered.add(item);
+            isDone.countDown();
+        });
+
+        assertThat(isDone.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(delivered.get(0), is(nullValue()));
+        assertThat(delivered.get(1), is("next"));
+    }
+
+    @Test
+    public void submitWaitsWhileTooManyItemsAreInFlight() throws InterruptedException {
+        final OrderedPipeline<String> pipeline = new OrderedPipeline<>(1);
+        final CountDownLatch releaseFirstItem = new CountDownLatch(1);
+        final CountDownLatch isSecondSubmitted = new CountDownLatch(1);
+
+        pipeline.submit("first", this.executor, () -> {
+            releaseFirstItem.await();
+            return "first";
+        }, item -> {});
+        final Thread submitter = new Thread(() -> {
+            try {
+                pipeline.submit("second", this.executor, () -> "second", item -> {});
+                isSecondSubmitted.countDown();
+            } catch (final InterruptedException ignored) {}
+        });
+        submitter.start();
+
+        assertThat(isSecondSubmitted.await(100, TimeUnit.MILLISECONDS), is(false));
+        releaseFirstItem.countDown();
+        assertThat(isSecondSubmitted.await(5, TimeUnit.SECONDS), is(true));
+    }
+
+    // Replays a burst of messages from a stand-in message pipe, as after reconnecting, through the old
+    // one-at-a-time receive loop and through the pipeline. The pipeline has to get through the burst
+    // sooner, and deliver text messages sooner, even though they may wait behind attachments.
+    @Test
+    public void pipelineBeatsReceiveLoopOnThroughputAndTextLatency() throws InterruptedException {
+        final List<StandInMessage> messages = createStandInPipe(400);
+        final ExecutorService resolverExecutor = Executors.newFixedThreadPool(4);
+        final ExecutorService attachmentExecutor = Executors.newFixedThreadPool(2);
+        try {
+            final Result serial = receiveOneAtATime(messages);
+            final Result pipelined = receiveWithPipeline(messages, resolverExecutor, attachmentExecutor);
+            assertThat(pipelined.elapsedNanos, is(lessThan(serial.elapsedNanos)));
+            assertThat(pipelined.getMedianTextLatencyNanos(), is(lessThan(serial.getMedianTextLatencyNanos())));
+            assertThat(pipelined.getMaxTextLatencyNanos(), is(lessThan(serial.getMaxTextLatencyNanos())));
+        } finally {
+            resolverExecutor.shutdownNow();
+            attachmentExecutor.shutdownNow();
+        }
+    }
+
+    private Result receiveOneAtATime(final List<StandInMessage> messages) throws InterruptedException {
+        final Result result = new Result();
+        final long start = System.nanoTime();
+        for (final StandInMessage message : messages) {
+            message.prepare();
+            result.record(message, start);
+        }
+        result.finish(start);
+        return result;
+    }
+
+    private Result receiveWithPipeline(
+            final List<StandInMessage> messages,
+            final ExecutorService resolverExecutor,
+            final ExecutorService attachmentExecutor) throws InterruptedException {
+        final OrderedPipeline<StandInMessage> pipeline = new OrderedPipeline<>(64);
+        final Result result = new Result();
+        final CountDownLatch isDone = new CountDownLatch(messages.size());
+        final Map<String, Integer> lastDelivered = new HashMap<>();
+        final long start = System.nanoTime();
+        for (final StandInMessage message : messages) {
+            pipeline.submit(
+                    message.conversation,
+                    message.hasAttachment ? attachmentExecutor : resolverExecutor,
+                    () -> {
+                        message.prepare();
+                        return message;
+                    },
+                    prepared -> {
+                        synchronized (lastDelivered) {
+                            final Integer previous = lastDelivered.put(prepared.conversation, prepared.sequence);
+                            assertThat(previous == null || previous < prepared.sequence, is(true));
+                        }
+                        result.record(prepared, start);
+                        isDone.countDown();
+                    });
+        }
+        assertThat(isDone.await(60, TimeUnit.SECONDS), is(true));
+        result.finish(start);
+        return result;
+    }
+
+    // Twenty conversations, where one message in twenty has a slow attachment download
+    private static List<StandInMessage> createStandInPipe(final int numMessages) {
+        final Random random = new Random(15);
+        final List<StandInMessage> messages = new ArrayList<>();
+        for (int i = 0; i < numMessages; i++) {
+            final String conversation = "0x" + random.nextInt(20);
+            final boolean hasAttachment = random.nextInt(20) == 0;
+            messages.add(new StandInMessage(conversation, i, hasAttachment));
+        }
+        return messages;
+    }
+
+    private static final class StandInMessage {
+        private static final long USER_LOOKUP_MS = 1;
+        private static final long ATTACHMENT_DOWNLOAD_MS = 40;
+
+        private final String conversation;
+        private final int sequence;
+        private final boolean hasAttachment;
+
+        private StandInMessage(final String conversation, final int sequence, final boolean hasAttachment) {
+            this.conversation = conversation;
+            this.sequence = sequence;
+            this.hasAttachment = hasAttachment;
+        }
+
+        private void prepare() throws InterruptedException {
+            Thread.sleep(USER_LOOKUP_MS);
+            if (this.hasAttachment) Thread.sleep(ATTACHMENT_DOWNLOAD_MS);
+        }
+    }
+
+    private static final class Result {
+        private final List<Long> textLatenciesNanos = Collections.synchronizedList(new ArrayList<>());
+        private long elapsedNanos;
+
+        private void record(final StandInMessage message, final long arrivedAtNanos) {
+            if (!message.hasAttachment) this.textLatenciesNanos.add(System.nanoTime() - arrivedAtNanos);
+        }
+
+        private void finish(final long startNanos) {
+            this.elapsedNanos = System.nanoTime() - startNanos;
+        }
+
+        private long getMedianTextLatencyNanos() {
+            final List<Long> latencies = getSortedTextLatencies();
+            return latencies.get(latencies.size() / 2);
+        }
+
+        private long getMaxTextLatencyNanos() {
+            final List<Long> latencies = getSortedTextLatencies();
+            return latencies.get(latencies.size() - 1);
+        }
+
+        private List<Long> getSortedTextLatencies() {
+            final List<Long> latencies = new ArrayList<>(this.textLatenciesNanos);
+            Collections.sort(latencies);
+            return latencies;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package com.toshi.manager.chat;
+
+
+import com.toshi.manager.model.PendingMessageRetryMetrics;
+import com.toshi.manager.store.PendingMessageStore;
+import com.toshi.model.local.PendingMessage;
+import com.toshi.model.local.Recipient;
+import com.toshi.model.sofa.SofaMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class PendingMessageRetrySchedulerTest {
+
+    private ScheduledExecutorService executor;
+    private Map<String, PendingMessage> rows;
+    private PendingMessageStore store;
+
+    @Before
+    public void setup() {
+        this.executor = Executors.newSingleThreadScheduledExecutor();
+        this.rows = Collections.synchronizedMap(new HashMap<>());
+        this.store = createStore(this.rows);
+    }
+
+    @After
+    public void tearDown() {
+        this.executor.shutdownNow();
+    }
+
+    @Test
+    public void backoffDoublesWithEveryAttemptAndIsCapped() {
+        final PendingMessageRetryScheduler scheduler = createScheduler(4, 1000, 60000, (message, callback) -> {});
+        for (int attempts = 0; attempts < 12; attempts++) {
+            final long expected = Math.min(60000, 1000L << attempts);
+            for (int i = 0; i < 100; i++) {
+                final long backoff = scheduler.getBackoffMs(attempts);
+                assertThat(backoff, is(greaterThanOrEqualTo(expected / 2)));
+                assertThat(backoff, is(lessThanOrEqualTo(expected)));
+            }
+        }
+    }
+
+    @Test
+    public void messageIsOnlyDeletedAfterDelivery() throws InterruptedException {
+        final AtomicInteger numResends = new AtomicInteger();
+        final PendingMessageRetryScheduler scheduler = createScheduler(4, 10, 40, (message, callback) -> {
+            // Fails twice, then gets through
+            final int attempt = numResends.incrementAndGet();
+            if (attempt < 3) assertThat(this.rows.containsKey(message.getPrivateKey()), is(true));
+            callback.onResult(attempt >= 3);
+        });
+
+        final SofaMessage message = new SofaMessage();
+        scheduler.queue(new Recipient(), message);
+
+        waitUntil(() -> this.rows.isEmpty());
+        assertThat(numResends.get(), is(3));
+        final PendingMessageRetryMetrics metrics = scheduler.getMetrics();
+        assertThat(metrics.getNumAttempts(), is(3L));
+        assertThat(metrics.getNumDelivered(), is(1L));
+        assertThat(metrics.getSuccessRate(), is(1.0 / 3));
+        assertThat(metrics.getMaxRetryLatencyMs(), is(greaterThanOrEqualTo(metrics.getAverageRetryLatencyMs())));
+    }
+
+    @Test
+    public void messageIsDroppedAfterMaxAttempts() throws InterruptedException {
+        final AtomicInteger numResends = new AtomicInteger();
+        final PendingMessageRetryScheduler scheduler = createScheduler(4, 10, 40, 3, (message, callback) -> {
+            numResends.incrementAndGet();
+            callback.onResult(false);
+        });
+
+        final SofaMessage message = new SofaMessage();
+        scheduler.queue(new Recipient(), message);
+
+        waitUntil(() -> this.rows.isEmpty());
+        Thread.sleep(100);
+        assertThat(numResends.get(), is(3));
+        final PendingMessageRetryMetrics metrics = scheduler.getMetrics();
+        assertThat(metrics.getNumAttempts(), is(3L));
+        assertThat(metrics.getNumDelivered(), is(0L));
+    }
+
+    @Test
+    public void concurrentRetriesAreCapped() throws InterruptedException {
+        final List<PendingMessageRetryScheduler.Callback> inFlight = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger numResends = new AtomicInteger();
+        final PendingMessageRetryScheduler scheduler = createScheduler(3, 10, 40, (message, callback) -> {
+            numResends.incrementAndGet();
+            inFlight.add(callback);
+        });
+        for (int i = 0; i < 10; i++) {
+            addRow(new SofaMessage(), 0);
+        }
+
+        scheduler.start();
+        waitUntil(() -> inFlight.size() == 3);
+        Thread.sleep(100);
+        assertThat(numResends.get(), is(3));
+
+        // Every delivery frees a slot for the next message
+        while (!this.rows.isEmpty()) {
+            final PendingMessageRetryScheduler.Callback callback;
+            synchronized (inFlight) {
+                callback = inFlight.isEmpty() ? null : inFlight.remove(0);
+            }
+            if (callback != null) callback.onResult(true);
+            Thread.sleep(2);
+            assertThat(inFlight.size(), is(lessThanOrEqualTo(3)));
+        }
+        assertThat(numResends.get(), is(10));
+        assertThat(scheduler.getMetrics().getNumDelivered(), is(10L));
+    }
+
+    @Test
+    public void retryAllSkipsTheBackoff() throws InterruptedException {
+        final AtomicInteger numResends = new AtomicInteger();
+        final PendingMessageRetryScheduler scheduler = createScheduler(4, 10, 40, (message, callback) -> {
+            numResends.incrementAndGet();
+            callback.onResult(true);
+        });
+        addRow(new SofaMessage(), System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1));
+        addRow(new SofaMessage(), System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1));
+
+        scheduler.start();
+        Thread.sleep(50);
+        assertThat(numResends.get(), is(0));
+
+        scheduler.retryAll();
+        waitUntil(() -> this.rows.isEmpty());
+        assertThat(numResends.get(), is(2));
+    }
+
+    @Test
+    public void rowWhoseMessageWasDeletedIsDropped() throws InterruptedException {
+        final AtomicInteger numResends = new AtomicInteger();
+        final PendingMessageRetryScheduler scheduler = createScheduler(4, 10, 40, (message, callback) -> {
+            numResends.incrementAndGet();
+            callback.onResult(true);
+        });
+        final PendingMessage orphan = new PendingMessage()
+                .setPrivateKey("deleted")
+                .setReceiver(new Recipient());
+        this.rows.put("deleted", orphan);
+
+        scheduler.start();
+        waitUntil(() -> this.rows.isEmpty());
+        assertThat(numResends.get(), is(0));
+    }
+
+    private PendingMessageRetryScheduler createScheduler(final int maxConcurrentRetries,
+                                                         final long baseBackoffMs,
+                                                         final long maxBackoffMs,
+                                                         final PendingMessageRetryScheduler.Resender resender) {
+        return createScheduler(maxConcurrentRetries, baseBackoffMs, maxBackoffMs, Integer.MAX_VALUE, resender);
+    }
+
+    private PendingMessageRetryScheduler createScheduler(final int maxConcurrentRetries,
+                                                         final long baseBackoffMs,
+                                                         final long maxBackoffMs,
+                                                         final int maxAttempts,
+                                                         final PendingMessageRetryScheduler.Resender resender) {
+        return new PendingMessageRetryScheduler(
+                this.store,
+                resender,
+                this.executor,
+                maxConcurrentRetries,
+                baseBackoffMs,
+                maxBackoffMs,
+                maxAttempts,
+                new Random(20));
+    }
+
+    private void addRow(final SofaMessage message, final long nextAttemptAt) {
+        final PendingMessage pendingMessage = new PendingMessage()
+                .setReceiver(new Recipient())
+                .setSofaMessage(message)
+                .setCreatedAt(System.currentTimeMillis())
+                .setNextAttemptAt(nextAttemptAt);
+        this.rows.put(message.getPrivateKey(), pendingMessage);
+    }
+
+    private void waitUntil(final Condition condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.isMet() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertThat(condition.isMet(), is(true));
+    }
+
+    private interface Condition {
+        boolean isMet();
+    }
+
+    // Backs a PendingMessageStore mock with a map, the way Realm would hold the rows
+    @SuppressWarnings("unchecked")
+    private static PendingMessageStore createStore(final Map<String, PendingMessage> rows) {
+        final PendingMessageStore store = Mockito.mock(PendingMessageStore.class);
+        Mockito.doAnswer(invocation -> {
+            final SofaMessage message = (SofaMessage) invocation.getArguments()[1];
+            final PendingMessage existing = rows.get(message.getPrivateKey());
+            rows.put(message.getPrivateKey(), new PendingMessage()
+                    .setReceiver((Recipient) invocation.getArguments()[0])
+                    .setSofaMessage(message)
+                    .setAttempts(existing != null ? existing.getAttempts() : 0)
+                    .setCreatedAt(existing != null ? existing.getCreatedAt() : System.currentTimeMillis())
+                    .setNextAttemptAt((Long) invocation.getArguments()[3])
+                    .setFailedMemberIds((List<String>) invocation.getArguments()[2]));
+            return null;
+        }).when(store).save(Mockito.any(Recipient.class), Mockito.any(SofaMessage.class), Mockito.anyListOf(String.class), Mockito.anyLong());
+        Mockito.doAnswer(invocation -> {
+            final long dueBefore = (Long) invocation.getArguments()[0];
+            final int limit = (Integer) invocation.getArguments()[1];
+            final List<PendingMessage> due = new ArrayList<>();
+            synchronized (rows) {
+                for (final PendingMessage row : rows.values()) {
+                    if (row.getNextAttemptAt() <= dueBefore) due.add(row);
+                }
+            }
+            Collections.sort(due, (first, second) -> Long.compare(first.getNextAttemptAt(), second.getNextAttemptAt()));
+            return due.subList(0, Math.min(limit, due.size()));
+        }).when(store).fetchDue(Mockito.anyLong(), Mockito.anyInt());
+        Mockito.doAnswer(invocation -> {
+            long earliest = -1;
+            synchronized (rows) {
+                for (final PendingMessage row : rows.values()) {
+                    if (earliest < 0 || row.getNextAttemptAt() < earliest) earliest = row.getNextAttemptAt();
+                }
+            }
+            return earliest;
+        }).when(store).getEarliestNextAttemptAt();
+        Mockito.doAnswer(invocation -> {
+            final PendingMessage row = rows.get((String) invocation.getArguments()[0]);
+            if (row != null) {
+                row.setAttempts(row.getAttempts() + 1);
+                row.setNextAttemptAt((Long) invocation.getArguments()[1]);
+            }
+            return null;
+        }).when(store).markAttemptStarted(Mockito.anyString(), Mockito.anyLong());
+        Mockito.doAnswer(invocation -> rows.remove((String) invocation.getArguments()[0]))
+                .when(store).delete(Mockito.anyString());
+        return store;
+    }
+}
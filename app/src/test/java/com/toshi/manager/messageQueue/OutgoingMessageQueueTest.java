@@ -0,0 +1,319 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package com.toshi.manager.messageQueue;
+
+
+import com.toshi.model.local.Recipient;
+import com.toshi.model.sofa.SofaMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
+
+public class OutgoingMessageQueueTest {
+
+    private ExecutorService executor;
+    private List<SentMessage> sentMessages;
+
+    @Before
+    public void setup() {
+        this.executor = Executors.newFixedThreadPool(4);
+        this.sentMessages = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    @After
+    public void tearDown() {
+        this.executor.shutdownNow();
+    }
+
+    @Test
+    public void messagesSentBeforeInitAreSentInOrderAfterInit() throws InterruptedException {
+        final OutgoingMessageQueue queue = createAsyncQueue(100, this::record);
+        final Recipient recipient = new Recipient();
+        queue.send(createMessage(0));
+        queue.send(createMessage(1));
+        assertThat(queue.getQueueDepth(), is(2));
+        assertThat(this.sentMessages.size(), is(0));
+
+        queue.init(recipient);
+        queue.send(createMessage(2));
+
+        waitUntilSent(3);
+        assertThat(getSentIndexes(), is(list(0, 1, 2)));
+        assertThat(this.sentMessages.get(0).recipient == recipient, is(true));
+        assertThat(queue.getQueueDepth(), is(0));
+    }
+
+    @Test
+    public void asyncQueueDoesNotSendOnCallerThread() throws InterruptedException {
+        final OutgoingMessageQueue queue = createAsyncQueue(100, this::record);
+        queue.init(new Recipient());
+        queue.send(createMessage(0));
+
+        waitUntilSent(1);
+        assertThat(this.sentMessages.get(0).thread, is(not(Thread.currentThread())));
+    }
+
+    @Test
+    public void syncQueueSendsBeforeReturning() {
+        final OutgoingMessageQueue queue = new OutgoingMessageQueue(false, this.executor, 100, this::record, __ -> 0);
+        queue.send(createMessage(0));
+        queue.init(new Recipient());
+        queue.send(createMessage(1));
+        queue.clear();
+
+        assertThat(getSentIndexes(), is(list(0, 1)));
+        assertThat(this.sentMessages.get(1).thread, is(Thread.currentThread()));
+    }
+
+    @Test
+    public void messagesToOneRecipientAreSentOneAtATimeInOrder() throws InterruptedException {
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final OutgoingMessageQueue queue = createAsyncQueue(10000, (recipient, message) -> {
+            maxInFlight.set(Math.max(maxInFlight.get(), inFlight.incrementAndGet()));
+            record(recipient, message);
+            inFlight.decrementAndGet();
+        });
+        queue.init(new Recipient());
+
+        final int numMessages = 2000;
+        for (int i = 0; i < numMessages; i++) {
+            assertThat(queue.send(createMessage(i)), is(true));
+        }
+
+        waitUntilSent(numMessages);
+        assertThat(maxInFlight.get(), is(1));
+        final List<Integer> sentIndexes = getSentIndexes();
+        for (int i = 0; i < numMessages; i++) {
+            assertThat(sentIndexes.get(i), is(i));
+        }
+    }
+
+    @Test
+    public void slowRecipientDoesNotBlockOtherRecipients() throws InterruptedException {
+        final CountDownLatch releaseSlowRecipient = new CountDownLatch(1);
+        final Recipient slowRecipient = new Recipient();
+        final OutgoingMessageQueue.MessageSender sender = (recipient, message) -> {
+            if (recipient == slowRecipient) {
+                try {
+                    releaseSlowRecipient.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            record(recipient, message);
+        };
+        final OutgoingMessageQueue slowQueue = createAsyncQueue(100, sender);
+        final OutgoingMessageQueue fastQueue = createAsyncQueue(100, sender);
+        slowQueue.init(slowRecipient);
+        fastQueue.init(new Recipient());
+
+        slowQueue.send(createMessage(0));
+        fastQueue.send(createMessage(1));
+
+        waitUntilSent(1);
+        assertThat(getSentIndexes(), is(list(1)));
+        releaseSlowRecipient.countDown();
+        waitUntilSent(2);
+    }
+
+    @Test
+    public void fullQueueRejectsMessagesWithoutBlocking() throws InterruptedException {
+        final CountDownLatch releaseSender = new CountDownLatch(1);
+        final OutgoingMessageQueue queue = createAsyncQueue(3, (recipient, message) -> {
+            try {
+                releaseSender.await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            record(recipient, message);
+        });
+        queue.init(new Recipient());
+
+        // The first message is taken by the sender straight away, which leaves room for three more.
+        assertThat(queue.send(createMessage(0)), is(true));
+        waitUntilDepth(queue, 0);
+        assertThat(queue.send(createMessage(1)), is(true));
+        assertThat(queue.send(createMessage(2)), is(true));
+        assertThat(queue.send(createMessage(3)), is(true));
+        assertThat(queue.send(createMessage(4)), is(false));
+        assertThat(queue.getQueueDepth(), is(3));
+
+        releaseSender.countDown();
+        waitUntilSent(4);
+        assertThat(getSentIndexes(), is(list(0, 1, 2, 3)));
+        assertThat(queue.send(createMessage(5)), is(true));
+    }
+
+    // Like the real sender, handing a message over only puts it in line for its conversation
+    @Test
+    public void messagesWaitingInTheSenderCountTowardsTheLimit() throws InterruptedException {
+        final List<SofaMessage> sendBacklog = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch areHandedOver = new CountDownLatch(3);
+        final Recipient recipient = new Recipient();
+        final OutgoingMessageQueue queue = new OutgoingMessageQueue(
+                true,
+                this.executor,
+                3,
+                (__, message) -> {
+                    sendBacklog.add(message);
+                    areHandedOver.countDown();
+                },
+                __ -> sendBacklog.size());
+        queue.init(recipient);
+
+        assertThat(queue.send(createMessage(0)), is(true));
+        assertThat(queue.send(createMessage(1)), is(true));
+        assertThat(queue.send(createMessage(2)), is(true));
+        assertThat(areHandedOver.await(10, TimeUnit.SECONDS), is(true));
+        assertThat(queue.getQueueDepth(), is(3));
+        assertThat(queue.send(createMessage(3)), is(false));
+
+        // The sender gets one message out, which makes room for one more
+        sendBacklog.remove(0);
+        assertThat(queue.send(createMessage(4)), is(true));
+        assertThat(queue.send(createMessage(5)), is(false));
+    }
+
+    @Test
+    public void concurrentSendInitAndClearAreThreadSafe() throws InterruptedException {
+        final OutgoingMessageQueue queue = createAsyncQueue(50, this::record);
+        final Recipient[] recipients = { new Recipient(), new Recipient(), new Recipient() };
+        final int numThreads = 6;
+        final int numOperations = 5000;
+        final AtomicInteger accepted = new AtomicInteger();
+        final AtomicInteger nextIndex = new AtomicInteger();
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch isDone = new CountDownLatch(numThreads);
+        final ExecutorService callers = Executors.newFixedThreadPool(numThreads);
+
+        for (int t = 0; t < numThreads; t++) {
+            final int thread = t;
+            callers.execute(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < numOperations; i++) {
+                        if (thread == 0 && i % 50 == 0) {
+                            queue.clear();
+                        } else if (thread == 1 && i % 20 == 0) {
+                            queue.init(recipients[i % recipients.length]);
+                        } else if (queue.send(createMessage(nextIndex.getAndIncrement()))) {
+                            accepted.incrementAndGet();
+                        }
+                    }
+                } catch (final Throwable throwable) {
+                    errors.add(throwable);
+                } finally {
+                    isDone.countDown();
+                }
+            });
+        }
+        start.countDown();
+        assertThat(isDone.await(30, TimeUnit.SECONDS), is(true));
+        callers.shutdown();
+        queue.init(recipients[0]);
+        waitUntilDepth(queue, 0);
+        this.executor.shutdown();
+        assertThat(this.executor.awaitTermination(10, TimeUnit.SECONDS), is(true));
+
+        assertThat(errors.size(), is(0));
+        final List<Integer> sentIndexes = getSentIndexes();
+        assertThat(sentIndexes.size(), is(lessThanOrEqualTo(accepted.get())));
+        assertThat(new HashSet<>(sentIndexes).size(), is(sentIndexes.size()));
+        for (final SentMessage sentMessage : this.sentMessages) {
+            assertThat(sentMessage.recipient != null, is(true));
+        }
+    }
+
+    private OutgoingMessageQueue createAsyncQueue(final int maxPendingMessages,
+                                                  final OutgoingMessageQueue.MessageSender sender) {
+        return new OutgoingMessageQueue(true, this.executor, maxPendingMessages, sender, __ -> 0);
+    }
+
+    private void record(final Recipient recipient, final SofaMessage message) {
+        this.sentMessages.add(new SentMessage(recipient, message, Thread.currentThread()));
+    }
+
+    private void waitUntilSent(final int numMessages) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (this.sentMessages.size() < numMessages && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertThat(this.sentMessages.size(), is(numMessages));
+    }
+
+    private void waitUntilDepth(final OutgoingMessageQueue queue, final int depth) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (queue.getQueueDepth() != depth && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertThat(queue.getQueueDepth(), is(depth));
+    }
+
+    private List<Integer> getSentIndexes() {
+        final List<Integer> indexes = new ArrayList<>();
+        synchronized (this.sentMessages) {
+            for (final SentMessage sentMessage : this.sentMessages) {
+                indexes.add(Integer.valueOf(sentMessage.message.getPayloadWithHeaders()));
+            }
+        }
+        return indexes;
+    }
+
+    private static List<Integer> list(final Integer... values) {
+        final List<Integer> list = new ArrayList<>();
+        Collections.addAll(list, values);
+        return list;
+    }
+
+    private static SofaMessage createMessage(final int index) {
+        return new SofaMessage().makeNew(String.valueOf(index));
+    }
+
+    private static class SentMessage {
+        private final Recipient recipient;
+        private final SofaMessage message;
+        private final Thread thread;
+
+        private SentMessage(final Recipient recipient, final SofaMessage message, final Thread thread) {
+            this.recipient = recipient;
+            this.message = message;
+            this.thread = thread;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.toshi.manager.network;
+
+
+import com.toshi.model.network.ServerTime;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.internal.http.HttpDate;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import rx.Single;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class ServerClockTest {
+
+    // How far ahead of the local clock the stub server runs
+    private static final long SKEW_MS = TimeUnit.MINUTES.toMillis(2);
+    private static final long LATENCY_MS = 50;
+    private static final int NUM_SIGNED_REQUESTS = 10;
+
+    private MockWebServer server;
+    private ServerClock clock;
+    private OkHttpClient client;
+    private final AtomicInteger numTimestampRequests = new AtomicInteger();
+
+    @Before
+    public void setup() throws IOException {
+        this.server = new MockWebServer();
+        this.server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(final RecordedRequest request) {
+                final long serverTime = System.currentTimeMillis() + SKEW_MS;
+                final MockResponse response = new MockResponse()
+                        .setHeader("Date", HttpDate.format(new Date(serverTime)))
+                        .setBodyDelay(LATENCY_MS, TimeUnit.MILLISECONDS);
+                if (request.getPath().equals("/v1/timestamp")) {
+                    numTimestampRequests.incrementAndGet();
+                    return response.setBody("{\"timestamp\": " + TimeUnit.MILLISECONDS.toSeconds(serverTime) + "}");
+                }
+                return response.setBody("{}");
+            }
+        });
+        this.server.start();
+        this.clock = new ServerClock(TimeUnit.MINUTES.toMillis(30));
+        this.client = new OkHttpClient.Builder()
+                .addInterceptor(chain -> {
+                    final Response response = chain.proceed(chain.request());
+                    this.clock.onResponse(response);
+                    return response;
+                })
+                .build();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        this.server.shutdown();
+    }
+
+    @Test
+    public void offsetIsLearnedFromDateHeaders() throws IOException {
+        assertThat(this.clock.isSynced(), is(false));
+        execute("/v1/user/0x0");
+        execute("/v1/user/0x1");
+
+        assertThat(this.clock.isSynced(), is(true));
+        final long errorMs = Math.abs(this.clock.getOffsetMs() - SKEW_MS);
+        assertThat(errorMs, is(lessThanOrEqualTo(1000L)));
+    }
+
+    @Test
+    public void samplesNarrowTheBoundsUntilOneDoesNotFit() {
+        final long now = System.currentTimeMillis();
+        // A second after the request left, to the second, during a 2 second round trip:
+        // the server is somewhere between 1s behind and 2s ahead
+        this.clock.addSample(now + 1000, now, now + 2000);
+        assertThat(this.clock.getOffsetMs(), is(500L));
+
+        // An instant round trip narrows that down to between 400ms and 1400ms ahead
+        this.clock.addSample(now + 10400, now + 10000, now + 10000);
+        assertThat(this.clock.getOffsetMs(), is(900L));
+
+        // The local clock was set back an hour, so start over
+        this.clock.addSample(now + TimeUnit.HOURS.toMillis(1), now, now);
+        assertThat(this.clock.getOffsetMs(), is(TimeUnit.HOURS.toMillis(1) + 500));
+    }
+
+    @Test
+    public void expiredSamplesAreReplacedByAnExplicitProbe() throws InterruptedException {
+        final ServerClock clock = new ServerClock(20);
+        clock.addSample(System.currentTimeMillis(), System.currentTimeMillis(), System.currentTimeMillis());
+        assertThat(clock.isSynced(), is(true));
+        Thread.sleep(30);
+        assertThat(clock.isSynced(), is(false));
+
+        final ServerTime serverTime = clock.getServerTime(fetchTimestamp()).toBlocking().value();
+        assertThat(this.numTimestampRequests.get(), is(1));
+        assertThat(clock.isSynced(), is(true));
+        assertThat(Math.abs(serverTime.get() - clock.nowSeconds()), is(lessThanOrEqualTo(1L)));
+
+        clock.getServerTime(fetchTimestamp()).toBlocking().value();
+        assertThat(this.numTimestampRequests.get(), is(1));
+    }
+
+    @Test
+    public void signedRequestsSkipTheTimestampRoundTrip() throws IOException {
+        // Any response teaches the clock the offset
+        execute("/v1/user/0x0");
+        final int numRequestsBefore = this.server.getRequestCount();
+
+        for (int i = 0; i < NUM_SIGNED_REQUESTS; i++) {
+            final ServerTime serverTime = this.clock.getServerTime(fetchTimestamp()).toBlocking().value();
+            final long errorSeconds = Math.abs(serverTime.get() - TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() + SKEW_MS));
+            assertThat(errorSeconds, is(lessThanOrEqualTo(1L)));
+            execute("/v1/user?timestamp=" + serverTime.get());
+        }
+
+        // One round trip per signed request, none of them for the timestamp
+        assertThat(this.numTimestampRequests.get(), is(0));
+        assertThat(this.server.getRequestCount() - numRequestsBefore, is(NUM_SIGNED_REQUESTS));
+    }
+
+    private Single<ServerTime> fetchTimestamp() {
+        return Single.fromCallable(() -> {
+            final Response response = execute("/v1/timestamp");
+            final String body = response.body().string();
+            final String timestamp = body.replaceAll("[^0-9]", "");
+            return new ServerTime(Long.parseLong(timestamp));
+        });
+    }
+
+    private Response execute(final String path) throws IOException {
+        final Request request = new Request.Builder()
+                .url(this.server.url(path))
+                .build();
+        final Response response = this.client.newCall(request).execute();
+        response.body().source().request(Long.MAX_VALUE);
+        return response;
+    }
+}
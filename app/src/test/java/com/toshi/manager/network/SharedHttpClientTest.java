@@ -0,0 +1,206 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.toshi.manager.network;
+
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLSocketFactory;
+
+import okhttp3.Cache;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.internal.tls.HeldCertificate;
+import okhttp3.internal.tls.SslClient;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class SharedHttpClientTest {
+
+    // The services that talk to the network while the app starts up
+    private static final String[] SERVICES = {"id", "ethereum", "currency", "directory", "reputation", "chat", "images"};
+    private static final int REQUESTS_PER_SERVICE = 3;
+
+    @Rule
+    public final TemporaryFolder cacheDir = new TemporaryFolder();
+
+    private MockWebServer server;
+    private HeldCertificate certificate;
+
+    @Before
+    public void setup() throws Exception {
+        this.certificate = new HeldCertificate.Builder()
+                .serialNumber("1")
+                .commonName(InetAddress.getByName("localhost").getCanonicalHostName())
+                .build();
+        this.server = new MockWebServer();
+        this.server.useHttps(createSslClient().socketFactory, false);
+        this.server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        this.server.shutdown();
+    }
+
+    @Test
+    public void derivedClientsShareTransport() {
+        final OkHttpClient first = SharedHttpClient.newBuilder().build();
+        final OkHttpClient second = SharedHttpClient.newBuilder()
+                .addInterceptor(chain -> chain.proceed(chain.request()))
+                .build();
+
+        assertThat(first.connectionPool(), is(sameInstance(SharedHttpClient.get().connectionPool())));
+        assertThat(second.connectionPool(), is(sameInstance(SharedHttpClient.get().connectionPool())));
+        assertThat(second.dispatcher(), is(sameInstance(SharedHttpClient.get().dispatcher())));
+        assertThat(second.sslSocketFactory(), is(sameInstance(SharedHttpClient.get().sslSocketFactory())));
+    }
+
+    // Replays a typical startup, where every service makes a few requests, once with a client per
+    // service as before and once with clients derived from one shared client. Counts the TCP
+    // connections the server accepted and the TLS handshakes the clients started.
+    @Test
+    public void sharedTransportReusesConnectionsAcrossServices() throws Exception {
+        final AtomicInteger separateHandshakes = new AtomicInteger();
+        final List<OkHttpClient> separateClients = new ArrayList<>();
+        for (final String service : SERVICES) {
+            final SslClient sslClient = createSslClient();
+            final OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                    .sslSocketFactory(new CountingSocketFactory(sslClient.socketFactory, separateHandshakes), sslClient.trustManager);
+            separateClients.add(addServiceSettings(builder, service).build());
+        }
+        final int separateConnections = replayStartup(separateClients);
+
+        final AtomicInteger sharedHandshakes = new AtomicInteger();
+        final SslClient sslClient = createSslClient();
+        final OkHttpClient shared = new OkHttpClient.Builder()
+                .sslSocketFactory(new CountingSocketFactory(sslClient.socketFactory, sharedHandshakes), sslClient.trustManager)
+                .build();
+        final List<OkHttpClient> derivedClients = new ArrayList<>();
+        for (final String service : SERVICES) {
+            derivedClients.add(addServiceSettings(shared.newBuilder(), service).build());
+        }
+        final int sharedConnections = replayStartup(derivedClients);
+
+        assertThat(separateConnections, is(SERVICES.length));
+        assertThat(separateHandshakes.get(), is(SERVICES.length));
+        assertThat(sharedConnections, is(1));
+        assertThat(sharedHandshakes.get(), is(1));
+    }
+
+    // Each service keeps its own interceptors and cache
+    private OkHttpClient.Builder addServiceSettings(final OkHttpClient.Builder builder, final String service) throws IOException {
+        return builder
+                .cache(new Cache(this.cacheDir.newFolder(), 1024 * 1024))
+                .addInterceptor(chain -> chain.proceed(chain.request()
+                        .newBuilder()
+                        .header("X-Service", service)
+                        .build()));
+    }
+
+    private int replayStartup(final List<OkHttpClient> clients) throws Exception {
+        final int requestCountBefore = this.server.getRequestCount();
+        int numConnections = 0;
+        for (int i = 0; i < REQUESTS_PER_SERVICE; i++) {
+            for (final OkHttpClient client : clients) {
+                this.server.enqueue(new MockResponse().setBody("{}"));
+                final Response response = client
+                        .newCall(new Request.Builder().url(this.server.url("/v1/startup")).build())
+                        .execute();
+                response.body().string();
+            }
+        }
+        final int numRequests = this.server.getRequestCount() - requestCountBefore;
+        for (int i = 0; i < numRequests; i++) {
+            // The first request on every connection has sequence number 0
+            if (this.server.takeRequest().getSequenceNumber() == 0) numConnections++;
+        }
+        return numConnections;
+    }
+
+    private SslClient createSslClient() {
+        return new SslClient.Builder()
+                .certificateChain(this.certificate)
+                .addTrustedCertificate(this.certificate.certificate)
+                .build();
+    }
+
+    private static class CountingSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory delegate;
+        private final AtomicInteger numSockets;
+
+        private CountingSocketFactory(final SSLSocketFactory delegate, final AtomicInteger numSockets) {
+            this.delegate = delegate;
+            this.numSockets = numSockets;
+        }
+
+        // OkHttp layers TLS over the plain socket it connected itself, starting one handshake per socket
+        @Override
+        public Socket createSocket(final Socket socket, final String host, final int port, final boolean autoClose) throws IOException {
+            this.numSockets.incrementAndGet();
+            return this.delegate.createSocket(socket, host, port, autoClose);
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return this.delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return this.delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket(final String host, final int port) throws IOException {
+            return this.delegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(final String host, final int port, final InetAddress localHost, final int localPort) throws IOException {
+            return this.delegate.createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(final InetAddress host, final int port) throws IOException {
+            return this.delegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(final InetAddress address, final int port, final InetAddress localAddress, final int localPort) throws IOException {
+            return this.delegate.createSocket(address, port, localAddress, localPort);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.toshi.manager.network.image;
+
+
+import com.toshi.manager.model.ImageCacheMetrics;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import okhttp3.Cache;
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class AvatarCacheTest {
+
+    @Rule
+    public final TemporaryFolder cacheDir = new TemporaryFolder();
+
+    private MockWebServer server;
+    private OkHttpClient client;
+    private Map<String, String> versions;
+    // What the stub server currently serves
+    private volatile String eTag = "\"v1\"";
+    private volatile String lastModified;
+
+    @Before
+    public void setup() throws IOException {
+        this.server = new MockWebServer();
+        this.server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(final RecordedRequest request) {
+                final MockResponse response = new MockResponse().setHeader("Cache-Control", "max-age=60");
+                if (eTag != null) {
+                    if (eTag.equals(request.getHeader("If-None-Match"))) return response.setResponseCode(304);
+                    response.setHeader("ETag", eTag);
+                }
+                if (lastModified != null) {
+                    if (lastModified.equals(request.getHeader("If-Modified-Since"))) return response.setResponseCode(304);
+                    response.setHeader("Last-Modified", lastModified);
+                }
+                return response.setBody(new Buffer().write(new byte[16 * 1024]));
+            }
+        });
+        this.server.start();
+        this.client = new OkHttpClient.Builder()
+                .cache(new Cache(this.cacheDir.getRoot(), 1024 * 1024))
+                .build();
+        this.versions = new HashMap<>();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        this.server.shutdown();
+    }
+
+    @Test
+    public void imageIsRevalidatedAtMostOncePerTtl() throws IOException {
+        final AvatarCache cache = createCache(60000);
+        final String url = this.server.url("/avatar.png").toString();
+        assertThat(cache.hasVersion(url), is(false));
+
+        assertThat(cache.revalidate(url), is(true));
+        assertThat(cache.getVersion(url), is("\"v1\""));
+        for (int i = 0; i < 10; i++) {
+            assertThat(cache.revalidate(url), is(false));
+        }
+        assertThat(this.server.getRequestCount(), is(1));
+        assertThat(cache.getMetrics().getNumRevalidations(), is(1L));
+    }
+
+    @Test
+    public void unchangedImageIsOnlyRevalidatedWithItsETag() throws Exception {
+        final AvatarCache cache = createCache(0);
+        final String url = this.server.url("/avatar.png").toString();
+        cache.revalidate(url);
+        this.server.takeRequest();
+
+        assertThat(cache.revalidate(url), is(false));
+        final RecordedRequest conditionalRequest = this.server.takeRequest();
+        assertThat(conditionalRequest.getHeader("If-None-Match"), is("\"v1\""));
+        assertThat(cache.getMetrics().getNumNotModified(), is(1L));
+        assertThat(cache.getVersion(url), is("\"v1\""));
+    }
+
+    @Test
+    public void changedImageGetsANewVersion() throws IOException {
+        final AvatarCache cache = createCache(0);
+        final String url = this.server.url("/avatar.png").toString();
+        cache.revalidate(url);
+
+        this.eTag = "\"v2\"";
+        assertThat(cache.revalidate(url), is(true));
+        assertThat(cache.getVersion(url), is("\"v2\""));
+        assertThat(cache.getMetrics().getNumNotModified(), is(0L));
+    }
+
+    @Test
+    public void lastModifiedIsUsedWithoutAnETag() throws Exception {
+        this.eTag = null;
+        this.lastModified = "Mon, 02 Oct 2017 10:00:00 GMT";
+        final AvatarCache cache = createCache(60000);
+        final String url = this.server.url("/avatar.png").toString();
+        cache.revalidate(url);
+        this.server.takeRequest();
+        assertThat(cache.getVersion(url), is(this.lastModified));
+
+        // A known change is checked straight away, even within the TTL
+        cache.invalidate(url);
+        assertThat(cache.revalidate(url), is(false));
+        assertThat(this.server.takeRequest().getHeader("If-Modified-Since"), is(this.lastModified));
+    }
+
+    @Test
+    public void failedRevalidationKeepsTheVersion() throws IOException {
+        final AvatarCache cache = createCache(0);
+        final String url = this.server.url("/missing.png").toString();
+        this.server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(final RecordedRequest request) {
+                return new MockResponse().setResponseCode(404);
+            }
+        });
+
+        assertThat(cache.revalidate(url), is(false));
+        assertThat(this.versions.get(url), is(nullValue()));
+    }
+
+    @Test
+    public void clearForgetsVersionsAndWhenImagesWereChecked() throws IOException {
+        final AvatarCache cache = createCache(60000);
+        final String url = this.server.url("/avatar.png").toString();
+        cache.revalidate(url);
+
+        cache.clear();
+        assertThat(cache.hasVersion(url), is(false));
+        assertThat(cache.revalidate(url), is(true));
+        assertThat(this.server.getRequestCount(), is(2));
+    }
+
+    @Test
+    public void loadsAreCountedAsHitsOrDecodes() {
+        final AvatarCache cache = createCache(0);
+        cache.recordLoad(true, 1);
+        cache.recordLoad(true, 2);
+        cache.recordLoad(true, 3);
+        cache.recordLoad(false, 30);
+        cache.recordLoad(false, 10);
+
+        final ImageCacheMetrics metrics = cache.getMetrics();
+        assertThat(metrics.getNumLoads(), is(5L));
+        assertThat(metrics.getMemoryHitRate(), is(0.6));
+        assertThat(metrics.getNumDecodes(), is(2L));
+        assertThat(metrics.getAverageDecodeMs(), is(20L));
+        assertThat(metrics.getMaxDecodeMs(), is(30L));
+    }
+
+    private AvatarCache createCache(final long revalidateAfterMs) {
+        return new AvatarCache(this.client, new AvatarCache.VersionStore() {
+            @Override
+            public String get(final String url) {
+                return versions.get(url);
+            }
+
+            @Override
+            public void put(final String url, final String version) {
+                versions.put(url, version);
+            }
+
+            @Override
+            public void clear() {
+                versions.clear();
+            }
+        }, revalidateAfterMs);
+    }
+}
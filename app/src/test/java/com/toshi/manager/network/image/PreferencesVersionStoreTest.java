@@ -0,0 +1,102 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.toshi.manager.network.image;
+
+
+import android.content.SharedPreferences;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class PreferencesVersionStoreTest {
+
+    private Map<String, String> stored;
+    private SharedPreferences prefs;
+
+    @Before
+    public void setup() {
+        this.stored = new HashMap<>();
+        this.prefs = createPrefs(this.stored);
+    }
+
+    @Test
+    public void leastRecentlyUsedUrlIsDroppedWhenFull() {
+        final PreferencesVersionStore store = new PreferencesVersionStore(this.prefs, 3);
+        store.put("a", "\"v1\"");
+        store.put("b", "\"v1\"");
+        store.put("c", "\"v1\"");
+        assertThat(store.get("a"), is("\"v1\""));
+
+        store.put("d", "\"v1\"");
+
+        assertThat(store.get("b"), is(nullValue()));
+        assertThat(this.stored.containsKey("b"), is(false));
+        assertThat(store.get("a"), is("\"v1\""));
+        assertThat(this.stored.size(), is(3));
+    }
+
+    @Test
+    public void oldestStoredVersionsArePrunedOnLoad() {
+        for (int i = 1; i <= 5; i++) {
+            this.stored.put("url " + i, i + ";\"v" + i + "\"");
+        }
+
+        final PreferencesVersionStore store = new PreferencesVersionStore(this.prefs, 3);
+
+        assertThat(store.get("url 1"), is(nullValue()));
+        assertThat(store.get("url 2"), is(nullValue()));
+        assertThat(store.get("url 5"), is("\"v5\""));
+        assertThat(this.stored.containsKey("url 1"), is(false));
+        assertThat(this.stored.size(), is(3));
+    }
+
+    @Test
+    public void storedVersionsSurviveARestart() {
+        new PreferencesVersionStore(this.prefs, 3).put("a", "Mon, 02 Oct 2017 10:00:00 GMT");
+        assertThat(new PreferencesVersionStore(this.prefs, 3).get("a"), is("Mon, 02 Oct 2017 10:00:00 GMT"));
+    }
+
+    // Backs a SharedPreferences mock with a map; edits are applied straight away
+    private static SharedPreferences createPrefs(final Map<String, String> stored) {
+        final SharedPreferences prefs = Mockito.mock(SharedPreferences.class);
+        final SharedPreferences.Editor editor = Mockito.mock(SharedPreferences.Editor.class);
+        Mockito.doAnswer(invocation -> new HashMap<>(stored)).when(prefs).getAll();
+        Mockito.when(prefs.edit()).thenReturn(editor);
+        Mockito.doAnswer(invocation -> {
+            stored.put((String) invocation.getArguments()[0], (String) invocation.getArguments()[1]);
+            return editor;
+        }).when(editor).putString(Mockito.anyString(), Mockito.anyString());
+        Mockito.doAnswer(invocation -> {
+            stored.remove((String) invocation.getArguments()[0]);
+            return editor;
+        }).when(editor).remove(Mockito.anyString());
+        Mockito.doAnswer(invocation -> {
+            stored.clear();
+            return editor;
+        }).when(editor).clear();
+        return prefs;
+    }
+}
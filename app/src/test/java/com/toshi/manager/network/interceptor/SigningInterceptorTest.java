@@ -0,0 +1,175 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.toshi.manager.network.interceptor;
+
+
+import com.toshi.crypto.HDWallet;
+import com.toshi.crypto.cryptohash.FastKeccak256;
+import com.toshi.crypto.util.HashUtil;
+import com.toshi.manager.network.ServerClock;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.MediaType;
+import okhttp3.MultipartBody;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.internal.http.HttpDate;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.Okio;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class SigningInterceptorTest {
+
+    private static final MediaType JSON = MediaType.parse("application/json");
+    private static final MediaType JPEG = MediaType.parse("image/jpeg");
+    private static final int FOUR_MB = 4 * 1024 * 1024;
+    // How far ahead of the local clock the stub server runs, and how far off it lets a timestamp be
+    private static final long SKEW_SECONDS = TimeUnit.HOURS.toSeconds(2);
+    private static final long TIMESTAMP_WINDOW_SECONDS = 60;
+    // The body the services send when Toshi-Timestamp is outside the window
+    private static final String INVALID_TIMESTAMP_BODY = "{\"errors\": [{\"id\": \"invalid_timestamp\", "
+            + "\"message\": \"The difference between the timestamp and the current time is too large\"}]}";
+
+    @Test
+    public void streamedHashMatchesMaterialisedHashForJsonBody() throws IOException {
+        final RequestBody body = RequestBody.create(JSON, "{\"username\":\"toshi\",\"name\":\"Toshi\"}");
+        assertThat(Arrays.equals(SigningInterceptor.hashBody(body), hashMaterialised(body)), is(true));
+    }
+
+    @Test
+    public void streamedHashMatchesMaterialisedHashForMultiMegabyteUpload() throws IOException {
+        final byte[] image = new byte[FOUR_MB];
+        new Random(11).nextBytes(image);
+        final RequestBody body = new MultipartBody.Builder()
+                .setType(MultipartBody.FORM)
+                .addFormDataPart("Profile-Image-Upload", "avatar.jpg", RequestBody.create(JPEG, image))
+                .build();
+
+        assertThat(Arrays.equals(SigningInterceptor.hashBody(body), hashMaterialised(body)), is(true));
+    }
+
+    @Test
+    public void digestSinkNeverHoldsMoreThanABufferedSegmentAtOnce() throws IOException {
+        final long bodySize = 8L * FOUR_MB;
+        final DigestSink digestSink = new DigestSink(new FastKeccak256());
+        final long[] largestWrite = {0};
+        final long[] totalWritten = {0};
+        final BufferedSink sink = Okio.buffer(new ForwardingSink(digestSink) {
+            @Override
+            public void write(final Buffer source, final long byteCount) throws IOException {
+                largestWrite[0] = Math.max(largestWrite[0], byteCount);
+                totalWritten[0] += byteCount;
+                super.write(source, byteCount);
+                assertThat(source.size(), is(0L));
+            }
+        });
+
+        // The body is generated on the fly, so the only copy of it lives in the sink buffers
+        final byte[] chunk = new byte[64 * 1024];
+        new Random(5).nextBytes(chunk);
+        for (long written = 0; written < bodySize; written += chunk.length) {
+            sink.write(chunk);
+        }
+        sink.close();
+
+        assertThat(totalWritten[0], is(bodySize));
+        assertThat(largestWrite[0], lessThanOrEqualTo((long) chunk.length));
+        assertThat(digestSink.digest().length, is(HashUtil.SHA3_LENGTH));
+    }
+
+    @Test
+    public void rejectedTimestampIsSignedAgainWithTheServerTime() throws IOException, InterruptedException {
+        final MockWebServer server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(final RecordedRequest request) {
+                final long serverTime = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + SKEW_SECONDS;
+                final long timestamp = Long.parseLong(request.getHeader("Toshi-Timestamp"));
+                final MockResponse response = new MockResponse()
+                        .setHeader("Date", HttpDate.format(new Date(TimeUnit.SECONDS.toMillis(serverTime))));
+                return Math.abs(serverTime - timestamp) > TIMESTAMP_WINDOW_SECONDS
+                        ? response.setResponseCode(400).setBody(INVALID_TIMESTAMP_BODY)
+                        : response.setBody("{}");
+            }
+        });
+        server.start();
+        ServerClock.get().reset();
+
+        final HDWallet wallet = Mockito.mock(HDWallet.class);
+        Mockito.when(wallet.signIdentity(Mockito.anyString())).thenAnswer(invocation ->
+                "signed " + ((String) invocation.getArguments()[0]).replace('\n', '|'));
+        Mockito.when(wallet.getOwnerAddress()).thenReturn("0x0");
+        final OkHttpClient client = new OkHttpClient.Builder()
+                .addInterceptor(new SigningInterceptor() {
+                    @Override
+                    public HDWallet getWallet() {
+                        return wallet;
+                    }
+                })
+                .build();
+
+        try {
+            // Stamped from the local clock, which is two hours behind the server
+            final long staleTimestamp = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+            final Request request = new Request.Builder()
+                    .url(server.url("/v1/user").newBuilder().addQueryParameter("timestamp", String.valueOf(staleTimestamp)).build())
+                    .build();
+            final Response response = client.newCall(request).execute();
+            assertThat(response.code(), is(200));
+            response.close();
+
+            assertThat(server.getRequestCount(), is(2));
+            final RecordedRequest rejected = server.takeRequest();
+            final RecordedRequest resigned = server.takeRequest();
+            assertThat(rejected.getHeader("Toshi-Timestamp"), is(String.valueOf(staleTimestamp)));
+            final long correctedTimestamp = Long.parseLong(resigned.getHeader("Toshi-Timestamp"));
+            assertThat(Math.abs(correctedTimestamp - staleTimestamp - SKEW_SECONDS), is(lessThanOrEqualTo(2L)));
+            assertThat(resigned.getHeader("Toshi-Signature"), is("signed GET|/v1/user|" + correctedTimestamp + "|"));
+            assertThat(resigned.getPath(), is("/v1/user"));
+        } finally {
+            ServerClock.get().reset();
+            server.shutdown();
+        }
+    }
+
+    private byte[] hashMaterialised(final RequestBody body) throws IOException {
+        final Buffer buffer = new Buffer();
+        body.writeTo(buffer);
+        return HashUtil.sha3(buffer.readByteArray());
+    }
+}
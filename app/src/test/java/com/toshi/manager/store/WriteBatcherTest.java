@@ -0,0 +1,160 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.toshi.manager.store;
+
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class WriteBatcherTest {
+
+    private ScheduledExecutorService executor;
+
+    @Before
+    public void setup() {
+        this.executor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        this.executor.shutdownNow();
+    }
+
+    @Test
+    public void writesAreHandedOverInOrder() throws InterruptedException {
+        final int numWrites = 1000;
+        final List<Integer> written = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch latch = new CountDownLatch(numWrites);
+        final WriteBatcher<Integer> batcher = new WriteBatcher<>(this.executor, 16, 5, batch -> {
+            written.addAll(batch);
+            for (int i = 0; i < batch.size(); i++) latch.countDown();
+        });
+
+        for (int i = 0; i < numWrites; i++) batcher.enqueue(i);
+
+        assertThat(latch.await(10, TimeUnit.SECONDS), is(true));
+        for (int i = 0; i < numWrites; i++) {
+            assertThat(written.get(i), is(i));
+        }
+    }
+
+    @Test
+    public void batchesNeverExceedMaxSize() throws InterruptedException {
+        final int numWrites = 500;
+        final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch latch = new CountDownLatch(numWrites);
+        final WriteBatcher<Integer> batcher = new WriteBatcher<>(this.executor, 32, 50, batch -> {
+            batchSizes.add(batch.size());
+            for (int i = 0; i < batch.size(); i++) latch.countDown();
+        });
+
+        for (int i = 0; i < numWrites; i++) batcher.enqueue(i);
+
+        assertThat(latch.await(10, TimeUnit.SECONDS), is(true));
+        for (final int batchSize : batchSizes) {
+            assertThat(batchSize, lessThanOrEqualTo(32));
+        }
+    }
+
+    @Test
+    public void writesQueuedWithinDelayShareABatch() throws InterruptedException {
+        final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch latch = new CountDownLatch(3);
+        final WriteBatcher<Integer> batcher = new WriteBatcher<>(this.executor, 100, 500, batch -> {
+            batchSizes.add(batch.size());
+            for (int i = 0; i < batch.size(); i++) latch.countDown();
+        });
+
+        batcher.enqueue(1);
+        Thread.sleep(50);
+        batcher.enqueue(2);
+        batcher.enqueue(3);
+
+        assertThat(latch.await(10, TimeUnit.SECONDS), is(true));
+        assertThat(batchSizes, is(Collections.singletonList(3)));
+    }
+
+    @Test
+    public void openBatchDoesNotBlockTheExecutor() throws InterruptedException {
+        final List<Integer> written = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch writeLatch = new CountDownLatch(1);
+        final WriteBatcher<Integer> batcher = new WriteBatcher<>(this.executor, 100, 500, batch -> {
+            written.addAll(batch);
+            writeLatch.countDown();
+        });
+
+        batcher.enqueue(1);
+        final CountDownLatch otherWorkLatch = new CountDownLatch(1);
+        this.executor.execute(otherWorkLatch::countDown);
+
+        // Other work on the same thread runs while the batch waits for more writes
+        assertThat(otherWorkLatch.await(250, TimeUnit.MILLISECONDS), is(true));
+        assertThat(written.isEmpty(), is(true));
+        assertThat(writeLatch.await(10, TimeUnit.SECONDS), is(true));
+        assertThat(written, is(Collections.singletonList(1)));
+    }
+
+    @Test
+    public void writesQueuedTogetherAreSplitOnlyByMaxSize() throws InterruptedException {
+        final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        final List<Integer> written = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch latch = new CountDownLatch(250);
+        final WriteBatcher<Integer> batcher = new WriteBatcher<>(this.executor, 100, 0, batch -> {
+            batchSizes.add(batch.size());
+            written.addAll(batch);
+            for (int i = 0; i < batch.size(); i++) latch.countDown();
+        });
+
+        final List<Integer> writes = new ArrayList<>();
+        for (int i = 0; i < 250; i++) writes.add(i);
+        batcher.enqueueAll(writes);
+
+        assertThat(latch.await(10, TimeUnit.SECONDS), is(true));
+        assertThat(batchSizes, is(Arrays.asList(100, 100, 50)));
+        assertThat(written, is(writes));
+    }
+
+    @Test
+    public void failingBatchDoesNotStopLaterWrites() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final WriteBatcher<Integer> batcher = new WriteBatcher<>(this.executor, 1, 0, batch -> {
+            if (batch.get(0) == 1) throw new IllegalStateException("Write failed");
+            latch.countDown();
+        });
+
+        batcher.enqueue(1);
+        batcher.enqueue(2);
+
+        assertThat(latch.await(10, TimeUnit.SECONDS), is(true));
+    }
+}
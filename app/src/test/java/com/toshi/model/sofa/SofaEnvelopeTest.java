@@ -0,0 +1,149 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package com.toshi.model.sofa;
+
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class SofaEnvelopeTest {
+
+    // The regular expressions SofaEnvelope replaced, used as the reference behaviour
+    private static final Pattern HEADER_PATTERN = Pattern.compile("SOFA::.+?:");
+    private static final Pattern BODY_PATTERN = Pattern.compile("\\{.*\\}");
+    private static final String LOCAL_ONLY_REGEX = "\"" + SofaType.LOCAL_ONLY_PAYLOAD + "\":\\{.*?\\},";
+
+    private static final String PAYMENT =
+            "SOFA::Payment:{\"custom_local_only_payload\":{\"localPrice\":\"$1.00\"},"
+            + "\"value\":\"0x38d7ea4c68000\",\"txHash\":\"0xabc\",\"status\":\"unconfirmed\","
+            + "\"fromAddress\":\"0x1\",\"toAddress\":\"0x2\"}";
+
+    @Test
+    public void findsTheHeaderAndBodyOfAMessage() {
+        final String payload = "SOFA::Message:{\"body\":\"Hello\"}";
+        final SofaEnvelope envelope = SofaEnvelope.parse(payload);
+        assertThat(envelope.getHeader(), is("SOFA::Message:"));
+        assertThat(envelope.getHeaderStart(), is(0));
+        assertThat(envelope.getBodyStart(), is(14));
+        assertThat(envelope.getBodyEnd(), is(payload.length()));
+        assertThat(envelope.getBody(), is("{\"body\":\"Hello\"}"));
+    }
+
+    @Test
+    public void payloadWithoutHeaderOrBodyIsReturnedUnchanged() {
+        final String payload = "LOCAL::Timestamp";
+        final SofaEnvelope envelope = SofaEnvelope.parse(payload);
+        assertThat(envelope.getHeader(), is(nullValue()));
+        assertThat(envelope.getBody(), is(sameInstance(payload)));
+        assertThat(envelope.withoutLocalOnlyPayload(), is(sameInstance(payload)));
+    }
+
+    @Test
+    public void stripsTheLocalOnlySection() {
+        final String expected =
+                "SOFA::Payment:{\"value\":\"0x38d7ea4c68000\",\"txHash\":\"0xabc\",\"status\":\"unconfirmed\","
+                + "\"fromAddress\":\"0x1\",\"toAddress\":\"0x2\"}";
+        assertThat(SofaEnvelope.parse(PAYMENT).withoutLocalOnlyPayload(), is(expected));
+    }
+
+    @Test
+    public void matchesTheRegularExpressionsOnRealisticPayloads() {
+        for (final String payload : createRealisticPayloads()) {
+            assertMatchesRegex(payload);
+        }
+    }
+
+    @Test
+    public void matchesTheRegularExpressionsOnRandomInput() {
+        final String[] fragments = {
+                "SOFA::", "Message", ":", "{", "}", "},", "\"", "\n", "\r", " ", "a", " ",
+                "\"" + SofaType.LOCAL_ONLY_PAYLOAD + "\":{", "S", "SOFA:"
+        };
+        final Random random = new Random(14);
+        for (int i = 0; i < 20000; i++) {
+            final StringBuilder builder = new StringBuilder();
+            final int numFragments = random.nextInt(12);
+            for (int j = 0; j < numFragments; j++) {
+                builder.append(fragments[random.nextInt(fragments.length)]);
+            }
+            assertMatchesRegex(builder.toString());
+        }
+    }
+
+    private void assertMatchesRegex(final String payload) {
+        final SofaEnvelope envelope = SofaEnvelope.parse(payload);
+        assertThat(payload, envelope.getHeader(), is(regexHeader(payload)));
+        assertThat(payload, envelope.getBody(), is(regexBody(payload)));
+        assertThat(payload, envelope.withoutLocalOnlyPayload(), is(payload.replaceFirst(LOCAL_ONLY_REGEX, "")));
+    }
+
+    private static String regexHeader(final String payload) {
+        final Matcher matcher = HEADER_PATTERN.matcher(payload);
+        return matcher.find() ? matcher.group() : null;
+    }
+
+    private static String regexBody(final String payload) {
+        final Matcher matcher = BODY_PATTERN.matcher(payload);
+        return matcher.find() ? matcher.group() : payload;
+    }
+
+    // Mostly short text messages, with some payments, payment requests, commands and long messages
+    private static List<String> createRealisticPayloads() {
+        final List<String> payloads = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            payloads.add("SOFA::Message:{\"body\":\"Message number " + i + "\",\"showKeyboard\":true}");
+        }
+        for (int i = 0; i < 10; i++) {
+            payloads.add("SOFA::Message:{\"body\":\"" + createLongBody(i) + "\",\"controls\":"
+                    + "[{\"type\":\"button\",\"label\":\"Yes\",\"value\":\"yes\"},"
+                    + "{\"type\":\"button\",\"label\":\"No\",\"value\":\"no\"}]}");
+        }
+        for (int i = 0; i < 15; i++) {
+            payloads.add(PAYMENT);
+        }
+        for (int i = 0; i < 10; i++) {
+            payloads.add("SOFA::PaymentRequest:{\"custom_local_only_payload\":{\"localPrice\":\"$" + i
+                    + ".00\",\"state\":0},\"value\":\"0x38d7ea4c68000\",\"destinationAddress\":\"0x2\","
+                    + "\"body\":\"Pizza\"}");
+        }
+        for (int i = 0; i < 5; i++) {
+            payloads.add("SOFA::Command:{\"body\":\"Yes\",\"value\":\"yes\"}");
+        }
+        return payloads;
+    }
+
+    private static String createLongBody(final int seed) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            builder.append("Line ").append(seed).append('.').append(i).append(" of a long message\\n");
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package com.toshi.model.sofa;
+
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class SofaPayloadCacheTest {
+
+    private SofaPayloadCache cache;
+
+    @Before
+    public void setup() {
+        this.cache = new SofaPayloadCache(2);
+    }
+
+    @Test
+    public void parsedMessageIsReusedWhileThePayloadIsUnchanged() throws IOException {
+        final SofaMessage sofaMessage = createTextMessage("Hello");
+        final Message first = this.cache.getMessage(sofaMessage);
+        final Message second = this.cache.getMessage(sofaMessage);
+        assertThat(first.getBody(), is("Hello"));
+        assertThat(second, is(sameInstance(first)));
+    }
+
+    @Test
+    public void changedPayloadIsParsedAgain() throws IOException {
+        final SofaMessage sofaMessage = createTextMessage("Hello");
+        final Message first = this.cache.getMessage(sofaMessage);
+        sofaMessage.setPayload(SofaAdapters.get().toJson(new Message().setBody("Edited")));
+        final Message second = this.cache.getMessage(sofaMessage);
+        assertThat(second, is(not(sameInstance(first))));
+        assertThat(second.getBody(), is("Edited"));
+    }
+
+    @Test
+    public void prefetchedMessageIsReturnedFromTheCache() throws IOException {
+        final SofaMessage sofaMessage = createTextMessage("Hello");
+        this.cache.prefetch(sofaMessage);
+        final Message message = this.cache.getMessage(sofaMessage);
+        assertThat(this.cache.getMessage(sofaMessage), is(sameInstance(message)));
+    }
+
+    @Test
+    public void leastRecentlyUsedEntryIsEvicted() throws IOException {
+        final SofaMessage first = createTextMessage("First");
+        final SofaMessage second = createTextMessage("Second");
+        final SofaMessage third = createTextMessage("Third");
+        final Message firstParsed = this.cache.getMessage(first);
+        final Message secondParsed = this.cache.getMessage(second);
+        this.cache.getMessage(first);
+        this.cache.getMessage(third);
+
+        assertThat(this.cache.getMessage(first), is(sameInstance(firstParsed)));
+        assertThat(this.cache.getMessage(second), is(not(sameInstance(secondParsed))));
+    }
+
+    @Test(expected = IOException.class)
+    public void malformedPayloadThrowsWhenRead() throws IOException {
+        final SofaMessage sofaMessage = new SofaMessage().makeNew("SOFA::Message:{\"body\":}");
+        this.cache.prefetch(sofaMessage);
+        this.cache.getMessage(sofaMessage);
+    }
+
+    @Test
+    public void repeatedBindsReuseThePrefetchedPayloads() throws IOException {
+        final List<SofaMessage> messages = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            messages.add(createTextMessage("Message number " + i));
+        }
+        final SofaPayloadCache cache = new SofaPayloadCache(messages.size());
+        cache.prefetch(messages);
+
+        final List<Message> firstBind = new ArrayList<>();
+        for (final SofaMessage sofaMessage : messages) {
+            firstBind.add(cache.getMessage(sofaMessage));
+        }
+        for (int i = 0; i < messages.size(); i++) {
+            assertThat(cache.getMessage(messages.get(i)), is(sameInstance(firstBind.get(i))));
+            assertThat(firstBind.get(i).getBody(), is("Message number " + i));
+        }
+    }
+
+    private SofaMessage createTextMessage(final String body) {
+        final String payload = SofaAdapters.get().toJson(new Message().setBody(body));
+        return new SofaMessage().makeNew(payload);
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * 	Copyright (c) 2017. Toshi Inc
+ *
+ * 	This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.toshi.presenter.chat;
+
+
+import com.toshi.model.local.MessagePage;
+import com.toshi.model.sofa.SofaMessage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import rx.Single;
+import rx.schedulers.Schedulers;
+import rx.schedulers.TestScheduler;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class MessageWindowTest {
+
+    private static final int PAGE_SIZE = 10;
+    private static final int MAX_PAGES = 3;
+
+    private List<SofaMessage> storedMessages;
+    private List<SofaMessage> shownMessages;
+    private MessageWindow messageWindow;
+
+    @Before
+    public void setup() {
+        this.storedMessages = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            this.storedMessages.add(createMessage(i));
+        }
+        this.shownMessages = new ArrayList<>();
+        this.messageWindow = new MessageWindow(
+                new ListSource(),
+                new ListListener(),
+                Schedulers.immediate(),
+                PAGE_SIZE,
+                MAX_PAGES);
+    }
+
+    @Test
+    public void loadLatestShowsLastPage() {
+        this.messageWindow.loadLatest(() -> {});
+        assertThat(this.shownMessages, is(this.storedMessages.subList(90, 100)));
+        assertThat(this.messageWindow.isAtLatest(), is(true));
+    }
+
+    @Test
+    public void loadOlderPrependsPreviousPage() {
+        this.messageWindow.loadLatest(() -> {});
+        this.messageWindow.loadOlder();
+        assertThat(this.shownMessages, is(this.storedMessages.subList(80, 100)));
+    }
+
+    @Test
+    public void windowEvictsNewestPagesWhenScrollingUp() {
+        this.messageWindow.loadLatest(() -> {});
+        for (int i = 0; i < 5; i++) this.messageWindow.loadOlder();
+        assertThat(this.shownMessages, is(this.storedMessages.subList(40, 70)));
+        assertThat(this.messageWindow.isAtLatest(), is(false));
+    }
+
+    @Test
+    public void windowReloadsNewerPagesWhenScrollingDown() {
+        this.messageWindow.loadLatest(() -> {});
+        for (int i = 0; i < 5; i++) this.messageWindow.loadOlder();
+        for (int i = 0; i < 5; i++) this.messageWindow.loadNewer();
+        assertThat(this.shownMessages, is(this.storedMessages.subList(70, 100)));
+        assertThat(this.messageWindow.isAtLatest(), is(true));
+    }
+
+    @Test
+    public void loadOlderStopsAtFirstMessage() {
+        this.messageWindow.loadLatest(() -> {});
+        for (int i = 0; i < 20; i++) this.messageWindow.loadOlder();
+        assertThat(this.shownMessages, is(this.storedMessages.subList(0, 30)));
+    }
+
+    @Test
+    public void newMessageIsAppendedWhenAtLatest() {
+        this.messageWindow.loadLatest(() -> {});
+        final SofaMessage newMessage = storeNewMessage();
+        assertThat(this.messageWindow.addOrUpdateMessage(newMessage), is(true));
+        assertThat(this.shownMessages.get(this.shownMessages.size() - 1), is(newMessage));
+    }
+
+    @Test
+    public void newMessageIsLoadedLaterWhenScrolledBack() {
+        this.messageWindow.loadLatest(() -> {});
+        for (int i = 0; i < 5; i++) this.messageWindow.loadOlder();
+        final SofaMessage newMessage = storeNewMessage();
+        assertThat(this.messageWindow.addOrUpdateMessage(newMessage), is(false));
+        assertThat(this.shownMessages.contains(newMessage), is(false));
+
+        for (int i = 0; i < 5; i++) this.messageWindow.loadNewer();
+        assertThat(this.shownMessages.get(this.shownMessages.size() - 1), is(newMessage));
+    }
+
+    @Test
+    public void updatedMessageReplacesShownMessage() {
+        this.messageWindow.loadLatest(() -> {});
+        final SofaMessage updatedMessage = this.storedMessages.get(95);
+        assertThat(this.messageWindow.updateMessage(updatedMessage), is(true));
+        assertThat(this.shownMessages.size(), is(PAGE_SIZE));
+    }
+
+    @Test
+    public void deletedMessageIsRemovedAndPagingStaysAligned() {
+        this.messageWindow.loadLatest(() -> {});
+        this.messageWindow.loadOlder();
+        final SofaMessage deletedMessage = this.storedMessages.remove(85);
+        this.messageWindow.deleteMessage(deletedMessage);
+        assertThat(this.shownMessages.contains(deletedMessage), is(false));
+
+        this.messageWindow.loadOlder();
+        assertThat(this.shownMessages, is(this.storedMessages.subList(70, 99)));
+    }
+
+    @Test
+    public void hiddenMessagesAreNotShown() {
+        this.storedMessages.set(95, new SofaMessage().makeNew("SOFA::Init:{}"));
+        this.messageWindow.loadLatest(() -> {});
+        assertThat(this.shownMessages.size(), is(PAGE_SIZE - 1));
+        this.messageWindow.loadOlder();
+        assertThat(this.shownMessages.size(), is(2 * PAGE_SIZE - 1));
+    }
+
+    @Test
+    public void deletedHiddenMessageKeepsPagingAligned() {
+        this.storedMessages.set(85, new SofaMessage().makeNew("SOFA::Init:{}"));
+        this.messageWindow.loadLatest(() -> {});
+        for (int i = 0; i < 3; i++) this.messageWindow.loadOlder();
+        final SofaMessage deletedMessage = this.storedMessages.remove(85);
+        this.messageWindow.deleteMessage(deletedMessage);
+
+        this.messageWindow.loadNewer();
+        assertThat(this.shownMessages, is(this.storedMessages.subList(70, 99)));
+    }
+
+    @Test
+    public void changesWhileLatestPageLoadsAreAppliedAfterIt() {
+        final TestScheduler scheduler = new TestScheduler();
+        final MessageWindow window = new MessageWindow(
+                new ListSource(),
+                new ListListener(),
+                scheduler,
+                PAGE_SIZE,
+                MAX_PAGES);
+        window.loadLatest(() -> {});
+
+        // Broadcast after the page was read, but before it was delivered
+        final SofaMessage newMessage = storeNewMessage();
+        window.addOrUpdateMessage(newMessage);
+        final SofaMessage deletedMessage = this.storedMessages.remove(95);
+        window.deleteMessage(deletedMessage);
+        assertThat(window.isAtLatest(), is(true));
+        scheduler.triggerActions();
+
+        assertThat(this.shownMessages, is(this.storedMessages.subList(90, 100)));
+        assertThat(this.shownMessages.get(this.shownMessages.size() - 1), is(newMessage));
+    }
+
+    private SofaMessage storeNewMessage() {
+        final SofaMessage message = createMessage(this.storedMessages.size());
+        this.storedMessages.add(message);
+        return message;
+    }
+
+    private SofaMessage createMessage(final int index) {
+        return new SofaMessage().makeNew("SOFA::Message:{\"body\":\"" + index + "\"}");
+    }
+
+    private class ListSource implements MessageWindow.Source {
+        @Override
+        public Single<MessagePage> loadLatest(final int count) {
+            return load(Math.max(0, storedMessages.size() - count), count);
+        }
+
+        @Override
+        public Single<MessagePage> load(final int fromPosition, final int count) {
+            final int start = Math.min(fromPosition, storedMessages.size());
+            final int end = Math.min(storedMessages.size(), start + count);
+            final List<SofaMessage> messages = new ArrayList<>(storedMessages.subList(start, end));
+            return Single.just(new MessagePage(start, storedMessages.size(), messages));
+        }
+    }
+
+    private class ListListener implements MessageWindow.Listener {
+        @Override
+        public void onMessagesInserted(final int position, final List<SofaMessage> messages) {
+            shownMessages.addAll(position, messages);
+        }
+
+        @Override
+        public void onMessagesRemoved(final int position, final int count) {
+            shownMessages.subList(position, position + count).clear();
+        }
+
+        @Override
+        public void onMessageChanged(final int position, final SofaMessage message) {
+            shownMessages.set(position, message);
+        }
+    }
+}